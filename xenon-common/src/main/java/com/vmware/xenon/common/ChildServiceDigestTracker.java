@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import com.vmware.xenon.common.Service.ServiceOption;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestResponse;
+
+/**
+ * Tracks a digest of the started replicated children of each factory on a host. Child links
+ * are partitioned in a fixed number of ranges by their hash, and each range keeps the sum of
+ * the hashes of its children. A child update replaces its hash in the sum, so the digests are
+ * maintained in constant time per update, and nodes compare a factory by exchanging the range
+ * digests instead of the child documents.
+ *
+ * The last hash and owner of a child are kept on the service, so an update only adds the
+ * difference to its range digest. The children of a factory are only added on their first
+ * update and removed when they stop
+ */
+class ChildServiceDigestTracker {
+
+    static final int RANGE_COUNT = 256;
+
+    private static final class FactoryDigest {
+        final Map<String, StatefulService> children = new ConcurrentHashMap<>();
+        final AtomicLongArray rangeDigests = new AtomicLongArray(RANGE_COUNT);
+    }
+
+    private final Map<String, FactoryDigest> factories = new ConcurrentHashMap<>();
+
+    static int getRange(String childLink) {
+        return (int) Long.remainderUnsigned(mix(childLink.hashCode()), RANGE_COUNT);
+    }
+
+    /**
+     * Hashes the link, version, epoch and owner of a child. The update time is not included,
+     * since each node sets it when the service starts. The hash is never zero, which marks a
+     * child that is not tracked
+     */
+    static long hash(String childLink, ServiceDocument state) {
+        long h = mix(childLink.hashCode());
+        h = mix(h + state.documentVersion);
+        h = mix(h + (state.documentEpoch != null ? state.documentEpoch : 0));
+        h = mix(h + (state.documentOwner != null ? state.documentOwner.hashCode() : 0));
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * 64 bit finalizer of MurmurHash3, spreads the bits of the value across the hash
+     */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Records the current state of a started service, if it is a replicated factory child
+     */
+    void update(Service s, ServiceDocument state) {
+        if (!(s instanceof StatefulService) || !s.hasOption(ServiceOption.REPLICATION)
+                || s.hasOption(ServiceOption.FACTORY) || s.hasOption(ServiceOption.UTILITY)) {
+            return;
+        }
+        String link = s.getSelfLink();
+        String factoryLink = UriUtils.getParentPath(link);
+        if (factoryLink == null) {
+            return;
+        }
+        StatefulService child = (StatefulService) s;
+        long hash = hash(link, state);
+        long previous = child.setChildDigest(hash, state.documentOwner);
+        if (previous == hash) {
+            return;
+        }
+
+        int range = getRange(link);
+        FactoryDigest fd = this.factories.get(factoryLink);
+        if (fd == null) {
+            fd = this.factories.computeIfAbsent(factoryLink, k -> new FactoryDigest());
+        }
+        if (previous == 0) {
+            StatefulService replaced = fd.children.put(link, child);
+            if (replaced != null && replaced != child) {
+                // a new instance started before the previous one was removed
+                fd.rangeDigests.addAndGet(range, -replaced.setChildDigest(0, null));
+            }
+        }
+        fd.rangeDigests.addAndGet(range, hash - previous);
+    }
+
+    void remove(String link) {
+        String factoryLink = UriUtils.getParentPath(link);
+        if (factoryLink == null) {
+            return;
+        }
+        FactoryDigest fd = this.factories.get(factoryLink);
+        if (fd == null) {
+            return;
+        }
+        StatefulService child = fd.children.remove(link);
+        if (child != null) {
+            fd.rangeDigests.addAndGet(getRange(link), -child.setChildDigest(0, null));
+        }
+    }
+
+    /**
+     * Returns the range digests of the factory children, and the ranges with a child whose
+     * document owner is not the one returned by the owner selector. No lock is held: a child
+     * updated while the digest is read can leave its range different from the peers, and the
+     * range is then synchronized, like a range that changed
+     */
+    ChildServiceDigestResponse getDigest(String factoryLink,
+            Function<String, String> ownerSelector) {
+        ChildServiceDigestResponse rsp = new ChildServiceDigestResponse();
+        rsp.rangeDigests = new long[RANGE_COUNT];
+        FactoryDigest fd = this.factories.get(factoryLink);
+        if (fd == null) {
+            return rsp;
+        }
+        rsp.childCount = fd.children.size();
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            rsp.rangeDigests[i] = fd.rangeDigests.get(i);
+        }
+        boolean[] isOwnerMismatch = new boolean[RANGE_COUNT];
+        for (Entry<String, StatefulService> e : fd.children.entrySet()) {
+            int range = getRange(e.getKey());
+            if (isOwnerMismatch[range]) {
+                continue;
+            }
+            String owner = ownerSelector.apply(e.getKey());
+            if (owner == null || !owner.equals(e.getValue().getChildDigestOwner())) {
+                isOwnerMismatch[range] = true;
+            }
+        }
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            if (isOwnerMismatch[i]) {
+                rsp.ownerMismatchRanges.add(i);
+            }
+        }
+        return rsp;
+    }
+}
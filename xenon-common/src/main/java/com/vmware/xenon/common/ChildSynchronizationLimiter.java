@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the child service synchronizations of all factories on a host. A synchronization
+ * starts when fewer than the concurrency limit are in progress and, if a rate limit is set,
+ * the token bucket has a token. The bucket holds up to one second worth of tokens. Waiting
+ * synchronizations start in the order they were submitted, so factories share the host
+ * capacity, and synchronization after a node group change does not starve client requests
+ */
+class ChildSynchronizationLimiter {
+
+    public static final int DEFAULT_CONCURRENCY_LIMIT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "ChildSynchronizationLimiter.CONCURRENCY_LIMIT",
+            4096);
+
+    /**
+     * Synchronizations started per second, across all factories. Zero disables rate limiting
+     */
+    public static final int DEFAULT_RATE_LIMIT_PER_SECOND = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "ChildSynchronizationLimiter.RATE_LIMIT_PER_SECOND",
+            0);
+
+    private final ServiceHost host;
+    private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    private int activeCount;
+    private int concurrencyLimit = DEFAULT_CONCURRENCY_LIMIT;
+    private int rateLimitPerSecond = DEFAULT_RATE_LIMIT_PER_SECOND;
+    private double tokenCount;
+    private long lastRefillNanos = System.nanoTime();
+    private boolean isStartScheduled;
+    private long concurrencyLimitedCount;
+    private long rateLimitedCount;
+
+    ChildSynchronizationLimiter(ServiceHost host) {
+        this.host = host;
+    }
+
+    synchronized void setConcurrencyLimit(int limit) {
+        this.concurrencyLimit = limit;
+    }
+
+    synchronized void setRateLimitPerSecond(int limit) {
+        this.rateLimitPerSecond = limit;
+        this.tokenCount = Math.min(this.tokenCount, limit);
+    }
+
+    synchronized int getWaitingCount() {
+        return this.waiting.size();
+    }
+
+    synchronized int getActiveCount() {
+        return this.activeCount;
+    }
+
+    /**
+     * Number of times waiting synchronizations were held back because the concurrency limit was
+     * reached
+     */
+    synchronized long getConcurrencyLimitedCount() {
+        return this.concurrencyLimitedCount;
+    }
+
+    /**
+     * Number of times waiting synchronizations were held back because the rate limit had no
+     * token left
+     */
+    synchronized long getRateLimitedCount() {
+        return this.rateLimitedCount;
+    }
+
+    /**
+     * Runs the synchronization when the limits allow it. The synchronization must call
+     * {@link #release()} once it completes
+     */
+    void submit(Runnable synchronization) {
+        synchronized (this) {
+            this.waiting.add(synchronization);
+        }
+        startWaiting();
+    }
+
+    void release() {
+        synchronized (this) {
+            this.activeCount--;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Releases a synchronization that did not run, for example because its factory aborted the
+     * synchronization while it was waiting, and returns its rate limit token
+     */
+    void releaseUnused() {
+        synchronized (this) {
+            this.activeCount--;
+            if (this.rateLimitPerSecond > 0) {
+                this.tokenCount = Math.min(this.rateLimitPerSecond, this.tokenCount + 1);
+            }
+        }
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        List<Runnable> ready = null;
+        long delayMicros = 0;
+        synchronized (this) {
+            refill();
+            while (!this.waiting.isEmpty() && this.activeCount < this.concurrencyLimit) {
+                if (this.rateLimitPerSecond > 0) {
+                    if (this.tokenCount < 1) {
+                        delayMicros = (long) ((1 - this.tokenCount)
+                                * TimeUnit.SECONDS.toMicros(1) / this.rateLimitPerSecond);
+                        this.rateLimitedCount++;
+                        break;
+                    }
+                    this.tokenCount--;
+                }
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                this.activeCount++;
+                ready.add(this.waiting.poll());
+            }
+            if (!this.waiting.isEmpty() && this.activeCount >= this.concurrencyLimit) {
+                this.concurrencyLimitedCount++;
+            }
+
+            if (delayMicros > 0 && !this.isStartScheduled) {
+                this.isStartScheduled = true;
+            } else {
+                delayMicros = 0;
+            }
+        }
+
+        if (delayMicros > 0) {
+            this.host.schedule(() -> {
+                synchronized (this) {
+                    this.isStartScheduled = false;
+                }
+                startWaiting();
+            }, Math.max(1, delayMicros), TimeUnit.MICROSECONDS);
+        }
+
+        if (ready == null) {
+            return;
+        }
+        // run on the executor, so a synchronization that completes inline does not recurse
+        for (Runnable r : ready) {
+            try {
+                this.host.run(r);
+            } catch (IllegalStateException e) {
+                // host is stopping, the synchronization fails with a cancellation
+                r.run();
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (this.rateLimitPerSecond > 0) {
+            double added = (now - this.lastRefillNanos) * this.rateLimitPerSecond
+                    / (double) TimeUnit.SECONDS.toNanos(1);
+            this.tokenCount = Math.min(this.rateLimitPerSecond, this.tokenCount + added);
+        }
+        this.lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Thread pool used for handlers that perform blocking work. Threads are created on demand, up to
+ * the thread limit, and exit after being idle for {@link #IDLE_TIMEOUT_SECONDS}, so a large limit
+ * costs nothing while handlers are not blocked. Tasks submitted while all threads are busy are
+ * queued and counted as saturated submissions
+ */
+class ElasticExecutor extends ThreadPoolExecutor {
+
+    /**
+     * Default upper bound on threads in the host elastic executor
+     */
+    public static final int DEFAULT_THREAD_LIMIT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "ElasticExecutor.DEFAULT_THREAD_LIMIT", 256);
+
+    public static final long IDLE_TIMEOUT_SECONDS = 60;
+
+    private final AtomicInteger runningCount = new AtomicInteger();
+    private final AtomicLong saturatedCount = new AtomicLong();
+
+    ElasticExecutor(int threadLimit, Supplier<String> threadNamePrefix) {
+        super(threadLimit, threadLimit, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), createThreadFactory(threadNamePrefix));
+        allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory createThreadFactory(Supplier<String> threadNamePrefix) {
+        return r -> {
+            Thread t = new Thread(r, threadNamePrefix.get() + "/" + Utils.getNowMicrosUtc());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // getActiveCount() acquires the pool lock, track running tasks ourselves instead
+        if (this.runningCount.get() >= getMaximumPoolSize()) {
+            this.saturatedCount.incrementAndGet();
+        }
+        super.execute(command);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        this.runningCount.incrementAndGet();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        this.runningCount.decrementAndGet();
+    }
+
+    /**
+     * Number of threads currently running a task
+     */
+    int getRunningCount() {
+        return this.runningCount.get();
+    }
+
+    /**
+     * Number of tasks submitted while every thread was busy, most likely blocked in a handler
+     */
+    long getSaturatedCount() {
+        return this.saturatedCount.get();
+    }
+}
@@ -14,17 +14,23 @@
 package com.vmware.xenon.common;
 
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.services.common.NodeGroupBroadcastResponse;
 import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestRequest;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestResponse;
 import com.vmware.xenon.services.common.QueryTask;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 import com.vmware.xenon.services.common.ServiceUriPaths;
@@ -42,8 +48,34 @@ public abstract class FactoryService extends StatelessService {
         QueryTask queryTask;
         Operation maintOp;
         public URI nextPageReference;
+        ServiceMaintenanceRequest maintenanceRequest;
+
+        /**
+         * Child links from retrieved query pages, not yet synchronized
+         */
+        ArrayDeque<String> pendingLinks = new ArrayDeque<>();
+        int inFlightCount;
+        boolean isPageRequested;
+        boolean isDone;
+        long startTimeMicros;
+        long synchronizedCount;
+        long skippedCount;
+        long totalCount = -1;
+
+        /**
+         * Ranges of child links the node group agrees on, see {@link ChildServiceDigestTracker}
+         */
+        BitSet skippedRanges;
     }
 
+    public static final String STAT_NAME_CHILD_SYNCH_COUNT = "childSynchronizationCount";
+    public static final String STAT_NAME_CHILD_SYNCH_REMAINING_COUNT =
+            "childSynchronizationRemainingCount";
+    public static final String STAT_NAME_CHILD_SYNCH_RATE_PER_SECOND =
+            "childSynchronizationRatePerSecond";
+    public static final String STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT =
+            "childSynchronizationSkippedCount";
+
     /**
      * Creates a factory service instance that starts the specified child service
      * on POST
@@ -98,9 +130,17 @@ public abstract class FactoryService extends StatelessService {
     public static final Integer SELF_QUERY_RESULT_LIMIT = Integer.getInteger(
             Utils.PROPERTY_NAME_PREFIX
             + "FactoryService.SELF_QUERY_RESULT_LIMIT", 1000);
+
+    /**
+     * Default number of child services a factory starts or synchronizes concurrently
+     */
+    public static final int SYNCHRONIZATION_PARALLELISM = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX
+            + "FactoryService.SYNCHRONIZATION_PARALLELISM", 1000);
     private EnumSet<ServiceOption> childOptions;
     private String nodeSelectorLink = ServiceUriPaths.DEFAULT_NODE_SELECTOR;
     private int selfQueryResultLimit = SELF_QUERY_RESULT_LIMIT;
+    private int synchronizationParallelism = SYNCHRONIZATION_PARALLELISM;
 
     /**
      * Creates a default instance of a factory service that can create and start instances
@@ -136,6 +176,21 @@ public abstract class FactoryService extends StatelessService {
         return this.selfQueryResultLimit;
     }
 
+    /**
+     * Sets the number of child services started or synchronized concurrently. The next query
+     * page is retrieved while the children of the current page are synchronized, so a slow
+     * child does not hold the rest. The host wide limits, see
+     * {@link ServiceHost#setChildSynchronizationConcurrencyLimit(int)} and
+     * {@link ServiceHost#setChildSynchronizationRateLimit(int)}, also apply
+     */
+    public void setSynchronizationParallelism(int parallelism) {
+        this.synchronizationParallelism = parallelism;
+    }
+
+    public int getSynchronizationParallelism() {
+        return this.synchronizationParallelism;
+    }
+
     @Override
     public final void handleStart(Operation startPost) {
 
@@ -209,9 +264,123 @@ public abstract class FactoryService extends StatelessService {
 
         QueryTask queryTask = buildChildQueryTask();
         ctx.queryTask = queryTask;
+        ctx.startTimeMicros = Utils.getNowMicrosUtc();
+        if (ctx.maintOp.hasBody()) {
+            ctx.maintenanceRequest = ctx.maintOp.getBody(ServiceMaintenanceRequest.class);
+        }
+        if (ctx.originalSelection != null) {
+            setStat(STAT_NAME_CHILD_SYNCH_COUNT, 0);
+            setStat(STAT_NAME_CHILD_SYNCH_RATE_PER_SECOND, 0);
+            setStat(STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT, 0);
+            queryForChildCount(ctx);
+            return;
+        }
         queryForChildren(ctx);
     }
 
+    /**
+     * Counts the children across the node group, for the remaining count statistic, then
+     * compares the child digests of the nodes
+     */
+    private void queryForChildCount(SynchronizationContext ctx) {
+        QueryTask countTask = buildChildQueryTask();
+        countTask.querySpec.options.add(QueryOption.COUNT);
+        countTask.querySpec.resultLimit = null;
+        Operation countPost = Operation
+                .createPost(UriUtils.buildUri(getHost(), ServiceUriPaths.CORE_QUERY_TASKS))
+                .setBody(countTask)
+                .setCompletion((o, e) -> {
+                    ServiceDocumentQueryResult rsp = e == null
+                            ? o.getBody(QueryTask.class).results : null;
+                    if (rsp != null && rsp.documentCount != null) {
+                        synchronized (ctx) {
+                            ctx.totalCount = rsp.documentCount;
+                        }
+                        updateSynchronizationStats(ctx);
+                    }
+                    compareChildDigests(ctx);
+                });
+        sendRequest(countPost);
+    }
+
+    /**
+     * Retrieves the child digests from all nodes and skips the ranges of child links where
+     * the nodes agree, so a node group change that does not affect this factory needs one
+     * request per node, instead of one synchronization per child
+     */
+    private void compareChildDigests(SynchronizationContext ctx) {
+        URI synchUri = UriUtils.buildUri(getHost(), UriUtils.buildUriPath(
+                getPeerNodeSelectorPath(), ServiceUriPaths.SERVICE_URI_SUFFIX_SYNCHRONIZATION));
+        Operation digestPost = Operation.createPost(synchUri)
+                .setBody(ChildServiceDigestRequest.create(getSelfLink()))
+                .setReferer(getUri())
+                .setCompletion((o, e) -> {
+                    BitSet skippedRanges = null;
+                    if (e == null) {
+                        skippedRanges = findAgreedRanges(ctx,
+                                o.getBody(NodeGroupBroadcastResponse.class));
+                    }
+                    if (skippedRanges == null || skippedRanges
+                            .cardinality() < ChildServiceDigestTracker.RANGE_COUNT) {
+                        synchronized (ctx) {
+                            ctx.skippedRanges = skippedRanges;
+                        }
+                        queryForChildren(ctx);
+                        return;
+                    }
+
+                    // all nodes have the same children started, with the expected owners
+                    synchronized (ctx) {
+                        ctx.skippedCount = ctx.totalCount;
+                        ctx.synchronizedCount = ctx.totalCount;
+                    }
+                    completeSynchronization(ctx, null);
+                });
+        getHost().broadcastRequest(getPeerNodeSelectorPath(), false, digestPost);
+    }
+
+    /**
+     * Returns the ranges where the digests of all nodes are equal and the children have the
+     * owner selected in the current node group, or null if a node did not respond, or the
+     * started children do not match the children in the index, for example after the node
+     * group restarts
+     */
+    private BitSet findAgreedRanges(SynchronizationContext ctx, NodeGroupBroadcastResponse rsp) {
+        long totalCount;
+        synchronized (ctx) {
+            totalCount = ctx.totalCount;
+        }
+        if (totalCount < 0 || !rsp.failures.isEmpty() || rsp.jsonResponses.isEmpty()
+                || rsp.jsonResponses.size() < ctx.originalSelection.availableNodeCount) {
+            return null;
+        }
+
+        BitSet agreedRanges = new BitSet(ChildServiceDigestTracker.RANGE_COUNT);
+        agreedRanges.set(0, ChildServiceDigestTracker.RANGE_COUNT);
+        long[] firstDigests = null;
+        for (String json : rsp.jsonResponses.values()) {
+            ChildServiceDigestResponse digest = Utils.fromJson(json,
+                    ChildServiceDigestResponse.class);
+            if (digest.childCount != totalCount || digest.rangeDigests == null
+                    || digest.rangeDigests.length != ChildServiceDigestTracker.RANGE_COUNT) {
+                return null;
+            }
+            for (Integer range : digest.ownerMismatchRanges) {
+                agreedRanges.clear(range);
+            }
+            if (firstDigests == null) {
+                firstDigests = digest.rangeDigests;
+                continue;
+            }
+            for (int i = 0; i < firstDigests.length; i++) {
+                if (firstDigests[i] != digest.rangeDigests[i]) {
+                    agreedRanges.clear(i);
+                }
+            }
+        }
+        return agreedRanges;
+    }
+
     protected void queryForChildren(SynchronizationContext ctx) {
         URI queryFactoryUri = UriUtils.buildUri(this.getHost(), ServiceUriPaths.CORE_QUERY_TASKS);
         // check with the document store if any documents exist for services
@@ -222,26 +391,29 @@ public abstract class FactoryService extends StatelessService {
                 .setBody(ctx.queryTask)
                 .setCompletion((o, e) -> {
                     if (getHost().isStopping()) {
-                        ctx.maintOp.fail(new CancellationException("host is stopping"));
+                        completeSynchronization(ctx,
+                                new CancellationException("host is stopping"));
                         return;
                     }
 
                     if (e != null) {
-                        if (!getHost().isStopping()) {
-                            logWarning("Query failed with %s", e.toString());
-                        }
-                        ctx.maintOp.fail(e);
+                        logWarning("Query failed with %s", e.toString());
+                        completeSynchronization(ctx, e);
                         return;
                     }
 
                     ServiceDocumentQueryResult rsp = o.getBody(QueryTask.class).results;
 
                     if (rsp.nextPageLink == null) {
-                        ctx.maintOp.complete();
+                        completeSynchronization(ctx, null);
                         return;
                     }
 
-                    ctx.nextPageReference = UriUtils.buildUri(queryFactoryUri, rsp.nextPageLink);
+                    synchronized (ctx) {
+                        ctx.nextPageReference = UriUtils.buildUri(queryFactoryUri,
+                                rsp.nextPageLink);
+                        ctx.isPageRequested = true;
+                    }
                     processChildQueryPage(ctx, true);
                 });
 
@@ -296,16 +468,12 @@ public abstract class FactoryService extends StatelessService {
     }
 
     /**
-     * Retrieves a page worth of results for child service links and restarts them
+     * Retrieves a page worth of results for child service links and queues them for start or
+     * synchronization. The caller marks the page as requested
      */
     private void processChildQueryPage(SynchronizationContext ctx, boolean verifyOwner) {
-        if (ctx.nextPageReference == null) {
-            ctx.maintOp.complete();
-            return;
-        }
-
         if (getHost().isStopping()) {
-            ctx.maintOp.fail(new CancellationException());
+            completeSynchronization(ctx, new CancellationException());
             return;
         }
 
@@ -314,70 +482,166 @@ public abstract class FactoryService extends StatelessService {
             return;
         }
 
+        URI pageReference;
+        synchronized (ctx) {
+            pageReference = ctx.nextPageReference;
+        }
         CompletionHandler c = (o, e) -> {
             if (e != null) {
                 if (!getHost().isStopping()) {
                     logWarning("Failure retrieving query results from %s: %s",
-                            ctx.nextPageReference,
-                            e.toString());
+                            pageReference, e.toString());
                 }
-                ctx.maintOp.fail(new IllegalStateException(
+                completeSynchronization(ctx, new IllegalStateException(
                         "failure retrieving query page results"));
                 return;
             }
 
             ServiceDocumentQueryResult rsp = o.getBody(QueryTask.class).results;
-            if (rsp.documentCount == 0 || rsp.documentLinks.isEmpty()) {
-                ctx.maintOp.complete();
-                return;
+            synchronized (ctx) {
+                ctx.isPageRequested = false;
+                ctx.pendingLinks.addAll(rsp.documentLinks);
+                ctx.nextPageReference = rsp.nextPageLink == null || rsp.documentLinks.isEmpty()
+                        ? null : UriUtils.buildUri(pageReference, rsp.nextPageLink);
             }
-            synchronizeChildrenInQueryPage(ctx, rsp);
+            synchronizeChildren(ctx);
         };
-        sendRequest(Operation.createGet(ctx.nextPageReference).setCompletion(c));
+        sendRequest(Operation.createGet(pageReference).setCompletion(c));
     }
 
-    private void synchronizeChildrenInQueryPage(SynchronizationContext ctx,
-            ServiceDocumentQueryResult rsp) {
-        if (getProcessingStage() == ProcessingStage.STOPPED) {
-            ctx.maintOp.fail(new CancellationException());
+    /**
+     * Starts or synchronizes pending children, keeping up to the synchronization parallelism
+     * in flight. Retrieves the next query page once all links of the retrieved pages are in
+     * flight, and completes the synchronization once all children are done
+     */
+    private void synchronizeChildren(SynchronizationContext ctx) {
+        if (getProcessingStage() == ProcessingStage.STOPPED || getHost().isStopping()) {
+            completeSynchronization(ctx, new CancellationException());
             return;
         }
-        ServiceMaintenanceRequest smr = null;
-        if (ctx.maintOp.hasBody()) {
-            smr = ctx.maintOp.getBody(ServiceMaintenanceRequest.class);
-        }
-        AtomicInteger pendingStarts = new AtomicInteger(rsp.documentLinks.size());
-        // track child service request in parallel, passing a single parent operation
-        CompletionHandler c = (so, se) -> {
-            int r = pendingStarts.decrementAndGet();
-            if (se != null && !getHost().isStopping()) {
-                logWarning("Restart for children failed: %s", se.getMessage());
-            }
 
-            if (getHost().isStopping()) {
-                ctx.maintOp.fail(new CancellationException());
+        List<String> links = null;
+        boolean isPageRequired = false;
+        boolean isComplete = false;
+        synchronized (ctx) {
+            if (ctx.isDone) {
                 return;
             }
+            while (!ctx.pendingLinks.isEmpty()
+                    && ctx.inFlightCount < this.synchronizationParallelism) {
+                String link = ctx.pendingLinks.poll();
+                if (ctx.skippedRanges != null
+                        && ctx.skippedRanges.get(ChildServiceDigestTracker.getRange(link))) {
+                    ctx.skippedCount++;
+                    ctx.synchronizedCount++;
+                    continue;
+                }
+                if (links == null) {
+                    links = new ArrayList<>();
+                }
+                links.add(link);
+                ctx.inFlightCount++;
+            }
+            if (ctx.pendingLinks.isEmpty() && !ctx.isPageRequested) {
+                if (ctx.nextPageReference != null) {
+                    ctx.isPageRequested = true;
+                    isPageRequired = true;
+                } else if (ctx.inFlightCount == 0) {
+                    isComplete = true;
+                }
+            }
+        }
 
-            if (r != 0) {
-                return;
+        if (isComplete) {
+            completeSynchronization(ctx, null);
+            return;
+        }
+
+        if (links != null) {
+            ChildSynchronizationLimiter limiter = getHost().getChildSynchronizationLimiter();
+            for (String link : links) {
+                limiter.submit(() -> {
+                    boolean isAborted;
+                    synchronized (ctx) {
+                        isAborted = ctx.isDone;
+                    }
+                    if (isAborted) {
+                        // the synchronization was aborted while the child was waiting, leave
+                        // the slot and token to the next synchronization
+                        limiter.releaseUnused();
+                        return;
+                    }
+                    Operation post = Operation.createPost(this, link)
+                            .setCompletion((o, e) -> {
+                                limiter.release();
+                                handleChildSynchronizationCompletion(ctx, e);
+                            })
+                            .setReferer(getUri());
+                    startOrSynchChildService(link, post, ctx.maintenanceRequest);
+                });
             }
+        }
 
-            ctx.nextPageReference = rsp.nextPageLink == null ? null : UriUtils.buildUri(
-                    ctx.nextPageReference, rsp.nextPageLink);
+        if (isPageRequired) {
             processChildQueryPage(ctx, true);
-        };
+        }
+    }
 
-        for (String link : rsp.documentLinks) {
-            if (getHost().isStopping()) {
-                ctx.maintOp.fail(new CancellationException());
+    private void handleChildSynchronizationCompletion(SynchronizationContext ctx, Throwable e) {
+        if (e != null && !getHost().isStopping()) {
+            logWarning("Restart for children failed: %s", e.getMessage());
+        }
+        synchronized (ctx) {
+            ctx.inFlightCount--;
+            ctx.synchronizedCount++;
+        }
+        if (ctx.originalSelection != null) {
+            updateSynchronizationStats(ctx);
+        }
+        synchronizeChildren(ctx);
+    }
+
+    private void updateSynchronizationStats(SynchronizationContext ctx) {
+        long synchronizedCount;
+        long skippedCount;
+        long totalCount;
+        synchronized (ctx) {
+            synchronizedCount = ctx.synchronizedCount;
+            skippedCount = ctx.skippedCount;
+            totalCount = ctx.totalCount;
+        }
+        setStat(STAT_NAME_CHILD_SYNCH_COUNT, synchronizedCount);
+        setStat(STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT, skippedCount);
+        if (totalCount >= 0) {
+            setStat(STAT_NAME_CHILD_SYNCH_REMAINING_COUNT,
+                    Math.max(0, totalCount - synchronizedCount));
+        }
+        long elapsedMicros = Utils.getNowMicrosUtc() - ctx.startTimeMicros;
+        if (elapsedMicros > 0) {
+            setStat(STAT_NAME_CHILD_SYNCH_RATE_PER_SECOND,
+                    synchronizedCount * (double) TimeUnit.SECONDS.toMicros(1) / elapsedMicros);
+        }
+    }
+
+    /**
+     * Completes the synchronization once. Children already in flight finish on their own
+     */
+    private void completeSynchronization(SynchronizationContext ctx, Throwable e) {
+        synchronized (ctx) {
+            if (ctx.isDone) {
                 return;
             }
-            Operation post = Operation.createPost(this, link)
-                    .setCompletion(c)
-                    .setReferer(getUri());
-            startOrSynchChildService(link, post, smr);
+            ctx.isDone = true;
+        }
+        if (e != null) {
+            ctx.maintOp.fail(e);
+            return;
+        }
+        if (ctx.originalSelection != null) {
+            updateSynchronizationStats(ctx);
+            setStat(STAT_NAME_CHILD_SYNCH_REMAINING_COUNT, 0);
         }
+        ctx.maintOp.complete();
     }
 
     private void startOrSynchChildService(String link, Operation post, ServiceMaintenanceRequest smr) {
@@ -665,15 +929,9 @@ public abstract class FactoryService extends StatelessService {
                 .setTermMatchValue(kind);
         task.querySpec.query.addBooleanClause(kindClause);
 
-        sendRequest(Operation.createPost(this, ServiceUriPaths.CORE_QUERY_TASKS).setBody(task)
-                .setCompletion((o, e) -> {
-                    if (e != null) {
-                        op.fail(e);
-                        return;
-                    }
-                    QueryTask qrt = o.getBody(QueryTask.class);
-                    op.setBodyNoCloning(qrt.results).complete();
-                }));
+        ODataUtils.sendDirectQuery(this, op, task, qrt -> {
+            op.setBodyNoCloning(qrt.results).complete();
+        });
     }
 
     public static void completeGetWithQuery(Service s, Operation op,
@@ -880,7 +1138,7 @@ public abstract class FactoryService extends StatelessService {
                 .setCompletion((o, e) -> {
                     OperationContext.restoreOperationContext(opContext);
                     if (e != null) {
-                        ctx.maintOp.fail(e);
+                        completeSynchronization(ctx, e);
                         return;
                     }
 
@@ -888,14 +1146,15 @@ public abstract class FactoryService extends StatelessService {
                     if (rsp.availableNodeCount != ctx.originalSelection.availableNodeCount
                             || rsp.membershipUpdateTimeMicros != ctx.originalSelection.membershipUpdateTimeMicros) {
                         logWarning("Membership changed, aborting synch");
-                        ctx.maintOp.fail(new CancellationException(
+                        completeSynchronization(ctx, new CancellationException(
                                 "aborted due to node group change"));
                         return;
                     }
 
                     if (rsp.isLocalHostOwner == false) {
                         logWarning("No longer owner, aborting synch. New owner %s", rsp.ownerNodeId);
-                        ctx.maintOp.fail(new CancellationException("aborted due to owner change"));
+                        completeSynchronization(ctx,
+                                new CancellationException("aborted due to owner change"));
                         return;
                     }
                     processChildQueryPage(ctx, false);
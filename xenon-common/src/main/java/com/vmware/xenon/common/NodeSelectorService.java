@@ -30,6 +30,15 @@ import com.vmware.xenon.services.common.NodeState;
 public interface NodeSelectorService extends Service {
     public static final String STAT_NAME_QUEUED_REQUEST_COUNT = "queuedRequestCount";
     public static final String STAT_NAME_SYNCHRONIZATION_COUNT = "synchronizationCount";
+    public static final String STAT_NAME_REPLICATION_BATCH_COUNT = "replicationBatchCount";
+    public static final String STAT_NAME_REPLICATION_BATCHED_REQUEST_COUNT =
+            "replicationBatchedRequestCount";
+    public static final String STAT_NAME_REPLICATION_BATCH_FAILURE_COUNT =
+            "replicationBatchFailureCount";
+    public static final String STAT_NAME_REPLICATION_ASYNC_REQUEST_COUNT =
+            "replicationAsyncRequestCount";
+    public static final String STAT_NAME_REPLICATION_ASYNC_FAILURE_COUNT =
+            "replicationAsyncFailureCount";
 
     /**
      * Request to select one or more nodes from the available nodes in the node group, and optionally
@@ -72,6 +81,24 @@ public interface NodeSelectorService extends Service {
          */
         public transient ServiceDocument linkedState;
 
+        /**
+         * Infrastructure use only. Delta from the previous version to the linked state, sent to
+         * peers instead of the linked state
+         */
+        public transient ServiceDocumentDelta linkedStateDelta;
+
+        /**
+         * Infrastructure use only. Description of the linked state, with the replication policy of
+         * the service
+         */
+        public transient ServiceDocumentDescription linkedStateDescription;
+
+        /**
+         * Infrastructure use only. Service replicating the linked state, charged with the full
+         * state sent to peers that miss the base version of the delta
+         */
+        public transient Service linkedService;
+
         public EnumSet<ForwardingOption> options;
 
         public EnumSet<ServiceOption> serviceOptions;
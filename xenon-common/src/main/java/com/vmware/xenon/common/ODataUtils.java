@@ -13,6 +13,16 @@
 
 package com.vmware.xenon.common;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import com.vmware.xenon.common.ServiceDocumentDescription.TypeName;
 import com.vmware.xenon.common.UriUtils.ODataOrder;
 import com.vmware.xenon.services.common.QueryTask;
@@ -23,6 +33,39 @@ import com.vmware.xenon.services.common.QueryTask.QueryTerm;
 
 public class ODataUtils {
 
+    /**
+     * Maximum number of compiled filter expressions kept in memory. When the limit is reached
+     * the cache is cleared, so a client issuing unique filters can not grow it without bound
+     */
+    public static final int COMPILED_FILTER_CACHE_LIMIT = 1024;
+
+    /**
+     * Expiration for the index searcher and pages of paginated ($limit) OData queries
+     */
+    public static final long DEFAULT_QUERY_EXPIRATION_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private static final Map<String, Query> compiledFilters = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the query for the given OData filter expression. Filter expressions are tokenized
+     * and compiled once, subsequent calls return a copy of the cached query
+     */
+    public static Query compileFilter(String filter) {
+        Query q = compiledFilters.get(filter);
+        if (q == null) {
+            q = new ODataQueryVisitor().toQuery(filter);
+            if (q == null) {
+                return null;
+            }
+            if (compiledFilters.size() >= COMPILED_FILTER_CACHE_LIMIT) {
+                compiledFilters.clear();
+            }
+            compiledFilters.put(filter, q);
+        }
+        // callers are free to modify the returned query
+        return Utils.clone(q);
+    }
+
     /**
      * Builds a {@code QueryTask} with a fully formed query and options, from the operation URI
      * query parameters
@@ -30,11 +73,11 @@ public class ODataUtils {
     public static QueryTask toQuery(Operation op) {
         String oDataFilterParam = UriUtils.getODataFilterParamValue(op.getUri());
         if (oDataFilterParam == null) {
-            op.fail(new IllegalArgumentException("filter is required: " + op.getUri().getQuery()));
+            failBadRequest(op, "filter is required: " + op.getUri().getQuery());
             return null;
         }
 
-        Query q = new ODataQueryVisitor().toQuery(oDataFilterParam);
+        Query q = compileFilter(oDataFilterParam);
 
         Integer top = UriUtils.getODataTopParamValue(op.getUri());
         Integer skip = UriUtils.getODataSkipParamValue(op.getUri());
@@ -43,6 +86,9 @@ public class ODataUtils {
         UriUtils.ODataOrderByTuple orderBy = UriUtils.getODataOrderByParamValue(op.getUri());
 
         QueryTask task = new QueryTask();
+        task.documentKind = QueryTask.KIND;
+        task.documentExpirationTimeMicros = Utils.getNowMicrosUtc()
+                + DEFAULT_QUERY_EXPIRATION_MICROS;
         task.setDirect(true);
         task.querySpec = new QueryTask.QuerySpecification();
         task.querySpec.query.addBooleanClause(q);
@@ -51,8 +97,8 @@ public class ODataUtils {
 
         if (orderBy != null) {
             if (count) {
-                op.fail(new IllegalArgumentException(UriUtils.URI_PARAM_ODATA_COUNT
-                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_ORDER_BY));
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_COUNT
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_ORDER_BY);
                 return null;
             }
             task.querySpec.options.add(QueryOption.SORT);
@@ -66,8 +112,8 @@ public class ODataUtils {
 
         if (top != null) {
             if (count) {
-                op.fail(new IllegalArgumentException(UriUtils.URI_PARAM_ODATA_COUNT
-                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_TOP));
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_COUNT
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_TOP);
                 return null;
             }
             task.querySpec.options.add(QueryOption.TOP_RESULTS);
@@ -75,20 +121,43 @@ public class ODataUtils {
         }
 
         if (skip != null) {
-            op.fail(new IllegalArgumentException(
-                    UriUtils.URI_PARAM_ODATA_SKIP + " is not supported, see skipto"));
-            return null;
+            if (skip < 0) {
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_SKIP
+                        + " must be a non-negative integer");
+                return null;
+            }
+            if (count) {
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_COUNT
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_SKIP);
+                return null;
+            }
+            if (limit != null && limit > 0) {
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_SKIP
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_LIMIT
+                        + ", see " + UriUtils.URI_PARAM_ODATA_SKIP_TO);
+                return null;
+            }
+            if (top != null) {
+                // the skipped results are dropped by applyResultOptions()
+                try {
+                    task.querySpec.resultLimit = Math.addExact(top, skip);
+                } catch (ArithmeticException e) {
+                    failBadRequest(op, UriUtils.URI_PARAM_ODATA_TOP + " plus "
+                            + UriUtils.URI_PARAM_ODATA_SKIP + " is too large");
+                    return null;
+                }
+            }
         }
 
         if (limit != null && limit > 0) {
             if (count) {
-                op.fail(new IllegalArgumentException(UriUtils.URI_PARAM_ODATA_COUNT
-                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_LIMIT));
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_COUNT
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_LIMIT);
                 return null;
             }
             if (top != null) {
-                op.fail(new IllegalArgumentException(UriUtils.URI_PARAM_ODATA_TOP
-                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_LIMIT));
+                failBadRequest(op, UriUtils.URI_PARAM_ODATA_TOP
+                        + " cannot be used together with " + UriUtils.URI_PARAM_ODATA_LIMIT);
                 return null;
             }
             task.querySpec.resultLimit = limit;
@@ -100,11 +169,91 @@ public class ODataUtils {
         }
 
         if (q == null) {
-            op.fail(new IllegalArgumentException(UriUtils.URI_PARAM_ODATA_FILTER + " is required"
-                    + op.getUri().getQuery()));
+            failBadRequest(op, UriUtils.URI_PARAM_ODATA_FILTER + " is required"
+                    + op.getUri().getQuery());
             return null;
         }
 
         return task;
     }
+
+    private static void failBadRequest(Operation op, String message) {
+        op.setStatusCode(Operation.STATUS_CODE_BAD_REQUEST)
+                .fail(new IllegalArgumentException(message));
+    }
+
+    /**
+     * Executes a direct OData query against the document index, without creating a query task
+     * service. The consumer is invoked with the finished task, after {@code $skip} and
+     * {@code $select} have been applied to the results. Failures complete the operation
+     */
+    public static void sendDirectQuery(Service sender, Operation op, QueryTask task,
+            Consumer<QueryTask> onSuccess) {
+        Operation patch = Operation.createPatch(UriUtils.buildUri(sender.getHost(), task.indexLink))
+                .setBodyNoCloning(task)
+                .setCompletion((o, e) -> {
+                    task.querySpec.context.nativeQuery = null;
+                    task.querySpec.context.nativeSort = null;
+                    if (e != null) {
+                        op.fail(e);
+                        return;
+                    }
+                    task.results = (ServiceDocumentQueryResult) o.getBodyRaw();
+                    task.taskInfo = TaskState.createAsFinished();
+                    task.taskInfo.isDirect = true;
+                    task.taskInfo.durationMicros = task.results.queryTimeMicros;
+                    task.documentOwner = sender.getHost().getId();
+                    applyResultOptions(op, task.results);
+                    onSuccess.accept(task);
+                });
+        sender.sendRequest(patch);
+    }
+
+    /**
+     * Applies the {@code $skip} and {@code $select} parameters of the operation URI to the
+     * query results. Results are modified in place
+     */
+    public static void applyResultOptions(Operation op, ServiceDocumentQueryResult results) {
+        if (results == null || results.documentLinks == null) {
+            return;
+        }
+
+        Integer skip = UriUtils.getODataSkipParamValue(op.getUri());
+        if (skip != null && skip > 0) {
+            int skipCount = Math.min(skip, results.documentLinks.size());
+            List<String> skipped = results.documentLinks.subList(0, skipCount);
+            if (results.documents != null) {
+                for (String link : skipped) {
+                    results.documents.remove(link);
+                }
+            }
+            skipped.clear();
+            results.documentCount = (long) results.documentLinks.size();
+        }
+
+        List<String> propertyNames = UriUtils.getODataSelectParamValue(op.getUri());
+        if (propertyNames == null || results.documents == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : results.documents.entrySet()) {
+            entry.setValue(project(entry.getValue(), propertyNames));
+        }
+    }
+
+    private static JsonObject project(Object document, List<String> propertyNames) {
+        JsonObject source;
+        if (document instanceof JsonObject) {
+            source = (JsonObject) document;
+        } else {
+            source = new JsonParser().parse(Utils.toJson(document)).getAsJsonObject();
+        }
+        JsonObject projection = new JsonObject();
+        for (String name : propertyNames) {
+            JsonElement value = source.get(name);
+            if (value != null) {
+                projection.add(name, value);
+            }
+        }
+        return projection;
+    }
 }
@@ -17,6 +17,7 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -179,6 +180,11 @@ public class Operation implements Cloneable {
          */
         private Map<Action, QueryFilter> resourceQueryFiltersMap = null;
 
+        /**
+         * Links of the roles that apply to this user's authorization context.
+         */
+        private Set<String> roleLinks = Collections.emptySet();
+
         public Claims getClaims() {
             return this.claims;
         }
@@ -205,6 +211,10 @@ public class Operation implements Cloneable {
             return this.resourceQueryFiltersMap.get(action);
         }
 
+        public Set<String> getRoleLinks() {
+            return this.roleLinks;
+        }
+
         public boolean isSystemUser() {
             Claims claims = getClaims();
             if (claims == null) {
@@ -264,6 +274,11 @@ public class Operation implements Cloneable {
                 this.authorizationContext.resourceQueryFiltersMap = resourceQueryFiltersMap;
                 return this;
             }
+
+            public Builder setRoleLinks(Set<String> roleLinks) {
+                this.authorizationContext.roleLinks = Collections.unmodifiableSet(roleLinks);
+                return this;
+            }
         }
     }
 
@@ -495,6 +510,7 @@ public class Operation implements Cloneable {
     public static final String MEDIA_TYPE_TEXT_YAML = "text/x-yaml";
     public static final String MEDIA_TYPE_APPLICATION_OCTET_STREAM = "application/octet-stream";
     public static final String MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM = "application/kryo-octet-stream";
+    public static final String MEDIA_TYPE_APPLICATION_X_NDJSON = "application/x-ndjson";
     public static final String MEDIA_TYPE_APPLICATION_X_WWW_FORM_ENCODED = "application/x-www-form-urlencoded";
     public static final String MEDIA_TYPE_TEXT_HTML = "text/html";
     public static final String MEDIA_TYPE_TEXT_PLAIN = "text/plain";
@@ -510,6 +526,7 @@ public class Operation implements Cloneable {
     public static final int STATUS_CODE_FORBIDDEN = HttpURLConnection.HTTP_FORBIDDEN;
     public static final int STATUS_CODE_TIMEOUT = HttpURLConnection.HTTP_CLIENT_TIMEOUT;
     public static final int STATUS_CODE_CONFLICT = HttpURLConnection.HTTP_CONFLICT;
+    public static final int STATUS_CODE_PRECONDITION_FAILED = HttpURLConnection.HTTP_PRECON_FAILED;
     public static final int STATUS_CODE_NOT_MODIFIED = HttpURLConnection.HTTP_NOT_MODIFIED;
     public static final int STATUS_CODE_NOT_FOUND = HttpURLConnection.HTTP_NOT_FOUND;
     public static final int STATUS_CODE_MOVED_PERM = HttpURLConnection.HTTP_MOVED_PERM;
@@ -787,6 +804,9 @@ public class Operation implements Cloneable {
     }
 
     public Operation setBody(Object body) {
+        // the serialized request body no longer describes the operation body, and must not be
+        // used when the body is converted, for example by subscribers of a response
+        this.serializedBody = null;
         if (body != null) {
             if (isCloningDisabled()) {
                 this.body = body;
@@ -815,6 +835,8 @@ public class Operation implements Cloneable {
      * @return
      */
     public Operation setBodyNoCloning(Object body) {
+        // like setBody(), the serialized request body no longer describes the operation body
+        this.serializedBody = null;
         this.body = body;
         return this;
     }
@@ -836,8 +858,11 @@ public class Operation implements Cloneable {
         }
 
         if (this.body != null && !(this.body instanceof String)) {
+            // a binary body from a peer is already deserialized, convert it like a JSON body
             if (this.contentType == null
-                    || !this.contentType.contains(MEDIA_TYPE_APPLICATION_JSON)) {
+                    || (!this.contentType.contains(MEDIA_TYPE_APPLICATION_JSON)
+                            && !MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM
+                                    .equals(this.contentType))) {
                 throw new IllegalStateException("content type is not JSON: " + this.contentType);
             }
 
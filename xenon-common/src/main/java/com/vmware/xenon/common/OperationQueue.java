@@ -13,43 +13,86 @@
 
 package com.vmware.xenon.common;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Queue implementation customized for the needs of a service. Depending on creation options
  * it will act as a limited capacity {@code Deque} with either FIFO or LIFO behavior.
+ * Replication and synchronization requests are kept in a separate FIFO queue and are always
+ * dequeued before client requests.
+ *
+ * In adaptive mode, the limit applied to client requests is tuned from the observed queue
+ * sojourn time, in the style of CoDel: if the sojourn time stays above
+ * {@link #ADAPTIVE_TARGET_SOJOURN_MICROS} for a full {@link #ADAPTIVE_INTERVAL_MICROS}, the
+ * effective limit is halved, and it doubles back towards the configured limit once sojourn
+ * times drop below the target.
+ *
  * The queue is not thread safe and should be used within a synchronized context
  */
 class OperationQueue {
 
+    public static final long ADAPTIVE_TARGET_SOJOURN_MICROS = TimeUnit.MILLISECONDS.toMicros(5);
+    public static final long ADAPTIVE_INTERVAL_MICROS = TimeUnit.MILLISECONDS.toMicros(100);
+    public static final int ADAPTIVE_MIN_LIMIT = 16;
+
     public static OperationQueue createFifo(int limit) {
         OperationQueue opDeque = new OperationQueue();
         opDeque.limit = limit;
+        opDeque.effectiveLimit = limit;
         return opDeque;
     }
 
     public static OperationQueue createLifo(int limit) {
         OperationQueue opDeque = new OperationQueue();
         opDeque.limit = -limit;
+        opDeque.effectiveLimit = limit;
         return opDeque;
     }
 
+    private static class Entry {
+        final Operation op;
+        final long enqueueTimeMicros;
+
+        Entry(Operation op, long enqueueTimeMicros) {
+            this.op = op;
+            this.enqueueTimeMicros = enqueueTimeMicros;
+        }
+    }
+
     /**
      * Maximum number of elements in the queue. The choice of FIFO or LIFO is encoded in the limit:
      * A positive limit indicates FIFO, a negative limit indicates LIFO
      */
     private int limit;
 
+    /**
+     * Limit applied to client requests. Equal to the limit, unless adaptive mode lowered it
+     */
+    private int effectiveLimit;
+
+    private boolean isAdaptive;
+
+    /**
+     * Time the sojourn time must stay above target until the effective limit is lowered,
+     * zero if the most recent sojourn time was below target
+     */
+    private long firstAboveTargetMicros;
+
+    private long lastSojournMicros;
+
     private int elementCount;
 
     /**
      * Underlying storage for the operation queue. The choice of data structure is subject to
      * change but any changes will not be visible to the consumers of OperationQueue
      */
-    private Deque<Operation> store = new ConcurrentLinkedDeque<>();
+    private Deque<Entry> store = new ArrayDeque<>();
+
+    private Deque<Entry> priorityStore = new ArrayDeque<>();
 
     private OperationQueue() {
     }
@@ -65,71 +108,142 @@ class OperationQueue {
         // we do not drain the queue if its beyond the limit, new operation will just
         // fail to enqueue until the queue depth drops below the limit
         this.limit = this.limit < 0 ? -limit : limit;
+        this.effectiveLimit = limit;
+    }
+
+    /**
+     * Enables or disables tuning of the client request limit from observed sojourn times
+     */
+    public void setAdaptive(boolean isAdaptive) {
+        this.isAdaptive = isAdaptive;
+        this.effectiveLimit = getLimit();
+        this.firstAboveTargetMicros = 0;
+    }
+
+    public boolean isAdaptive() {
+        return this.isAdaptive;
+    }
+
+    /**
+     * Limit currently applied to client requests
+     */
+    public int getEffectiveLimit() {
+        return this.effectiveLimit;
+    }
+
+    /**
+     * Time, in microseconds, the most recently dequeued operation spent in the queue
+     */
+    public long getLastSojournMicros() {
+        return this.lastSojournMicros;
     }
 
     public boolean isEmpty() {
-        return this.store.isEmpty();
+        return this.elementCount == 0;
     }
 
     /**
-     * Adds an element to the queue if the limit has not been reached.
-     * If the queue is configured to evict queued operations, the operation
-     * will be added and the either the newest or oldest queued operation will
-     * be failed with {@code CancellationException}
+     * Adds an element to the queue if the limit has not been reached. Replication and
+     * synchronization requests are only subject to the configured limit, client requests are
+     * subject to the effective limit
      */
     public boolean offer(Operation op) {
         if (op == null) {
             throw new IllegalArgumentException("op is required");
         }
 
-        // we use non restricted queue so we do not check for offer failures
-
-        if (this.limit < 0) {
-            // LIFO queue
-            if (this.elementCount >= -this.limit) {
-                return false;
-            }
+        if (this.elementCount >= getLimit()) {
+            return false;
+        }
 
-            this.store.offerFirst(op);
+        Entry e = new Entry(op, Utils.getNowMicrosUtc());
+        if (op.isFromReplication() || op.isSynchronize()) {
+            this.priorityStore.offerLast(e);
             this.elementCount++;
             return true;
+        }
+
+        if (this.store.size() >= this.effectiveLimit) {
+            return false;
+        }
+
+        if (this.limit < 0) {
+            // LIFO queue
+            this.store.offerFirst(e);
         } else {
             // FIFO queue
-            if (this.elementCount >= this.limit) {
-                return false;
-            }
-
-            this.store.offerLast(op);
-            this.elementCount++;
-            return true;
+            this.store.offerLast(e);
         }
+        this.elementCount++;
+        return true;
     }
 
     /**
-     * Retrieves and removes an operation. The operation is removed from the head of the
-     * queue if the queue is configured as FIFO, otherwise its removed from the tail
+     * Retrieves and removes an operation. Replication and synchronization requests are removed
+     * first, in arrival order. Client requests are removed from the head of the queue if the
+     * queue is configured as FIFO, otherwise from the tail
      */
     public Operation poll() {
-        Operation op = this.store.poll();
-        if (op == null) {
+        Entry e = this.priorityStore.poll();
+        if (e == null) {
+            e = this.store.poll();
+        }
+        if (e == null) {
             return null;
         }
         this.elementCount--;
         if (this.elementCount < 0) {
             throw new IllegalStateException("elementCount is negative");
         }
-        return op;
+
+        long now = Utils.getNowMicrosUtc();
+        this.lastSojournMicros = now - e.enqueueTimeMicros;
+        if (this.isAdaptive) {
+            adjustEffectiveLimit(now);
+        }
+        return e.op;
+    }
+
+    private void adjustEffectiveLimit(long now) {
+        int max = getLimit();
+        if (this.lastSojournMicros < ADAPTIVE_TARGET_SOJOURN_MICROS) {
+            this.firstAboveTargetMicros = 0;
+            if (this.effectiveLimit < max) {
+                this.effectiveLimit = (int) Math.min(max, this.effectiveLimit * 2L);
+            }
+            return;
+        }
+
+        if (this.firstAboveTargetMicros == 0) {
+            this.firstAboveTargetMicros = now + ADAPTIVE_INTERVAL_MICROS;
+            return;
+        }
+
+        if (now < this.firstAboveTargetMicros) {
+            return;
+        }
+
+        // sojourn time has been above target for a full interval: shed load by admitting fewer
+        // client requests, and check again after another interval
+        this.effectiveLimit = Math.max(Math.min(ADAPTIVE_MIN_LIMIT, max),
+                this.effectiveLimit / 2);
+        this.firstAboveTargetMicros = now + ADAPTIVE_INTERVAL_MICROS;
     }
 
     Collection<Operation> toCollection() {
         ArrayList<Operation> clone = new ArrayList<>(this.elementCount);
-        for (Operation op : this.store) {
-            clone.add(op);
+        for (Entry e : this.priorityStore) {
+            clone.add(e.op);
+        }
+        for (Entry e : this.store) {
+            clone.add(e.op);
         }
         return clone;
     }
 
     public void clear() {
+        this.priorityStore.clear();
         this.store.clear();
+        this.elementCount = 0;
     }
-}
\ No newline at end of file
+}
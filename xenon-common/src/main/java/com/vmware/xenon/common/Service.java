@@ -164,6 +164,48 @@ public interface Service extends ServiceRequestSender {
          */
         LIFO_QUEUE,
 
+        /**
+         * Service handlers perform blocking work, for example file or database I/O. The runtime
+         * invokes them on the host elastic executor, which adds threads when handlers block,
+         * instead of the shared work stealing pool. Executors allocated by the service through
+         * {@link ServiceHost#allocateExecutor(Service, int)} also release idle threads
+         */
+        BLOCKING_HANDLERS,
+
+        /**
+         * Service runtime completes updates once the new state is cached and queued for the
+         * document index, instead of after the index write. Updates queued within the flush
+         * interval are coalesced, so only the latest version is indexed. Queued state is written
+         * when the service pauses or stops and on host shutdown, but updates within the flush
+         * interval are lost if the process fails, and are not yet visible to queries.
+         *
+         * Requires: PERSISTENCE
+         */
+        WRITE_BEHIND_PERSISTENCE,
+
+        /**
+         * Service runtime starts the next update as soon as the in-memory state of the current
+         * update is final, while its replication and index write are still in progress. Each
+         * update handler runs on the speculative state of the previous update, but updates are
+         * committed, and their requests completed, in version order. If replication or the index
+         * write of an update fails, the update and all later speculative updates are failed and
+         * the next update runs on the last committed state. DELETE and transactional updates
+         * wait until all earlier updates are committed.
+         *
+         * Not compatible with: CONCURRENT_UPDATE_HANDLING
+         */
+        PIPELINED_UPDATES,
+
+        /**
+         * Service runtime replicates an update as a binary diff against the previous version,
+         * instead of the full state. Peers apply the diff to their current state, and request
+         * the full state if they do not have the previous version. The owner keeps a serialized
+         * copy of the last replicated version.
+         *
+         * Requires: REPLICATION
+         */
+        DELTA_REPLICATION,
+
         /**
          * Service owns a portion of the URI name space for the service host. It can register for
          * a single URI path prefix and all requests that start with the prefix will be routed to
@@ -300,6 +342,15 @@ public interface Service extends ServiceRequestSender {
     static final String STAT_NAME_VERSION_IN_CONFLICT = "stateVersionInConflict";
     static final String STAT_NAME_PAUSE_COUNT = "pauseCount";
     static final String STAT_NAME_RESUME_COUNT = "resumeCount";
+    static final String STAT_NAME_OPERATION_QUEUE_SOJOURN = "operationQueueSojournDuration";
+    static final String STAT_NAME_OPERATION_QUEUE_EXPIRED_COUNT = "operationQueueExpiredCount";
+    static final String STAT_NAME_OPERATION_QUEUE_EFFECTIVE_LIMIT = "operationQueueEffectiveLimit";
+    static final String STAT_NAME_COALESCED_GET_COUNT = "coalescedGetCount";
+    static final String STAT_NAME_PIPELINED_UPDATE_DEPTH = "pipelinedUpdateDepth";
+    static final String STAT_NAME_PIPELINED_UPDATE_ROLLBACK_COUNT = "pipelinedUpdateRollbackCount";
+    static final String STAT_NAME_REPLICATION_DELTA_BYTES = "replicationDeltaBytes";
+    static final String STAT_NAME_REPLICATION_FULL_STATE_BYTES = "replicationFullStateBytes";
+    static final String STAT_NAME_REPLICATION_DELTA_MISS_COUNT = "replicationDeltaMissCount";
 
     /**
      * Estimate on run time context cost in bytes, per service instance. Services should not use instanced
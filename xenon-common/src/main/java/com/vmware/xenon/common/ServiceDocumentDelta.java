@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.xenon.common.MurmurHash3.LongPair;
+
+/**
+ * Infrastructure use only.
+ *
+ * Replication body for services with {@link Service.ServiceOption#DELTA_REPLICATION}. Carries
+ * the core document fields of the new version and a binary diff between the serialized content
+ * of a base version and the new version. Content is the Kryo serialized state with all core
+ * document fields cleared, so it does not depend on fields, such as update time, that peers set
+ * independently.
+ *
+ * The diff is a sequence of instructions, each either a copy of a range of the base content or
+ * a literal run of new bytes
+ */
+public class ServiceDocumentDelta extends ServiceDocument {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final byte OP_COPY = 0;
+    private static final byte OP_INSERT = 1;
+
+    /**
+     * Version of the state the diff must be applied to
+     */
+    public long baseVersion;
+
+    /**
+     * Hash of the new content, to detect peers whose base content differs
+     */
+    public long contentHash;
+
+    public byte[] diff;
+
+    /**
+     * Returns the serialized content of the state: the state with core document fields cleared
+     */
+    public static byte[] toContentBytes(ServiceDocument state) {
+        ServiceDocument content = Utils.clone(state);
+        new ServiceDocument().copyTo(content);
+        content.documentUpdateAction = null;
+        byte[] buffer = Utils.getBuffer(ServiceDocumentDescription.DEFAULT_SERIALIZED_STATE_LIMIT);
+        int count = Utils.toDocumentBytes(content, buffer, 0);
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Creates the delta from the content of the base version to the target state
+     */
+    public static ServiceDocumentDelta create(long baseVersion, byte[] baseContent,
+            ServiceDocument target, byte[] targetContent) {
+        ServiceDocumentDelta delta = new ServiceDocumentDelta();
+        target.copyTo(delta);
+        delta.documentDescription = null;
+        delta.documentUpdateAction = target.documentUpdateAction;
+        delta.baseVersion = baseVersion;
+        delta.contentHash = hash(targetContent);
+        delta.diff = encode(baseContent, targetContent);
+        return delta;
+    }
+
+    /**
+     * Applies the delta to the base state and returns the new state, or null if the base state
+     * is not the version, or does not have the content, the delta was computed against
+     */
+    public ServiceDocument apply(ServiceDocument base) {
+        if (base == null || base.documentVersion != this.baseVersion) {
+            return null;
+        }
+
+        byte[] content = decode(toContentBytes(base), this.diff);
+        if (content == null || hash(content) != this.contentHash) {
+            return null;
+        }
+
+        ServiceDocument state = (ServiceDocument) Utils.fromDocumentBytes(content, 0,
+                content.length);
+        copyTo(state);
+        state.documentDescription = null;
+        state.documentUpdateAction = this.documentUpdateAction;
+        return state;
+    }
+
+    private static long hash(byte[] content) {
+        LongPair lp = new LongPair();
+        MurmurHash3.murmurhash3_x64_128(content, 0, content.length, 0, lp);
+        return lp.val1;
+    }
+
+    private static byte[] encode(byte[] base, byte[] target) {
+        // index the start of every base block, keeping the first occurrence
+        Map<Long, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+            blocks.putIfAbsent(blockKey(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int literalStart = 0;
+        int i = 0;
+        while (i + BLOCK_SIZE <= target.length) {
+            Integer baseOffset = blocks.get(blockKey(target, i));
+            if (baseOffset == null || !isEqual(base, baseOffset, target, i, BLOCK_SIZE)) {
+                i++;
+                continue;
+            }
+
+            // extend the match in both directions
+            int start = baseOffset;
+            int targetStart = i;
+            while (start > 0 && targetStart > literalStart
+                    && base[start - 1] == target[targetStart - 1]) {
+                start--;
+                targetStart--;
+            }
+            int length = i - targetStart + BLOCK_SIZE;
+            while (start + length < base.length && targetStart + length < target.length
+                    && base[start + length] == target[targetStart + length]) {
+                length++;
+            }
+
+            writeInsert(out, target, literalStart, targetStart - literalStart);
+            out.write(OP_COPY);
+            writeVarInt(out, start);
+            writeVarInt(out, length);
+            i = targetStart + length;
+            literalStart = i;
+        }
+        writeInsert(out, target, literalStart, target.length - literalStart);
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] base, byte[] diff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] position = new int[1];
+        while (position[0] < diff.length) {
+            byte op = diff[position[0]++];
+            if (op == OP_COPY) {
+                int offset = readVarInt(diff, position);
+                int length = readVarInt(diff, position);
+                if (offset < 0 || length < 0 || offset + length > base.length) {
+                    return null;
+                }
+                out.write(base, offset, length);
+            } else if (op == OP_INSERT) {
+                int length = readVarInt(diff, position);
+                if (length < 0 || position[0] + length > diff.length) {
+                    return null;
+                }
+                out.write(diff, position[0], length);
+                position[0] += length;
+            } else {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int offset,
+            int length) {
+        if (length == 0) {
+            return;
+        }
+        out.write(OP_INSERT);
+        writeVarInt(out, length);
+        out.write(target, offset, length);
+    }
+
+    private static long blockKey(byte[] b, int offset) {
+        long key = 1125899906842597L;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            key = 31 * key + b[i];
+        }
+        return key;
+    }
+
+    private static boolean isEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] b, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= b.length) {
+                return -1;
+            }
+            byte next = b[position[0]++];
+            value |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import com.vmware.xenon.common.RequestRouter.Route;
@@ -53,6 +54,13 @@ public class ServiceDocumentDescription {
      */
     public static final int DEFAULT_SERIALIZED_STATE_LIMIT = 4096 * 8;
 
+    /**
+     * Upper bound on how long a peer replicated asynchronously can fall behind, before it is
+     * updated synchronously again. This can be configured per service using the
+     * replicationMaxLagMicros field
+     */
+    public static final long DEFAULT_REPLICATION_MAX_LAG_MICROS = TimeUnit.SECONDS.toMicros(5);
+
     public static final String FIELD_NAME_TENANT_LINKS = "tenantLinks";
 
     public enum TypeName {
@@ -188,6 +196,20 @@ public class ServiceDocumentDescription {
      */
     public int serializedStateSizeLimit = DEFAULT_SERIALIZED_STATE_LIMIT;
 
+    /**
+     * Number of peers that must accept a replicated update before the update completes. The peers
+     * with the lowest replication latency are updated synchronously, the remaining peers once the
+     * update completes. If not set, the node selector quorum applies and all peers are updated
+     * synchronously
+     */
+    public Integer replicationSyncPeerCount;
+
+    /**
+     * Upper bound, in microseconds, on how long a peer replicated asynchronously can fall behind.
+     * A peer with an older unacknowledged update is updated synchronously until it catches up
+     */
+    public long replicationMaxLagMicros = DEFAULT_REPLICATION_MAX_LAG_MICROS;
+
     /**
      * Sets the indexing option {@link PropertyIndexingOption#EXPAND} for document fields named {@link
      * #FIELD_NAME_TENANT_LINKS}.
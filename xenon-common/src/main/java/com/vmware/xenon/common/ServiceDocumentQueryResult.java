@@ -62,6 +62,13 @@ public class ServiceDocumentQueryResult extends ServiceDocument {
      */
     public Long queryTimeMicros;
 
+    /**
+     * Set when the query stopped before processing all matching documents, because a resource
+     * limit in the query specification was exceeded, or the query was cancelled. The results
+     * collected up to that point are included
+     */
+    public Boolean isPartial;
+
     /**
      * Returns whether or not the {@code name} is a built-in field.
      *
@@ -57,7 +57,10 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
@@ -67,6 +70,8 @@ import java.util.logging.Logger;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.esotericsoftware.kryo.KryoException;
+
 import com.vmware.xenon.common.FileUtils.ResourceEntry;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest.ForwardingOption;
@@ -101,6 +106,8 @@ import com.vmware.xenon.services.common.NodeGroupFactoryService;
 import com.vmware.xenon.services.common.NodeGroupService.JoinPeerRequest;
 import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
 import com.vmware.xenon.services.common.NodeGroupUtils;
+import com.vmware.xenon.services.common.NodeSelectorReplicationService;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestResponse;
 import com.vmware.xenon.services.common.ODataQueryService;
 import com.vmware.xenon.services.common.OperationIndexService;
 import com.vmware.xenon.services.common.ProcessFactoryService;
@@ -112,6 +119,8 @@ import com.vmware.xenon.services.common.ServiceContextIndexService;
 import com.vmware.xenon.services.common.ServiceHostLogService;
 import com.vmware.xenon.services.common.ServiceHostManagementService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
+import com.vmware.xenon.services.common.ShardedDocumentIndexService;
+import com.vmware.xenon.services.common.ShardedDocumentIndexService.ShardingPolicy;
 import com.vmware.xenon.services.common.SystemUserService;
 import com.vmware.xenon.services.common.TenantService;
 import com.vmware.xenon.services.common.TransactionFactoryService;
@@ -156,6 +165,40 @@ public class ServiceHost implements ServiceRequestSender {
         private static final long serialVersionUID = 663670123267539178L;
     }
 
+    /**
+     * Selects the executor running service handlers
+     */
+    public enum ExecutorMode {
+        /**
+         * Handlers run on a work stealing pool sized to the number of processors. Handlers must
+         * not block
+         */
+        WORK_STEALING,
+
+        /**
+         * Handlers run on an elastic pool that adds threads, up to a limit, when handlers block.
+         * Executors allocated through {@link ServiceHost#allocateExecutor(Service, int)} release
+         * idle threads
+         */
+        ELASTIC
+    }
+
+    /**
+     * Selects how the host caches the state of indexed services between requests
+     */
+    public enum ServiceStateCacheMode {
+        /**
+         * State is cached as the service document instance
+         */
+        OBJECT,
+
+        /**
+         * State is cached in serialized form, bounded by the low watermark of the host memory
+         * limit, and deserialized on access. Least recently used state is evicted first
+         */
+        COMPACT
+    }
+
     public static class Arguments {
         /**
          * HTTP port
@@ -254,6 +297,18 @@ public class ServiceHost implements ServiceRequestSender {
          */
         public Path resourceSandbox;
 
+        /**
+         * Executor used for service handlers. Individual services can request the elastic
+         * executor with {@link ServiceOption#BLOCKING_HANDLERS}
+         */
+        public ExecutorMode executorMode = ExecutorMode.WORK_STEALING;
+
+        /**
+         * Cache representation for the state of indexed services. The compact cache trades
+         * a deserialization per request for a much smaller memory footprint per cached document
+         */
+        public ServiceStateCacheMode serviceStateCacheMode = ServiceStateCacheMode.OBJECT;
+
     }
 
     private static final LogFormatter LOG_FORMATTER = new LogFormatter();
@@ -332,7 +387,7 @@ public class ServiceHost implements ServiceRequestSender {
      */
     public static final int DEFAULT_SERVICE_INSTANCE_COST_BYTES = Service.MAX_SERIALIZED_SIZE_BYTES
             / 2;
-    private static final long ONE_MINUTE_IN_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final long ONE_SECOND_IN_MICROS = TimeUnit.SECONDS.toMicros(1);
 
     private static final String PROPERTY_NAME_APPEND_PORT_TO_SANDBOX =
             Utils.PROPERTY_NAME_PREFIX + "ServiceHost.APPEND_PORT_TO_SANDBOX";
@@ -347,21 +402,86 @@ public class ServiceHost implements ServiceRequestSender {
             System.getProperty(PROPERTY_NAME_APPEND_PORT_TO_SANDBOX) == null
                     || Boolean.getBoolean(PROPERTY_NAME_APPEND_PORT_TO_SANDBOX);
 
+    /**
+     * Request rate limit, enforced with the generic cell rate algorithm (GCRA), the
+     * lock free equivalent of a token bucket refilled at {@code limit} tokens per second
+     * and holding up to {@code burst} tokens
+     */
     public static class RequestRateInfo {
         /**
          * Request limit (upper bound) in requests per second
          */
         public double limit;
 
+        /**
+         * Number of requests admitted back to back, after the key has been idle. If zero, one
+         * second worth of requests, but at least one, is admitted
+         */
+        public double burst;
+
+        /**
+         * Time, in microseconds since epoch, at which the bucket will be full again. A
+         * request is admitted if this time, after accounting for the request, is no more than
+         * the burst capacity ahead of the current time
+         */
+        public AtomicLong theoreticalArrivalTimeMicros = new AtomicLong();
+
+        /**
+         * Number of requests rejected because they exceeded the limit
+         */
+        public LongAdder throttledCount = new LongAdder();
+
         /**
          * Number of requests since most recent time window
+         *
+         * @deprecated No longer updated, the limit is enforced with
+         *             {@link #theoreticalArrivalTimeMicros}. See {@link #throttledCount}
          */
+        @Deprecated
         public AtomicInteger count = new AtomicInteger();
 
         /**
          * Start time in microseconds since epoch for the timing window
+         *
+         * @deprecated No longer updated, the limit is enforced with
+         *             {@link #theoreticalArrivalTimeMicros}
          */
+        @Deprecated
         public long startTimeMicros;
+
+        /**
+         * Admits a request, returning zero, or returns the number of microseconds after which
+         * a retry would be admitted
+         */
+        long tryAcquire(long nowMicros) {
+            double intervalMicros = TimeUnit.SECONDS.toMicros(1) / this.limit;
+            double capacity = this.burst > 0 ? this.burst : Math.max(1.0, this.limit);
+            long capacityMicros = (long) (intervalMicros * capacity);
+            long increment = getIncrementMicros();
+            while (true) {
+                long tat = this.theoreticalArrivalTimeMicros.get();
+                long newTat = Math.max(tat, nowMicros) + increment;
+                long excess = newTat - nowMicros - capacityMicros;
+                if (excess > 0) {
+                    this.throttledCount.increment();
+                    return excess;
+                }
+                if (this.theoreticalArrivalTimeMicros.compareAndSet(tat, newTat)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the token of an admitted request, when another limit rejected it
+         */
+        void release() {
+            this.theoreticalArrivalTimeMicros.addAndGet(-getIncrementMicros());
+        }
+
+        private long getIncrementMicros() {
+            return Math.max(1, (long) (TimeUnit.SECONDS.toMicros(1) / this.limit));
+        }
     }
 
     public static class ServiceHostState extends ServiceDocument {
@@ -386,6 +506,8 @@ public class ServiceHost implements ServiceRequestSender {
         public long serviceCacheClearDelayMicros = DEFAULT_OPERATION_TIMEOUT_MICROS;
         public String operationTracingLevel;
         public SslClientAuthMode sslClientAuthMode;
+        public ExecutorMode executorMode = ExecutorMode.WORK_STEALING;
+        public ServiceStateCacheMode serviceStateCacheMode = ServiceStateCacheMode.OBJECT;
 
         public URI storageSandboxFileReference;
         public URI resourceSandboxFileReference;
@@ -418,10 +540,10 @@ public class ServiceHost implements ServiceRequestSender {
         public Map<String, Double> relativeMemoryLimits = new ConcurrentSkipListMap<>();
 
         /**
-         * Request limits, in operations per second. Each limit is associated with a key,
-         * derived from some context (user, tenant, context id). An operation is associated with
-         * a key and then service host tracks and applies the limit for each in bound request that
-         * belongs to the same context.
+         * Request limits, in operations per second. Each limit is associated with a key: the
+         * subject (user link) of the request, the link of a role that applied during
+         * authorization, or the link of the factory of the target service. Every limit whose
+         * key matches an in bound request applies to it.
          *
          * Rate limiting is a global back pressure mechanism that is independent of the target
          * service and any additional throttling applied during service request
@@ -460,10 +582,10 @@ public class ServiceHost implements ServiceRequestSender {
     private final ServiceDocumentDescription.Builder descriptionBuilder = Builder.create();
 
     private ExecutorService executor;
+    private ElasticExecutor elasticExecutor;
     private ScheduledExecutorService scheduledExecutor;
 
-    private final ConcurrentSkipListMap<String, Service> attachedServices = new ConcurrentSkipListMap<>();
-    private final ConcurrentSkipListMap<String, Service> attachedNamespaceServices = new ConcurrentSkipListMap<>();
+    private final ServiceRegistry attachedServices = new ServiceRegistry();
 
     private final ConcurrentSkipListSet<String> coreServices = new ConcurrentSkipListSet<>();
     private ConcurrentSkipListMap<String, Class<? extends Service>> privilegedServiceTypes = new ConcurrentSkipListMap<>();
@@ -474,6 +596,40 @@ public class ServiceHost implements ServiceRequestSender {
     private ServiceHostState state;
     private Service documentIndexService;
     private Service authorizationService;
+
+    /**
+     * True for service classes that inherit the {@link StatefulService#authorizeRequest}
+     * implementation, which completes in-line since authorization happens when state is loaded.
+     * Requests to such services skip the authorization round trip
+     */
+    private static final ClassValue<Boolean> IS_DEFAULT_AUTHORIZE_REQUEST =
+            new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("authorizeRequest", Operation.class)
+                        .getDeclaringClass() == StatefulService.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * Completion for requests sent without one. Shared so sending such requests does not
+     * allocate a handler
+     */
+    private final CompletionHandler defaultCompletion = (o, e) -> {
+        if (e == null) {
+            return;
+        }
+
+        log(Level.WARNING, "%s (ctx id:%s) to %s, from %s failed: %s", o.getAction(),
+                o.getContextId(),
+                o.getUri(),
+                o.getReferer(),
+                e.getMessage());
+    };
     private Service transactionService;
     private SystemHostInfo info = new SystemHostInfo();
     private ServiceClient client;
@@ -493,6 +649,13 @@ public class ServiceHost implements ServiceRequestSender {
     private final ServiceResourceTracker serviceResourceTracker = ServiceResourceTracker
             .create(this, this.attachedServices, this.pendingPauseServices);
     private final OperationTracker operationTracker = OperationTracker.create(this);
+    private final ServiceWriteBehindQueue writeBehindQueue = new ServiceWriteBehindQueue(this);
+    private final ChildSynchronizationLimiter childSynchronizationLimiter =
+            new ChildSynchronizationLimiter(this);
+    private final ChildServiceDigestTracker childServiceDigestTracker =
+            new ChildServiceDigestTracker();
+    private final PeerSerializationStats peerBinaryStats = new PeerSerializationStats();
+    private final PeerSerializationStats peerJsonStats = new PeerSerializationStats();
 
     private String logPrefix;
     private URI cachedUri;
@@ -619,10 +782,21 @@ public class ServiceHost implements ServiceRequestSender {
         if (this.executor != null) {
             this.executor.shutdownNow();
         }
+        if (this.elasticExecutor != null) {
+            this.elasticExecutor.shutdownNow();
+        }
         if (this.scheduledExecutor != null) {
             this.scheduledExecutor.shutdownNow();
         }
-        this.executor = Executors.newWorkStealingPool(Utils.DEFAULT_THREAD_COUNT);
+        // the elastic executor starts without threads, so it costs nothing until a service
+        // with blocking handlers receives a request
+        this.elasticExecutor = new ElasticExecutor(ElasticExecutor.DEFAULT_THREAD_LIMIT,
+                () -> getUri().toString() + "/elastic/" + this.state.id);
+        if (this.state.executorMode == ExecutorMode.ELASTIC) {
+            this.executor = this.elasticExecutor;
+        } else {
+            this.executor = Executors.newWorkStealingPool(Utils.DEFAULT_THREAD_COUNT);
+        }
         this.scheduledExecutor = Executors.newScheduledThreadPool(Utils.DEFAULT_THREAD_COUNT,
                 r -> new Thread(r, getUri().toString() + "/scheduled/" + this.state.id));
     }
@@ -652,6 +826,8 @@ public class ServiceHost implements ServiceRequestSender {
         this.state.httpPort = args.port;
         this.state.httpsPort = args.securePort;
         this.state.sslClientAuthMode = args.sslClientAuthMode;
+        this.state.executorMode = args.executorMode;
+        this.state.serviceStateCacheMode = args.serviceStateCacheMode;
 
         if (args.keyFile != null) {
             this.state.privateKeyFileReference = args.keyFile.toUri();
@@ -858,6 +1034,22 @@ public class ServiceHost implements ServiceRequestSender {
         this.state.peerSynchronizationTimeLimitSeconds = seconds;
     }
 
+    /**
+     * Sets the maximum number of child services, across all factories, synchronized
+     * concurrently after a node group change
+     */
+    public void setChildSynchronizationConcurrencyLimit(int limit) {
+        this.childSynchronizationLimiter.setConcurrencyLimit(limit);
+    }
+
+    /**
+     * Sets the maximum number of child services, across all factories, synchronized per
+     * second. Zero disables the rate limit
+     */
+    public void setChildSynchronizationRateLimit(int limitPerSecond) {
+        this.childSynchronizationLimiter.setRateLimitPerSecond(limitPerSecond);
+    }
+
     public int getSecurePort() {
         return this.state.httpsPort;
     }
@@ -999,6 +1191,27 @@ public class ServiceHost implements ServiceRequestSender {
         return this.state;
     }
 
+    Service getDocumentIndexService() {
+        return this.documentIndexService;
+    }
+
+    ServiceWriteBehindQueue getWriteBehindQueue() {
+        return this.writeBehindQueue;
+    }
+
+    ChildSynchronizationLimiter getChildSynchronizationLimiter() {
+        return this.childSynchronizationLimiter;
+    }
+
+    /**
+     * Infrastructure use only. Returns the range digests of the started children of the
+     * factory, used to skip synchronization of children the node group agrees on
+     */
+    public ChildServiceDigestResponse getChildServiceDigest(String factoryLink,
+            Function<String, String> ownerSelector) {
+        return this.childServiceDigestTracker.getDigest(factoryLink, ownerSelector);
+    }
+
     public URI getDocumentIndexServiceUri() {
         if (this.documentIndexService == null) {
             return null;
@@ -1065,7 +1278,25 @@ public class ServiceHost implements ServiceRequestSender {
         return allocateExecutor(s, Utils.DEFAULT_THREAD_COUNT);
     }
 
+    /**
+     * Returns the executor running handlers for the given service
+     */
+    ExecutorService getExecutor(Service s) {
+        if (s.hasOption(ServiceOption.BLOCKING_HANDLERS) && this.elasticExecutor != null) {
+            return this.elasticExecutor;
+        }
+        return this.executor;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return this.state.executorMode;
+    }
+
     public ExecutorService allocateExecutor(Service s, int threadCount) {
+        if (this.state.executorMode == ExecutorMode.ELASTIC
+                || s.hasOption(ServiceOption.BLOCKING_HANDLERS)) {
+            return new ElasticExecutor(threadCount, () -> s.getUri().toString());
+        }
         return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -1206,6 +1437,7 @@ public class ServiceHost implements ServiceRequestSender {
         addPrivilegedService(OperationIndexService.class);
         addPrivilegedService(LuceneBlobIndexService.class);
         addPrivilegedService(BasicAuthenticationService.class);
+        addPrivilegedService(NodeSelectorReplicationService.class);
 
         // Capture authorization context; this function executes as the system user
         AuthorizationContext ctx = OperationContext.getAuthorizationContext();
@@ -1234,8 +1466,12 @@ public class ServiceHost implements ServiceRequestSender {
         // ordering of services. However, core services must be started before anyone else
         if (this.documentIndexService != null) {
             addPrivilegedService(this.documentIndexService.getClass());
+            if (this.documentIndexService instanceof ShardedDocumentIndexService) {
+                startDocumentIndexShards((ShardedDocumentIndexService) this.documentIndexService);
+            }
             coreServices.add(this.documentIndexService);
-            if (this.documentIndexService instanceof LuceneDocumentIndexService) {
+            if (this.documentIndexService instanceof LuceneDocumentIndexService
+                    || this.documentIndexService instanceof ShardedDocumentIndexService) {
                 coreServices.add(new LuceneQueryTaskFactoryService());
                 coreServices.add(new LuceneLocalQueryTaskFactoryService());
             }
@@ -1595,6 +1831,22 @@ public class ServiceHost implements ServiceRequestSender {
         startCoreServicesSynchronously(posts, Arrays.asList(services));
     }
 
+    /**
+     * The shards of a sharded document index are started before the index, and the other core
+     * services, since the index forwards requests to them as soon as it is available
+     */
+    private void startDocumentIndexShards(ShardedDocumentIndexService index) throws Throwable {
+        addPrivilegedService(LuceneDocumentIndexService.class);
+        List<Operation> posts = new ArrayList<>();
+        List<Service> shards = new ArrayList<>();
+        for (int i = 0; i < index.getShardCount(); i++) {
+            posts.add(Operation.createPost(
+                    UriUtils.buildUri(this, ShardedDocumentIndexService.getShardLink(i))));
+            shards.add(index.getShard(i));
+        }
+        startCoreServicesSynchronously(posts, shards);
+    }
+
     protected void startCoreServicesSynchronously(Service... services) throws Throwable {
         List<Operation> posts = new ArrayList<>();
         for (Service s : services) {
@@ -2103,9 +2355,6 @@ public class ServiceHost implements ServiceRequestSender {
 
             if (existing == null) {
                 this.attachedServices.put(servicePath, service);
-                if (service.hasOption(ServiceOption.URI_NAMESPACE_OWNER)) {
-                    this.attachedNamespaceServices.put(servicePath, service);
-                }
 
                 if (service.hasOption(ServiceOption.REPLICATION)
                         && service.hasOption(ServiceOption.FACTORY)) {
@@ -2370,6 +2619,10 @@ public class ServiceHost implements ServiceRequestSender {
                 }
 
                 s.setProcessingStage(Service.ProcessingStage.AVAILABLE);
+                if (post.hasBody() && post.getBodyRaw() instanceof ServiceDocument) {
+                    this.childServiceDigestTracker.update(s,
+                            (ServiceDocument) post.getBodyRaw());
+                }
 
                 log(Level.FINEST, "Started %s", s.getSelfLink());
                 post.complete();
@@ -2445,11 +2698,20 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     void loadServiceState(Service s, Operation op) {
-        ServiceDocument state = this.serviceResourceTracker.getCachedServiceState(s.getSelfLink());
+        // Copy state if it might change while processing. Replicas do not cache the state of
+        // replicated updates, so replicated requests on indexed services load from the index
+        ServiceDocument state = null;
+        if (!op.isFromReplication() || !isServiceIndexed(s)) {
+            state = this.serviceResourceTracker.getCachedServiceState(s.getSelfLink(),
+                    !s.hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING));
+        }
 
-        // Clone state if it might change while processing
-        if (state != null && !s.hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)) {
-            state = Utils.clone(state);
+        if (state == null && s.hasOption(ServiceOption.WRITE_BEHIND_PERSISTENCE)) {
+            // state evicted from cache might not have reached the index yet
+            state = this.writeBehindQueue.getState(s.getSelfLink());
+            if (state != null) {
+                state = Utils.clone(state);
+            }
         }
 
         // If either there is cached state, or the service is not indexed (meaning nothing
@@ -2473,6 +2735,13 @@ public class ServiceHost implements ServiceRequestSender {
         }
 
         URI u = UriUtils.buildDocumentQueryUri(this, s.getSelfLink(), false, true, s.getOptions());
+        if (this.documentIndexService instanceof ShardedDocumentIndexService
+                && ((ShardedDocumentIndexService) this.documentIndexService)
+                        .getShardingPolicy() == ShardingPolicy.DOCUMENT_KIND) {
+            // lets the index look the document up in the shard that holds its kind
+            u = UriUtils.appendQueryParam(u, ServiceDocument.FIELD_NAME_KIND,
+                    Utils.buildKind(s.getStateType()));
+        }
         Operation loadGet = Operation
                 .createGet(u)
                 .transferRefererFrom(op)
@@ -2734,14 +3003,13 @@ public class ServiceHost implements ServiceRequestSender {
 
             if (existing != null) {
                 existing.setProcessingStage(ProcessingStage.STOPPED);
-                if (existing.hasOption(ServiceOption.URI_NAMESPACE_OWNER)) {
-                    this.attachedNamespaceServices.remove(path);
-                }
             }
 
             this.serviceSynchTracker.removeService(path);
             this.serviceResourceTracker.clearCachedServiceState(path);
             this.pendingPauseServices.remove(path);
+            this.writeBehindQueue.flush(path);
+            this.childServiceDigestTracker.remove(path);
 
             this.state.serviceCount--;
         }
@@ -2755,70 +3023,7 @@ public class ServiceHost implements ServiceRequestSender {
     }
 
     protected Service findService(String uriPath, boolean doExactMatch) {
-        Service s = this.attachedServices.get(uriPath);
-        if (s != null) {
-            return s;
-        }
-
-        s = this.attachedServices.get(UriUtils.normalizeUriPath(uriPath));
-        if (s != null) {
-            return s;
-        }
-
-        if (isHelperServicePath(uriPath)) {
-            return findHelperService(uriPath);
-        }
-
-        if (!doExactMatch) {
-            s = findNamespaceOwnerService(uriPath);
-        }
-
-        return s;
-    }
-
-    private Service findNamespaceOwnerService(String uriPath) {
-        // TODO We do not expect a lot of name space owner services, but we should switch to
-        // radix trees
-        int charsNotMatched = Integer.MAX_VALUE;
-        int uriPathLength = uriPath.length();
-        Service candidate = null;
-        // pick the service with the longest match
-        for (Entry<String, Service> e : this.attachedNamespaceServices.entrySet()) {
-            if (!uriPath.startsWith(e.getKey())) {
-                continue;
-            }
-            int notMatchedCount = uriPathLength - e.getKey().length();
-            if (notMatchedCount < charsNotMatched) {
-                candidate = e.getValue();
-                charsNotMatched = notMatchedCount;
-            }
-        }
-
-        if (candidate != null) {
-            return candidate;
-        }
-
-        return null;
-    }
-
-    Service findHelperService(String uriPath) {
-        String subPath;
-
-        int i = uriPath.indexOf(SERVICE_URI_SUFFIX_UI + "/");
-        if (i > 0) {
-            // catches the case of /service/ui/
-            // but is smart to ignore /ui/abc
-            subPath = uriPath.substring(0, i);
-        } else {
-            subPath = uriPath.substring(0, uriPath.lastIndexOf(UriUtils.URI_PATH_CHAR));
-        }
-        // use the prefix to find the actual service
-        Service s = this.attachedServices.get(subPath);
-        if (s == null) {
-            return null;
-        }
-        // now find the helper, given the suffix
-        return s.getUtilityService(uriPath);
+        return this.attachedServices.findService(uriPath, doExactMatch);
     }
 
     /**
@@ -2862,7 +3067,8 @@ public class ServiceHost implements ServiceRequestSender {
                 populateAuthorizationContext(inboundOp);
             }
 
-            if (this.authorizationService != null) {
+            if (this.authorizationService != null
+                    && !isAuthorizationContextProcessed(inboundOp)) {
                 inboundOp.nestCompletion(op -> {
                     handleRequestWithAuthContext(service, op);
                 });
@@ -2911,7 +3117,7 @@ public class ServiceHost implements ServiceRequestSender {
 
         traceOperation(inboundOp);
 
-        if (isAuthorizationEnabled()) {
+        if (isAuthorizationEnabled() && !IS_DEFAULT_AUTHORIZE_REQUEST.get(service.getClass())) {
             final Service sFinal = service;
             inboundOp.nestCompletion((o) -> {
                 queueOrScheduleRequest(sFinal, inboundOp);
@@ -2924,6 +3130,16 @@ public class ServiceHost implements ServiceRequestSender {
         return;
     }
 
+    /**
+     * True if the authorization context service would complete the request in-line: the
+     * context belongs to the system user or was already populated with the resource queries
+     * for the request action, by an earlier request of the same subject
+     */
+    private boolean isAuthorizationContextProcessed(Operation op) {
+        return this.authorizationService instanceof AuthorizationContextService
+                && AuthorizationContextService.isAuthorizationContextProcessed(op);
+    }
+
     AuthorizationContext getAuthorizationContext(Operation op) {
         String token = op.getRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER);
         if (token == null) {
@@ -3014,14 +3230,11 @@ public class ServiceHost implements ServiceRequestSender {
 
         String nodeSelectorPath;
         Service parent = null;
-        EnumSet<ServiceOption> options = null;
         if (s != null) {
-            // Common path, service is known.
-            options = s.getOptions();
-
-            if (options == null) {
-                return false;
-            } else if (options.contains(ServiceOption.UTILITY)) {
+            // Common path, service is known. Query options directly, instead of through
+            // getOptions(), which copies the option set on every request
+            Service optionSource = s;
+            if (s.hasOption(ServiceOption.UTILITY)) {
                 // find the parent service, which will have the complete option set
                 // relevant to forwarding
                 path = UriUtils.getParentPath(path);
@@ -3030,12 +3243,11 @@ public class ServiceHost implements ServiceRequestSender {
                     failRequestServiceNotFound(op);
                     return true;
                 }
-                options = parent.getOptions();
+                optionSource = parent;
             }
 
-            if (options == null
-                    || !options.contains(ServiceOption.OWNER_SELECTION)
-                    || options.contains(ServiceOption.FACTORY)) {
+            if (!optionSource.hasOption(ServiceOption.OWNER_SELECTION)
+                    || optionSource.hasOption(ServiceOption.FACTORY)) {
                 return false;
             }
         } else {
@@ -3056,11 +3268,8 @@ public class ServiceHost implements ServiceRequestSender {
                 failRequestServiceNotFound(op);
                 return true;
             }
-            options = parent.getOptions();
-
-            if (options == null ||
-                    !options.contains(ServiceOption.FACTORY) ||
-                    !options.contains(ServiceOption.REPLICATION)) {
+            if (!parent.hasOption(ServiceOption.FACTORY)
+                    || !parent.hasOption(ServiceOption.REPLICATION)) {
                 return false;
             }
         }
@@ -3093,7 +3302,10 @@ public class ServiceHost implements ServiceRequestSender {
             SelectOwnerResponse rsp = o.getBody(SelectOwnerResponse.class);
 
             if (op.isFromReplication()) {
-                ServiceDocument body = op.getBody(s.getStateType());
+                // a replicated delta carries the owner of the new version
+                ServiceDocument body = op.getBodyRaw() instanceof ServiceDocumentDelta
+                        ? (ServiceDocument) op.getBodyRaw()
+                        : op.getBody(s.getStateType());
                 if (!rsp.ownerNodeId.equals(body.documentOwner)) {
                     failRequestOwnerMismatch(op, rsp.ownerNodeId, body);
                     return;
@@ -3324,7 +3536,7 @@ public class ServiceHost implements ServiceRequestSender {
         boolean processRequest = true;
         try {
 
-            if (applyRequestRateLimit(op)) {
+            if (s != this.authorizationService && applyRequestRateLimit(s, op)) {
                 processRequest = false;
                 return;
             }
@@ -3370,6 +3582,19 @@ public class ServiceHost implements ServiceRequestSender {
             }
 
             if (!s.queueRequest(op)) {
+                if (op.getAction() != Action.GET && op.getAction() != Action.OPTIONS
+                        && !s.hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)
+                        && s instanceof StatefulService) {
+                    // serialized services receive updates through their mailbox so a single
+                    // task dispatches them in order, without a new runnable per operation.
+                    // Reads are not serialized, they keep running in parallel
+                    ServiceMailbox mailbox = ((StatefulService) s).getOrCreateMailbox();
+                    if (mailbox != null) {
+                        mailbox.post(op);
+                        return;
+                    }
+                }
+
                 Runnable r = () -> {
                     OperationContext.setContextId(op.getContextId());
                     OperationContext.setAuthorizationContext(op.getAuthorizationContext());
@@ -3383,56 +3608,78 @@ public class ServiceHost implements ServiceRequestSender {
                     OperationContext.setAuthorizationContext(null);
                     OperationContext.setContextId(null);
                 };
-                this.executor.execute(r);
+                getExecutor(s).execute(r);
             }
         }
     }
 
-    private boolean applyRequestRateLimit(Operation op) {
+    private boolean applyRequestRateLimit(Service s, Operation op) {
         if (this.state.requestRateLimits.isEmpty()) {
             return false;
         }
 
-        AuthorizationContext authCtx = op.getAuthorizationContext();
-        if (authCtx == null) {
-            return false;
+        long now = Utils.getNowMicrosUtc();
+        String factoryPath = null;
+        if (s.hasOption(ServiceOption.FACTORY)) {
+            factoryPath = s.getSelfLink();
+        } else if (s.hasOption(ServiceOption.FACTORY_ITEM)) {
+            factoryPath = UriUtils.getParentPath(s.getSelfLink());
         }
 
-        Claims claims = authCtx.getClaims();
-        if (claims == null) {
-            return false;
+        List<String> keys = new ArrayList<>();
+        if (factoryPath != null) {
+            keys.add(factoryPath);
         }
 
-        String subject = claims.getSubject();
-        if (subject == null) {
-            return false;
+        AuthorizationContext authCtx = op.getAuthorizationContext();
+        if (authCtx != null) {
+            keys.addAll(authCtx.getRoleLinks());
+            Claims claims = authCtx.getClaims();
+            if (claims != null && claims.getSubject() != null) {
+                keys.add(claims.getSubject());
+            }
         }
 
-        // TODO: use the roles that applied during authorization as the rate limiting key.
-        // We currently just use the subject but this is going to change.
-        RequestRateInfo rateInfo = this.state.requestRateLimits.get(subject);
-        if (rateInfo == null) {
-            return false;
-        }
+        // a request is charged to every limit that applies, or to none: the limits charged
+        // before one rejects it are refunded, so a throttled subject does not drain the
+        // factory and role limits it shares with others
+        List<RequestRateInfo> acquired = null;
+        for (String key : keys) {
+            RequestRateInfo rateInfo = this.state.requestRateLimits.get(key);
+            if (rateInfo == null) {
+                continue;
+            }
 
-        double count = rateInfo.count.incrementAndGet();
-        long now = Utils.getNowMicrosUtc();
-        long delta = now - rateInfo.startTimeMicros;
-        double deltaInSeconds = delta / 1000000.0;
-        if (delta < getMaintenanceIntervalMicros()) {
-            return false;
-        }
+            long retryAfterMicros = rateInfo.tryAcquire(now);
+            if (retryAfterMicros == 0) {
+                if (acquired == null) {
+                    acquired = new ArrayList<>(keys.size());
+                }
+                acquired.add(rateInfo);
+                continue;
+            }
 
-        double requestsPerSec = count / deltaInSeconds;
-        if (requestsPerSec > rateInfo.limit) {
-            this.failRequestLimitExceeded(op);
+            if (acquired != null) {
+                for (RequestRateInfo r : acquired) {
+                    r.release();
+                }
+            }
+            failRequestRateLimited(key, op, retryAfterMicros);
             return true;
         }
-
         return false;
     }
 
-    private void handleUncaughtException(Service s, Operation op, Throwable e) {
+    private void failRequestRateLimited(String key, Operation op, long retryAfterMicros) {
+
+        long retryAfterSeconds = Math.max(1,
+                TimeUnit.MICROSECONDS.toSeconds(retryAfterMicros + ONE_SECOND_IN_MICROS - 1));
+        op.addResponseHeader(Operation.RETRY_AFTER_HEADER, Long.toString(retryAfterSeconds));
+        op.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE)
+                .fail(new CancellationException("request rate limit exceeded for " + key));
+    }
+
+    void handleUncaughtException(Service s, Operation op, Throwable e) {
         if (!Utils.isValidationError(e)) {
             log(Level.SEVERE, "Uncaught exception in service %s: %s", s.getUri(),
                     Utils.toString(e));
@@ -3501,17 +3748,7 @@ public class ServiceHost implements ServiceRequestSender {
         }
 
         if (op.getCompletion() == null) {
-            op.setCompletion((o, e) -> {
-                if (e == null) {
-                    return;
-                }
-
-                log(Level.WARNING, "%s (ctx id:%s) to %s, from %s failed: %s", o.getAction(),
-                        o.getContextId(),
-                        o.getUri(),
-                        o.getReferer(),
-                        e.getMessage());
-            });
+            op.setCompletion(this.defaultCompletion);
         }
         // TODO Set default expiration on all out bound operations and track
         // them during scheduled maintenance
@@ -3558,10 +3795,15 @@ public class ServiceHost implements ServiceRequestSender {
 
         stopPrivilegedServices(privilegedServiceInstances);
 
+        // write queued state while the document index is still available
+        if (!this.writeBehindQueue.flushAll(this.state.maintenanceIntervalMicros * 5)) {
+            log(Level.WARNING, "Timeout writing %d queued service states",
+                    this.writeBehindQueue.size());
+        }
+
         stopCoreServices();
 
         this.attachedServices.clear();
-        this.attachedNamespaceServices.clear();
         this.pendingServiceDeletions.clear();
         this.state.isStarted = false;
 
@@ -3586,8 +3828,10 @@ public class ServiceHost implements ServiceRequestSender {
         }
 
         this.executor.shutdownNow();
+        this.elasticExecutor.shutdownNow();
         this.scheduledExecutor.shutdownNow();
         this.executor = null;
+        this.elasticExecutor = null;
         this.scheduledExecutor = null;
     }
 
@@ -3684,7 +3928,8 @@ public class ServiceHost implements ServiceRequestSender {
 
             if (isTimeout) {
                 log(Level.INFO, "Timeout waiting for service stop");
-                for (String l : this.attachedServices.keySet()) {
+                for (Service s : this.attachedServices.values()) {
+                    String l = s.getSelfLink();
                     if (this.coreServices.contains(l)) {
                         continue;
                     }
@@ -3879,9 +4124,23 @@ public class ServiceHost implements ServiceRequestSender {
      * to derive the key.
      */
     public ServiceHost setRequestRateLimit(String key, double operationsPerSecond) {
+        return setRequestRateLimit(key, operationsPerSecond, 0);
+    }
+
+    /**
+     * Infrastructure use only.
+     *
+     * Sets an upper limit, in terms of operations per second, for all operations associated with
+     * the key, admitting up to {@code burst} operations back to back. The key is a user link, a
+     * role link or a factory link
+     */
+    public ServiceHost setRequestRateLimit(String key, double operationsPerSecond, double burst) {
+        if (operationsPerSecond <= 0) {
+            throw new IllegalArgumentException("operationsPerSecond must be positive");
+        }
         RequestRateInfo ri = new RequestRateInfo();
         ri.limit = operationsPerSecond;
-        ri.startTimeMicros = Utils.getNowMicrosUtc();
+        ri.burst = burst;
         this.state.requestRateLimits.put(key, ri);
         return this;
     }
@@ -4191,6 +4450,7 @@ public class ServiceHost implements ServiceRequestSender {
             switch (stage) {
             case UTILS:
                 Utils.performMaintenance();
+                updateExecutorStats();
                 stage = MaintenanceStage.MEMORY;
                 break;
             case MEMORY:
@@ -4224,6 +4484,64 @@ public class ServiceHost implements ServiceRequestSender {
         }
     }
 
+    private void updateRequestRateLimitStats() {
+        if (this.state.requestRateLimits.isEmpty()) {
+            return;
+        }
+        Service mgmtService = findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService == null) {
+            return;
+        }
+        for (Entry<String, RequestRateInfo> e : this.state.requestRateLimits.entrySet()) {
+            mgmtService.setStat(e.getKey()
+                    + ServiceHostManagementService.STAT_NAME_SUFFIX_THROTTLED_REQUEST_COUNT,
+                    e.getValue().throttledCount.sum());
+        }
+    }
+
+    private void updatePeerSerializationStats() {
+        Service mgmtService = findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService == null) {
+            return;
+        }
+        PeerSerializationStats b = this.peerBinaryStats;
+        PeerSerializationStats j = this.peerJsonStats;
+        if (b.documentCount.sum() == 0 && j.documentCount.sum() == 0) {
+            return;
+        }
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PEER_BINARY_DOCUMENT_COUNT,
+                b.documentCount.sum());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PEER_BINARY_BYTE_COUNT,
+                b.byteCount.sum());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_PEER_BINARY_SERIALIZATION_MICROS,
+                b.micros.sum());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PEER_JSON_DOCUMENT_COUNT,
+                j.documentCount.sum());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PEER_JSON_BYTE_COUNT,
+                j.byteCount.sum());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PEER_JSON_SERIALIZATION_MICROS,
+                j.micros.sum());
+    }
+
+    private void updateExecutorStats() {
+        ElasticExecutor exec = this.elasticExecutor;
+        Service mgmtService = findService(ServiceHostManagementService.SELF_LINK);
+        if (exec == null || mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_ELASTIC_THREAD_COUNT,
+                exec.getPoolSize());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_ELASTIC_BUSY_THREAD_COUNT,
+                exec.getRunningCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_ELASTIC_PEAK_THREAD_COUNT,
+                exec.getLargestPoolSize());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_ELASTIC_QUEUE_DEPTH,
+                exec.getQueue().size());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_ELASTIC_SATURATED_COUNT,
+                exec.getSaturatedCount());
+    }
+
     private void performNodeSelectorChangeMaintenance(Operation post, long now,
             MaintenanceStage nextStage, boolean isCheckRequired) {
         this.serviceSynchTracker.performNodeSelectorChangeMaintenance(post, now, nextStage,
@@ -4234,15 +4552,8 @@ public class ServiceHost implements ServiceRequestSender {
         try {
             performPendingOperationMaintenance();
 
-            // reset request limits, start new time window
-            for (RequestRateInfo rri : this.state.requestRateLimits.values()) {
-                if (now - rri.startTimeMicros < ONE_MINUTE_IN_MICROS) {
-                    // reset only after a fixed interval
-                    return;
-                }
-                rri.startTimeMicros = now;
-                rri.count.set(0);
-            }
+            updateRequestRateLimitStats();
+            updatePeerSerializationStats();
 
             int expected = 0;
             ServiceClient c = getClient();
@@ -4412,6 +4723,9 @@ public class ServiceHost implements ServiceRequestSender {
             state.documentTransactionId = op.getTransactionId();
         }
         state.documentUpdateAction = op.getAction().toString();
+        if (s.getProcessingStage() == ProcessingStage.AVAILABLE) {
+            this.childServiceDigestTracker.update(s, state);
+        }
 
         if (!isServiceIndexed(s)) {
             cacheServiceState(s, state, op);
@@ -4435,6 +4749,20 @@ public class ServiceHost implements ServiceRequestSender {
             cacheServiceState(s, state, op);
         }
 
+        if (s.hasOption(ServiceOption.WRITE_BEHIND_PERSISTENCE)) {
+            if (op.getAction() == Action.DELETE) {
+                // the deleted state is written directly and supersedes queued versions
+                this.writeBehindQueue.discard(s.getSelfLink());
+            } else if (!op.isFromReplication()
+                    && (op.getAction() == Action.PATCH || op.getAction() == Action.PUT)) {
+                // initial state, from service start, is written directly so it is visible to
+                // factory queries
+                this.writeBehindQueue.enqueue(s.getSelfLink(), body);
+                op.complete();
+                return;
+            }
+        }
+
         Operation post = Operation.createPost(indexService.getUri())
                 .setBodyNoCloning(body)
                 .setCompletion((o, e) -> {
@@ -4585,6 +4913,52 @@ public class ServiceHost implements ServiceRequestSender {
             String selectorPath,
             String selectionKey,
             Operation op) {
+        replicateRequest(null, serviceOptions, state, null, null, selectorPath, selectionKey, op);
+    }
+
+    private static class PeerSerializationStats {
+        final LongAdder documentCount = new LongAdder();
+        final LongAdder byteCount = new LongAdder();
+        final LongAdder micros = new LongAdder();
+    }
+
+    /**
+     * Infrastructure use only. Serializes a document for a replication request to a peer. Returns
+     * the Kryo serialized bytes if {@code isBinary} is set and the document is within the
+     * serialized state limit, the JSON string otherwise. Size and serialization time are
+     * published in the host management stats
+     */
+    public Object serializeForPeer(ServiceDocument state, boolean isBinary) {
+        long startNanos = System.nanoTime();
+        if (isBinary) {
+            try {
+                byte[] buffer = Utils.getBuffer(
+                        ServiceDocumentDescription.DEFAULT_SERIALIZED_STATE_LIMIT);
+                int count = Utils.toDocumentBytes(state, buffer, 0);
+                byte[] body = Arrays.copyOf(buffer, count);
+                this.peerBinaryStats.documentCount.increment();
+                this.peerBinaryStats.byteCount.add(count);
+                this.peerBinaryStats.micros.add((System.nanoTime() - startNanos) / 1000);
+                return body;
+            } catch (KryoException e) {
+                // larger than the limit, send JSON
+            }
+        }
+
+        String body = Utils.toJson(state);
+        this.peerJsonStats.documentCount.increment();
+        this.peerJsonStats.byteCount.add(body.length());
+        this.peerJsonStats.micros.add((System.nanoTime() - startNanos) / 1000);
+        return body;
+    }
+
+    void replicateRequest(Service service, EnumSet<ServiceOption> serviceOptions,
+            ServiceDocument state,
+            ServiceDocumentDelta stateDelta,
+            ServiceDocumentDescription stateDescription,
+            String selectorPath,
+            String selectionKey,
+            Operation op) {
         if (isStopping()) {
             op.fail(new CancellationException());
             return;
@@ -4601,6 +4975,9 @@ public class ServiceHost implements ServiceRequestSender {
         }
 
         state.documentOwner = getId();
+        if (stateDelta != null) {
+            stateDelta.documentOwner = state.documentOwner;
+        }
 
         SelectAndForwardRequest req = new SelectAndForwardRequest();
         req.key = selectionKey;
@@ -4609,6 +4986,9 @@ public class ServiceHost implements ServiceRequestSender {
         req.options = EnumSet.of(ForwardingOption.BROADCAST, ForwardingOption.REPLICATE);
         req.serviceOptions = serviceOptions;
         req.linkedState = state;
+        req.linkedStateDelta = stateDelta;
+        req.linkedStateDescription = stateDescription;
+        req.linkedService = service;
         nss.selectAndForward(op, req);
     }
 
@@ -4617,16 +4997,13 @@ public class ServiceHost implements ServiceRequestSender {
      * self link
      */
     public void queryServiceUris(String servicePath, Operation get) {
-        // TODO Use Radix trees for efficient prefix searches. This is not
-        // urgent since we consider queries directly on the host instead of the
-        // document index, to be rare
-
         ServiceDocumentQueryResult r = new ServiceDocumentQueryResult();
 
         boolean doPrefixMatch = servicePath.endsWith(UriUtils.URI_WILDCARD_CHAR);
         servicePath = servicePath.replace(UriUtils.URI_WILDCARD_CHAR, "");
 
-        for (Service s : this.attachedServices.values()) {
+        // only the services under the prefix are visited
+        for (Service s : this.attachedServices.valuesWithPrefix(servicePath)) {
             if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
                 continue;
             }
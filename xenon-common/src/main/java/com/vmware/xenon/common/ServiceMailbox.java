@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per service mailbox used by the host to dispatch operations to a service. Any number of
+ * threads can post operations but a single scheduling token guarantees at most one task drains
+ * the mailbox at any time, in FIFO order, up to {@link #DRAIN_LIMIT} operations per run.
+ * The mailbox itself is the task submitted to the host executor so dispatching an operation
+ * does not allocate a new runnable
+ */
+class ServiceMailbox implements Runnable {
+
+    /**
+     * Maximum number of operations a single scheduled run will dispatch before yielding the
+     * executor thread to other work
+     */
+    public static final int DRAIN_LIMIT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "ServiceMailbox.DRAIN_LIMIT", 32);
+
+    private final ConcurrentLinkedQueue<Operation> operations = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+    private final ServiceHost host;
+    private final StatefulService service;
+
+    ServiceMailbox(ServiceHost host, StatefulService service) {
+        this.host = host;
+        this.service = service;
+    }
+
+    /**
+     * Adds the operation to the mailbox and schedules a drain, if one is not already pending
+     */
+    void post(Operation op) {
+        this.operations.offer(op);
+        schedule();
+    }
+
+    boolean isEmpty() {
+        return this.operations.isEmpty();
+    }
+
+    private void schedule() {
+        if (!this.isScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        ExecutorService exec = this.host.getExecutor(this.service);
+        try {
+            exec.execute(this);
+        } catch (RejectedExecutionException e) {
+            this.isScheduled.set(false);
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < DRAIN_LIMIT; i++) {
+                Operation op = this.operations.poll();
+                if (op == null) {
+                    break;
+                }
+                if (this.service.failIfExpired(op)) {
+                    continue;
+                }
+                OperationContext.setContextId(op.getContextId());
+                OperationContext.setAuthorizationContext(op.getAuthorizationContext());
+                try {
+                    this.service.handleRequest(op);
+                } catch (Throwable e) {
+                    this.host.handleUncaughtException(this.service, op, e);
+                }
+            }
+        } finally {
+            OperationContext.setAuthorizationContext(null);
+            OperationContext.setContextId(null);
+            this.isScheduled.set(false);
+        }
+
+        // operations posted after the last poll, or beyond the drain limit, need a new run
+        if (!this.operations.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -13,108 +13,265 @@
 
 package com.vmware.xenon.common;
 
-import java.util.HashSet;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 
 import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceMaintenanceRequest.MaintenanceReason;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
 
 /**
- * Sequences service periodic maintenance
+ * Sequences service periodic maintenance.
+ *
+ * Expirations are kept in a hashed hierarchical timing wheel. Each level has
+ * {@link #WHEEL_SIZE} slots, level zero slots span one {@link #TICK_MICROS} tick and each higher
+ * level slot spans a full rotation of the level below it. Services expiring in the same tick
+ * share a slot, and entries cascade to lower levels as their expiration approaches.
+ *
+ * Scheduling is lock free: new expirations are appended to a pending queue and moved into the
+ * wheel by the host maintenance pass, which is the only code touching the wheel
  */
 class ServiceMaintenanceTracker {
     public static ServiceMaintenanceTracker create(ServiceHost host) {
         ServiceMaintenanceTracker smt = new ServiceMaintenanceTracker();
         smt.host = host;
+        smt.currentTick = Utils.getNowMicrosUtc() / TICK_MICROS;
         return smt;
     }
 
+    /**
+     * Resolution of the wheel. Maintenance for a service is dispatched on the first host
+     * maintenance pass after the tick its expiration falls in
+     */
+    public static final long TICK_MICROS = Long.getLong(
+            Utils.PROPERTY_NAME_PREFIX + "ServiceMaintenanceTracker.TICK_MICROS", 1000);
+
+    /**
+     * Upper bound of the random delay added to each expiration, as a fraction of the maintenance
+     * interval, so services started together do not all expire in the same tick
+     */
+    public static final int JITTER_DIVISOR = 20;
+
+    /**
+     * Number of services whose maintenance is started by a single executor task
+     */
+    public static final int DISPATCH_BATCH_SIZE = 64;
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVEL_COUNT = 4;
+
+    /**
+     * An expiration in the wheel. The entry is reused when the service is rescheduled after
+     * maintenance completes
+     */
+    private static class MaintenanceEntry {
+        final String servicePath;
+        long expirationMicros;
+
+        MaintenanceEntry(String servicePath) {
+            this.servicePath = servicePath;
+        }
+    }
+
     private ServiceHost host;
-    private ConcurrentSkipListMap<Long, Set<String>> nextExpiration = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentLinkedQueue<MaintenanceEntry> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Accessed only from {@link #performMaintenance(Operation, long)}, which the host never runs
+     * concurrently
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final List<MaintenanceEntry>[][] wheel = new List[LEVEL_COUNT][WHEEL_SIZE];
+    private long currentTick;
+    private int wheelEntryCount;
+
+    /**
+     * The maintenance body is the same for every periodic maintenance request so a single
+     * instance is shared, set without cloning. Services must not modify it
+     */
+    private final ServiceMaintenanceRequest periodicBody = createPeriodicBody();
+
+    private static ServiceMaintenanceRequest createPeriodicBody() {
+        ServiceMaintenanceRequest body = ServiceMaintenanceRequest.create();
+        body.reasons.add(MaintenanceReason.PERIODIC_SCHEDULE);
+        return body;
+    }
 
     public void schedule(Service s) {
+        schedule(s, new MaintenanceEntry(s.getSelfLink()));
+    }
+
+    private void schedule(Service s, MaintenanceEntry entry) {
         long interval = s.getMaintenanceIntervalMicros();
         if (interval == 0) {
             interval = this.host.getMaintenanceIntervalMicros();
         }
 
-        long nextExpirationMicros = Utils.getNowMicrosUtc() + interval;
-        synchronized (this) {
-            Set<String> services = this.nextExpiration.get(nextExpirationMicros);
-            if (services == null) {
-                services = new HashSet<>();
-                this.nextExpiration.put(nextExpirationMicros, services);
-            }
-            services.add(s.getSelfLink());
-        }
+        long jitter = ThreadLocalRandom.current().nextLong(interval / JITTER_DIVISOR + 1);
+        entry.expirationMicros = Utils.getNowMicrosUtc() + interval + jitter;
+        this.pending.offer(entry);
     }
 
+    /**
+     * Advances the wheel to the current tick and dispatches maintenance for the expired
+     * services. Ticks not reached by the deadline are processed by the next pass
+     */
     public void performMaintenance(Operation op, long deadline) {
+        if (this.host.isStopping()) {
+            op.fail(new CancellationException("Host is stopping"));
+            return;
+        }
+
         long now = Utils.getNowMicrosUtc();
-        while (now < deadline) {
+        long nowTick = now / TICK_MICROS;
+        List<MaintenanceEntry> expired = new ArrayList<>();
+
+        MaintenanceEntry entry;
+        while ((entry = this.pending.poll()) != null) {
+            place(entry, expired);
+        }
+
+        while (this.currentTick < nowTick) {
             if (this.host.isStopping()) {
                 op.fail(new CancellationException("Host is stopping"));
                 return;
             }
 
-            Set<String> services = null;
-
-            // the nextExpiration map is a concurrent data structure, but since each value is a Set, we want
-            // to make sure modifications to that Set are not lost if a concurrent add() is happening
-            synchronized (this) {
-                // get any services set to expire within the current maintenance interval
-                Entry<Long, Set<String>> e = this.nextExpiration.firstEntry();
-                if (e == null || e.getKey() >= now) {
-                    // no service requires maintenance, yet
-                    return;
-                }
-                services = e.getValue();
-                this.nextExpiration.remove(e.getKey());
+            if (this.wheelEntryCount == 0) {
+                // nothing to cascade or expire, skip directly to the current tick
+                this.currentTick = nowTick;
+                break;
             }
 
-            for (String servicePath : services) {
-                Service s = this.host.findService(servicePath);
+            if (!expired.isEmpty() && Utils.getNowMicrosUtc() > deadline) {
+                // dispatch what expired so far, the next pass continues from this tick
+                break;
+            }
 
-                if (s == null) {
+            this.currentTick++;
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                long levelTicks = 1L << (WHEEL_BITS * level);
+                if (this.currentTick % levelTicks != 0) {
                     continue;
                 }
-                if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
-                    continue;
+                int slot = (int) ((this.currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                List<MaintenanceEntry> entries = removeSlot(level, slot);
+                if (entries != null) {
+                    for (MaintenanceEntry e : entries) {
+                        place(e, expired);
+                    }
                 }
+            }
 
-                if (!s.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
-                    // maintenance was disabled on this service
-                    continue;
+            List<MaintenanceEntry> entries = removeSlot(0, (int) (this.currentTick & WHEEL_MASK));
+            if (entries != null) {
+                for (MaintenanceEntry e : entries) {
+                    place(e, expired);
                 }
+            }
+        }
 
-                if (s.hasOption(ServiceOption.OWNER_SELECTION)
-                        && !s.hasOption(ServiceOption.DOCUMENT_OWNER)) {
-                    continue;
-                }
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        long maxLag = 0;
+        for (MaintenanceEntry e : expired) {
+            maxLag = Math.max(maxLag, now - e.expirationMicros);
+        }
+        setManagementStat(ServiceHostManagementService.STAT_NAME_MAINTENANCE_LAG_MICROS, maxLag);
+
+        for (int i = 0; i < expired.size(); i += DISPATCH_BATCH_SIZE) {
+            List<MaintenanceEntry> batch = expired.subList(i,
+                    Math.min(i + DISPATCH_BATCH_SIZE, expired.size()));
+            this.host.run(() -> dispatch(batch));
+        }
+    }
+
+    /**
+     * Adds the entry to the wheel level and slot matching its remaining delay, or to the
+     * expired list if it is due
+     */
+    private void place(MaintenanceEntry entry, List<MaintenanceEntry> expired) {
+        long expirationTick = entry.expirationMicros / TICK_MICROS;
+        long delay = expirationTick - this.currentTick;
+        if (delay <= 0) {
+            expired.add(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVEL_COUNT - 1 && delay >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        // delays beyond the top level range land in a top level slot and are placed again
+        // when it cascades
+        int slot = (int) ((expirationTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        List<MaintenanceEntry> entries = this.wheel[level][slot];
+        if (entries == null) {
+            entries = new ArrayList<>();
+            this.wheel[level][slot] = entries;
+        }
+        entries.add(entry);
+        this.wheelEntryCount++;
+    }
+
+    private List<MaintenanceEntry> removeSlot(int level, int slot) {
+        List<MaintenanceEntry> entries = this.wheel[level][slot];
+        if (entries == null) {
+            return null;
+        }
+        this.wheel[level][slot] = null;
+        this.wheelEntryCount -= entries.size();
+        return entries;
+    }
+
+    private void dispatch(List<MaintenanceEntry> batch) {
+        OperationContext.setAuthorizationContext(this.host.getSystemAuthorizationContext());
+        for (MaintenanceEntry entry : batch) {
+            Service s = this.host.findService(entry.servicePath);
 
-                performServiceMaintenance(servicePath, s);
+            if (s == null) {
+                continue;
             }
-            now = Utils.getNowMicrosUtc();
+            if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
+                continue;
+            }
+
+            if (!s.hasOption(ServiceOption.PERIODIC_MAINTENANCE)) {
+                // maintenance was disabled on this service
+                continue;
+            }
+
+            if (s.hasOption(ServiceOption.OWNER_SELECTION)
+                    && !s.hasOption(ServiceOption.DOCUMENT_OWNER)) {
+                continue;
+            }
+
+            performServiceMaintenance(entry, s);
         }
     }
 
-    private void performServiceMaintenance(String servicePath, Service s) {
-        long[] start = new long[1];
-        ServiceMaintenanceRequest body = ServiceMaintenanceRequest.create();
-        body.reasons.add(MaintenanceReason.PERIODIC_SCHEDULE);
+    private void performServiceMaintenance(MaintenanceEntry entry, Service s) {
+        String servicePath = entry.servicePath;
+        long start = Utils.getNowMicrosUtc();
         Operation servicePost = Operation
-                .createPost(UriUtils.buildUri(this.host, servicePath))
+                .createPost(s.getUri())
                 .setReferer(this.host.getUri())
-                .setBody(body)
+                .setBodyNoCloning(this.periodicBody)
                 .setCompletion(
                         (o, ex) -> {
 
-                            long actual = Utils.getNowMicrosUtc() - start[0];
+                            long actual = Utils.getNowMicrosUtc() - start;
                             long limit = Math.max(this.host.getMaintenanceIntervalMicros(),
                                     s.getMaintenanceIntervalMicros());
 
@@ -124,31 +281,46 @@ class ServiceMaintenanceTracker {
                                         servicePath, limit, actual);
                                 s.adjustStat(
                                         Service.STAT_NAME_MAINTENANCE_COMPLETION_DELAYED_COUNT, 1);
+                                adjustManagementStat(ServiceHostManagementService
+                                        .STAT_NAME_MAINTENANCE_OVERRUN_COUNT);
                             }
 
                             // schedule again, for next maintenance interval
-                            schedule(s);
+                            schedule(s, entry);
                             if (ex != null) {
                                 this.host.log(Level.WARNING, "Service %s failed maintenance: %s",
                                         servicePath, Utils.toString(ex));
                             }
                         });
-        this.host.run(() -> {
-            try {
-                OperationContext.setAuthorizationContext(this.host
-                        .getSystemAuthorizationContext());
-                if (s.hasOption(Service.ServiceOption.INSTRUMENTATION)) {
-                    s.adjustStat(Service.STAT_NAME_MAINTENANCE_COUNT, 1);
-                }
-                start[0] = Utils.getNowMicrosUtc();
-                s.handleMaintenance(servicePost);
-            } catch (Throwable ex) {
-                servicePost.fail(ex);
+        try {
+            if (s.hasOption(Service.ServiceOption.INSTRUMENTATION)) {
+                s.adjustStat(Service.STAT_NAME_MAINTENANCE_COUNT, 1);
             }
-        });
+            s.handleMaintenance(servicePost);
+        } catch (Throwable ex) {
+            servicePost.fail(ex);
+        }
+    }
+
+    private void setManagementStat(String name, double value) {
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService != null) {
+            mgmtService.setStat(name, value);
+        }
     }
 
-    public synchronized void close() {
-        this.nextExpiration.clear();
+    private void adjustManagementStat(String name) {
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService != null) {
+            mgmtService.adjustStat(name, 1);
+        }
+    }
+
+    public void close() {
+        this.pending.clear();
+        for (List<MaintenanceEntry>[] level : this.wheel) {
+            Arrays.fill(level, null);
+        }
+        this.wheelEntryCount = 0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores paused service instances in an append only log of memory mapped segment files, with
+ * an in memory index from service path to record location. Services are appended in batches by
+ * a single writer and each record is read once, directly from the mapped segment, when the
+ * service resumes. A segment file is deleted once all of its records have been read.
+ *
+ * The store does not survive host restart: existing segment files are deleted when the store
+ * is created
+ */
+class ServicePauseStore {
+
+    public static final int SEGMENT_SIZE_BYTES = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "ServicePauseStore.SEGMENT_SIZE_BYTES",
+            16 * 1024 * 1024);
+
+    /**
+     * Upper bound on the serialized size of a single paused service
+     */
+    public static final int MAX_RECORD_SIZE_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int liveCount;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final AtomicLong byteCount = new AtomicLong();
+    private Segment activeSegment;
+    private long nextSegmentId;
+
+    ServicePauseStore(File directory) {
+        this.directory = directory;
+        if (directory.exists()) {
+            FileUtils.deleteFiles(directory);
+        }
+        if (!directory.mkdirs()) {
+            throw new IllegalStateException("Failure creating directory " + directory);
+        }
+    }
+
+    /**
+     * Appends the serialized services, replacing any earlier record for the same path. Returns
+     * the number of services written. Services that can not be serialized within
+     * {@link #MAX_RECORD_SIZE_BYTES} are added to the failed map, so the caller can resume them
+     */
+    synchronized int append(Map<String, Service> services, Map<String, Service> failed)
+            throws IOException {
+        int count = 0;
+        for (Map.Entry<String, Service> e : services.entrySet()) {
+            int length;
+            byte[] buffer = Utils.getBuffer(MAX_RECORD_SIZE_BYTES);
+            try {
+                length = Utils.toBytes(e.getValue(), buffer, 0);
+            } catch (Throwable ex) {
+                failed.put(e.getKey(), e.getValue());
+                continue;
+            }
+
+            Segment segment = this.activeSegment;
+            if (segment == null || segment.buffer.remaining() < length) {
+                segment = rollSegment(Math.max(length, SEGMENT_SIZE_BYTES));
+            }
+
+            int offset = segment.buffer.position();
+            segment.buffer.put(buffer, 0, length);
+            segment.liveCount++;
+            this.byteCount.addAndGet(length);
+            Location previous = this.index.put(e.getKey(), new Location(segment, offset, length));
+            if (previous != null) {
+                release(previous);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the service from the store and deserializes it directly from the mapped segment.
+     * Returns null if the service is not paused
+     */
+    Service remove(String servicePath) {
+        Location l = this.index.remove(servicePath);
+        if (l == null) {
+            return null;
+        }
+        try {
+            ByteBuffer record = l.segment.buffer.duplicate();
+            record.limit(l.offset + l.length);
+            record.position(l.offset);
+            return (Service) Utils.fromBytes(record);
+        } finally {
+            synchronized (this) {
+                release(l);
+            }
+        }
+    }
+
+    /**
+     * Removes the service from the store without reading it
+     */
+    synchronized boolean discard(String servicePath) {
+        Location l = this.index.remove(servicePath);
+        if (l == null) {
+            return false;
+        }
+        release(l);
+        return true;
+    }
+
+    boolean contains(String servicePath) {
+        return this.index.containsKey(servicePath);
+    }
+
+    int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Bytes used by services currently paused, excluding space held by records already read
+     * in segments that still have paused services
+     */
+    long getByteCount() {
+        return this.byteCount.get();
+    }
+
+    synchronized void close() {
+        this.index.clear();
+        this.activeSegment = null;
+        this.byteCount.set(0);
+        FileUtils.deleteFiles(this.directory);
+    }
+
+    private void release(Location l) {
+        this.byteCount.addAndGet(-l.length);
+        Segment s = l.segment;
+        s.liveCount--;
+        if (s.liveCount == 0 && s != this.activeSegment) {
+            deleteSegmentFile(s);
+        }
+    }
+
+    private void deleteSegmentFile(Segment s) {
+        // the mapping stays valid until the buffer is collected, the file is not needed
+        try {
+            Files.deleteIfExists(s.file.toPath());
+        } catch (IOException e) {
+            Utils.logWarning("Failure deleting %s: %s", s.file, e.toString());
+        }
+    }
+
+    private Segment rollSegment(int size) throws IOException {
+        Segment previous = this.activeSegment;
+        File f = new File(this.directory, SEGMENT_FILE_PREFIX + this.nextSegmentId++);
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(MapMode.READ_WRITE, 0, size);
+        }
+        this.activeSegment = new Segment(f, buffer);
+        if (previous != null && previous.liveCount == 0) {
+            deleteSegmentFile(previous);
+        }
+        return this.activeSegment;
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.xenon.common.Service.ServiceOption;
+
+/**
+ * Attached services, indexed by self link in a radix tree (compressed trie).
+ *
+ * Lookups walk the tree once, comparing the path in place, and do not allocate. A single
+ * walk resolves the exact match, the match with the trailing slash removed, the parent of a
+ * helper (utility) service path and the longest {@link ServiceOption#URI_NAMESPACE_OWNER} prefix,
+ * see {@link #findService(String, boolean)}. Services under a path prefix, for example the
+ * children of a factory, are enumerated by walking the sub tree of the prefix only.
+ *
+ * Lookups and iteration do not lock. Updates are serialized and publish new child tables, and
+ * new nodes when a node is split or merged, so a concurrent lookup sees either the old or the
+ * new tree. Iteration is weakly consistent, like the iterators of the concurrent collections
+ */
+class ServiceRegistry {
+
+    /**
+     * Immutable, sorted table of the children of a node, indexed by the first character of
+     * the child label
+     */
+    private static final class Children {
+        static final Children EMPTY = new Children(new char[0], new Node[0]);
+
+        final char[] keys;
+        final Node[] nodes;
+
+        Children(char[] keys, Node[] nodes) {
+            this.keys = keys;
+            this.nodes = nodes;
+        }
+
+        Node get(char c) {
+            int i = Arrays.binarySearch(this.keys, c);
+            return i < 0 ? null : this.nodes[i];
+        }
+
+        /**
+         * Returns a copy of the table with the node added, or replacing the node with the same
+         * first character
+         */
+        Children with(Node n) {
+            char c = n.label.charAt(0);
+            int i = Arrays.binarySearch(this.keys, c);
+            if (i >= 0) {
+                Node[] nodes = this.nodes.clone();
+                nodes[i] = n;
+                return new Children(this.keys, nodes);
+            }
+            i = -(i + 1);
+            int length = this.keys.length;
+            char[] keys = new char[length + 1];
+            Node[] nodes = new Node[length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, i);
+            System.arraycopy(this.nodes, 0, nodes, 0, i);
+            keys[i] = c;
+            nodes[i] = n;
+            System.arraycopy(this.keys, i, keys, i + 1, length - i);
+            System.arraycopy(this.nodes, i, nodes, i + 1, length - i);
+            return new Children(keys, nodes);
+        }
+
+        Children without(char c) {
+            int i = Arrays.binarySearch(this.keys, c);
+            if (i < 0) {
+                return this;
+            }
+            int length = this.keys.length;
+            if (length == 1) {
+                return EMPTY;
+            }
+            char[] keys = new char[length - 1];
+            Node[] nodes = new Node[length - 1];
+            System.arraycopy(this.keys, 0, keys, 0, i);
+            System.arraycopy(this.nodes, 0, nodes, 0, i);
+            System.arraycopy(this.keys, i + 1, keys, i, length - i - 1);
+            System.arraycopy(this.nodes, i + 1, nodes, i, length - i - 1);
+            return new Children(keys, nodes);
+        }
+    }
+
+    private static final class Node {
+        final String label;
+        volatile Children children;
+        volatile Service service;
+        volatile boolean isNamespaceOwner;
+
+        Node(String label, Children children, Service service, boolean isNamespaceOwner) {
+            this.label = label;
+            this.children = children;
+            this.service = service;
+            this.isNamespaceOwner = isNamespaceOwner;
+        }
+    }
+
+    private final Node root = new Node("", Children.EMPTY, null, false);
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    public int size() {
+        return this.size.get();
+    }
+
+    public Service get(String path) {
+        Node n = findNode(path);
+        return n == null ? null : n.service;
+    }
+
+    public boolean containsKey(String path) {
+        return get(path) != null;
+    }
+
+    /**
+     * Resolves a request path to a service, in a single walk of the tree. Returns, in order of
+     * precedence: the service attached at the path, the service attached at the path without its
+     * trailing slash, the utility service if the path is a helper path, or, if
+     * {@code doExactMatch} is false, the namespace owner service with the longest self link that
+     * is a prefix of the path
+     */
+    public Service findService(String uriPath, boolean doExactMatch) {
+        String path = uriPath;
+        if (!path.startsWith(UriUtils.URI_PATH_CHAR)) {
+            Service s = get(path);
+            if (s != null) {
+                return s;
+            }
+            path = UriUtils.normalizeUriPath(path);
+        }
+
+        boolean isHelperPath = ServiceHost.isHelperServicePath(uriPath);
+        int helperParentLength = -1;
+        if (isHelperPath) {
+            int i = path.indexOf(ServiceHost.SERVICE_URI_SUFFIX_UI + UriUtils.URI_PATH_CHAR);
+            helperParentLength = i > 0 ? i : path.lastIndexOf(UriUtils.URI_PATH_CHAR);
+        }
+
+        int length = path.length();
+        int normalizedLength = length > 1 && path.charAt(length - 1) == '/' ? length - 1 : -1;
+        Service exactMatch = null;
+        Service normalizedMatch = null;
+        Service helperParent = null;
+        Service namespaceOwner = null;
+
+        Node n = this.root;
+        int pos = 0;
+        while (true) {
+            Service s = n.service;
+            if (s != null) {
+                if (pos == length) {
+                    exactMatch = s;
+                } else if (pos == normalizedLength) {
+                    normalizedMatch = s;
+                }
+                if (pos == helperParentLength) {
+                    helperParent = s;
+                }
+                if (n.isNamespaceOwner) {
+                    namespaceOwner = s;
+                }
+            }
+            if (pos == length) {
+                break;
+            }
+            Node c = n.children.get(path.charAt(pos));
+            if (c == null) {
+                break;
+            }
+            int labelLength = c.label.length();
+            if (length - pos < labelLength || !path.regionMatches(pos, c.label, 0, labelLength)) {
+                break;
+            }
+            pos += labelLength;
+            n = c;
+        }
+
+        if (exactMatch != null) {
+            return exactMatch;
+        }
+        if (normalizedMatch != null) {
+            return normalizedMatch;
+        }
+        if (isHelperPath) {
+            return helperParent == null ? null : helperParent.getUtilityService(uriPath);
+        }
+        if (doExactMatch) {
+            return null;
+        }
+        return namespaceOwner;
+    }
+
+    public synchronized Service put(String path, Service service) {
+        if (service == null) {
+            throw new IllegalArgumentException("service is required");
+        }
+        boolean isNamespaceOwner = service.hasOption(ServiceOption.URI_NAMESPACE_OWNER);
+        Node n = this.root;
+        int pos = 0;
+        int length = path.length();
+        while (pos < length) {
+            Node c = n.children.get(path.charAt(pos));
+            if (c == null) {
+                n.children = n.children.with(
+                        new Node(path.substring(pos), Children.EMPTY, service, isNamespaceOwner));
+                this.size.incrementAndGet();
+                return null;
+            }
+
+            int common = commonPrefixLength(path, pos, c.label);
+            if (common < c.label.length()) {
+                // split the child: the new node holds the common prefix, the existing child
+                // is replaced by a copy holding the remainder of its label
+                Node tail = new Node(c.label.substring(common), c.children, c.service,
+                        c.isNamespaceOwner);
+                Node prefix = new Node(c.label.substring(0, common),
+                        Children.EMPTY.with(tail), null, false);
+                n.children = n.children.with(prefix);
+                c = prefix;
+            }
+            pos += common;
+            n = c;
+        }
+
+        Service existing = n.service;
+        n.isNamespaceOwner = isNamespaceOwner;
+        n.service = service;
+        if (existing == null) {
+            this.size.incrementAndGet();
+        }
+        return existing;
+    }
+
+    public synchronized Service remove(String path) {
+        Node grandParent = null;
+        Node parent = null;
+        Node n = this.root;
+        int pos = 0;
+        int length = path.length();
+        while (pos < length) {
+            Node c = n.children.get(path.charAt(pos));
+            if (c == null) {
+                return null;
+            }
+            int labelLength = c.label.length();
+            if (length - pos < labelLength || !path.regionMatches(pos, c.label, 0, labelLength)) {
+                return null;
+            }
+            pos += labelLength;
+            grandParent = parent;
+            parent = n;
+            n = c;
+        }
+
+        Service existing = n.service;
+        if (existing == null) {
+            return null;
+        }
+        n.service = null;
+        n.isNamespaceOwner = false;
+        this.size.decrementAndGet();
+
+        if (parent == null) {
+            return existing;
+        }
+
+        // keep the tree compressed: remove empty leaves and merge nodes with a single child
+        Children children = n.children;
+        if (children.nodes.length == 0) {
+            parent.children = parent.children.without(n.label.charAt(0));
+            if (grandParent != null && parent.service == null
+                    && parent.children.nodes.length == 1) {
+                grandParent.children = grandParent.children.with(
+                        merge(parent, parent.children.nodes[0]));
+            }
+        } else if (children.nodes.length == 1) {
+            parent.children = parent.children.with(merge(n, children.nodes[0]));
+        }
+        return existing;
+    }
+
+    public synchronized void clear() {
+        this.root.children = Children.EMPTY;
+        this.root.service = null;
+        this.size.set(0);
+    }
+
+    /**
+     * Returns a weakly consistent view of all attached services
+     */
+    public Collection<Service> values() {
+        return valuesWithPrefix("");
+    }
+
+    /**
+     * Returns a weakly consistent view of the services with a self link starting with the
+     * given prefix. Only the sub tree of the prefix is visited
+     */
+    public Collection<Service> valuesWithPrefix(String prefix) {
+        Node start = findPrefixNode(prefix);
+        if (start == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractCollection<Service>() {
+            @Override
+            public Iterator<Service> iterator() {
+                return new ServiceIterator(start);
+            }
+
+            @Override
+            public int size() {
+                if (start == ServiceRegistry.this.root) {
+                    return ServiceRegistry.this.size.get();
+                }
+                int count = 0;
+                for (Iterator<Service> it = iterator(); it.hasNext(); it.next()) {
+                    count++;
+                }
+                return count;
+            }
+        };
+    }
+
+    private static final class ServiceIterator implements Iterator<Service> {
+        private final ArrayDeque<Node> stack = new ArrayDeque<>();
+        private Service next;
+
+        ServiceIterator(Node start) {
+            this.stack.push(start);
+            advance();
+        }
+
+        private void advance() {
+            this.next = null;
+            while (this.next == null && !this.stack.isEmpty()) {
+                Node n = this.stack.pop();
+                Node[] nodes = n.children.nodes;
+                // push in reverse so services are returned in self link order
+                for (int i = nodes.length - 1; i >= 0; i--) {
+                    this.stack.push(nodes[i]);
+                }
+                this.next = n.service;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override
+        public Service next() {
+            Service s = this.next;
+            if (s == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return s;
+        }
+    }
+
+    private Node findNode(String path) {
+        Node n = this.root;
+        int pos = 0;
+        int length = path.length();
+        while (pos < length) {
+            Node c = n.children.get(path.charAt(pos));
+            if (c == null) {
+                return null;
+            }
+            int labelLength = c.label.length();
+            if (length - pos < labelLength || !path.regionMatches(pos, c.label, 0, labelLength)) {
+                return null;
+            }
+            pos += labelLength;
+            n = c;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the top most node whose path starts with the prefix, the prefix can end in the
+     * middle of the node label
+     */
+    private Node findPrefixNode(String prefix) {
+        Node n = this.root;
+        int pos = 0;
+        int length = prefix.length();
+        while (pos < length) {
+            Node c = n.children.get(prefix.charAt(pos));
+            if (c == null) {
+                return null;
+            }
+            int compareLength = Math.min(c.label.length(), length - pos);
+            if (!prefix.regionMatches(pos, c.label, 0, compareLength)) {
+                return null;
+            }
+            pos += compareLength;
+            n = c;
+        }
+        return n;
+    }
+
+    private static Node merge(Node n, Node child) {
+        return new Node(n.label + child.label, child.children, child.service,
+                child.isNamespaceOwner);
+    }
+
+    private static int commonPrefixLength(String path, int pos, String label) {
+        int max = Math.min(path.length() - pos, label.length());
+        int i = 0;
+        while (i < max && path.charAt(pos + i) == label.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
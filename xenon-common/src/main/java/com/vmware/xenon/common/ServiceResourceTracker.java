@@ -13,7 +13,10 @@
 
 package com.vmware.xenon.common;
 
+import java.io.File;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.TimeUnit;
@@ -24,16 +27,18 @@ import com.vmware.xenon.common.Service.ProcessingStage;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState.MemoryLimitType;
-import com.vmware.xenon.services.common.ServiceContextIndexService;
+import com.vmware.xenon.services.common.ServiceHostManagementService;
 
 /**
  * Monitors service resources, and takes action, during periodic maintenance
  */
 class ServiceResourceTracker {
+    private static final String PAUSE_STORE_DIRECTORY = "service-pause-store";
+
     /**
-     * For performance reasons, this map is owned and directly operated by the host
+     * For performance reasons, this registry is owned and directly operated by the host
      */
-    private final Map<String, Service> attachedServices;
+    private final ServiceRegistry attachedServices;
 
     /**
      * For performance reasons, this map is owned and directly operated by the service host
@@ -49,16 +54,30 @@ class ServiceResourceTracker {
      * Tracks cached service state. Cleared periodically during maintenance
      */
     private final ConcurrentSkipListMap<String, ServiceDocument> cachedServiceStates = new ConcurrentSkipListMap<>();
+
+    /**
+     * Tracks serialized state of indexed services, when the host uses
+     * {@link ServiceHost.ServiceStateCacheMode#COMPACT}. The byte limit is refreshed during
+     * maintenance
+     */
+    private final ServiceStateCache compactCachedServiceStates = new ServiceStateCache(
+            Long.MAX_VALUE);
     private final ServiceHost host;
 
-    public static ServiceResourceTracker create(ServiceHost host, Map<String, Service> services,
+    /**
+     * Holds paused service instances. Created on first pause, since the storage sandbox is
+     * not known when the tracker is created
+     */
+    private volatile ServicePauseStore pauseStore;
+
+    public static ServiceResourceTracker create(ServiceHost host, ServiceRegistry services,
             Map<String, Service> pendingPauseServices) {
         ServiceResourceTracker srt = new ServiceResourceTracker(host, services,
                 pendingPauseServices);
         return srt;
     }
 
-    public ServiceResourceTracker(ServiceHost host, Map<String, Service> services,
+    public ServiceResourceTracker(ServiceHost host, ServiceRegistry services,
             Map<String, Service> pendingPauseServices) {
         this.attachedServices = services;
         this.pendingPauseServices = pendingPauseServices;
@@ -66,6 +85,15 @@ class ServiceResourceTracker {
     }
 
     public void updateCachedServiceState(Service s, ServiceDocument st) {
+        if (isCompactCaching() && ServiceHost.isServiceIndexed(s)) {
+            if (this.compactCachedServiceStates.put(s.getSelfLink(), st)) {
+                this.cachedServiceStates.remove(s.getSelfLink());
+                return;
+            }
+            // state exceeds the serialization limit, cache the instance instead
+            this.compactCachedServiceStates.remove(s.getSelfLink());
+        }
+
         synchronized (s.getSelfLink()) {
             ServiceDocument cachedState = this.cachedServiceStates.put(s.getSelfLink(), st);
             if (cachedState != null && cachedState.documentVersion > st.documentVersion) {
@@ -75,10 +103,15 @@ class ServiceResourceTracker {
         }
     }
 
-    public ServiceDocument getCachedServiceState(String servicePath) {
+    /**
+     * Returns the cached state. If a copy is required, the returned instance is never shared
+     * with the cache or other callers
+     */
+    public ServiceDocument getCachedServiceState(String servicePath, boolean isCopyRequired) {
         ServiceDocument state = this.cachedServiceStates.get(servicePath);
         if (state == null) {
-            return null;
+            // compact state is deserialized on every access, so it is always a copy
+            return isCompactCaching() ? this.compactCachedServiceStates.get(servicePath) : null;
         }
 
         if (state.documentExpirationTimeMicros > 0
@@ -88,11 +121,12 @@ class ServiceResourceTracker {
             return null;
         }
 
-        return state;
+        return isCopyRequired ? Utils.clone(state) : state;
     }
 
     public void clearCachedServiceState(String servicePath) {
         this.cachedServiceStates.remove(servicePath);
+        this.compactCachedServiceStates.remove(servicePath);
         Service s = this.host.findService(servicePath, true);
         if (s == null) {
             return;
@@ -115,6 +149,13 @@ class ServiceResourceTracker {
 
         boolean shouldPause = memoryLimitLowMB <= memoryInUseMB;
 
+        if (isCompactCaching()) {
+            updateCompactCacheLimitAndStats();
+        }
+
+        updateWriteBehindStats();
+        updateChildSynchronizationStats();
+
         int pauseServiceCount = 0;
         for (Service service : this.attachedServices.values()) {
             // skip factory services, they do not have state, and should not be paused
@@ -127,15 +168,21 @@ class ServiceResourceTracker {
                 continue;
             }
 
-            ServiceDocument s = this.cachedServiceStates.get(service.getSelfLink());
+            if (service.hasOption(ServiceOption.WRITE_BEHIND_PERSISTENCE)
+                    && this.host.getWriteBehindQueue().hasPendingWrite(service.getSelfLink())) {
+                // state not yet written to the index stays cached, and the service resident
+                continue;
+            }
+
+            long updateTimeMicros = getCachedStateUpdateTimeMicros(service.getSelfLink());
 
-            if (s != null) {
-                if ((hostState.serviceCacheClearDelayMicros + s.documentUpdateTimeMicros) < now) {
+            if (updateTimeMicros >= 0) {
+                if ((hostState.serviceCacheClearDelayMicros + updateTimeMicros) < now) {
                     clearCachedServiceState(service.getSelfLink());
                 }
 
                 if (hostState.lastMaintenanceTimeUtcMicros
-                        - s.documentUpdateTimeMicros < service
+                        - updateTimeMicros < service
                                 .getMaintenanceIntervalMicros() * 2) {
                     // Skip pause for services that have been active within a maintenance interval
                     continue;
@@ -180,8 +227,7 @@ class ServiceResourceTracker {
             return;
         }
 
-        // Make sure our service count matches the list contents, they could drift. Using size()
-        // on a concurrent data structure is costly so we do this only when pausing services
+        // Make sure our service count matches the list contents, they could drift
         synchronized (hostState) {
             hostState.serviceCount = this.attachedServices.size();
         }
@@ -189,13 +235,100 @@ class ServiceResourceTracker {
         pauseServices();
     }
 
+    private boolean isCompactCaching() {
+        return this.host.getStateNoCloning().serviceStateCacheMode
+                == ServiceHost.ServiceStateCacheMode.COMPACT;
+    }
+
+    private long getCachedStateUpdateTimeMicros(String servicePath) {
+        ServiceDocument s = this.cachedServiceStates.get(servicePath);
+        if (s != null) {
+            return s.documentUpdateTimeMicros;
+        }
+        return this.compactCachedServiceStates.getDocumentUpdateTimeMicros(servicePath);
+    }
+
+    /**
+     * Bounds compact cached state to the low watermark of the host memory limit and publishes
+     * cache stats on the management service
+     */
+    private void updateCompactCacheLimitAndStats() {
+        Long limitMB = this.host.getServiceMemoryLimitMB(ServiceHost.ROOT_PATH,
+                MemoryLimitType.LOW_WATERMARK);
+        if (limitMB != null) {
+            this.compactCachedServiceStates.setByteLimit(limitMB * 1024 * 1024);
+        }
+
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService == null) {
+            return;
+        }
+        ServiceStateCache cache = this.compactCachedServiceStates;
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_STATE_CACHE_HIT_COUNT,
+                cache.getHitCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_STATE_CACHE_MISS_COUNT,
+                cache.getMissCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_STATE_CACHE_EVICTION_COUNT,
+                cache.getEvictionCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_STATE_CACHE_BYTE_COUNT,
+                cache.getByteCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_STATE_CACHE_ENTRY_COUNT,
+                cache.size());
+    }
+
+    private void updateChildSynchronizationStats() {
+        ChildSynchronizationLimiter limiter = this.host.getChildSynchronizationLimiter();
+        long concurrencyLimitedCount = limiter.getConcurrencyLimitedCount();
+        long rateLimitedCount = limiter.getRateLimitedCount();
+        if (concurrencyLimitedCount == 0 && rateLimitedCount == 0) {
+            // the limits never held back a synchronization
+            return;
+        }
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_CHILD_SYNCH_ACTIVE_COUNT,
+                limiter.getActiveCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_CHILD_SYNCH_WAITING_COUNT,
+                limiter.getWaitingCount());
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_CHILD_SYNCH_CONCURRENCY_LIMITED_COUNT,
+                concurrencyLimitedCount);
+        mgmtService.setStat(
+                ServiceHostManagementService.STAT_NAME_CHILD_SYNCH_RATE_LIMITED_COUNT,
+                rateLimitedCount);
+    }
+
+    private void updateWriteBehindStats() {
+        ServiceWriteBehindQueue queue = this.host.getWriteBehindQueue();
+        if (queue.getWriteCount() == 0 && queue.size() == 0) {
+            // no service uses write behind persistence
+            return;
+        }
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService == null) {
+            return;
+        }
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_QUEUE_DEPTH,
+                queue.size());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_LAG_MICROS,
+                queue.getLagMicros());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_WRITE_COUNT,
+                queue.getWriteCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_COALESCED_COUNT,
+                queue.getCoalescedCount());
+        mgmtService.setStat(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_FAILURE_COUNT,
+                queue.getFailureCount());
+    }
+
     private void pauseServices() {
         if (this.host.isStopping()) {
             return;
         }
 
-        ServiceHostState hostState = this.host.getStateNoCloning();
-        int servicePauseCount = 0;
+        long startMicros = Utils.getNowMicrosUtc();
+        Map<String, Service> batch = new HashMap<>();
         for (Service s : this.pendingPauseServices.values()) {
             if (s.getProcessingStage() != ProcessingStage.AVAILABLE) {
                 continue;
@@ -209,41 +342,77 @@ class ServiceResourceTracker {
                         s.getSelfLink(), e.getMessage());
                 continue;
             }
+            batch.put(s.getSelfLink(), s);
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // ask the pause store to append the service objects, in one batch. They should be tiny
+        // since services should hold no instanced fields. We avoid service stop/start by doing this
+        ServicePauseStore store = getPauseStore();
+        Map<String, Service> failed = new HashMap<>();
+        try {
+            store.append(batch, failed);
+        } catch (Throwable e) {
+            this.host.log(Level.WARNING, "Failure storing services for pause: %s",
+                    Utils.toString(e));
+            failed = batch;
+        }
+
+        ServiceHostState hostState = this.host.getStateNoCloning();
+        int servicePauseCount = 0;
+        for (Entry<String, Service> e : batch.entrySet()) {
+            String path = e.getKey();
+            Service s = e.getValue();
+            Service serviceEntry = this.pendingPauseServices.remove(path);
+            if (failed.containsKey(path)) {
+                resumeService(path, s);
+                continue;
+            }
+
+            if (serviceEntry == null && !this.host.isStopping()) {
+                this.host.log(Level.INFO, "aborting pause for %s", path);
+                // this means service received a request and is active. Discard the stored
+                // instance so a later lookup does not resume a stale copy
+                store.discard(path);
+                resumeService(path, s);
+                this.host.processPendingServiceAvailableOperations(s, null);
+                continue;
+            }
+
+            synchronized (hostState) {
+                if (null != this.attachedServices.remove(path)) {
+                    hostState.serviceCount--;
+                }
+            }
+            this.host.getWriteBehindQueue().flush(path);
             servicePauseCount++;
-            String path = s.getSelfLink();
-
-            // ask object index to store service object. It should be tiny since services
-            // should hold no instanced fields. We avoid service stop/start by doing this
-            this.host.sendRequest(ServiceContextIndexService.createPost(this.host, path, s)
-                    .setReferer(this.host.getUri()).setCompletion((o, e) -> {
-                        if (e != null && !this.host.isStopping()) {
-                            this.host.log(Level.WARNING, "Failure indexing service for pause: %s",
-                                    Utils.toString(e));
-                            resumeService(path, s);
-                            return;
-                        }
-
-                        Service serviceEntry = this.pendingPauseServices.remove(path);
-                        if (serviceEntry == null && !this.host.isStopping()) {
-                            this.host.log(Level.INFO, "aborting pause for %s", path);
-                            resumeService(path, s);
-                            // this means service received a request and is active. Its OK, the index will have
-                            // a stale entry that will get deleted next time we query for this self link.
-                            this.host.processPendingServiceAvailableOperations(s, null);
-                            return;
-                        }
-
-                        synchronized (hostState) {
-                            if (null != this.attachedServices.remove(path)) {
-                                hostState.serviceCount--;
-                            }
-                        }
-                    }));
+        }
+
+        Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+        if (mgmtService != null) {
+            mgmtService.adjustStat(ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_COUNT,
+                    servicePauseCount);
+            mgmtService.setStat(
+                    ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_BATCH_LATENCY_MICROS,
+                    Utils.getNowMicrosUtc() - startMicros);
+            mgmtService.setStat(ServiceHostManagementService.STAT_NAME_PAUSED_SERVICE_BYTE_COUNT,
+                    store.getByteCount());
         }
         this.host.log(Level.INFO, "Paused %d services, attached: %d", servicePauseCount,
                 hostState.serviceCount);
     }
 
+    private synchronized ServicePauseStore getPauseStore() {
+        if (this.pauseStore == null) {
+            File sandbox = new File(this.host.getStorageSandbox());
+            this.pauseStore = new ServicePauseStore(new File(sandbox, PAUSE_STORE_DIRECTORY));
+        }
+        return this.pauseStore;
+    }
+
     private void resumeService(String path, Service resumedService) {
         if (this.host.isStopping()) {
             return;
@@ -341,35 +510,41 @@ class ServiceResourceTracker {
 
         inboundOp.addPragmaDirective(Operation.PRAGMA_DIRECTIVE_INDEX_CHECK);
 
-        Operation query = ServiceContextIndexService
-                .createGet(this.host, path)
-                .setCompletion(
-                        (o, e) -> {
-                            if (e != null) {
-                                this.host.log(Level.WARNING,
-                                        "Failure checking if service paused: " + Utils.toString(e));
-                                this.host.handleRequest(null, inboundOp);
-                                return;
-                            }
-
-                            if (!o.hasBody()) {
-                                // service is not paused
-                                this.host.handleRequest(null, inboundOp);
-                                return;
-                            }
-
-                            Service resumedService = (Service) o.getBodyRaw();
-                            resumeService(path, resumedService);
-                            this.host.handleRequest(null, inboundOp);
-                        });
-
-        this.host.sendRequest(query.setReferer(this.host.getUri()));
+        long startMicros = Utils.getNowMicrosUtc();
+        Service resumedService = null;
+        try {
+            ServicePauseStore store = this.pauseStore;
+            resumedService = store == null ? null : store.remove(path);
+        } catch (Throwable e) {
+            this.host.log(Level.WARNING, "Failure checking if service paused: %s",
+                    Utils.toString(e));
+        }
+
+        if (resumedService != null) {
+            resumeService(path, resumedService);
+            Service mgmtService = this.host.findService(ServiceHostManagementService.SELF_LINK);
+            if (mgmtService != null) {
+                mgmtService.adjustStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_RESUME_COUNT, 1);
+                mgmtService.setStat(
+                        ServiceHostManagementService.STAT_NAME_SERVICE_RESUME_LATENCY_MICROS,
+                        Utils.getNowMicrosUtc() - startMicros);
+            }
+        }
+
+        this.host.handleRequest(null, inboundOp);
         return true;
     }
 
     public void close() {
         this.pendingPauseServices.clear();
+        synchronized (this) {
+            if (this.pauseStore != null) {
+                this.pauseStore.close();
+            }
+        }
         this.cachedServiceStates.clear();
+        this.compactCachedServiceStates.clear();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * Compact cache of service state, keyed by self link. Each state is stored as a Kryo serialized
+ * byte array, sized to the document, and deserialized on every access, so a cached document
+ * costs little more than its serialized size and callers always receive a private copy.
+ *
+ * When the total size of cached state exceeds the byte limit, entries are evicted using the
+ * CLOCK policy: the clock hand skips, and clears the reference bit of, entries accessed since
+ * it last passed them, and evicts the first entry that was not accessed
+ */
+class ServiceStateCache {
+
+    private static final int MIN_CLOCK_SWEEP_SIZE = 1024;
+
+    static final class Entry {
+        final String servicePath;
+        final byte[] data;
+        final long documentVersion;
+        final long documentUpdateTimeMicros;
+        final long documentExpirationTimeMicros;
+        volatile boolean isReferenced;
+
+        Entry(String servicePath, byte[] data, ServiceDocument st) {
+            this.servicePath = servicePath;
+            this.data = data;
+            this.documentVersion = st.documentVersion;
+            this.documentUpdateTimeMicros = st.documentUpdateTimeMicros;
+            this.documentExpirationTimeMicros = st.documentExpirationTimeMicros;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Entries in insertion order. The head of the queue is the position of the clock hand
+     */
+    private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of entries in the clock queue, including entries that were replaced or removed
+     * and are discarded when the clock hand reaches them
+     */
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final AtomicBoolean isSweeping = new AtomicBoolean();
+
+    private final AtomicLong byteCount = new AtomicLong();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private volatile long byteLimit;
+
+    ServiceStateCache(long byteLimit) {
+        this.byteLimit = byteLimit;
+    }
+
+    void setByteLimit(long byteLimit) {
+        this.byteLimit = byteLimit;
+        evict();
+    }
+
+    /**
+     * Serializes and caches the state, unless the cache holds a higher version. Returns false if
+     * the state exceeds the serialized state size limit and was not cached
+     */
+    boolean put(String servicePath, ServiceDocument st) {
+        byte[] data;
+        try {
+            byte[] buffer = Utils.getBuffer(
+                    ServiceDocumentDescription.DEFAULT_SERIALIZED_STATE_LIMIT);
+            int count = Utils.toDocumentBytes(st, buffer, 0);
+            data = Arrays.copyOf(buffer, count);
+        } catch (KryoException e) {
+            return false;
+        }
+
+        Entry entry = new Entry(servicePath, data, st);
+        while (true) {
+            Entry existing = this.entries.putIfAbsent(servicePath, entry);
+            if (existing == null) {
+                break;
+            }
+            if (existing.documentVersion > entry.documentVersion) {
+                // keep cached state, discarding update, if the existing version is higher
+                return true;
+            }
+            if (this.entries.replace(servicePath, existing, entry)) {
+                // an updated service is in active use, give it a second chance
+                entry.isReferenced = true;
+                this.byteCount.addAndGet(-existing.data.length);
+                break;
+            }
+        }
+
+        this.clock.offer(entry);
+        int clockSize = this.clockSize.incrementAndGet();
+        this.byteCount.addAndGet(data.length);
+        if (this.byteCount.get() > this.byteLimit) {
+            evict();
+        } else if (clockSize > this.entries.size() * 2 + MIN_CLOCK_SWEEP_SIZE) {
+            sweep();
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new instance of the cached state, or null if state is not cached or expired
+     */
+    ServiceDocument get(String servicePath) {
+        Entry entry = this.entries.get(servicePath);
+        if (entry == null) {
+            this.missCount.increment();
+            return null;
+        }
+
+        if (entry.documentExpirationTimeMicros > 0
+                && entry.documentExpirationTimeMicros < entry.documentUpdateTimeMicros) {
+            remove(servicePath);
+            this.missCount.increment();
+            return null;
+        }
+
+        this.hitCount.increment();
+        entry.isReferenced = true;
+        return (ServiceDocument) Utils.fromDocumentBytes(entry.data, 0, entry.data.length);
+    }
+
+    /**
+     * Returns the update time of the cached state, or -1 if state is not cached. The state is
+     * not deserialized and the access does not count towards eviction
+     */
+    long getDocumentUpdateTimeMicros(String servicePath) {
+        Entry entry = this.entries.get(servicePath);
+        return entry == null ? -1 : entry.documentUpdateTimeMicros;
+    }
+
+    boolean remove(String servicePath) {
+        // the clock queue entry is discarded when the hand reaches it
+        Entry entry = this.entries.remove(servicePath);
+        if (entry == null) {
+            return false;
+        }
+        this.byteCount.addAndGet(-entry.data.length);
+        return true;
+    }
+
+    private void evict() {
+        while (this.byteCount.get() > this.byteLimit) {
+            Entry entry = pollClock();
+            if (entry == null) {
+                return;
+            }
+
+            if (entry.isReferenced) {
+                entry.isReferenced = false;
+                offerClock(entry);
+                continue;
+            }
+
+            if (this.entries.remove(entry.servicePath, entry)) {
+                this.byteCount.addAndGet(-entry.data.length);
+                this.evictionCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Discards clock entries for state that was replaced or removed, without evicting, so
+     * frequent updates do not grow the clock queue while the cache is below its limit
+     */
+    private void sweep() {
+        if (!this.isSweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (int i = this.clockSize.get(); i > 0; i--) {
+                Entry entry = pollClock();
+                if (entry == null) {
+                    return;
+                }
+                offerClock(entry);
+            }
+        } finally {
+            this.isSweeping.set(false);
+        }
+    }
+
+    /**
+     * Advances the clock hand, returning the next entry that is still cached
+     */
+    private Entry pollClock() {
+        Entry entry;
+        while ((entry = this.clock.poll()) != null) {
+            this.clockSize.decrementAndGet();
+            if (this.entries.get(entry.servicePath) == entry) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void offerClock(Entry entry) {
+        this.clock.offer(entry);
+        this.clockSize.incrementAndGet();
+    }
+
+    void clear() {
+        this.entries.clear();
+        this.clock.clear();
+        this.clockSize.set(0);
+        this.byteCount.set(0);
+    }
+
+    int size() {
+        return this.entries.size();
+    }
+
+    long getByteCount() {
+        return this.byteCount.get();
+    }
+
+    long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+}
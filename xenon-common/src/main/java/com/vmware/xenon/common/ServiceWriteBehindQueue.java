@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.vmware.xenon.services.common.UpdateIndexRequest;
+
+/**
+ * Queues state updates of services with {@link Service.ServiceOption#WRITE_BEHIND_PERSISTENCE}
+ * and writes them to the document index after the flush interval. Updates to the same service
+ * are coalesced while queued, so only the latest version is written. A service has at most one
+ * write in progress, so its versions reach the index in order.
+ *
+ * State that is queued or being written is not yet visible to index queries, but is returned
+ * by {@link #getState(String)}, which the host consults before loading state from the index.
+ * A failed write is queued again, with exponential backoff, unless a newer version is already
+ * queued, and the host keeps the service state cached until the write succeeds
+ */
+class ServiceWriteBehindQueue {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MICROS = Long.getLong(
+            Utils.PROPERTY_NAME_PREFIX + "ServiceWriteBehindQueue.FLUSH_INTERVAL_MICROS",
+            TimeUnit.MILLISECONDS.toMicros(500));
+
+    private static final long FLUSH_POLL_INTERVAL_MILLIS = 10;
+
+    private static final long MAX_RETRY_DELAY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private static final int MAX_RETRY_BACKOFF_SHIFT = 16;
+
+    private static final class PendingWrite {
+        final UpdateIndexRequest body;
+        final long enqueueTimeMicros;
+        final int retryCount;
+        final long notBeforeMicros;
+
+        PendingWrite(UpdateIndexRequest body, long enqueueTimeMicros) {
+            this(body, enqueueTimeMicros, 0, 0);
+        }
+
+        PendingWrite(UpdateIndexRequest body, long enqueueTimeMicros, int retryCount,
+                long notBeforeMicros) {
+            this.body = body;
+            this.enqueueTimeMicros = enqueueTimeMicros;
+            this.retryCount = retryCount;
+            this.notBeforeMicros = notBeforeMicros;
+        }
+    }
+
+    private final ServiceHost host;
+    private final ConcurrentHashMap<String, PendingWrite> queued = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PendingWrite> inProgress = new ConcurrentHashMap<>();
+    private final AtomicBoolean isFlushScheduled = new AtomicBoolean();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private volatile long flushIntervalMicros = DEFAULT_FLUSH_INTERVAL_MICROS;
+
+    ServiceWriteBehindQueue(ServiceHost host) {
+        this.host = host;
+    }
+
+    void setFlushIntervalMicros(long flushIntervalMicros) {
+        this.flushIntervalMicros = flushIntervalMicros;
+    }
+
+    long getFlushIntervalMicros() {
+        return this.flushIntervalMicros;
+    }
+
+    /**
+     * Queues the index update, replacing any update for the same service that is still queued
+     */
+    void enqueue(String servicePath, UpdateIndexRequest body) {
+        long now = Utils.getNowMicrosUtc();
+        boolean[] isCoalesced = new boolean[1];
+        this.queued.compute(servicePath, (k, existing) -> {
+            if (existing == null) {
+                return new PendingWrite(body, now);
+            }
+            // lag is measured from the oldest update not yet written
+            isCoalesced[0] = true;
+            return new PendingWrite(body, existing.enqueueTimeMicros);
+        });
+        if (isCoalesced[0]) {
+            this.coalescedCount.increment();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Returns the most recent state that is queued or being written, or null
+     */
+    ServiceDocument getState(String servicePath) {
+        PendingWrite w = this.queued.get(servicePath);
+        if (w == null) {
+            w = this.inProgress.get(servicePath);
+        }
+        return w == null ? null : w.body.document;
+    }
+
+    /**
+     * Returns true if an update of the service is queued or being written
+     */
+    boolean hasPendingWrite(String servicePath) {
+        return this.queued.containsKey(servicePath) || this.inProgress.containsKey(servicePath);
+    }
+
+    /**
+     * Discards a queued update, for example because a DELETE supersedes it. A write in progress
+     * is not retried if it fails
+     */
+    void discard(String servicePath) {
+        this.queued.remove(servicePath);
+        this.inProgress.remove(servicePath);
+    }
+
+    /**
+     * Starts writing the queued update for the service, if any, without waiting for the flush
+     * interval
+     */
+    void flush(String servicePath) {
+        write(servicePath);
+    }
+
+    /**
+     * Writes all queued updates and waits until they reach the index. Returns false if updates
+     * are still pending when the timeout expires
+     */
+    boolean flushAll(long timeoutMicros) {
+        long deadline = Utils.getNowMicrosUtc() + timeoutMicros;
+        while (!this.queued.isEmpty() || !this.inProgress.isEmpty()) {
+            for (String servicePath : new ArrayList<>(this.queued.keySet())) {
+                write(servicePath);
+            }
+            if (Utils.getNowMicrosUtc() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(FLUSH_POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        return this.queued.size() + this.inProgress.size();
+    }
+
+    /**
+     * Age of the oldest update not yet written to the index: the current durability lag
+     */
+    long getLagMicros() {
+        long oldest = Long.MAX_VALUE;
+        for (PendingWrite w : this.queued.values()) {
+            oldest = Math.min(oldest, w.enqueueTimeMicros);
+        }
+        for (PendingWrite w : this.inProgress.values()) {
+            oldest = Math.min(oldest, w.enqueueTimeMicros);
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, Utils.getNowMicrosUtc() - oldest);
+    }
+
+    long getWriteCount() {
+        return this.writeCount.sum();
+    }
+
+    long getCoalescedCount() {
+        return this.coalescedCount.sum();
+    }
+
+    long getFailureCount() {
+        return this.failureCount.sum();
+    }
+
+    private void scheduleFlush() {
+        if (!this.isFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.host.schedule(this::flushQueued, this.flushIntervalMicros,
+                    TimeUnit.MICROSECONDS);
+        } catch (Throwable e) {
+            // host is stopping, queued updates are written by flushAll()
+            this.isFlushScheduled.set(false);
+        }
+    }
+
+    private void flushQueued() {
+        this.isFlushScheduled.set(false);
+        for (String servicePath : this.queued.keySet()) {
+            write(servicePath);
+        }
+    }
+
+    private void write(String servicePath) {
+        PendingWrite[] w = new PendingWrite[1];
+        long now = Utils.getNowMicrosUtc();
+        this.queued.computeIfPresent(servicePath, (k, queuedWrite) -> {
+            if (queuedWrite.notBeforeMicros > now) {
+                // a failed write, waiting for its retry delay
+                return queuedWrite;
+            }
+            if (this.inProgress.putIfAbsent(k, queuedWrite) != null) {
+                // the previous version is still being written, stay queued
+                return queuedWrite;
+            }
+            w[0] = queuedWrite;
+            return null;
+        });
+        if (w[0] == null) {
+            return;
+        }
+
+        Service indexService = this.host.getDocumentIndexService();
+        if (indexService == null) {
+            retry(servicePath, w[0]);
+            return;
+        }
+
+        Operation post = Operation.createPost(indexService.getUri())
+                .setBodyNoCloning(w[0].body)
+                .setReferer(indexService.getUri())
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.log(Level.WARNING, "Failure writing state for %s: %s",
+                                servicePath, e.toString());
+                        retry(servicePath, w[0]);
+                        return;
+                    }
+                    this.inProgress.remove(servicePath, w[0]);
+                    this.writeCount.increment();
+                    if (this.queued.containsKey(servicePath)) {
+                        scheduleFlush();
+                    }
+                });
+        indexService.handleRequest(post);
+    }
+
+    /**
+     * Queues a failed write again, unless a newer version is queued or the update was
+     * discarded. The failed write stays in progress until it is queued, so its state remains
+     * visible through {@link #getState(String)}
+     */
+    private void retry(String servicePath, PendingWrite failed) {
+        this.failureCount.increment();
+        int retryCount = failed.retryCount + 1;
+        long delayMicros = Math.min(MAX_RETRY_DELAY_MICROS,
+                this.flushIntervalMicros << Math.min(retryCount, MAX_RETRY_BACKOFF_SHIFT));
+        PendingWrite retryWrite = new PendingWrite(failed.body, failed.enqueueTimeMicros,
+                retryCount, Utils.getNowMicrosUtc() + delayMicros);
+
+        boolean[] isQueued = new boolean[1];
+        this.inProgress.computeIfPresent(servicePath, (k, inProgressWrite) -> {
+            if (inProgressWrite != failed) {
+                return inProgressWrite;
+            }
+            isQueued[0] = this.queued.putIfAbsent(k, retryWrite) == null;
+            return null;
+        });
+
+        if (isQueued[0]) {
+            scheduleRetry(servicePath, delayMicros);
+        } else if (this.queued.containsKey(servicePath)) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleRetry(String servicePath, long delayMicros) {
+        try {
+            this.host.schedule(() -> write(servicePath), delayMicros, TimeUnit.MICROSECONDS);
+        } catch (Throwable e) {
+            // host is stopping, queued updates are written by flushAll()
+        }
+    }
+}
@@ -18,15 +18,23 @@ import static com.vmware.xenon.common.TransactionServiceHelper.handleOperationIn
 import static com.vmware.xenon.common.TransactionServiceHelper.notifyTransactionCoordinator;
 
 import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.esotericsoftware.kryo.KryoException;
+
 import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Operation.InstrumentationContext;
 import com.vmware.xenon.common.ServiceDocumentDescription.PropertyDescription;
@@ -57,14 +65,84 @@ public class StatefulService implements Service {
 
         public transient ServiceHost host;
         public transient OperationProcessingChain opProcessingChain;
+        public transient volatile ServiceMailbox mailbox;
 
         public UtilityService utilityService;
         public String nodeSelectorLink = ServiceUriPaths.DEFAULT_NODE_SELECTOR;
 
         public Set<String> txCoordinatorLinks;
         public long lastCommitTimeMicros;
+
+        public transient Map<String, InFlightGet> inFlightGets;
+
+        public transient ArrayDeque<PipelinedUpdate> pipeline;
+        public boolean isPipelineCommitActive;
+        public boolean isPipelineReleasePending;
+        public boolean isActiveUpdateStale;
+        public transient Operation pipelineBarrierOp;
+
+        public transient byte[] replicatedContent;
+        public long replicatedContentVersion;
+
+        public transient ServiceDocumentDescription replicationDescription;
+
+        public transient long childDigestHash;
+        public transient String childDigestOwner;
+    }
+
+    /**
+     * Maximum number of updates, with {@link ServiceOption#PIPELINED_UPDATES}, that are
+     * replicated or indexed concurrently. Further updates wait until the oldest is committed
+     */
+    public static final int PIPELINED_UPDATE_DEPTH_LIMIT = Integer.getInteger(
+            Utils.PROPERTY_NAME_PREFIX + "StatefulService.PIPELINED_UPDATE_DEPTH_LIMIT", 64);
+
+    /**
+     * An update whose handler has completed, and whose state is being replicated or waits to be
+     * committed, in version order, to the index
+     */
+    private static class PipelinedUpdate {
+        final Operation op;
+        final ServiceDocument state;
+        boolean isReady;
+        boolean isRolledBack;
+
+        PipelinedUpdate(Operation op, ServiceDocument state) {
+            this.op = op;
+            this.state = state;
+        }
+    }
+
+    /**
+     * A GET request being processed, and the identical GET requests that arrived while it was in
+     * flight and will complete with its result
+     */
+    private static class InFlightGet {
+        final long version;
+        final List<Operation> followers = new ArrayList<>();
+
+        InFlightGet(long version) {
+            this.version = version;
+        }
     }
 
+    /**
+     * True for service classes that inherit the {@link #handleGet} implementation, which returns
+     * the linked state regardless of the request. Concurrent identical GETs to such services can
+     * share a single result
+     */
+    private static final ClassValue<Boolean> IS_DEFAULT_HANDLE_GET = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("handleGet", Operation.class)
+                        .getDeclaringClass() == StatefulService.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
     private final RuntimeContext context = new RuntimeContext();
 
     public StatefulService(Class<? extends ServiceDocument> stateType) {
@@ -284,6 +362,10 @@ public class StatefulService implements Service {
                     return;
                 }
 
+                if (request.getAction() == Action.GET && coalesceGet(request)) {
+                    return;
+                }
+
                 if (handleRequestLoadingAndLinkingState(request)) {
                     return;
                 }
@@ -376,6 +458,98 @@ public class StatefulService implements Service {
         }
     }
 
+    /**
+     * Joins a GET request to an identical GET already in flight, so it completes with the same
+     * result instead of loading state and invoking the handler again. Requests are identical if
+     * they have the same query and authorized subject, and carry no body, pragma directives or
+     * transaction. A request only joins if no update started since the in flight request did.
+     * Otherwise, and if no request is in flight, the request is processed and becomes the one
+     * later requests join.
+     *
+     * @return True if the request joined an in flight request
+     */
+    private boolean coalesceGet(Operation get) {
+        if (get.hasBody() || get.isFromReplication() || get.getTransactionId() != null
+                || get.getRequestHeader(Operation.PRAGMA_HEADER) != null
+                || getOperationProcessingChain() != null
+                || !IS_DEFAULT_HANDLE_GET.get(getClass())
+                || hasPendingTransactions()) {
+            return false;
+        }
+
+        String query = get.getUri().getRawQuery();
+        String key = query == null ? "" : query;
+        AuthorizationContext ctx = get.getAuthorizationContext();
+        if (ctx != null && ctx.getClaims() != null) {
+            key = key + "#" + ctx.getClaims().getSubject();
+        }
+
+        InFlightGet flight;
+        synchronized (this.context) {
+            if (this.context.inFlightGets == null) {
+                this.context.inFlightGets = new HashMap<>();
+            }
+            flight = this.context.inFlightGets.get(key);
+            if (flight != null && flight.version == this.context.version) {
+                flight.followers.add(get);
+                flight = null;
+            } else {
+                flight = new InFlightGet(this.context.version);
+                this.context.inFlightGets.put(key, flight);
+            }
+        }
+
+        if (flight == null) {
+            if (hasOption(Service.ServiceOption.INSTRUMENTATION)) {
+                adjustStat(STAT_NAME_COALESCED_GET_COUNT, 1);
+            }
+            return true;
+        }
+
+        final String flightKey = key;
+        final InFlightGet leader = flight;
+        get.nestCompletion((o, e) -> {
+            completeCoalescedGets(flightKey, leader, o, e);
+        });
+        return false;
+    }
+
+    private void completeCoalescedGets(String key, InFlightGet flight, Operation get,
+            Throwable e) {
+        synchronized (this.context) {
+            this.context.inFlightGets.remove(key, flight);
+        }
+
+        Object body = get.getBodyRaw();
+        boolean isBodyShared = false;
+        for (Operation follower : flight.followers) {
+            // setBody() clones, unless the requester disabled cloning because it only
+            // serializes the response
+            follower.transferResponseHeadersFrom(get)
+                    .setContentType(get.getContentType())
+                    .setStatusCode(get.getStatusCode())
+                    .setBody(body);
+            isBodyShared |= follower.isCloningDisabled();
+            // followers were accounted as active GETs, when synchronized with updates
+            processPending(follower);
+            if (e != null) {
+                follower.fail(e);
+            } else {
+                follower.complete();
+            }
+        }
+
+        if (isBodyShared && body != null && !get.isCloningDisabled()) {
+            get.setBodyNoCloning(Utils.clone(body));
+        }
+
+        if (e != null) {
+            get.fail(e);
+        } else {
+            get.complete();
+        }
+    }
+
     /**
      * Handles loading state and associating it with an in-bound operation
      *
@@ -392,6 +566,12 @@ public class StatefulService implements Service {
             return true;
         }
 
+        if (request.isFromReplication()
+                && request.getBodyRaw() instanceof ServiceDocumentDelta) {
+            loadAndApplyDelta(request, (ServiceDocumentDelta) request.getBodyRaw());
+            return true;
+        }
+
         if (request.isFromReplication()) {
             // Replicated operations always have the state, from entry node or the owner
             // as the body. No need to load local state.
@@ -644,6 +824,12 @@ public class StatefulService implements Service {
             isStateUpdated = true;
         }
 
+        if (e == null && isStateUpdated && isPipelined(op) && clearActiveUpdateStale()) {
+            // the speculative state this update was applied to has been rolled back
+            op.setStatusCode(Operation.STATUS_CODE_CONFLICT);
+            e = new IllegalStateException("Update applied to state that was rolled back");
+        }
+
         // evolve the common properties such as version
         if (e == null && isStateUpdated) {
             try {
@@ -702,6 +888,12 @@ public class StatefulService implements Service {
                     linkedState.documentKind = Utils.buildKind(this.context.stateType);
                 }
 
+                if (isPipelined(op)) {
+                    processPending = false;
+                    pipelineUpdate(op);
+                    return;
+                }
+
                 if (replicateRequest(op)) {
                     processPending = false;
                     return;
@@ -821,8 +1013,9 @@ public class StatefulService implements Service {
             }
         });
 
-        getHost().replicateRequest(this.context.options, op.getLinkedState(),
-                getPeerNodeSelectorPath(), getSelfLink(), op);
+        getHost().replicateRequest(this, this.context.options, op.getLinkedState(),
+                createReplicationDelta(op, op.getLinkedState()),
+                getReplicationDescription(), getPeerNodeSelectorPath(), getSelfLink(), op);
         return true;
     }
 
@@ -881,6 +1074,13 @@ public class StatefulService implements Service {
             return;
         }
 
+        synchronized (this.context) {
+            if (this.context.pipeline != null && !this.context.pipeline.isEmpty()) {
+                // linked state might be speculative, the last pipelined update commits
+                return;
+            }
+        }
+
         // The owner has the responsibility to advertise the most recent committed state
         // to all the peers. If operations are flowing, operation at version N, informs services to
         // commit proposal at N-1. However, if no new operations occur, the owner
@@ -1005,9 +1205,352 @@ public class StatefulService implements Service {
             // state has already been linked with the operation
             handleRequest(op, OperationProcessingStage.PROCESSING_FILTERS);
         });
+
+        if (hasOption(ServiceOption.PIPELINED_UPDATES) && linkPipelinedState(op)) {
+            return;
+        }
+        getHost().loadServiceState(this, op);
+    }
+
+    /**
+     * Applies a replicated delta to the local state. Fails the request, so the owner sends the
+     * full state, if the local state is not the base version of the delta
+     */
+    private void loadAndApplyDelta(Operation op, ServiceDocumentDelta delta) {
+        op.nestCompletion((o, e) -> {
+            if (e != null) {
+                failRequest(op, e);
+                return;
+            }
+
+            ServiceDocument state = delta.apply(op.getLinkedState());
+            if (state == null) {
+                adjustStat(STAT_NAME_REPLICATION_DELTA_MISS_COUNT, 1);
+                failRequest(op.setStatusCode(Operation.STATUS_CODE_PRECONDITION_FAILED),
+                        new IllegalStateException("Base version " + delta.baseVersion
+                                + " of delta not found"));
+                return;
+            }
+
+            op.setBodyNoCloning(state).linkState(state);
+            handleRequest(op, OperationProcessingStage.PROCESSING_FILTERS);
+        });
         getHost().loadServiceState(this, op);
     }
 
+    /**
+     * Returns the document description, with the replication policy of the service. The
+     * description is cached, so replicated updates do not contend on the host description cache
+     */
+    private ServiceDocumentDescription getReplicationDescription() {
+        ServiceDocumentDescription desc = this.context.replicationDescription;
+        if (desc == null) {
+            desc = getHost().buildDocumentDescription(this);
+            this.context.replicationDescription = desc;
+        }
+        return desc;
+    }
+
+    /**
+     * Returns the delta from the last replicated version to the state, or null if the service
+     * does not use delta replication or the last replicated version is older than the previous
+     * version
+     */
+    private ServiceDocumentDelta createReplicationDelta(Operation op, ServiceDocument state) {
+        if (!hasOption(ServiceOption.DELTA_REPLICATION) || state == null) {
+            return null;
+        }
+
+        if ((op.getAction() != Action.PUT && op.getAction() != Action.PATCH)
+                || op.getTransactionId() != null) {
+            return null;
+        }
+
+        byte[] content;
+        try {
+            content = ServiceDocumentDelta.toContentBytes(state);
+        } catch (KryoException e) {
+            return null;
+        }
+
+        byte[] baseContent;
+        long baseVersion;
+        synchronized (this.context) {
+            baseContent = this.context.replicatedContent;
+            baseVersion = this.context.replicatedContentVersion;
+            if (baseContent == null || state.documentVersion >= baseVersion) {
+                this.context.replicatedContent = content;
+                this.context.replicatedContentVersion = state.documentVersion;
+            }
+        }
+
+        if (baseContent == null || (baseVersion != state.documentVersion
+                && baseVersion != state.documentVersion - 1)) {
+            adjustStat(STAT_NAME_REPLICATION_FULL_STATE_BYTES, content.length);
+            return null;
+        }
+
+        ServiceDocumentDelta delta = ServiceDocumentDelta.create(baseVersion, baseContent, state,
+                content);
+        adjustStat(STAT_NAME_REPLICATION_DELTA_BYTES, delta.diff.length);
+        return delta;
+    }
+
+    private static boolean isPipelineEligible(Operation op) {
+        if (op.getAction() == Action.GET || op.getAction() == Action.OPTIONS
+                || op.getAction() == Action.DELETE) {
+            return false;
+        }
+        return !op.isFromReplication() && op.getTransactionId() == null && !op.isSynchronize();
+    }
+
+    private boolean isPipelined(Operation op) {
+        return hasOption(ServiceOption.PIPELINED_UPDATES) && isPipelineEligible(op);
+    }
+
+    private boolean clearActiveUpdateStale() {
+        synchronized (this.context) {
+            boolean isStale = this.context.isActiveUpdateStale;
+            this.context.isActiveUpdateStale = false;
+            return isStale;
+        }
+    }
+
+    /**
+     * Links the update with a copy of the state of the most recent pipelined update, if any.
+     * Updates that can not be pipelined are parked until all pipelined updates are committed.
+     * Returns false if the update should load the committed state
+     */
+    private boolean linkPipelinedState(Operation op) {
+        if (op.getAction() == Action.GET || op.getAction() == Action.OPTIONS) {
+            return false;
+        }
+
+        ServiceDocument speculativeState;
+        synchronized (this.context) {
+            this.context.isActiveUpdateStale = false;
+            if (this.context.pipeline == null || this.context.pipeline.isEmpty()) {
+                return false;
+            }
+            if (!isPipelineEligible(op)) {
+                this.context.pipelineBarrierOp = op;
+                return true;
+            }
+            speculativeState = this.context.pipeline.peekLast().state;
+        }
+
+        ServiceDocument state = Utils.clone(speculativeState);
+        if (!getHost().isAuthorized(this, state, op)) {
+            op.fail(Operation.STATUS_CODE_FORBIDDEN);
+            return true;
+        }
+        op.linkState(state).complete();
+        return true;
+    }
+
+    /**
+     * Adds the update to the pipeline and lets the next queued update run, before the update is
+     * replicated and committed
+     */
+    private void pipelineUpdate(Operation op) {
+        PipelinedUpdate u = new PipelinedUpdate(op, op.getLinkedState());
+        boolean isReleased;
+        int depth;
+        synchronized (this.context) {
+            if (this.context.pipeline == null) {
+                this.context.pipeline = new ArrayDeque<>();
+            }
+            this.context.pipeline.add(u);
+            depth = this.context.pipeline.size();
+            isReleased = depth < PIPELINED_UPDATE_DEPTH_LIMIT;
+            if (!isReleased) {
+                this.context.isPipelineReleasePending = true;
+            }
+        }
+
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            setStat(STAT_NAME_PIPELINED_UPDATE_DEPTH, depth);
+        }
+
+        if (isReleased) {
+            releaseUpdate();
+        }
+
+        if (replicatePipelinedUpdate(u)) {
+            return;
+        }
+
+        synchronized (this.context) {
+            u.isReady = true;
+        }
+        commitPipelinedUpdates();
+    }
+
+    private void releaseUpdate() {
+        synchronized (this.context) {
+            this.context.isUpdateActive = false;
+        }
+        this.context.host.handleRequest(this, null);
+    }
+
+    private boolean replicatePipelinedUpdate(PipelinedUpdate u) {
+        Operation op = u.op;
+        if (!hasOption(ServiceOption.REPLICATION) || op.isReplicationDisabled()) {
+            return false;
+        }
+
+        if (hasOption(ServiceOption.OWNER_SELECTION) && !hasOption(ServiceOption.DOCUMENT_OWNER)) {
+            return false;
+        }
+
+        if (!op.hasBody()) {
+            return false;
+        }
+
+        op.nestCompletion((o, e) -> {
+            boolean isRolledBack;
+            synchronized (this.context) {
+                isRolledBack = u.isRolledBack;
+                u.isReady = true;
+            }
+            if (isRolledBack) {
+                failRolledBackUpdate(op);
+                return;
+            }
+            if (e != null) {
+                rollbackPipeline(u, e);
+                return;
+            }
+            op.setReplicationDisabled(true);
+            commitPipelinedUpdates();
+        });
+
+        getHost().replicateRequest(this, this.context.options, u.state,
+                createReplicationDelta(op, u.state),
+                getReplicationDescription(), getPeerNodeSelectorPath(), getSelfLink(), op);
+        return true;
+    }
+
+    /**
+     * Saves the state of the oldest pipelined update, if it is replicated, and completes its
+     * request. Updates are committed one at a time, in version order
+     */
+    private void commitPipelinedUpdates() {
+        PipelinedUpdate head;
+        synchronized (this.context) {
+            if (this.context.isPipelineCommitActive || this.context.pipeline == null) {
+                return;
+            }
+            head = this.context.pipeline.peek();
+            if (head == null || !head.isReady) {
+                return;
+            }
+            this.context.isPipelineCommitActive = true;
+        }
+
+        Operation op = head.op;
+        op.nestCompletion((o, e) -> {
+            if (e != null) {
+                synchronized (this.context) {
+                    this.context.isPipelineCommitActive = false;
+                }
+                rollbackPipeline(head, e);
+                return;
+            }
+
+            boolean isDrained;
+            boolean isReleasePending;
+            Operation barrierOp = null;
+            synchronized (this.context) {
+                this.context.pipeline.poll();
+                this.context.isPipelineCommitActive = false;
+                isReleasePending = this.context.isPipelineReleasePending;
+                this.context.isPipelineReleasePending = false;
+                isDrained = this.context.pipeline.isEmpty();
+                if (isDrained) {
+                    barrierOp = this.context.pipelineBarrierOp;
+                    this.context.pipelineBarrierOp = null;
+                }
+            }
+
+            completeRequest(op);
+            if (isDrained) {
+                commitLastProposalIfIdle(op);
+            }
+            resumePipelineWaiters(isReleasePending, barrierOp);
+            commitPipelinedUpdates();
+        });
+
+        this.context.host.saveServiceState(this, op, head.state);
+    }
+
+    /**
+     * Fails the update and every later pipelined update, since they were applied to its state.
+     * The next update runs on the state of the last update that was not rolled back. Versions
+     * are not reused, so a later update supersedes any rolled back version a peer accepted
+     */
+    private void rollbackPipeline(PipelinedUpdate failed, Throwable e) {
+        List<PipelinedUpdate> rolledBack = new ArrayList<>();
+        boolean isReleasePending;
+        Operation barrierOp = null;
+        synchronized (this.context) {
+            ArrayDeque<PipelinedUpdate> pipeline = this.context.pipeline;
+            if (pipeline.contains(failed)) {
+                PipelinedUpdate u;
+                do {
+                    u = pipeline.pollLast();
+                    u.isRolledBack = true;
+                    rolledBack.add(u);
+                } while (u != failed);
+            }
+            // an update handler running on rolled back state must fail
+            this.context.isActiveUpdateStale = true;
+            isReleasePending = this.context.isPipelineReleasePending;
+            this.context.isPipelineReleasePending = false;
+            if (pipeline.isEmpty()) {
+                barrierOp = this.context.pipelineBarrierOp;
+                this.context.pipelineBarrierOp = null;
+            }
+        }
+
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            adjustStat(STAT_NAME_PIPELINED_UPDATE_ROLLBACK_COUNT, rolledBack.size());
+            adjustStat(failed.op.getAction() + Service.STAT_NAME_FAILURE_COUNT, 1);
+        }
+
+        for (PipelinedUpdate u : rolledBack) {
+            if (u == failed || !u.isReady) {
+                // updates still being replicated fail when replication completes
+                continue;
+            }
+            failRolledBackUpdate(u.op);
+        }
+        failed.op.fail(e);
+
+        resumePipelineWaiters(isReleasePending, barrierOp);
+        commitPipelinedUpdates();
+    }
+
+    private void failRolledBackUpdate(Operation op) {
+        op.setStatusCode(Operation.STATUS_CODE_CONFLICT);
+        Throwable e = new IllegalStateException(
+                "Update rolled back, a previous pipelined update failed");
+        ServiceErrorResponse rsp = ServiceErrorResponse.create(e, op.getStatusCode(),
+                EnumSet.of(ErrorDetail.SHOULD_RETRY));
+        op.setBodyNoCloning(rsp);
+        op.fail(e);
+    }
+
+    private void resumePipelineWaiters(boolean isReleasePending, Operation barrierOp) {
+        if (isReleasePending) {
+            releaseUpdate();
+        }
+        if (barrierOp != null) {
+            // the update slot is held by the parked update, load the committed state for it
+            this.context.host.loadServiceState(this, barrierOp);
+        }
+    }
+
     private void processPending(Operation op) {
         if (hasOption(ServiceOption.CONCURRENT_UPDATE_HANDLING)) {
             return;
@@ -1043,13 +1586,51 @@ public class StatefulService implements Service {
         this.context.host.handleRequest(this, null);
     }
 
+    /**
+     * Returns the next queued request. Requests that expired while queued are failed instead
+     * of returned
+     */
     @Override
     public Operation dequeueRequest() {
-        synchronized (this.context) {
-            return this.context.operationQueue.poll();
+        while (true) {
+            Operation op;
+            long sojournMicros;
+            int effectiveLimit;
+            synchronized (this.context) {
+                op = this.context.operationQueue.poll();
+                sojournMicros = this.context.operationQueue.getLastSojournMicros();
+                effectiveLimit = this.context.operationQueue.getEffectiveLimit();
+            }
+
+            if (op == null) {
+                return null;
+            }
+
+            if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                setStat(getHistogramStat(STAT_NAME_OPERATION_QUEUE_SOJOURN), sojournMicros);
+                setStat(STAT_NAME_OPERATION_QUEUE_EFFECTIVE_LIMIT, effectiveLimit);
+            }
+
+            if (!failIfExpired(op)) {
+                return op;
+            }
         }
     }
 
+    /**
+     * Fails a request that expired while waiting in the operation queue or the service mailbox
+     */
+    boolean failIfExpired(Operation op) {
+        long expiration = op.getExpirationMicrosUtc();
+        if (expiration == 0 || expiration > Utils.getNowMicrosUtc()) {
+            return false;
+        }
+
+        adjustStat(STAT_NAME_OPERATION_QUEUE_EXPIRED_COUNT, 1);
+        op.fail(new TimeoutException("Operation expired while queued on " + getSelfLink()));
+        return true;
+    }
+
     private void applyUpdate(Operation op) throws Throwable {
         long time = Utils.getNowMicrosUtc();
 
@@ -1357,13 +1938,76 @@ public class StatefulService implements Service {
         this.context.host = serviceHost;
     }
 
+    /**
+     * Infrastructure use only. Returns the mailbox the host uses to dispatch updates to this
+     * service, in order, or null if no update was dispatched yet
+     */
+    ServiceMailbox getMailbox() {
+        return this.context.mailbox;
+    }
+
+    /**
+     * Infrastructure use only. Returns the mailbox, creating it on the first update, so
+     * services that are only read do not allocate one
+     */
+    ServiceMailbox getOrCreateMailbox() {
+        ServiceMailbox mailbox = this.context.mailbox;
+        if (mailbox != null || this.context.host == null) {
+            return mailbox;
+        }
+        synchronized (this.context) {
+            if (this.context.mailbox == null) {
+                this.context.mailbox = new ServiceMailbox(this.context.host, this);
+            }
+            return this.context.mailbox;
+        }
+    }
+
+    /**
+     * Infrastructure use only. Records the digest hash and document owner of the latest state of
+     * this replicated child, see {@link ChildServiceDigestTracker}. Returns the hash it
+     * replaces, or zero if the child was not tracked
+     */
+    long setChildDigest(long hash, String owner) {
+        synchronized (this.context) {
+            long previous = this.context.childDigestHash;
+            this.context.childDigestHash = hash;
+            this.context.childDigestOwner = owner;
+            return previous;
+        }
+    }
+
+    /**
+     * Infrastructure use only. Returns the document owner recorded by
+     * {@link #setChildDigest(long, String)}
+     */
+    String getChildDigestOwner() {
+        synchronized (this.context) {
+            return this.context.childDigestOwner;
+        }
+    }
+
     @Override
     public void setOperationProcessingChain(OperationProcessingChain opProcessingChain) {
         this.context.opProcessingChain = opProcessingChain;
     }
 
     protected void setOperationQueueLimit(int limit) {
-        this.context.operationQueue.setLimit(limit);
+        synchronized (this.context) {
+            this.context.operationQueue.setLimit(limit);
+        }
+    }
+
+    /**
+     * Enables adaptive admission for client requests: the operation queue limit is lowered while
+     * queued operations wait longer than {@link OperationQueue#ADAPTIVE_TARGET_SOJOURN_MICROS}
+     * and restored once waiting times drop. Replication and synchronization requests are always
+     * dequeued first and are only subject to the configured limit
+     */
+    protected void setOperationQueueAdaptive(boolean isAdaptive) {
+        synchronized (this.context) {
+            this.context.operationQueue.setAdaptive(isAdaptive);
+        }
     }
 
     @Override
@@ -60,6 +60,7 @@ public class UriUtils {
     public static final String URI_PARAM_ODATA_COUNT = "$count";
     public static final String URI_PARAM_ODATA_SKIP_TO = "$skipto";
     public static final String URI_PARAM_ODATA_NODE = "$nodeid  ";
+    public static final String URI_PARAM_ODATA_SELECT = "$select";
     public static final String HTTP_SCHEME = "http";
     public static final String HTTPS_SCHEME = "https";
     public static final int HTTP_DEFAULT_PORT = 80;
@@ -658,6 +659,25 @@ public class UriUtils {
         return getODataParamValueAsString(uri, URI_PARAM_ODATA_NODE);
     }
 
+    /**
+     * Returns the property names listed in the {@code $select} parameter, or null if the
+     * parameter is not present
+     */
+    public static List<String> getODataSelectParamValue(URI uri) {
+        String paramValue = getODataParamValueAsString(uri, URI_PARAM_ODATA_SELECT);
+        if (paramValue == null) {
+            return null;
+        }
+        List<String> propertyNames = new ArrayList<>();
+        for (String name : paramValue.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                propertyNames.add(name);
+            }
+        }
+        return propertyNames;
+    }
+
     public static Integer getODataParamValue(final URI uri, final String uriParamOdataType) {
         String paramValue = getODataParamValueAsString(uri, uriParamOdataType);
         return paramValue != null ? Integer.valueOf(paramValue) : null;
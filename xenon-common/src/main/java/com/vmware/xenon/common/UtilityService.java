@@ -656,7 +656,7 @@ public class UtilityService implements Service {
 
     @Override
     public boolean hasOption(ServiceOption cap) {
-        return false;
+        return cap == ServiceOption.UTILITY;
     }
 
     @Override
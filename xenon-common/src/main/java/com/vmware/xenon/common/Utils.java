@@ -46,6 +46,7 @@ import java.util.logging.Logger;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
@@ -262,6 +263,17 @@ public class Utils {
         return k.readClassAndObject(in);
     }
 
+    /**
+     * Deserializes into a native object, using the object graph serializer, reading directly
+     * from the remaining bytes of the buffer, which can be a memory mapped file region.
+     * Must be paired with {@code Utils#toBytes(Object, byte[], int)}
+     */
+    public static Object fromBytes(ByteBuffer buffer) {
+        Kryo k = kryoForObjectPerThread.get();
+        Input in = new ByteBufferInput(buffer.slice());
+        return k.readClassAndObject(in);
+    }
+
     /**
      * Deserializes into a native ServiceDocument derived type, using the document serializer.
      * Must be paired with {@code Utils#toBytes(ServiceDocument, byte[], int)
@@ -564,6 +576,17 @@ public class Utils {
             break;
         case LIFO_QUEUE:
             break;
+        case BLOCKING_HANDLERS:
+            break;
+        case WRITE_BEHIND_PERSISTENCE:
+            reqs = EnumSet.of(ServiceOption.PERSISTENCE);
+            break;
+        case DELTA_REPLICATION:
+            reqs = EnumSet.of(ServiceOption.REPLICATION);
+            break;
+        case PIPELINED_UPDATES:
+            antiReqs = EnumSet.of(ServiceOption.CONCURRENT_UPDATE_HANDLING);
+            break;
         case NONE:
             break;
         case UTILITY:
@@ -598,6 +621,10 @@ public class Utils {
             }
         }
 
+        if (antiReqs == null) {
+            return null;
+        }
+
         EnumSet<ServiceOption> conflictReqs = EnumSet.noneOf(ServiceOption.class);
         for (ServiceOption r : antiReqs) {
             if (options.contains(r)) {
@@ -823,6 +850,7 @@ public class Utils {
     private static boolean isContentTypeText(String contentType) {
         return Operation.MEDIA_TYPE_APPLICATION_JSON.equals(contentType)
                 || contentType.contains(Operation.MEDIA_TYPE_APPLICATION_JSON)
+                || contentType.contains(Operation.MEDIA_TYPE_APPLICATION_X_NDJSON)
                 || contentType.contains("text")
                 || contentType.contains("css")
                 || contentType.contains("script")
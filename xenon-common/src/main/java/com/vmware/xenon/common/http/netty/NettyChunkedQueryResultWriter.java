@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.common.http.netty;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+
+/**
+ * Writes query results to a HTTP/1.1 channel as chunked, newline delimited JSON (one document,
+ * or one document link, per line).
+ *
+ * Results are consumed one page at a time: when the current page is exhausted and the results
+ * have a {@code nextPageLink}, the next page is retrieved from the index before any more content
+ * is written. Lines are only written while the channel is writable, so a slow client pauses the
+ * page retrieval instead of growing the outbound buffer. Memory use is bounded by the query
+ * result limit (page size), not the total number of results.
+ *
+ * All channel writes, and all state transitions, happen on the channel event loop
+ */
+class NettyChunkedQueryResultWriter {
+
+    private static final byte NEW_LINE = '\n';
+
+    private final ServiceHost host;
+    private final ChannelHandlerContext ctx;
+    private final Operation request;
+    private final HttpResponse response;
+    private final Runnable onDone;
+
+    private ServiceDocumentQueryResult page;
+    private int index;
+    private boolean isPageRequestPending;
+    private boolean isDone;
+
+    NettyChunkedQueryResultWriter(ServiceHost host, ChannelHandlerContext ctx, Operation request,
+            HttpResponse response, ServiceDocumentQueryResult firstPage, Runnable onDone) {
+        this.host = host;
+        this.ctx = ctx;
+        this.request = request;
+        this.response = response;
+        this.page = firstPage;
+        this.onDone = onDone;
+    }
+
+    /**
+     * Returns the query results associated with the response body, if the client asked for
+     * newline delimited JSON and the body is a query result that can be streamed.
+     */
+    static ServiceDocumentQueryResult getStreamableResults(Operation request) {
+        if (request.getStatusCode() >= Operation.STATUS_CODE_FAILURE_THRESHOLD) {
+            return null;
+        }
+
+        String accept = request.getRequestHeader(Operation.ACCEPT_HEADER);
+        if (accept == null || !accept.contains(Operation.MEDIA_TYPE_APPLICATION_X_NDJSON)) {
+            return null;
+        }
+
+        Object body = request.getBodyRaw();
+        ServiceDocumentQueryResult results = null;
+        if (body instanceof QueryTask) {
+            results = ((QueryTask) body).results;
+        } else if (body instanceof ServiceDocumentQueryResult) {
+            results = (ServiceDocumentQueryResult) body;
+        }
+
+        if (results == null || results.documentLinks == null) {
+            // COUNT queries, or tasks that have not finished yet, are returned as is
+            return null;
+        }
+        return results;
+    }
+
+    void start() {
+        this.ctx.executor().execute(() -> {
+            this.ctx.write(this.response);
+            writeAvailable();
+        });
+    }
+
+    /**
+     * Invoked by the channel handler when the channel writability changes
+     */
+    void resume() {
+        if (this.ctx.channel().isWritable()) {
+            writeAvailable();
+        }
+    }
+
+    /**
+     * Invoked by the channel handler when the channel is closed
+     */
+    void cancel() {
+        this.isDone = true;
+        this.page = null;
+    }
+
+    private void writeAvailable() {
+        if (this.isDone || this.isPageRequestPending) {
+            return;
+        }
+
+        boolean hasWritten = false;
+        while (this.ctx.channel().isWritable()) {
+            List<String> links = this.page.documentLinks;
+            if (this.index >= links.size()) {
+                if (hasWritten) {
+                    this.ctx.flush();
+                }
+                String nextPageLink = this.page.nextPageLink;
+                if (nextPageLink == null) {
+                    finish();
+                } else {
+                    requestNextPage(nextPageLink);
+                }
+                return;
+            }
+
+            String link = links.get(this.index++);
+            this.ctx.write(new DefaultHttpContent(encodeLine(link)));
+            hasWritten = true;
+        }
+
+        // channel is not writable, we will resume when the outbound buffer has drained
+        this.ctx.flush();
+    }
+
+    private ByteBuf encodeLine(String link) {
+        Map<String, Object> documents = this.page.documents;
+        Object document = documents != null ? documents.get(link) : null;
+        String json = Utils.toJson(document != null ? document : link);
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = this.ctx.alloc().buffer(data.length + 1);
+        buf.writeBytes(data).writeByte(NEW_LINE);
+        return buf;
+    }
+
+    private void requestNextPage(String nextPageLink) {
+        this.isPageRequestPending = true;
+        this.page = null;
+        this.index = 0;
+
+        Operation get = Operation.createGet(UriUtils.buildUri(this.host, nextPageLink))
+                .setReferer(this.request.getReferer())
+                .setExpiration(Utils.getNowMicrosUtc() + this.host.getOperationTimeoutMicros())
+                .setCompletion((o, e) -> {
+                    this.ctx.executor().execute(() -> {
+                        handlePageCompletion(o, e);
+                    });
+                });
+
+        // The page is retrieved on behalf of the client, using its credentials
+        String token = this.request.getRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER);
+        if (token != null) {
+            get.addRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER, token);
+        }
+        if (this.request.getCookies() != null) {
+            get.setCookies(this.request.getCookies());
+        }
+
+        this.host.handleRequest(null, get);
+    }
+
+    private void handlePageCompletion(Operation o, Throwable e) {
+        this.isPageRequestPending = false;
+        if (this.isDone) {
+            return;
+        }
+
+        if (e != null) {
+            // the status code and headers have already been sent. Close the channel before
+            // the terminating chunk, so the client can detect the response is incomplete
+            this.host.log(Level.WARNING, "Failure retrieving page for %s: %s",
+                    this.request.getUri().getPath(), e.toString());
+            abort();
+            return;
+        }
+
+        QueryTask task = o.getBody(QueryTask.class);
+        if (task.results == null || task.results.documentLinks == null) {
+            abort();
+            return;
+        }
+        this.page = task.results;
+        writeAvailable();
+    }
+
+    private void finish() {
+        this.isDone = true;
+        this.onDone.run();
+        if (this.request.isKeepAlive()) {
+            this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            return;
+        }
+        this.ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT)
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void abort() {
+        this.isDone = true;
+        this.onDone.run();
+        this.ctx.flush();
+        this.ctx.close();
+    }
+}
@@ -30,12 +30,14 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
@@ -47,6 +49,7 @@ import io.netty.util.AsciiString;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
 import com.vmware.xenon.common.ServiceErrorResponse;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
@@ -65,6 +68,8 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
 
     private final SslHandler sslHandler;
 
+    private volatile NettyChunkedQueryResultWriter activeWriter;
+
     public NettyHttpClientRequestHandler(ServiceHost host, SslHandler sslHandler) {
         this.host = host;
         this.sslHandler = sslHandler;
@@ -331,6 +336,16 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
     }
 
     private void writeResponseUnsafe(ChannelHandlerContext ctx, Operation request, Integer streamId) {
+        if (streamId == null) {
+            // chunked transfer encoding is only available for HTTP/1.1
+            ServiceDocumentQueryResult results = NettyChunkedQueryResultWriter
+                    .getStreamableResults(request);
+            if (results != null) {
+                writeChunkedResponse(ctx, request, results);
+                return;
+            }
+        }
+
         ByteBuf bodyBuffer = null;
         FullHttpResponse response;
         try {
@@ -382,10 +397,37 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
         response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH,
                 response.content().readableBytes());
 
+        addResponseHeaders(request, response.headers());
+
+        writeResponse(ctx, request, response);
+    }
+
+    private void writeChunkedResponse(ChannelHandlerContext ctx, Operation request,
+            ServiceDocumentQueryResult results) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf(request.getStatusCode()), false);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE,
+                Operation.MEDIA_TYPE_APPLICATION_X_NDJSON);
+        HttpUtil.setTransferEncodingChunked(response, true);
+        addResponseHeaders(request, response.headers());
+        response.headers().set(HttpHeaderNames.CONNECTION,
+                request.isKeepAlive() ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+
+        Runnable onDone = () -> {
+            ctx.channel().attr(NettyChannelContext.OPERATION_KEY).remove();
+            this.activeWriter = null;
+        };
+        NettyChunkedQueryResultWriter writer = new NettyChunkedQueryResultWriter(this.host, ctx,
+                request, response, results, onDone);
+        this.activeWriter = writer;
+        writer.start();
+    }
+
+    private void addResponseHeaders(Operation request, HttpHeaders headers) {
         if (request.hasResponseHeaders()) {
             // add any other custom headers associated with operation
             for (Entry<String, String> nameValue : request.getResponseHeaders().entrySet()) {
-                response.headers().set(nameValue.getKey(), nameValue.getValue());
+                headers.set(nameValue.getKey(), nameValue.getValue());
             }
         }
 
@@ -395,7 +437,7 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
             String token = authorizationContext.getToken();
 
             // The x-xenon-auth-token header is our preferred style
-            response.headers().add(Operation.REQUEST_AUTH_TOKEN_HEADER, token);
+            headers.add(Operation.REQUEST_AUTH_TOKEN_HEADER, token);
 
             // Client can also use the cookie if they prefer
             StringBuilder buf = new StringBuilder()
@@ -411,10 +453,27 @@ public class NettyHttpClientRequestHandler extends SimpleChannelInboundHandler<O
                 long maxAge = authorizationContext.getClaims().getExpirationTime() - Utils.getNowMicrosUtc();
                 buf.append(maxAge > 0 ? TimeUnit.MICROSECONDS.toSeconds(maxAge) : 0);
             }
-            response.headers().add(Operation.SET_COOKIE_HEADER, buf.toString());
+            headers.add(Operation.SET_COOKIE_HEADER, buf.toString());
         }
+    }
 
-        writeResponse(ctx, request, response);
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        NettyChunkedQueryResultWriter writer = this.activeWriter;
+        if (writer != null) {
+            writer.resume();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        NettyChunkedQueryResultWriter writer = this.activeWriter;
+        if (writer != null) {
+            writer.cancel();
+            this.activeWriter = null;
+        }
+        super.channelInactive(ctx);
     }
 
     @Override
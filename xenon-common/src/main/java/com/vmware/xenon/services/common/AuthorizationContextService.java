@@ -19,8 +19,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 
 import com.vmware.xenon.common.Claims;
 import com.vmware.xenon.common.Operation;
@@ -89,6 +91,30 @@ public class AuthorizationContextService extends StatelessService {
 
     private final Map<String, Collection<Operation>> pendingOperationsBySubject = new HashMap<>();
 
+    /**
+     * Returns true if the operation needs no further authorization context processing: the
+     * context belongs to the system user, or already has resource queries for the operation
+     * action. The service host uses this to dispatch such requests without a round trip
+     * through this service
+     */
+    public static boolean isAuthorizationContextProcessed(Operation op) {
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        if (ctx == null) {
+            return false;
+        }
+
+        Claims claims = ctx.getClaims();
+        if (claims == null || claims.getSubject() == null) {
+            return false;
+        }
+
+        if (claims.getSubject().equals(SystemUserService.SELF_LINK)) {
+            return true;
+        }
+
+        return ctx.getResourceQueryFilter(op.getAction()) != null;
+    }
+
     /**
      * The service host will invoke this method to allow a service to handle
      * the request in-line or indicate it should be scheduled by service host.
@@ -116,14 +142,9 @@ public class AuthorizationContextService extends StatelessService {
             return true;
         }
 
-        // Allow unconditionally if this is the system user
-        if (subject.equals(SystemUserService.SELF_LINK)) {
-            op.complete();
-            return true;
-        }
-
-        // Check whether or not the operation already has a processed context.
-        if (ctx.getResourceQueryFilter(op.getAction()) != null) {
+        // Allow unconditionally if this is the system user, or if the operation
+        // already has a processed context
+        if (isAuthorizationContextProcessed(op)) {
             op.complete();
             return true;
         }
@@ -405,6 +426,12 @@ public class AuthorizationContextService extends StatelessService {
 
             builder.setResourceQueryMap(queryByAction);
             builder.setResourceQueryFilterMap(queryFilterByAction);
+
+            Set<String> roleLinks = new HashSet<>();
+            for (Role role : roles) {
+                roleLinks.add(role.roleState.documentSelfLink);
+            }
+            builder.setRoleLinks(roleLinks);
         }
 
         AuthorizationContext newContext = builder.getResult();
@@ -14,12 +14,14 @@
 package com.vmware.xenon.services.common;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -46,7 +48,146 @@ import com.vmware.xenon.services.common.NodeGroupService.UpdateQuorumRequest;
 public class ConsistentHashingNodeSelectorService extends StatelessService implements
         NodeSelectorService {
 
-    private ConcurrentSkipListMap<String, Long> hashedNodeIds = new ConcurrentSkipListMap<>();
+    /**
+     * Immutable ring of the available nodes in a node group state, sorted by the hash of their
+     * id. The nodes closest to a key are the ring neighbors of the key hash, so selection is a
+     * binary search instead of a pass over all nodes. Selections of recent keys are cached in
+     * the ring, and discarded with it when the node group changes. Selected node collections
+     * are shared between responses and must not be modified
+     */
+    static final class NodeHashRing {
+        static final int SELECTION_CACHE_LIMIT = 4096;
+
+        static final class Selection {
+            final NodeState owner;
+            final Collection<NodeState> selectedNodes;
+
+            Selection(NodeState owner, Collection<NodeState> selectedNodes) {
+                this.owner = owner;
+                this.selectedNodes = selectedNodes;
+            }
+        }
+
+        final NodeGroupState groupState;
+        private final int neighbourCount;
+        private final int[] hashes;
+        private final NodeState[] nodes;
+        private final List<Collection<NodeState>> ownerOnlySelections;
+        private final Map<String, Selection> selectionCache = new ConcurrentHashMap<>();
+
+        NodeHashRing(NodeGroupState groupState, int neighbourCount) {
+            this.groupState = groupState;
+            this.neighbourCount = neighbourCount;
+
+            List<NodeState> available = new ArrayList<>(groupState.nodes.size());
+            for (NodeState m : groupState.nodes.values()) {
+                if (!NodeState.isUnAvailable(m)) {
+                    available.add(m);
+                }
+            }
+
+            long[] sortKeys = new long[available.size()];
+            for (int i = 0; i < sortKeys.length; i++) {
+                // hash in the high bits, index in the low bits, so sorting keeps both together
+                sortKeys[i] = ((long) hash(available.get(i).id) << 32) | i;
+            }
+            Arrays.sort(sortKeys);
+
+            this.hashes = new int[sortKeys.length];
+            this.nodes = new NodeState[sortKeys.length];
+            this.ownerOnlySelections = new ArrayList<>(sortKeys.length);
+            for (int i = 0; i < sortKeys.length; i++) {
+                this.hashes[i] = (int) (sortKeys[i] >> 32);
+                this.nodes[i] = available.get((int) sortKeys[i]);
+                List<NodeState> ownerOnly = new ArrayList<>(1);
+                ownerOnly.add(this.nodes[i]);
+                this.ownerOnlySelections.add(ownerOnly);
+            }
+        }
+
+        static int hash(String value) {
+            return MurmurHash3.murmurhash3_x86_32(value, 0, value.length(), 0);
+        }
+
+        /**
+         * Distance between two hashes on the ring, the wrapped difference of the hashes
+         */
+        static long distance(int nodeHash, int keyHash) {
+            return Math.abs((long) (nodeHash - keyHash));
+        }
+
+        int getAvailableNodeCount() {
+            return this.nodes.length;
+        }
+
+        /**
+         * Selects the owner of the key, without caching the selection, for passes over many
+         * keys. Returns null if no node is available
+         */
+        NodeState selectOwner(String key) {
+            int n = this.nodes.length;
+            if (n == 0) {
+                return null;
+            }
+            int keyHash = hash(key);
+            int index = Arrays.binarySearch(this.hashes, keyHash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            int right = index % n;
+            int left = (index - 1 + n) % n;
+            return distance(this.hashes[left], keyHash) < distance(this.hashes[right], keyHash)
+                    ? this.nodes[left] : this.nodes[right];
+        }
+
+        /**
+         * Selects the owner and the neighbour count closest nodes to the key. When two nodes
+         * are equally close, the one after the key on the ring is selected first
+         */
+        Selection select(String key) {
+            Selection selection = this.selectionCache.get(key);
+            if (selection != null) {
+                return selection;
+            }
+
+            int count = Math.min(this.neighbourCount, this.nodes.length);
+            int keyHash = hash(key);
+            int index = Arrays.binarySearch(this.hashes, keyHash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+
+            int n = this.nodes.length;
+            int right = index % n;
+            int left = (index - 1 + n) % n;
+            if (count == 1) {
+                int owner = distance(this.hashes[left], keyHash)
+                        < distance(this.hashes[right], keyHash) ? left : right;
+                selection = new Selection(this.nodes[owner], this.ownerOnlySelections.get(owner));
+            } else {
+                List<NodeState> selected = new ArrayList<>(count);
+                while (selected.size() < count) {
+                    if (distance(this.hashes[left], keyHash)
+                            < distance(this.hashes[right], keyHash)) {
+                        selected.add(this.nodes[left]);
+                        left = (left - 1 + n) % n;
+                    } else {
+                        selected.add(this.nodes[right]);
+                        right = (right + 1) % n;
+                    }
+                }
+                selection = new Selection(selected.get(0), selected);
+            }
+
+            if (this.selectionCache.size() >= SELECTION_CACHE_LIMIT) {
+                this.selectionCache.clear();
+            }
+            this.selectionCache.put(key, selection);
+            return selection;
+        }
+    }
+
+    private volatile NodeHashRing hashRing;
     private ConcurrentLinkedQueue<SelectAndForwardRequest> pendingRequests = new ConcurrentLinkedQueue<>();
 
     // Cached node group state. Refreshed during maintenance
@@ -273,9 +414,8 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             NodeGroupState localState) {
         NodeState self = localState.nodes.get(getHost().getId());
         int quorum = self.membershipQuorum;
-        int availableNodes = localState.nodes.size();
 
-        if (availableNodes == 1) {
+        if (localState.nodes.size() == 1) {
             response.ownerNodeId = self.id;
             response.isLocalHostOwner = true;
             response.ownerNodeGroupReference = self.groupReference;
@@ -283,40 +423,9 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             return;
         }
 
-        SortedMap<Long, NodeState> closestNodes = new TreeMap<>();
-        long neighbourCount = 1;
-        if (this.cachedState.replicationFactor != null) {
-            neighbourCount = this.cachedState.replicationFactor;
-        }
-
-        final int seed = 0;
-        int keyHash = MurmurHash3.murmurhash3_x86_32(
-                response.key, 0, response.key.length(), seed);
-
-        for (NodeState m : localState.nodes.values()) {
-            if (NodeState.isUnAvailable(m)) {
-                availableNodes--;
-                continue;
-            }
-
-            response.availableNodeCount++;
-            int nodeIdHash = 0;
-            Long nodeIdHashLong = this.hashedNodeIds.get(m.id);
-            if (nodeIdHashLong == null) {
-                nodeIdHash = MurmurHash3.murmurhash3_x86_32(m.id, 0, m.id.length(), seed);
-                this.hashedNodeIds.put(m.id, (long) nodeIdHash);
-            } else {
-                nodeIdHash = nodeIdHashLong.intValue();
-            }
-
-            long distance = nodeIdHash - keyHash;
-            distance *= distance;
-            closestNodes.put(distance, m);
-            if (closestNodes.size() > neighbourCount) {
-                // keep sorted map with only the N closest neighbors to the key
-                closestNodes.remove(closestNodes.lastKey());
-            }
-        }
+        NodeHashRing ring = getHashRing(localState);
+        int availableNodes = ring.getAvailableNodeCount();
+        response.availableNodeCount = availableNodes;
 
         if (availableNodes < quorum) {
             op.fail(new IllegalStateException("Available nodes: "
@@ -324,14 +433,45 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
             return;
         }
 
-        NodeState closest = closestNodes.get(closestNodes.firstKey());
+        NodeHashRing.Selection selection = ring.select(response.key);
+        NodeState closest = selection.owner;
         response.ownerNodeId = closest.id;
         response.isLocalHostOwner = response.ownerNodeId.equals(getHost().getId());
         response.ownerNodeGroupReference = closest.groupReference;
-        response.selectedNodes = closestNodes.values();
+        response.selectedNodes = selection.selectedNodes;
         response.membershipUpdateTimeMicros = localState.membershipUpdateTimeMicros;
     }
 
+    /**
+     * Returns the id of the node that owns the key in the cached node group state, or null if
+     * the node group state is not known yet
+     */
+    String getOwnerNodeId(String key) {
+        NodeGroupState localState = this.cachedGroupState;
+        if (localState == null) {
+            return null;
+        }
+        NodeState owner = getHashRing(localState).selectOwner(key);
+        return owner != null ? owner.id : null;
+    }
+
+    private NodeHashRing getHashRing(NodeGroupState localState) {
+        NodeHashRing ring = this.hashRing;
+        if (ring != null && ring.groupState == localState) {
+            return ring;
+        }
+        // the ring is rebuilt when the cached node group state changes, this is a request with
+        // a different state
+        return new NodeHashRing(localState, getNeighbourCount());
+    }
+
+    private int getNeighbourCount() {
+        if (this.cachedState.replicationFactor != null) {
+            return this.cachedState.replicationFactor.intValue();
+        }
+        return 1;
+    }
+
     private void broadcast(Operation op, SelectAndForwardRequest req,
             SelectOwnerResponse selectRsp) {
 
@@ -541,8 +681,6 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
                                     return;
                                 }
 
-                                this.hashedNodeIds.clear();
-
                                 // if node group changed since we kicked of this check, we need to wait for
                                 // newer convergence completions
                                 synchronized (this.cachedState) {
@@ -582,6 +720,8 @@ public class ConsistentHashingNodeSelectorService extends StatelessService imple
 
             if (this.cachedGroupState.documentUpdateTimeMicros <= ngs.documentUpdateTimeMicros) {
                 this.cachedGroupState = ngs;
+                this.hashRing = new NodeHashRing(ngs, getNeighbourCount());
+                this.replicationUtility.setNodeGroupState(ngs);
                 // every time we update cached state, request convergence check
                 this.isNodeGroupConverged = false;
                 this.isSynchronizationRequired = true;
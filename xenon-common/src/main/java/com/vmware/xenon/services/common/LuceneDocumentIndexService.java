@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,6 +40,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjLongConsumer;
 
 import com.esotericsoftware.kryo.KryoException;
 import com.google.gson.JsonParser;
@@ -175,9 +177,40 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     public static final String STAT_NAME_DOCUMENT_EXPIRATION_COUNT = "expiredDocumentCount";
 
+    public static final String STAT_NAME_PARTIAL_QUERY_RESULT_COUNT = "partialQueryResultCount";
+
+    public static final String STAT_NAME_REJECTED_QUERY_COUNT = "rejectedQueryCount";
+
+    /**
+     * Suffix of the per request class queue wait histograms, for example
+     * pointLookupQueueWaitMicros
+     */
+    public static final String STAT_NAME_SUFFIX_QUEUE_WAIT_MICROS = "QueueWaitMicros";
+
     protected static final int UPDATE_THREAD_COUNT = 4;
 
-    protected static final int QUERY_THREAD_COUNT = 2;
+    protected static final int QUERY_THREAD_COUNT = 4;
+
+    /**
+     * Maximum number of queries a single principal can have waiting for a query thread.
+     * Queries above the limit are rejected, with {@link Operation#STATUS_CODE_UNAVAILABLE}
+     */
+    protected static final int MAX_QUEUED_QUERIES_PER_PRINCIPAL = 10000;
+
+    private static final Map<LuceneQueryScheduler.RequestClass, String> QUEUE_WAIT_STAT_NAMES =
+            new EnumMap<>(LuceneQueryScheduler.RequestClass.class);
+
+    static {
+        // POINT_LOOKUP -> pointLookupQueueWaitMicros
+        for (LuceneQueryScheduler.RequestClass c : LuceneQueryScheduler.RequestClass.values()) {
+            StringBuilder sb = new StringBuilder();
+            for (String part : c.name().toLowerCase().split("_")) {
+                sb.append(sb.length() == 0 ? part.charAt(0) : Character.toUpperCase(part.charAt(0)));
+                sb.append(part.substring(1));
+            }
+            QUEUE_WAIT_STAT_NAMES.put(c, sb.append(STAT_NAME_SUFFIX_QUEUE_WAIT_MICROS).toString());
+        }
+    }
 
     protected Object searchSync;
     protected Queue<IndexSearcher> searchersPendingClose = new ConcurrentLinkedQueue<>();
@@ -199,12 +232,21 @@ public class LuceneDocumentIndexService extends StatelessService {
     private final Map<String, Long> linkDocumentRetentionEstimates = new HashMap<>();
     private long linkAccessMemoryLimitMB;
 
+    /**
+     * Set on the shards of a {@link ShardedDocumentIndexService}: the memory limit of the
+     * sharded index is divided evenly between its shards
+     */
+    String memoryLimitLink;
+    int memoryLimitShareCount = 1;
+
     private Sort versionSort;
 
     private ExecutorService privateIndexingExecutor;
 
     private ExecutorService privateQueryExecutor;
 
+    private LuceneQueryScheduler queryScheduler;
+
     private Set<String> fieldsToLoadNoExpand;
     private Set<String> fieldsToLoadWithExpand;
 
@@ -242,6 +284,13 @@ public class LuceneDocumentIndexService extends StatelessService {
                 r -> new Thread(r, getUri() + "/queries/" + Utils.getNowMicrosUtc()));
         this.privateIndexingExecutor = Executors.newFixedThreadPool(UPDATE_THREAD_COUNT,
                 r -> new Thread(r, getSelfLink() + "/updates/" + Utils.getNowMicrosUtc()));
+        ObjLongConsumer<LuceneQueryScheduler.RequestClass> queueWaitRecorder = (c, waitMicros) -> {
+            if (hasOption(ServiceOption.INSTRUMENTATION)) {
+                setStat(getHistogramStat(toQueueWaitStatName(c)), waitMicros);
+            }
+        };
+        this.queryScheduler = new LuceneQueryScheduler(this.privateQueryExecutor,
+                QUERY_THREAD_COUNT, MAX_QUEUED_QUERIES_PER_PRINCIPAL, queueWaitRecorder);
 
         initializeInstance();
 
@@ -296,6 +345,13 @@ public class LuceneDocumentIndexService extends StatelessService {
         Analyzer analyzer = new SimpleAnalyzer();
         IndexWriterConfig iwc = new IndexWriterConfig(analyzer);
         Long totalMBs = getHost().getServiceMemoryLimitMB(getSelfLink(), MemoryLimitType.EXACT);
+        if (totalMBs == null && this.memoryLimitLink != null) {
+            totalMBs = getHost().getServiceMemoryLimitMB(this.memoryLimitLink,
+                    MemoryLimitType.EXACT);
+            if (totalMBs != null) {
+                totalMBs /= this.memoryLimitShareCount;
+            }
+        }
         if (totalMBs != null) {
             long cacheSizeMB = (totalMBs * 3) / 4;
             cacheSizeMB = Math.max(1, cacheSizeMB);
@@ -363,7 +419,7 @@ public class LuceneDocumentIndexService extends StatelessService {
                 .of(QueryOption.INCLUDE_ALL_VERSIONS), tq,
                 null, null, Integer.MAX_VALUE, 0, null, rsp, ServiceOption.PERSISTENCE,
                 new IndexSearcher(
-                    DirectoryReader.open(this.writer, true, true)));
+                    DirectoryReader.open(this.writer, true, true)), null);
     }
 
     private void handleBackup(Operation op, BackupRequest req) throws Throwable {
@@ -460,13 +516,15 @@ public class LuceneDocumentIndexService extends StatelessService {
             return;
         }
 
-        ExecutorService exec = a == Action.GET ? this.privateQueryExecutor
+        LuceneQueryScheduler.RequestClass requestClass = classifyReadRequest(op);
+        ExecutorService exec = requestClass != null ? this.privateQueryExecutor
                 : this.privateIndexingExecutor;
         if (exec.isShutdown()) {
             op.fail(new CancellationException());
             return;
         }
-        exec.execute(() -> {
+
+        Runnable requestTask = () -> {
             try {
                 this.writerAvailable.acquire();
                 switch (a) {
@@ -511,7 +569,55 @@ public class LuceneDocumentIndexService extends StatelessService {
             } finally {
                 this.writerAvailable.release();
             }
-        });
+        };
+
+        if (requestClass == null) {
+            exec.execute(requestTask);
+            return;
+        }
+
+        if (!this.queryScheduler.submit(requestClass, getPrincipal(op), requestTask)) {
+            adjustStat(STAT_NAME_REJECTED_QUERY_COUNT, 1);
+            op.addResponseHeader(Operation.RETRY_AFTER_HEADER, "1");
+            op.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE)
+                    .fail(new CancellationException("query queue limit exceeded"));
+        }
+    }
+
+    /**
+     * Returns the scheduling class of document lookups and queries, which run on the query
+     * threads, or null for updates and other requests, which run on the indexing threads
+     */
+    private LuceneQueryScheduler.RequestClass classifyReadRequest(Operation op) {
+        if (op.getAction() == Action.GET) {
+            String query = op.getUri().getQuery();
+            if (query != null && query.contains(UriUtils.URI_WILDCARD_CHAR)) {
+                return LuceneQueryScheduler.RequestClass.FACTORY_LISTING;
+            }
+            return LuceneQueryScheduler.RequestClass.POINT_LOOKUP;
+        }
+
+        if (op.getAction() != Action.PATCH || !(op.getBodyRaw() instanceof QueryTask)) {
+            return null;
+        }
+
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        if (ctx != null && ctx.isSystemUser()) {
+            return LuceneQueryScheduler.RequestClass.MAINTENANCE;
+        }
+        return LuceneQueryScheduler.RequestClass.QUERY;
+    }
+
+    private static String getPrincipal(Operation op) {
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        if (ctx == null || ctx.getClaims() == null || ctx.getClaims().getSubject() == null) {
+            return "";
+        }
+        return ctx.getClaims().getSubject();
+    }
+
+    static String toQueueWaitStatName(LuceneQueryScheduler.RequestClass c) {
+        return QUEUE_WAIT_STAT_NAMES.get(c);
     }
 
     private void handleQueryTaskPatch(Operation op, QueryTask task) throws Throwable {
@@ -523,6 +629,25 @@ public class LuceneDocumentIndexService extends StatelessService {
         IndexSearcher s = (IndexSearcher) qs.context.nativeSearcher;
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
 
+        if (luceneQuery == null) {
+            // direct queries from in process callers (for example the OData services) are
+            // sent here without going through a query task service, convert them now
+            try {
+                luceneQuery = LuceneQueryConverter.convertToLuceneQuery(qs.query);
+                if (qs.options.contains(QueryOption.SORT)) {
+                    luceneSort = LuceneQueryConverter.convertToLuceneSort(qs);
+                }
+            } catch (Throwable e) {
+                op.fail(e);
+                return;
+            }
+            qs.context.nativeQuery = luceneQuery;
+            qs.context.nativeSort = luceneSort;
+            if (qs.resultLimit == null) {
+                qs.resultLimit = Integer.MAX_VALUE;
+            }
+        }
+
         if (qs.options.contains(QueryOption.CONTINUOUS)) {
             switch (task.taskInfo.stage) {
             case CREATED:
@@ -559,9 +684,10 @@ public class LuceneDocumentIndexService extends StatelessService {
             s = createPaginatedQuerySearcher(task.documentExpirationTimeMicros, this.writer);
         }
 
+        LuceneQueryBudget budget = LuceneQueryBudget.create(qs);
         if (!queryIndex(s, op, null, qs.options, luceneQuery, luceneSort, lucenePage,
                 qs.resultLimit,
-                task.documentExpirationTimeMicros, task.indexLink, rsp)) {
+                task.documentExpirationTimeMicros, task.indexLink, rsp, budget)) {
             op.setBodyNoCloning(rsp).complete();
         }
     }
@@ -632,7 +758,8 @@ public class LuceneDocumentIndexService extends StatelessService {
 
         ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
         rsp.documentLinks = new ArrayList<>();
-        if (queryIndex(null, get, selfLink, options, tq, null, null, resultLimit, 0, null, rsp)) {
+        if (queryIndex(null, get, selfLink, options, tq, null, null, resultLimit, 0, null, rsp,
+                null)) {
             return;
         }
 
@@ -657,7 +784,8 @@ public class LuceneDocumentIndexService extends StatelessService {
             int count,
             long expiration,
             String indexLink,
-            ServiceDocumentQueryResult rsp) throws Throwable {
+            ServiceDocumentQueryResult rsp,
+            LuceneQueryBudget budget) throws Throwable {
         if (options == null) {
             options = EnumSet.noneOf(QueryOption.class);
         }
@@ -703,7 +831,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             return false;
         } else if (queryIndexWithWriter(op, options, tq, sort, page, count, expiration, indexLink,
                 rsp,
-                ServiceOption.PERSISTENCE, s)) {
+                ServiceOption.PERSISTENCE, s, budget)) {
             // target index had results or request failed
             return true;
         }
@@ -809,11 +937,12 @@ public class LuceneDocumentIndexService extends StatelessService {
             String indexLink,
             ServiceDocumentQueryResult rsp,
             ServiceOption targetIndex,
-            IndexSearcher s) throws Throwable {
+            IndexSearcher s,
+            LuceneQueryBudget budget) throws Throwable {
         Object resultBody;
 
         resultBody = queryIndex(op, targetIndex, options, s, tq, sort, page, count, expiration,
-                indexLink, rsp);
+                indexLink, rsp, budget);
         if (count == 1 && resultBody instanceof String) {
             op.setBodyNoCloning(resultBody).complete();
             return true;
@@ -888,7 +1017,8 @@ public class LuceneDocumentIndexService extends StatelessService {
             int count,
             long expiration,
             String indexLink,
-            ServiceDocumentQueryResult rsp) throws Throwable {
+            ServiceDocumentQueryResult rsp,
+            LuceneQueryBudget budget) throws Throwable {
         ScoreDoc[] hits;
         ScoreDoc after = null;
         boolean isPaginatedQuery = count != Integer.MAX_VALUE
@@ -917,7 +1047,9 @@ public class LuceneDocumentIndexService extends StatelessService {
         long start = queryStartTimeMicros;
 
         do {
-            if (sort == null) {
+            if (budget != null) {
+                results = budget.searchAfter(s, after, tq, count, sort);
+            } else if (sort == null) {
                 results = s.searchAfter(after, tq, count);
             } else {
                 results = s.searchAfter(after, tq, count, sort, false, false);
@@ -937,7 +1069,7 @@ public class LuceneDocumentIndexService extends StatelessService {
             if (shouldProcessResults) {
                 start = Utils.getNowMicrosUtc();
                 bottom = processQueryResults(targetIndex, options, count, s, rsp, hits,
-                        queryStartTimeMicros);
+                        queryStartTimeMicros, budget);
                 end = Utils.getNowMicrosUtc();
 
                 if (hasOption(ServiceOption.INSTRUMENTATION)) {
@@ -952,6 +1084,14 @@ public class LuceneDocumentIndexService extends StatelessService {
                 }
             }
 
+            if (budget != null && budget.isExhausted()) {
+                // a resource limit was exceeded, or the query was cancelled. Return what we
+                // have, without a link to the next page
+                rsp.isPartial = true;
+                adjustStat(STAT_NAME_PARTIAL_QUERY_RESULT_COUNT, 1);
+                break;
+            }
+
             if (!isPaginatedQuery && !options.contains(QueryOption.TOP_RESULTS)) {
                 // single pass
                 break;
@@ -974,7 +1114,8 @@ public class LuceneDocumentIndexService extends StatelessService {
                     rsp.nextPageLink = createNextPage(op, s, options, tq, sort, bottom, count,
                             expiration,
                             indexLink,
-                            hasPage);
+                            hasPage,
+                            budget);
                     break;
                 }
             }
@@ -993,7 +1134,8 @@ public class LuceneDocumentIndexService extends StatelessService {
             int count,
             long expiration,
             String indexLink,
-            boolean hasPage) {
+            boolean hasPage,
+            LuceneQueryBudget budget) {
 
         URI u = UriUtils.buildUri(getHost(), UriUtils.buildUriPath(
                 ServiceUriPaths.CORE,
@@ -1028,6 +1170,9 @@ public class LuceneDocumentIndexService extends StatelessService {
         spec.context.nativeSearcher = s;
         spec.context.nativeSort = sort;
         spec.resultLimit = count;
+        if (budget != null) {
+            budget.copyLimitsTo(spec);
+        }
 
         ServiceDocument body = new ServiceDocument();
         body.documentSelfLink = u.getPath();
@@ -1057,7 +1202,7 @@ public class LuceneDocumentIndexService extends StatelessService {
 
     private ScoreDoc processQueryResults(ServiceOption targetIndex, EnumSet<QueryOption> options,
             int resultLimit, IndexSearcher s, ServiceDocumentQueryResult rsp, ScoreDoc[] hits,
-            long queryStartTimeMicros) throws Throwable {
+            long queryStartTimeMicros, LuceneQueryBudget budget) throws Throwable {
 
         ScoreDoc lastDocVisited = null;
         Set<String> fieldsToLoad = this.fieldsToLoadNoExpand;
@@ -1075,6 +1220,10 @@ public class LuceneDocumentIndexService extends StatelessService {
                 break;
             }
 
+            if (budget != null && budget.checkLimits()) {
+                break;
+            }
+
             lastDocVisited = sd;
             Document d = s.getIndexReader().document(sd.doc, fieldsToLoad);
             String link = d.get(ServiceDocument.FIELD_NAME_SELF_LINK);
@@ -1161,6 +1310,11 @@ public class LuceneDocumentIndexService extends StatelessService {
                 }
             }
             uniques.add(link);
+
+            if (budget != null
+                    && budget.onResult(json != null ? json.length() : link.length())) {
+                break;
+            }
         }
 
         if (hasCountOption) {
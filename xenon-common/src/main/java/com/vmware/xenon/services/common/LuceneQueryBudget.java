@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.FilterLeafCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryRuntimeContext;
+
+/**
+ * Enforces the resource limits of a query specification, and its cancellation, while the
+ * document index executes the query. Limits are checked while the searcher collects hits and
+ * while the hits are processed into results. Once a limit is exceeded the budget stays
+ * exhausted, and the index returns the results collected so far as partial results.
+ *
+ * A budget instance is used by a single query thread and is not thread safe
+ */
+class LuceneQueryBudget {
+
+    /**
+     * Number of collected hits between checks of the clock and the cancellation flag
+     */
+    private static final int CHECK_INTERVAL = 256;
+
+    /**
+     * Thrown from the collector to stop a search. It carries no stack trace since it is
+     * used for control flow only
+     */
+    private static class BudgetExhaustedException extends RuntimeException {
+        private static final long serialVersionUID = 0L;
+
+        BudgetExhaustedException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final QuerySpecification spec;
+    private final QueryRuntimeContext context;
+    private final long deadlineNanos;
+    private long scannedCount;
+    private long resultSizeBytes;
+    private boolean isExhausted;
+
+    private LuceneQueryBudget(QuerySpecification spec) {
+        this.spec = spec;
+        this.context = spec.context;
+        if (spec.maxQueryTimeMicros != null) {
+            this.deadlineNanos = System.nanoTime()
+                    + TimeUnit.MICROSECONDS.toNanos(spec.maxQueryTimeMicros);
+        } else {
+            this.deadlineNanos = 0;
+        }
+    }
+
+    /**
+     * Creates a budget for the query specification. A budget is always created, even with no
+     * limits set, so the query can be cancelled
+     */
+    static LuceneQueryBudget create(QuerySpecification spec) {
+        if (spec == null) {
+            return null;
+        }
+        return new LuceneQueryBudget(spec);
+    }
+
+    /**
+     * Copies the limits to the specification of the next page of a paginated query. Each page
+     * gets its own budget
+     */
+    void copyLimitsTo(QuerySpecification pageSpec) {
+        pageSpec.maxScannedDocumentCount = this.spec.maxScannedDocumentCount;
+        pageSpec.maxQueryTimeMicros = this.spec.maxQueryTimeMicros;
+        pageSpec.maxResultSizeBytes = this.spec.maxResultSizeBytes;
+    }
+
+    boolean isExhausted() {
+        return this.isExhausted;
+    }
+
+    long getScannedCount() {
+        return this.scannedCount;
+    }
+
+    /**
+     * Searches the index, collecting up to {@code count} hits after the given hit. If the budget
+     * is exhausted during the search, the hits collected so far are returned
+     */
+    TopDocs searchAfter(IndexSearcher s, ScoreDoc after, Query tq, int count, Sort sort)
+            throws IOException {
+        // same bounds IndexSearcher.searchAfter applies, so we do not allocate a priority
+        // queue sized for Integer.MAX_VALUE hits
+        int numHits = Math.min(count, Math.max(1, s.getIndexReader().maxDoc()));
+        TopDocsCollector<?> collector;
+        if (sort == null) {
+            collector = TopScoreDocCollector.create(numHits, after);
+        } else {
+            collector = TopFieldCollector.create(sort.rewrite(s), numHits, (FieldDoc) after,
+                    true, false, false);
+        }
+
+        if (checkLimits()) {
+            return collector.topDocs();
+        }
+
+        try {
+            s.search(tq, new FilterCollector(collector) {
+                @Override
+                public LeafCollector getLeafCollector(LeafReaderContext context)
+                        throws IOException {
+                    return new FilterLeafCollector(super.getLeafCollector(context)) {
+                        @Override
+                        public void collect(int doc) throws IOException {
+                            onCollect();
+                            super.collect(doc);
+                        }
+                    };
+                }
+            });
+        } catch (BudgetExhaustedException e) {
+            // fall through, return what was collected before the budget ran out
+        }
+        return collector.topDocs();
+    }
+
+    /**
+     * Accounts for a result added to the response. Returns true if the budget is exhausted
+     * and result processing should stop
+     */
+    boolean onResult(int sizeBytes) {
+        this.resultSizeBytes += sizeBytes;
+        if (this.spec.maxResultSizeBytes != null
+                && this.resultSizeBytes > this.spec.maxResultSizeBytes) {
+            this.isExhausted = true;
+        }
+        return this.isExhausted;
+    }
+
+    /**
+     * Checks the time limit and the cancellation flag. Returns true if the budget is exhausted
+     */
+    boolean checkLimits() {
+        if (this.isExhausted) {
+            return true;
+        }
+        if (this.context.isCancelled) {
+            this.isExhausted = true;
+        } else if (this.deadlineNanos != 0 && System.nanoTime() - this.deadlineNanos > 0) {
+            this.isExhausted = true;
+        }
+        return this.isExhausted;
+    }
+
+    private void onCollect() {
+        this.scannedCount++;
+        if (this.spec.maxScannedDocumentCount != null
+                && this.scannedCount > this.spec.maxScannedDocumentCount) {
+            this.isExhausted = true;
+            throw new BudgetExhaustedException();
+        }
+        if (this.scannedCount % CHECK_INTERVAL == 0 && checkLimits()) {
+            throw new BudgetExhaustedException();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.ObjLongConsumer;
+
+import com.vmware.xenon.common.Utils;
+
+/**
+ * Schedules read requests (document lookups and queries) on the document index query threads.
+ *
+ * Requests are classified, see {@link RequestClass}. Point lookups, issued by the host when it
+ * loads service state, always run first. The remaining classes share the threads using
+ * weighted round robin, and inside a class, requests are served round robin per principal, so
+ * one principal issuing many queries can not starve everybody else. Point lookups always have
+ * at least one thread available: the other classes never occupy more than
+ * {@code threadCount - 1} threads at a time.
+ *
+ * Each submitted request enqueues one dispatch task on the executor. A dispatch task runs the
+ * highest priority request that is admitted, not necessarily the one that was submitted with
+ * it, so the executor queue only hands out threads and the ordering is decided here
+ */
+class LuceneQueryScheduler {
+
+    enum RequestClass {
+        /**
+         * GET of a single document, by self link. Issued by the host when it loads service state
+         */
+        POINT_LOOKUP(0),
+
+        /**
+         * GET of all documents with a self link prefix, issued by factory GETs
+         */
+        FACTORY_LISTING(2),
+
+        /**
+         * Query task, issued by a client through a query task service or an OData query
+         */
+        QUERY(2),
+
+        /**
+         * Query task issued by the system user, for example during synchronization or migration
+         */
+        MAINTENANCE(1);
+
+        final int weight;
+
+        RequestClass(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Request {
+        final RequestClass requestClass;
+        final Runnable task;
+        final long enqueueTimeMicros;
+
+        Request(RequestClass requestClass, Runnable task) {
+            this.requestClass = requestClass;
+            this.task = task;
+            this.enqueueTimeMicros = Utils.getNowMicrosUtc();
+        }
+    }
+
+    private static final RequestClass[] WEIGHTED_CLASSES = {
+            RequestClass.FACTORY_LISTING, RequestClass.QUERY, RequestClass.MAINTENANCE };
+
+    private final ExecutorService executor;
+    private final int maxActiveWeightedRequests;
+    private final int maxQueuedRequestsPerPrincipal;
+    private final ObjLongConsumer<RequestClass> queueWaitRecorder;
+
+    private final ArrayDeque<Request> pointLookups = new ArrayDeque<>();
+    private final Map<RequestClass, LinkedHashMap<String, ArrayDeque<Request>>> queues =
+            new EnumMap<>(RequestClass.class);
+    private final Map<RequestClass, Integer> credits = new EnumMap<>(RequestClass.class);
+    private int nextClassIndex;
+    private int activeWeightedRequests;
+    private int queuedWeightedRequests;
+
+    /**
+     * @param executor executor with {@code threadCount} threads, used to run the requests
+     * @param threadCount number of executor threads
+     * @param maxQueuedRequestsPerPrincipal admission limit on the number of queries a single
+     *        principal can have queued, in the {@link RequestClass#QUERY} class
+     * @param queueWaitRecorder invoked with the time, in microseconds, each request waited
+     */
+    LuceneQueryScheduler(ExecutorService executor, int threadCount,
+            int maxQueuedRequestsPerPrincipal, ObjLongConsumer<RequestClass> queueWaitRecorder) {
+        this.executor = executor;
+        this.maxActiveWeightedRequests = Math.max(1, threadCount - 1);
+        this.maxQueuedRequestsPerPrincipal = maxQueuedRequestsPerPrincipal;
+        this.queueWaitRecorder = queueWaitRecorder;
+        for (RequestClass c : WEIGHTED_CLASSES) {
+            this.queues.put(c, new LinkedHashMap<>());
+            this.credits.put(c, c.weight);
+        }
+    }
+
+    /**
+     * Queues the task for execution. Returns false, without queuing the task, if the principal
+     * exceeded its admission limit
+     */
+    boolean submit(RequestClass requestClass, String principal, Runnable task) {
+        Request r = new Request(requestClass, task);
+        synchronized (this) {
+            if (requestClass == RequestClass.POINT_LOOKUP) {
+                this.pointLookups.add(r);
+            } else {
+                Map<String, ArrayDeque<Request>> byPrincipal = this.queues.get(requestClass);
+                ArrayDeque<Request> q = byPrincipal.get(principal);
+                if (q == null) {
+                    q = new ArrayDeque<>();
+                    byPrincipal.put(principal, q);
+                } else if (requestClass == RequestClass.QUERY
+                        && q.size() >= this.maxQueuedRequestsPerPrincipal) {
+                    return false;
+                }
+                q.add(r);
+                this.queuedWeightedRequests++;
+            }
+        }
+        this.executor.execute(this::runNext);
+        return true;
+    }
+
+    private void runNext() {
+        Request r;
+        synchronized (this) {
+            r = poll();
+            if (r == null) {
+                // nothing admitted right now, a completing request will dispatch again
+                return;
+            }
+            if (r.requestClass != RequestClass.POINT_LOOKUP) {
+                this.activeWeightedRequests++;
+            }
+        }
+
+        try {
+            this.queueWaitRecorder.accept(r.requestClass,
+                    Utils.getNowMicrosUtc() - r.enqueueTimeMicros);
+            r.task.run();
+        } finally {
+            if (r.requestClass != RequestClass.POINT_LOOKUP) {
+                boolean hasQueued;
+                synchronized (this) {
+                    this.activeWeightedRequests--;
+                    hasQueued = this.queuedWeightedRequests > 0;
+                }
+                if (hasQueued && !this.executor.isShutdown()) {
+                    this.executor.execute(this::runNext);
+                }
+            }
+        }
+    }
+
+    private Request poll() {
+        Request r = this.pointLookups.poll();
+        if (r != null) {
+            return r;
+        }
+
+        if (this.queuedWeightedRequests == 0
+                || this.activeWeightedRequests >= this.maxActiveWeightedRequests) {
+            return null;
+        }
+
+        // weighted round robin across classes: a class is served while it has credits, and
+        // credits are replenished once every class with queued requests has used its own
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < WEIGHTED_CLASSES.length; i++) {
+                RequestClass c = WEIGHTED_CLASSES[this.nextClassIndex];
+                LinkedHashMap<String, ArrayDeque<Request>> byPrincipal = this.queues.get(c);
+                int credit = this.credits.get(c);
+                if (byPrincipal.isEmpty() || credit == 0) {
+                    this.nextClassIndex = (this.nextClassIndex + 1) % WEIGHTED_CLASSES.length;
+                    continue;
+                }
+                this.credits.put(c, credit - 1);
+                if (credit == 1) {
+                    this.nextClassIndex = (this.nextClassIndex + 1) % WEIGHTED_CLASSES.length;
+                }
+                this.queuedWeightedRequests--;
+                return pollRoundRobin(byPrincipal);
+            }
+            for (RequestClass c : WEIGHTED_CLASSES) {
+                this.credits.put(c, c.weight);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the head request of the first principal, and moves the principal to the end of the
+     * iteration order, so principals take turns
+     */
+    private static Request pollRoundRobin(LinkedHashMap<String, ArrayDeque<Request>> byPrincipal) {
+        Iterator<Map.Entry<String, ArrayDeque<Request>>> it = byPrincipal.entrySet().iterator();
+        Map.Entry<String, ArrayDeque<Request>> first = it.next();
+        String principal = first.getKey();
+        ArrayDeque<Request> q = first.getValue();
+        Request r = q.poll();
+        it.remove();
+        if (!q.isEmpty()) {
+            byPrincipal.put(principal, q);
+        }
+        return r;
+    }
+}
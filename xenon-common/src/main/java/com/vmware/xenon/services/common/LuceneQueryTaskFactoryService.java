@@ -18,10 +18,18 @@ import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.TaskState.TaskStage;
 import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
 
 public class LuceneQueryTaskFactoryService extends FactoryService {
     public static final String SELF_LINK = ServiceUriPaths.CORE_QUERY_TASKS;
 
+    /**
+     * Page size used for direct queries whose results are streamed to the client as newline
+     * delimited JSON, when the client did not specify a result limit
+     */
+    public static final int DEFAULT_STREAMING_RESULT_LIMIT = 1000;
+
     public LuceneQueryTaskFactoryService() {
         super(QueryTask.class);
     }
@@ -38,6 +46,12 @@ public class LuceneQueryTaskFactoryService extends FactoryService {
         if (initState.taskInfo.isDirect) {
             // do not replicate direct queries, they auto expire immediately
             post.setReplicationDisabled(true);
+            if (isStreamingRequested(post, initState)) {
+                // paginate the query so results are retrieved from the index one page at
+                // a time, as the HTTP listener writes them to the client
+                initState.querySpec.resultLimit = DEFAULT_STREAMING_RESULT_LIMIT;
+                post.setBody(initState);
+            }
         }
 
         // check if this is a clone request
@@ -90,6 +104,23 @@ public class LuceneQueryTaskFactoryService extends FactoryService {
                         }));
     }
 
+    private boolean isStreamingRequested(Operation post, QueryTask initState) {
+        String accept = post.getRequestHeader(Operation.ACCEPT_HEADER);
+        if (accept == null || !accept.contains(Operation.MEDIA_TYPE_APPLICATION_X_NDJSON)) {
+            return false;
+        }
+        QuerySpecification spec = initState.querySpec;
+        if (spec == null || spec.resultLimit != null) {
+            return false;
+        }
+        if (spec.options == null) {
+            return true;
+        }
+        return !spec.options.contains(QueryOption.COUNT)
+                && !spec.options.contains(QueryOption.TOP_RESULTS)
+                && !spec.options.contains(QueryOption.BROADCAST);
+    }
+
     @Override
     public Service createServiceInstance() throws Throwable {
         return new LuceneQueryTaskService();
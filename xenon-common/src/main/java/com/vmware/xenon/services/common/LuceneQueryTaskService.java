@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
@@ -38,12 +39,18 @@ import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryRuntimeContext;
 import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
 
 public class LuceneQueryTaskService extends StatefulService {
     private static final long DEFAULT_EXPIRATION_SECONDS = 600;
     private ServiceDocumentQueryResult results;
 
+    /**
+     * Runtime context of the query the index is currently processing for this task, if any
+     */
+    private volatile QueryRuntimeContext activeQueryContext;
+
     public LuceneQueryTaskService() {
         super(QueryTask.class);
         super.toggleOption(ServiceOption.REPLICATION, true);
@@ -269,6 +276,7 @@ public class LuceneQueryTaskService extends StatefulService {
         currentState.results.documentCount = r.documentCount;
         currentState.results.nextPageLink = r.nextPageLink;
         currentState.results.prevPageLink = r.prevPageLink;
+        currentState.results.isPartial = r.isPartial;
 
         if (r.documentLinks != null) {
             currentState.results.documentLinks = new ArrayList<>(r.documentLinks);
@@ -316,6 +324,18 @@ public class LuceneQueryTaskService extends StatefulService {
             }
         }
 
+        if (newTaskState.stage == TaskStage.CANCELLED
+                && state.taskInfo.stage == TaskStage.STARTED) {
+            QueryRuntimeContext ctx = this.activeQueryContext;
+            if (ctx != null) {
+                // the index is still processing the query. Stop it, the query completion will
+                // move the task to CANCELLED and publish the results collected so far
+                ctx.isCancelled = true;
+                patch.setStatusCode(Operation.STATUS_CODE_ACCEPTED).complete();
+                return;
+            }
+        }
+
         if (newTaskState.stage.ordinal() <= state.taskInfo.stage.ordinal()) {
             patch.fail(new IllegalArgumentException(
                     "new stage must be greater than current"));
@@ -385,6 +405,7 @@ public class LuceneQueryTaskService extends StatefulService {
                     LuceneQueryConverter.convertToLuceneQuery(task.querySpec.query);
 
             task.querySpec.context.nativeQuery = q;
+            this.activeQueryContext = task.querySpec.context;
 
             org.apache.lucene.search.Sort sort = null;
             if (task.querySpec.options != null
@@ -475,6 +496,7 @@ public class LuceneQueryTaskService extends StatefulService {
         // need a chance to GET the FAILED state.
         long exp = task.documentExpirationTimeMicros - getHost().getMaintenanceIntervalMicros();
         if (exp < Utils.getNowMicrosUtc()) {
+            this.activeQueryContext = null;
             failTask(new TimeoutException(), directOp, (o, e) -> {
                 scheduleTaskExpiration(task);
             });
@@ -495,20 +517,31 @@ public class LuceneQueryTaskService extends StatefulService {
             task.querySpec.context.nativeQuery = null;
 
             if (e != null) {
+                this.activeQueryContext = null;
                 failTask(e, directOp, null);
                 return;
             }
 
-            if (handleQueryRetry(task, directOp)) {
+            boolean isCancelled = task.querySpec.context.isCancelled;
+            if (!isCancelled && handleQueryRetry(task, directOp)) {
+                // the context stays active until the retry, so the task can still be cancelled
                 scheduleExpiration = false;
                 return;
             }
+            this.activeQueryContext = null;
 
             if (task.querySpec.options.contains(QueryOption.CONTINUOUS)) {
                 // A continuous query does not cache results: since it receive updates
                 // at any time, a GET on the query will cause the query to be re-computed. This is
                 // costly, so it should be avoided.
                 task.taskInfo.stage = TaskStage.STARTED;
+            } else if (isCancelled) {
+                // publish the partial results collected before the query was cancelled
+                this.results = task.results;
+                task.taskInfo.stage = TaskStage.CANCELLED;
+                task.taskInfo.failure = Utils.toServiceErrorResponse(
+                        new CancellationException("query cancelled"));
+                task.taskInfo.durationMicros = task.results.queryTimeMicros;
             } else {
                 this.results = task.results;
                 task.taskInfo.stage = TaskStage.FINISHED;
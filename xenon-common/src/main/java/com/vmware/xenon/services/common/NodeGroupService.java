@@ -15,14 +15,18 @@ package com.vmware.xenon.services.common;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
@@ -63,6 +67,25 @@ public class NodeGroupService extends StatefulService {
         public boolean isConverged;
     }
 
+    /**
+     * Asks a node to probe a peer, on behalf of a node whose gossip request to the peer failed.
+     * The peer must be a member of the group. Without a peer reference, the request is the
+     * probe itself
+     */
+    public static class ProbePeerRequest {
+        public static final String KIND = Utils.buildKind(ProbePeerRequest.class);
+
+        public static ProbePeerRequest create(URI peerGroupReference) {
+            ProbePeerRequest r = new ProbePeerRequest();
+            r.peerGroupReference = peerGroupReference;
+            r.kind = KIND;
+            return r;
+        }
+
+        public URI peerGroupReference;
+        public String kind;
+    }
+
     public static class JoinPeerRequest {
         public static final String KIND = Utils.buildKind(JoinPeerRequest.class);
 
@@ -127,18 +150,58 @@ public class NodeGroupService extends StatefulService {
          * Timeout for gossip requests to peers, in microseconds
          */
         public long peerRequestTimeoutMicros = TimeUnit.SECONDS.toMicros(10);
+
+        /**
+         * Number of consecutive gossip requests to a peer that carry only the node entries
+         * newer than the versions the peer last reported, before a request with all entries is
+         * sent. Zero disables delta gossip
+         */
+        public long deltaGossipCount = 10;
+
+        /**
+         * Number of peers asked to probe a peer that failed a gossip request, before the peer
+         * is marked unavailable. Zero disables indirect probing
+         */
+        public long indirectProbeCount = 3;
     }
 
     public static class NodeGroupState extends ServiceDocument {
         public NodeGroupConfig config;
         public Map<String, NodeState> nodes = new ConcurrentSkipListMap<>();
         public long membershipUpdateTimeMicros;
+
+        /**
+         * Versions of all node entries known to the sender of a delta gossip request or
+         * response. Entries not in {@link #nodes} are not newer than the receiver's
+         */
+        public Map<String, Long> nodeVersions;
+    }
+
+    /**
+     * Node versions a peer reported in its last gossip response, and the number of delta
+     * gossip requests sent to it since the last request with all entries
+     */
+    private static class PeerGossipState {
+        final Map<String, Long> nodeVersions;
+        final long deltaCount;
+
+        PeerGossipState(Map<String, Long> nodeVersions, long deltaCount) {
+            this.nodeVersions = nodeVersions;
+            this.deltaCount = deltaCount;
+        }
     }
 
     public static final int MIN_PEER_GOSSIP_COUNT = 10;
 
     public static final String STAT_NAME_RESTARTING_SERVICES_COUNT = "restartingServicesCount";
     public static final String STAT_NAME_RESTARTING_SERVICES_FAILURE_COUNT = "restartingServicesFailureCount";
+    public static final String STAT_NAME_GOSSIP_REQUEST_COUNT = "gossipRequestCount";
+    public static final String STAT_NAME_GOSSIP_DELTA_REQUEST_COUNT = "gossipDeltaRequestCount";
+    public static final String STAT_NAME_GOSSIP_NODE_ENTRY_COUNT = "gossipNodeEntryCount";
+    public static final String STAT_NAME_INDIRECT_PROBE_COUNT = "indirectProbeCount";
+    public static final String STAT_NAME_INDIRECT_PROBE_SUCCESS_COUNT = "indirectProbeSuccessCount";
+
+    private final Map<String, PeerGossipState> peerGossipStates = new ConcurrentHashMap<>();
 
     public NodeGroupService() {
         super(NodeGroupState.class);
@@ -220,7 +283,13 @@ public class NodeGroupService extends StatefulService {
         NodeState localNodeState = localState.nodes.get(getHost().getId());
         localNodeState.groupReference = UriUtils.buildPublicUri(getHost(), getSelfLink());
 
-        patch.setBody(localState).complete();
+        if (body.nodeVersions != null && changes.isEmpty()) {
+            // the peer only needs the entries newer than its own. Membership changes are
+            // answered with all entries, since the body is also sent to subscribers
+            patch.setBody(buildDeltaState(localState, body.nodeVersions)).complete();
+        } else {
+            patch.setBody(localState).complete();
+        }
 
         if (!isAvailable()) {
             boolean isAvailable = NodeGroupUtils.isNodeGroupAvailable(getHost(), localState);
@@ -331,6 +400,12 @@ public class NodeGroupService extends StatefulService {
             return;
         }
 
+        ProbePeerRequest pr = post.getBody(ProbePeerRequest.class);
+        if (ProbePeerRequest.KIND.equals(pr.kind)) {
+            handleProbePeerPost(post, localState, pr);
+            return;
+        }
+
         JoinPeerRequest joinBody = post.getBody(JoinPeerRequest.class);
         if (joinBody != null && joinBody.memberGroupReference != null) {
             // set a short join operation timeout so that join retries will occur in any environment
@@ -371,6 +446,44 @@ public class NodeGroupService extends StatefulService {
         post.setBody(rsp).complete();
     }
 
+    private void handleProbePeerPost(Operation post, NodeGroupState localState,
+            ProbePeerRequest body) {
+        if (body.peerGroupReference == null) {
+            post.complete();
+            return;
+        }
+
+        // only probe members, so the node group can not be used to send requests elsewhere
+        boolean isMember = false;
+        for (NodeState n : localState.nodes.values()) {
+            if (body.peerGroupReference.equals(n.groupReference)) {
+                isMember = true;
+                break;
+            }
+        }
+        if (!isMember) {
+            post.setStatusCode(Operation.STATUS_CODE_BAD_REQUEST).fail(
+                    new IllegalArgumentException("peerGroupReference is not a group member: "
+                            + body.peerGroupReference));
+            return;
+        }
+
+        Operation probe = Operation.createPost(body.peerGroupReference)
+                .setBody(ProbePeerRequest.create(null))
+                .setRetryCount(0)
+                .setExpiration(Utils.getNowMicrosUtc()
+                        + localState.config.peerRequestTimeoutMicros / 2)
+                .forceRemote()
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        post.fail(e);
+                        return;
+                    }
+                    post.complete();
+                });
+        sendRequest(probe);
+    }
+
     private void handleJoinPost(JoinPeerRequest joinBody,
             Operation joinOp,
             long expirationMicros,
@@ -521,6 +634,9 @@ public class NodeGroupService extends StatefulService {
             int quorum = (total / 2) + 1;
             body.membershipQuorum = Math.max(1, quorum);
         }
+        if (!Boolean.getBoolean(NodeState.PROPERTY_NAME_DISABLE_BINARY_WIRE_FORMAT)) {
+            body.binaryWireFormat = NodeState.BINARY_WIRE_FORMAT_KRYO;
+        }
         body.groupReference = UriUtils.buildPublicUri(getHost(), getSelfLink());
         body.documentSelfLink = UriUtils.buildUriPath(getSelfLink(), body.id);
         body.documentKind = Utils.buildKind(NodeState.class);
@@ -616,12 +732,28 @@ public class NodeGroupService extends StatefulService {
             // peer AVAILABLE. We just update peer node, we don't currently merge their state
             // 2b) if the PATCH failed, we mark the PEER it UNAVAILABLE
 
-            CompletionHandler ch = (o, e) -> handleGossipPatchCompletion(maint, o, e, localState,
-                    patchBody,
-                    remaining, remotePeer);
+            CompletionHandler ch = (o, e) -> {
+                if (e != null && localState.config.indirectProbeCount > 0
+                        && remotePeer.status != NodeStatus.UNAVAILABLE) {
+                    // confirm the failure through other peers before marking the peer
+                    // unavailable, so a slow or partitioned link does not remove a live node
+                    probePeerIndirectly(localState, remotePeer, (isAlive) -> {
+                        if (isAlive) {
+                            handleGossipPatchCompletion(maint, null, null, localState,
+                                    patchBody, remaining, remotePeer);
+                        } else {
+                            handleGossipPatchCompletion(maint, o, e, localState, patchBody,
+                                    remaining, remotePeer);
+                        }
+                    });
+                    return;
+                }
+                handleGossipPatchCompletion(maint, o, e, localState, patchBody, remaining,
+                        remotePeer);
+            };
             Operation patch = Operation
                     .createPatch(peerUri)
-                    .setBody(localState)
+                    .setBody(buildGossipBody(localState, remotePeer))
                     .setRetryCount(0)
                     .setExpiration(
                             Utils.getNowMicrosUtc() + localState.config.peerRequestTimeoutMicros)
@@ -651,6 +783,100 @@ public class NodeGroupService extends StatefulService {
         }
     }
 
+    /**
+     * Returns the state to send to the peer. Delta gossip sends the entries newer than the
+     * versions the peer reported in its last response, and all entries periodically, so
+     * entries that changed without a version change also converge
+     */
+    private NodeGroupState buildGossipBody(NodeGroupState localState, NodeState peer) {
+        NodeGroupState body = localState;
+        long deltaGossipCount = localState.config.deltaGossipCount;
+        PeerGossipState peerGossipState = this.peerGossipStates.get(peer.id);
+        if (deltaGossipCount > 0 && peerGossipState != null
+                && peerGossipState.deltaCount < deltaGossipCount) {
+            body = buildDeltaState(localState, peerGossipState.nodeVersions);
+            this.peerGossipStates.put(peer.id, new PeerGossipState(
+                    peerGossipState.nodeVersions, peerGossipState.deltaCount + 1));
+            adjustStat(STAT_NAME_GOSSIP_DELTA_REQUEST_COUNT, 1);
+        } else if (deltaGossipCount > 0) {
+            // ask for a delta response, the peer reports its versions either way
+            body = buildDeltaState(localState, Collections.emptyMap());
+            this.peerGossipStates.remove(peer.id);
+        }
+        adjustStat(STAT_NAME_GOSSIP_REQUEST_COUNT, 1);
+        adjustStat(STAT_NAME_GOSSIP_NODE_ENTRY_COUNT, body.nodes.size());
+        return body;
+    }
+
+    /**
+     * Builds a state with the local node entry, the entries with a version higher than the
+     * supplied versions, and the versions of all local entries
+     */
+    private NodeGroupState buildDeltaState(NodeGroupState localState,
+            Map<String, Long> peerNodeVersions) {
+        NodeGroupState delta = new NodeGroupState();
+        delta.documentOwner = getHost().getId();
+        delta.documentUpdateTimeMicros = localState.documentUpdateTimeMicros;
+        delta.membershipUpdateTimeMicros = localState.membershipUpdateTimeMicros;
+        delta.nodeVersions = new HashMap<>();
+        for (NodeState n : localState.nodes.values()) {
+            delta.nodeVersions.put(n.id, n.documentVersion);
+            Long peerVersion = peerNodeVersions.get(n.id);
+            if (peerVersion == null || peerVersion < n.documentVersion
+                    || n.id.equals(getHost().getId())) {
+                delta.nodes.put(n.id, n);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Asks up to {@link NodeGroupConfig#indirectProbeCount} available peers to probe the
+     * peer. The peer is alive if any of them reaches it
+     */
+    private void probePeerIndirectly(NodeGroupState localState, NodeState peer,
+            Consumer<Boolean> completion) {
+        List<NodeState> helpers = new ArrayList<>();
+        for (NodeState n : shuffleGroupMembers(localState)) {
+            if (helpers.size() >= localState.config.indirectProbeCount) {
+                break;
+            }
+            if (n.id.equals(peer.id) || !NodeState.isAvailable(n, getHost().getId(), true)) {
+                continue;
+            }
+            helpers.add(n);
+        }
+
+        if (helpers.isEmpty()) {
+            completion.accept(false);
+            return;
+        }
+
+        adjustStat(STAT_NAME_INDIRECT_PROBE_COUNT, 1);
+        AtomicInteger pending = new AtomicInteger(helpers.size());
+        AtomicBoolean isAlive = new AtomicBoolean();
+        CompletionHandler c = (o, e) -> {
+            if (e == null && isAlive.compareAndSet(false, true)) {
+                adjustStat(STAT_NAME_INDIRECT_PROBE_SUCCESS_COUNT, 1);
+                completion.accept(true);
+            }
+            if (pending.decrementAndGet() == 0 && !isAlive.get()) {
+                completion.accept(false);
+            }
+        };
+
+        for (NodeState helper : helpers) {
+            Operation probeRequest = Operation.createPost(helper.groupReference)
+                    .setBody(ProbePeerRequest.create(peer.groupReference))
+                    .setRetryCount(0)
+                    .setExpiration(
+                            Utils.getNowMicrosUtc() + localState.config.peerRequestTimeoutMicros)
+                    .forceRemote()
+                    .setCompletion(c);
+            sendRequest(probeRequest);
+        }
+    }
+
     public void handleGossipPatchCompletion(Operation maint, Operation patch, Throwable e,
             NodeGroupState localState, NodeGroupState patchBody, AtomicInteger remaining,
             NodeState remotePeer) {
@@ -670,8 +896,10 @@ public class NodeGroupService extends StatefulService {
                     remotePeer.documentVersion++;
                 }
                 remotePeer.status = NodeStatus.UNAVAILABLE;
+                this.peerGossipStates.remove(remotePeer.id);
             } else {
                 NodeGroupState peerState = getStateFromBody(patch);
+                updatePeerGossipState(remotePeer.id, peerState, patchBody);
                 if (peerState.documentOwner.equals(remotePeer.id)) {
                     NodeState remotePeerStateFromRsp = peerState.nodes.get(remotePeer.id);
                     if (remotePeerStateFromRsp.documentVersion > remotePeer.documentVersion) {
@@ -710,6 +938,36 @@ public class NodeGroupService extends StatefulService {
         }
     }
 
+    /**
+     * Records the node versions of the peer, and queues the entries of a delta response, which
+     * are newer than ours, for the self PATCH
+     */
+    private void updatePeerGossipState(String peerId, NodeGroupState peerState,
+            NodeGroupState patchBody) {
+        if (peerState.nodeVersions == null) {
+            // the peer sent all entries, due to a membership change or because it does not
+            // support delta gossip. The next request to it carries all entries
+            this.peerGossipStates.remove(peerId);
+            return;
+        }
+
+        PeerGossipState current = this.peerGossipStates.get(peerId);
+        this.peerGossipStates.put(peerId, new PeerGossipState(peerState.nodeVersions,
+                current != null ? current.deltaCount : 0));
+
+        for (NodeState n : peerState.nodes.values()) {
+            if (n.id.equals(peerId) || n.id.equals(getHost().getId())) {
+                continue;
+            }
+            synchronized (patchBody) {
+                NodeState queued = patchBody.nodes.get(n.id);
+                if (queued == null || queued.documentVersion < n.documentVersion) {
+                    patchBody.nodes.put(n.id, n);
+                }
+            }
+        }
+    }
+
     /**
      * Merges current node group state with state that came through a PATCH.
      *
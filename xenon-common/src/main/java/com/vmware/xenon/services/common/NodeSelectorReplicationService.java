@@ -14,13 +14,26 @@
 package com.vmware.xenon.services.common;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.vmware.xenon.common.NodeSelectorService;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
 import com.vmware.xenon.common.Operation.CompletionHandler;
 import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceClient;
+import com.vmware.xenon.common.ServiceDocumentDelta;
+import com.vmware.xenon.common.ServiceDocumentDescription;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
@@ -30,8 +43,136 @@ import com.vmware.xenon.services.common.NodeState.NodeOption;
 
 public class NodeSelectorReplicationService extends StatelessService {
 
+    public static final String PROPERTY_NAME_DISABLE_BATCHING = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.disableBatching";
+
+    public static final String PROPERTY_NAME_BATCH_SIZE_LIMIT = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.batchSizeLimit";
+
+    public static final String PROPERTY_NAME_BATCH_LINGER_MICROS = Utils.PROPERTY_NAME_PREFIX
+            + "NodeSelectorReplicationService.batchLingerMicros";
+
+    public static final int DEFAULT_BATCH_SIZE_LIMIT = 64 * 1024;
+
+    public static final long DEFAULT_BATCH_LINGER_MICROS = TimeUnit.MILLISECONDS.toMicros(1);
+
+    /**
+     * Replication requests to a peer, and results of the requests received from it, sent as one
+     * request to the replication service of the peer node selector
+     */
+    public static class ReplicationBatch {
+        public String senderId;
+        public List<ReplicationBatchEntry> entries;
+        public List<ReplicationBatchResult> results;
+    }
+
+    public static class ReplicationBatchEntry {
+        public long id;
+        public String path;
+        public String query;
+        public Action action;
+        public Object body;
+        public String authToken;
+    }
+
+    public static class ReplicationBatchResult {
+        public long id;
+        public int statusCode;
+        public String failureMessage;
+    }
+
+    /**
+     * Replication requests and results queued for a peer, while a batch to the same peer is in
+     * flight
+     */
+    private static class PeerChannel {
+        String peerId;
+        URI batchUri;
+        final Map<Long, Operation> batchedRequests = new ConcurrentHashMap<>();
+        List<Operation> pendingRequests = new ArrayList<>();
+        List<ReplicationBatchResult> pendingResults = new ArrayList<>();
+        int pendingByteCount;
+        int inFlightCount;
+        boolean isFlushScheduled;
+        boolean isBatchingDisabled;
+    }
+
+    /**
+     * Replication latency and lag of a peer, used to select the peers that are updated
+     * synchronously
+     */
+    private static class PeerReplicationState {
+        long latencyMicros;
+
+        /**
+         * Send time of asynchronous updates not yet acknowledged, by update id
+         */
+        final ConcurrentSkipListMap<Long, Long> pendingAsyncUpdates =
+                new ConcurrentSkipListMap<>();
+
+        /**
+         * Time of the first asynchronous update that failed, since the peer last accepted an
+         * update
+         */
+        long failedSinceMicros;
+
+        synchronized void recordLatency(long sampleMicros) {
+            // exponential moving average, weighing the sample by 1/8
+            if (this.latencyMicros == 0) {
+                this.latencyMicros = sampleMicros;
+            } else {
+                this.latencyMicros += (sampleMicros - this.latencyMicros) / 8;
+            }
+            this.failedSinceMicros = 0;
+        }
+
+        synchronized long getLatencyMicros() {
+            return this.latencyMicros;
+        }
+
+        synchronized void setFailed() {
+            if (this.failedSinceMicros == 0) {
+                this.failedSinceMicros = Utils.getNowMicrosUtc();
+            }
+        }
+
+        long getLagMicros(long now) {
+            long oldestMicros = now;
+            Map.Entry<Long, Long> oldest = this.pendingAsyncUpdates.firstEntry();
+            if (oldest != null) {
+                oldestMicros = oldest.getValue();
+            }
+            synchronized (this) {
+                if (this.failedSinceMicros != 0) {
+                    oldestMicros = Math.min(oldestMicros, this.failedSinceMicros);
+                }
+            }
+            return now - oldestMicros;
+        }
+    }
+
+    private static final int BATCH_RESULT_BYTE_COUNT = 32;
+
     private Service parent;
 
+    private final boolean isBatchingEnabled = !Boolean.getBoolean(PROPERTY_NAME_DISABLE_BATCHING);
+
+    private final int batchSizeLimit = Integer.getInteger(PROPERTY_NAME_BATCH_SIZE_LIMIT,
+            DEFAULT_BATCH_SIZE_LIMIT);
+
+    private final long batchLingerMicros = Long.getLong(PROPERTY_NAME_BATCH_LINGER_MICROS,
+            DEFAULT_BATCH_LINGER_MICROS);
+
+    private final Map<String, PeerChannel> peerChannels = new ConcurrentHashMap<>();
+
+    private final AtomicLong batchedRequestId = new AtomicLong();
+
+    private final Map<String, PeerReplicationState> peerStates = new ConcurrentHashMap<>();
+
+    private final AtomicLong asyncUpdateId = new AtomicLong();
+
+    private volatile NodeGroupState nodeGroupState;
+
     public NodeSelectorReplicationService(Service parent) {
         this.parent = parent;
         super.setHost(parent.getHost());
@@ -40,6 +181,117 @@ public class NodeSelectorReplicationService extends StatelessService {
         super.setProcessingStage(ProcessingStage.AVAILABLE);
     }
 
+    /**
+     * Batches are only accepted from peers, which send them with the system context. The
+     * requests in a batch are authorized by each target service, with the token of the entry
+     */
+    @Override
+    public void authorizeRequest(Operation op) {
+        if (getHost().isAuthorizationEnabled()) {
+            AuthorizationContext ctx = op.getAuthorizationContext();
+            if (ctx == null || !ctx.isSystemUser()) {
+                op.fail(Operation.STATUS_CODE_FORBIDDEN);
+                return;
+            }
+        }
+        op.complete();
+    }
+
+    /**
+     * Sets the node group state used to resolve the sender of a batch. Batches from nodes not
+     * in the group are rejected with 503, so the sender sends the requests individually
+     */
+    void setNodeGroupState(NodeGroupState state) {
+        this.nodeGroupState = state;
+    }
+
+    /**
+     * Completes our requests with the results in a replication batch from a peer, and dispatches
+     * the requests in the batch to their target services. The batch completes once the requests
+     * are dispatched. Their results are queued on the channel back to the peer, so a request
+     * waiting on its target service does not hold the results of the others
+     */
+    @Override
+    public void handlePost(Operation post) {
+        if (!post.hasBody()) {
+            post.fail(new IllegalArgumentException("body is required"));
+            return;
+        }
+
+        ReplicationBatch batch = post.getBody(ReplicationBatch.class);
+        if (batch.senderId == null) {
+            post.fail(new IllegalArgumentException("senderId is required"));
+            return;
+        }
+
+        // the channel back to the sender is resolved from the group, never from the body, and
+        // results only complete requests sent to the same peer
+        if (batch.senderId.equals(getHost().getId())) {
+            post.fail(new IllegalArgumentException("sender is not a peer: " + batch.senderId));
+            return;
+        }
+
+        NodeGroupState groupState = this.nodeGroupState;
+        NodeState sender = groupState != null ? groupState.nodes.get(batch.senderId) : null;
+        if (sender == null) {
+            // the sender joined and our group state has not caught up yet
+            post.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE)
+                    .fail(new IllegalStateException("sender is not yet a peer: "
+                            + batch.senderId));
+            return;
+        }
+
+        PeerChannel channel = getPeerChannel(sender);
+        if (batch.results != null) {
+            for (ReplicationBatchResult result : batch.results) {
+                completeBatchedRequest(channel, result);
+            }
+        }
+
+        if (batch.entries == null || batch.entries.isEmpty()) {
+            post.complete();
+            return;
+        }
+
+        // each request gets its own expiration, like requests from the listener: the host keeps
+        // requests waiting for a service to start in a set ordered by expiration
+        for (ReplicationBatchEntry entry : batch.entries) {
+            Object body = entry.body;
+            if (body instanceof byte[]) {
+                byte[] bytes = (byte[]) body;
+                body = Utils.fromDocumentBytes(bytes, 0, bytes.length);
+            }
+
+            Operation op = Operation
+                    .createPost(UriUtils.buildUri(getHost(), entry.path, entry.query))
+                    .setAction(entry.action)
+                    .setBodyNoCloning(body)
+                    .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                    .setExpiration(
+                            Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros())
+                    .transferRefererFrom(post)
+                    .setCompletion((o, e) -> {
+                        ReplicationBatchResult result = new ReplicationBatchResult();
+                        result.id = entry.id;
+                        result.statusCode = o.getStatusCode();
+                        if (e != null) {
+                            result.failureMessage = e.getMessage();
+                        }
+                        enqueue(channel, null, result);
+                    });
+            op.setFromReplication(true).setTargetReplicated(true);
+
+            if (getHost().isAuthorizationEnabled()) {
+                // the request is authorized with its own token, not the token of the batch
+                if (entry.authToken != null) {
+                    op.addRequestHeader(Operation.REQUEST_AUTH_TOKEN_HEADER, entry.authToken);
+                }
+                setAuthorizationContext(op, null);
+            }
+            getHost().handleRequest(op);
+        }
+        post.complete();
+    }
 
     /**
      * Issues updates to peer nodes, after a local update has been accepted. If the service support
@@ -105,10 +357,42 @@ public class NodeSelectorReplicationService extends StatelessService {
             }
         }
 
+        ServiceDocumentDescription desc = req.linkedStateDescription;
+        if (rplQuorumValue == null && desc != null && desc.replicationSyncPeerCount != null) {
+            int syncPeerCount = desc.replicationSyncPeerCount;
+            if (req.serviceOptions.contains(ServiceOption.OWNER_SELECTION)) {
+                // the membership quorum is the lower bound, it includes this node
+                syncPeerCount = Math.max(syncPeerCount, successThreshold - 1);
+            }
+            replicateWithSyncPeers(selfNode, outboundOp, req, rsp, syncPeerCount,
+                    desc.replicationMaxLagMicros);
+            return;
+        }
+
         final int successThresholdFinal = successThreshold;
         final int failureThresholdFinal = failureThreshold;
 
+        String path = outboundOp.getUri().getPath();
+        String query = outboundOp.getUri().getQuery();
+        boolean isDelta = req.linkedStateDelta != null;
+
+        // full state for peers that can not apply the delta, serialized with the delta since
+        // the state can change once the update completes
+        Object[] fullStateBody = new Object[1];
+        CompletionHandler[] fullStateCompletion = new CompletionHandler[1];
         CompletionHandler c = (o, e) -> {
+            if (isDelta && e != null && o != null
+                    && o.getStatusCode() == Operation.STATUS_CODE_PRECONDITION_FAILED) {
+                // the peer does not have the base version of the delta, send the full state
+                Object body = fullStateBody[0];
+                adjustFullStateBytes(req, body);
+                Operation fullUpdate = createUpdate(selfNode, outboundOp, body,
+                        fullStateCompletion[0])
+                        .setUri(o.getUri());
+                getHost().getClient().send(fullUpdate);
+                return;
+            }
+
             if (e == null && o != null
                     && o.getStatusCode() >= Operation.STATUS_CODE_FAILURE_THRESHOLD) {
                 e = new IllegalStateException("Request failed: " + o.toString());
@@ -154,31 +438,13 @@ public class NodeSelectorReplicationService extends StatelessService {
             }
         };
 
-        String jsonBody = Utils.toJson(req.linkedState);
-        String path = outboundOp.getUri().getPath();
-        String query = outboundOp.getUri().getQuery();
-
-        Operation update = Operation.createPost(null)
-                .setAction(outboundOp.getAction())
-                .setBodyNoCloning(jsonBody)
-                .setCompletion(c)
-                .setRetryCount(1)
-                .setExpiration(outboundOp.getExpirationMicrosUtc())
-                .transferRefererFrom(outboundOp);
+        fullStateCompletion[0] = c;
 
-        update.setFromReplication(true);
-        update.setConnectionSharing(true);
-
-        // Only use replication tag on HTTP + HTTP/2. On HTTPS, we want to use the default HTTP1.1
-        // connection tag, which allows for a lot more concurrent connections. This will change
-        // once we have TLS/APLN support for HTTP/2
-        if (selfNode.groupReference.getScheme().equals(UriUtils.HTTP_SCHEME)) {
-            update.setConnectionTag(ServiceClient.CONNECTION_TAG_REPLICATION);
-        }
-
-        if (update.getCookies() != null) {
-            update.getCookies().clear();
-        }
+        // The update is built once per wire format, when first needed. Peers that accept the
+        // binary wire format of this node receive the delta, if any, or the Kryo serialized
+        // state. All other peers receive JSON
+        Operation jsonUpdate = null;
+        Operation binaryUpdate = null;
 
         ServiceClient cl = getHost().getClient();
         String selfId = getHost().getId();
@@ -195,6 +461,30 @@ public class NodeSelectorReplicationService extends StatelessService {
                 continue;
             }
 
+            boolean isBinaryPeer = NodeState.isBinaryWireFormatCompatible(selfNode, m);
+            Operation update;
+            if (!isBinaryPeer) {
+                if (jsonUpdate == null) {
+                    jsonUpdate = createUpdate(selfNode, outboundOp,
+                            getHost().serializeForPeer(req.linkedState, false), c);
+                }
+                update = jsonUpdate;
+            } else if (isDelta) {
+                if (binaryUpdate == null) {
+                    fullStateBody[0] = getHost().serializeForPeer(req.linkedState, true);
+                    // a peer missing the base version fails right away, so do not retry
+                    binaryUpdate = createUpdate(selfNode, outboundOp, req.linkedStateDelta, c)
+                            .setRetryCount(0);
+                }
+                update = binaryUpdate;
+            } else {
+                if (binaryUpdate == null) {
+                    binaryUpdate = createUpdate(selfNode, outboundOp,
+                            getHost().serializeForPeer(req.linkedState, true), c);
+                }
+                update = binaryUpdate;
+            }
+
             try {
                 URI remoteHost = m.groupReference;
                 URI remotePeerService = new URI(remoteHost.getScheme(),
@@ -210,10 +500,531 @@ public class NodeSelectorReplicationService extends StatelessService {
                 continue;
             }
 
+            if (this.isBatchingEnabled && isBinaryPeer
+                    && !(update.getBodyRaw() instanceof String)) {
+                sendBatched(m, update.clone());
+                continue;
+            }
+
             cl.send(update);
         }
     }
 
+    /**
+     * Replicates the update to the peers with a synchronous peer count. Peers whose replication
+     * lag exceeds the limit are updated synchronously first, followed by the peers with the
+     * lowest replication latency. A synchronous peer that fails is replaced by the next peer in
+     * that order. The update completes once the synchronous peer count has accepted it, and the
+     * remaining peers are then updated in the background
+     */
+    private void replicateWithSyncPeers(NodeState selfNode, Operation outboundOp,
+            SelectAndForwardRequest req, SelectOwnerResponse rsp, int syncPeerCount,
+            long maxLagMicros) {
+        String selfId = getHost().getId();
+        long now = Utils.getNowMicrosUtc();
+        List<NodeState> peers = new ArrayList<>(rsp.selectedNodes.size());
+        Map<String, Boolean> isLaggingByPeer = new HashMap<>();
+        Map<String, Long> latencyByPeer = new HashMap<>();
+        for (NodeState m : rsp.selectedNodes) {
+            if (m.id.equals(selfId) || m.options.contains(NodeOption.OBSERVER)
+                    || NodeState.isUnAvailable(m)) {
+                continue;
+            }
+            PeerReplicationState peerState = getPeerState(m.id);
+            peers.add(m);
+            isLaggingByPeer.put(m.id, peerState.getLagMicros(now) > maxLagMicros);
+            latencyByPeer.put(m.id, peerState.getLatencyMicros());
+        }
+
+        if (peers.size() < syncPeerCount) {
+            String error = String.format(
+                    "%s to %s failed. Available peers: %d, synchronous peer count: %d",
+                    outboundOp.getAction(), outboundOp.getUri().getPath(), peers.size(),
+                    syncPeerCount);
+            logWarning("%s", error);
+            outboundOp.fail(new IllegalStateException(error));
+            return;
+        }
+
+        int syncCount = orderPeersForSyncReplication(peers, isLaggingByPeer, latencyByPeer,
+                syncPeerCount);
+
+        // serialize for all peers now, the state can change once the update completes
+        Object[] bodies = new Object[2];
+        List<Operation> updates = new ArrayList<>(peers.size());
+        for (NodeState m : peers) {
+            updates.add(createPeerUpdate(selfNode, m, outboundOp, req, bodies));
+        }
+
+        Object fullStateBody = bodies[1];
+
+        if (syncCount == 0) {
+            outboundOp.complete();
+            replicateAsync(selfNode, req, fullStateBody, peers, updates, 0);
+            return;
+        }
+
+        int[] counts = new int[3];
+        counts[2] = syncCount;
+        CompletionHandler[] syncCompletion = new CompletionHandler[1];
+        syncCompletion[0] = (o, e) -> {
+            NodeState replacement = null;
+            Operation replacementUpdate = null;
+            boolean isComplete = false;
+            boolean isFailed = false;
+            int asyncStart = 0;
+            synchronized (counts) {
+                if (e == null) {
+                    counts[0]++;
+                    isComplete = counts[0] == syncCount;
+                    asyncStart = counts[2];
+                } else if (counts[2] < peers.size()) {
+                    replacement = peers.get(counts[2]);
+                    replacementUpdate = updates.get(counts[2]);
+                    counts[2]++;
+                } else {
+                    counts[1]++;
+                    isFailed = counts[1] == 1;
+                }
+            }
+
+            if (e != null && o != null) {
+                logWarning("Replication request to %s failed with %d, %s",
+                        o.getUri(), o.getStatusCode(), e.getMessage());
+            }
+
+            if (isComplete) {
+                outboundOp.complete();
+                replicateAsync(selfNode, req, fullStateBody, peers, updates, asyncStart);
+            } else if (replacement != null) {
+                sendToPeer(selfNode, replacement, replacementUpdate, req, fullStateBody,
+                        syncCompletion[0]);
+            } else if (isFailed) {
+                String error = String.format(
+                        "%s to %s failed. Synchronous peer count: %d, peers: %d",
+                        outboundOp.getAction(), outboundOp.getUri().getPath(), syncCount,
+                        peers.size());
+                logWarning("%s", error);
+                outboundOp.fail(new IllegalStateException(error));
+            }
+        };
+
+        for (int i = 0; i < syncCount; i++) {
+            sendToPeer(selfNode, peers.get(i), updates.get(i), req, fullStateBody,
+                    syncCompletion[0]);
+        }
+    }
+
+    /**
+     * Orders the peers for replication with a synchronous peer count: peers whose replication
+     * lag exceeds the limit first, then by replication latency. Returns the number of peers,
+     * from the start of the list, that are updated synchronously
+     */
+    static int orderPeersForSyncReplication(List<NodeState> peers,
+            Map<String, Boolean> isLaggingByPeer, Map<String, Long> latencyByPeer,
+            int syncPeerCount) {
+        peers.sort((a, b) -> {
+            int c = Boolean.compare(isLaggingByPeer.get(b.id), isLaggingByPeer.get(a.id));
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(latencyByPeer.get(a.id), latencyByPeer.get(b.id));
+        });
+
+        int laggingCount = 0;
+        for (NodeState m : peers) {
+            if (isLaggingByPeer.get(m.id)) {
+                laggingCount++;
+            }
+        }
+        return Math.max(syncPeerCount, laggingCount);
+    }
+
+    private void replicateAsync(NodeState selfNode, SelectAndForwardRequest req,
+            Object fullStateBody, List<NodeState> peers, List<Operation> updates, int start) {
+        if (start >= peers.size()) {
+            return;
+        }
+
+        long expirationMicros = Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros();
+        for (int i = start; i < peers.size(); i++) {
+            NodeState m = peers.get(i);
+            PeerReplicationState peerState = getPeerState(m.id);
+            Long id = this.asyncUpdateId.incrementAndGet();
+            peerState.pendingAsyncUpdates.put(id, Utils.getNowMicrosUtc());
+            Operation update = updates.get(i).setExpiration(expirationMicros);
+            sendToPeer(selfNode, m, update, req, fullStateBody, (o, e) -> {
+                peerState.pendingAsyncUpdates.remove(id);
+                if (e != null) {
+                    peerState.setFailed();
+                    this.parent.adjustStat(
+                            NodeSelectorService.STAT_NAME_REPLICATION_ASYNC_FAILURE_COUNT, 1);
+                    logWarning("Asynchronous replication request to %s failed, %s",
+                            update.getUri(), e.getMessage());
+                }
+            });
+        }
+        this.parent.adjustStat(NodeSelectorService.STAT_NAME_REPLICATION_ASYNC_REQUEST_COUNT,
+                peers.size() - start);
+    }
+
+    private Operation createPeerUpdate(NodeState selfNode, NodeState peer, Operation outboundOp,
+            SelectAndForwardRequest req, Object[] bodies) {
+        Operation update;
+        if (!NodeState.isBinaryWireFormatCompatible(selfNode, peer)) {
+            if (bodies[0] == null) {
+                bodies[0] = getHost().serializeForPeer(req.linkedState, false);
+            }
+            update = createUpdate(selfNode, outboundOp, bodies[0], null);
+        } else if (req.linkedStateDelta != null) {
+            if (bodies[1] == null) {
+                // sent instead of the delta to a peer missing its base version
+                bodies[1] = getHost().serializeForPeer(req.linkedState, true);
+            }
+            // a peer missing the base version fails right away, so do not retry
+            update = createUpdate(selfNode, outboundOp, req.linkedStateDelta, null)
+                    .setRetryCount(0);
+        } else {
+            if (bodies[1] == null) {
+                bodies[1] = getHost().serializeForPeer(req.linkedState, true);
+            }
+            update = createUpdate(selfNode, outboundOp, bodies[1], null);
+        }
+
+        URI remoteHost = peer.groupReference;
+        update.setUri(UriUtils.buildUri(remoteHost.getScheme(), remoteHost.getHost(),
+                remoteHost.getPort(), outboundOp.getUri().getPath(),
+                outboundOp.getUri().getQuery()));
+        return update;
+    }
+
+    private void adjustFullStateBytes(SelectAndForwardRequest req, Object body) {
+        if (req.linkedService == null) {
+            return;
+        }
+        int length = body instanceof byte[] ? ((byte[]) body).length : ((String) body).length();
+        req.linkedService.adjustStat(Service.STAT_NAME_REPLICATION_FULL_STATE_BYTES, length);
+    }
+
+    /**
+     * Sends the update to the peer, tracking the replication latency of the peer. A delta the
+     * peer can not apply is sent again with the full state body, if one is supplied
+     */
+    private void sendToPeer(NodeState selfNode, NodeState peer, Operation update,
+            SelectAndForwardRequest req, Object fullStateBody, CompletionHandler c) {
+        PeerReplicationState peerState = getPeerState(peer.id);
+        long startMicros = Utils.getNowMicrosUtc();
+        update.setCompletion((o, e) -> {
+            if (e == null && o.getStatusCode() >= Operation.STATUS_CODE_FAILURE_THRESHOLD) {
+                e = new IllegalStateException("Request failed: " + o.toString());
+            }
+            if (e == null) {
+                peerState.recordLatency(Utils.getNowMicrosUtc() - startMicros);
+            } else if (fullStateBody != null
+                    && update.getBodyRaw() instanceof ServiceDocumentDelta
+                    && o.getStatusCode() == Operation.STATUS_CODE_PRECONDITION_FAILED) {
+                // the peer does not have the base version of the delta, send the full state
+                adjustFullStateBytes(req, fullStateBody);
+                Operation fullUpdate = createUpdate(selfNode, update, fullStateBody, null)
+                        .setUri(update.getUri());
+                sendToPeer(selfNode, peer, fullUpdate, req, null, c);
+                return;
+            }
+            c.handle(o, e);
+        });
+
+        if (this.isBatchingEnabled && !(update.getBodyRaw() instanceof String)) {
+            sendBatched(peer, update);
+            return;
+        }
+        getHost().getClient().send(update);
+    }
+
+    private PeerReplicationState getPeerState(String nodeId) {
+        return this.peerStates.computeIfAbsent(nodeId, (k) -> new PeerReplicationState());
+    }
+
+    /**
+     * Queues a replication request on the channel to the peer. Requests and results queued on
+     * a channel are sent right away when no batch is in flight to the peer, otherwise they are
+     * sent when the in flight batch completes, when they reach the batch size limit, or after
+     * the linger time, whichever comes first
+     */
+    private void sendBatched(NodeState peer, Operation update) {
+        enqueue(getPeerChannel(peer), update, null);
+    }
+
+    private PeerChannel getPeerChannel(NodeState peer) {
+        URI peerUri = peer.groupReference;
+        URI batchUri = UriUtils.buildUri(peerUri.getScheme(), peerUri.getHost(),
+                peerUri.getPort(), getSelfLink(), null);
+        PeerChannel channel = this.peerChannels.computeIfAbsent(peer.id, (k) -> {
+            PeerChannel ch = new PeerChannel();
+            ch.peerId = peer.id;
+            ch.batchUri = batchUri;
+            return ch;
+        });
+        synchronized (channel) {
+            // the peer restarted on a new address
+            channel.batchUri = batchUri;
+        }
+        return channel;
+    }
+
+    private void enqueue(PeerChannel channel, Operation request, ReplicationBatchResult result) {
+        boolean isFlushRequired = false;
+        boolean isScheduleRequired = false;
+        boolean isSendRequired = false;
+        synchronized (channel) {
+            if (request != null && channel.isBatchingDisabled) {
+                isSendRequired = true;
+            } else {
+                if (request != null) {
+                    channel.pendingRequests.add(request);
+                    channel.pendingByteCount += getBodySize(request.getBodyRaw());
+                } else {
+                    channel.pendingResults.add(result);
+                    channel.pendingByteCount += BATCH_RESULT_BYTE_COUNT;
+                }
+                if (channel.inFlightCount == 0
+                        || channel.pendingByteCount >= this.batchSizeLimit) {
+                    isFlushRequired = true;
+                } else if (!channel.isFlushScheduled) {
+                    channel.isFlushScheduled = true;
+                    isScheduleRequired = true;
+                }
+            }
+        }
+
+        if (isSendRequired) {
+            getHost().getClient().send(request);
+        } else if (isFlushRequired) {
+            flush(channel);
+        } else if (isScheduleRequired) {
+            getHost().schedule(() -> {
+                synchronized (channel) {
+                    channel.isFlushScheduled = false;
+                }
+                flush(channel);
+            }, this.batchLingerMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void flush(PeerChannel channel) {
+        List<Operation> requests;
+        List<ReplicationBatchResult> results;
+        int byteCount;
+        URI batchUri;
+        synchronized (channel) {
+            batchUri = channel.batchUri;
+            if (channel.pendingRequests.isEmpty() && channel.pendingResults.isEmpty()) {
+                return;
+            }
+            requests = channel.pendingRequests;
+            results = channel.pendingResults;
+            byteCount = channel.pendingByteCount;
+            channel.pendingRequests = new ArrayList<>();
+            channel.pendingResults = new ArrayList<>();
+            channel.pendingByteCount = 0;
+            channel.inFlightCount++;
+        }
+
+        ReplicationBatch body = new ReplicationBatch();
+        body.senderId = getHost().getId();
+        body.results = results;
+        body.entries = new ArrayList<>(requests.size());
+        List<Long> ids = new ArrayList<>(requests.size());
+        long expirationMicros = Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros();
+        for (Operation op : requests) {
+            ReplicationBatchEntry entry = new ReplicationBatchEntry();
+            entry.id = this.batchedRequestId.incrementAndGet();
+            entry.path = op.getUri().getPath();
+            entry.query = op.getUri().getQuery();
+            entry.action = op.getAction();
+            entry.body = op.getBodyRaw();
+            AuthorizationContext ctx = op.getAuthorizationContext();
+            if (ctx != null) {
+                entry.authToken = ctx.getToken();
+            }
+            body.entries.add(entry);
+            ids.add(entry.id);
+            channel.batchedRequests.put(entry.id, op);
+            expirationMicros = Math.max(expirationMicros, op.getExpirationMicrosUtc());
+        }
+
+        Operation batch = Operation.createPost(batchUri)
+                .setBodyNoCloning(body)
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM)
+                .setContentLength(byteCount + requests.size() * 128)
+                .setRetryCount(1)
+                .setExpiration(expirationMicros)
+                .setReferer(getUri())
+                .setCompletion((o, e) -> handleBatchCompletion(channel, requests, ids, results,
+                        o, e));
+        batch.setConnectionSharing(true);
+        if (batchUri.getScheme().equals(UriUtils.HTTP_SCHEME)) {
+            batch.setConnectionTag(ServiceClient.CONNECTION_TAG_REPLICATION);
+        }
+        setAuthorizationContext(batch, getSystemAuthorizationContext());
+
+        if (!ids.isEmpty()) {
+            // fail requests whose results never arrive, like individual requests would
+            getHost().schedule(() -> {
+                for (Long id : ids) {
+                    Operation op = channel.batchedRequests.remove(id);
+                    if (op != null) {
+                        op.fail(new TimeoutException());
+                    }
+                }
+            }, expirationMicros - Utils.getNowMicrosUtc(), TimeUnit.MICROSECONDS);
+
+            this.parent.adjustStat(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_COUNT, 1);
+            this.parent.adjustStat(
+                    NodeSelectorService.STAT_NAME_REPLICATION_BATCHED_REQUEST_COUNT,
+                    requests.size());
+        }
+        getHost().getClient().send(batch);
+    }
+
+    private void handleBatchCompletion(PeerChannel channel, List<Operation> requests,
+            List<Long> ids, List<ReplicationBatchResult> results, Operation o, Throwable e) {
+        boolean isPeerWithoutBatching = e != null
+                && (o.getStatusCode() == Operation.STATUS_CODE_NOT_FOUND
+                || o.getStatusCode() == Operation.STATUS_CODE_BAD_METHOD);
+        // the peer does not know us yet, send the requests of this batch individually
+        boolean isSendRequired = isPeerWithoutBatching
+                || (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE);
+        boolean isResultRetryRequired = e != null && !isPeerWithoutBatching
+                && !results.isEmpty() && isPeerAvailable(channel.peerId);
+
+        List<Operation> unbatched = null;
+        boolean isFlushRequired;
+        boolean isScheduleRequired = false;
+        synchronized (channel) {
+            channel.inFlightCount--;
+            if (isPeerWithoutBatching) {
+                // peer runs a version without batch support, send requests individually
+                channel.isBatchingDisabled = true;
+                unbatched = channel.pendingRequests;
+                channel.pendingRequests = new ArrayList<>();
+            }
+            if (isResultRetryRequired) {
+                // the peer is waiting on these results, send them with the next batch
+                results.addAll(channel.pendingResults);
+                channel.pendingResults = results;
+                channel.pendingByteCount += results.size() * BATCH_RESULT_BYTE_COUNT;
+            }
+            isFlushRequired = channel.inFlightCount == 0
+                    && (!channel.pendingRequests.isEmpty()
+                    || (e == null && !channel.pendingResults.isEmpty()));
+            if (!isFlushRequired && channel.inFlightCount == 0
+                    && !channel.pendingResults.isEmpty() && !channel.isFlushScheduled) {
+                channel.isFlushScheduled = true;
+                isScheduleRequired = true;
+            }
+        }
+
+        if (isFlushRequired) {
+            flush(channel);
+        } else if (isScheduleRequired) {
+            // only results are left for a peer that just failed a batch, retry at the
+            // maintenance interval instead of right away
+            getHost().schedule(() -> {
+                synchronized (channel) {
+                    channel.isFlushScheduled = false;
+                }
+                flush(channel);
+            }, getHost().getMaintenanceIntervalMicros(), TimeUnit.MICROSECONDS);
+        }
+
+        if (e == null) {
+            return;
+        }
+
+        this.parent.adjustStat(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_FAILURE_COUNT, 1);
+        ServiceClient cl = getHost().getClient();
+        for (int i = 0; i < ids.size(); i++) {
+            if (channel.batchedRequests.remove(ids.get(i)) == null) {
+                continue;
+            }
+            Operation op = requests.get(i);
+            if (isSendRequired) {
+                cl.send(op);
+            } else {
+                op.setStatusCode(o.getStatusCode()).fail(e);
+            }
+        }
+
+        if (unbatched != null) {
+            for (Operation op : unbatched) {
+                cl.send(op);
+            }
+        }
+    }
+
+    private boolean isPeerAvailable(String peerId) {
+        NodeGroupState groupState = this.nodeGroupState;
+        if (groupState == null) {
+            return false;
+        }
+        NodeState peer = groupState.nodes.get(peerId);
+        return peer != null && !NodeState.isUnAvailable(peer);
+    }
+
+    private void completeBatchedRequest(PeerChannel channel, ReplicationBatchResult result) {
+        Operation op = channel.batchedRequests.remove(result.id);
+        if (op == null) {
+            // expired or failed with its batch
+            return;
+        }
+        op.setStatusCode(result.statusCode);
+        if (result.statusCode < Operation.STATUS_CODE_FAILURE_THRESHOLD) {
+            op.complete();
+            return;
+        }
+        op.fail(new IllegalStateException("Request failed: " + result.failureMessage));
+    }
+
+    private static int getBodySize(Object body) {
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        if (body instanceof ServiceDocumentDelta) {
+            byte[] diff = ((ServiceDocumentDelta) body).diff;
+            return diff == null ? 0 : diff.length;
+        }
+        return 0;
+    }
+
+    private Operation createUpdate(NodeState selfNode, Operation outboundOp, Object body,
+            CompletionHandler c) {
+        String contentType = body instanceof String ? Operation.MEDIA_TYPE_APPLICATION_JSON
+                : Operation.MEDIA_TYPE_APPLICATION_KRYO_OCTET_STREAM;
+        Operation update = Operation.createPost(null)
+                .setAction(outboundOp.getAction())
+                .setBodyNoCloning(body)
+                .setContentType(contentType)
+                .setCompletion(c)
+                .setRetryCount(1)
+                .setExpiration(outboundOp.getExpirationMicrosUtc())
+                .transferRefererFrom(outboundOp);
+
+        update.setFromReplication(true);
+        update.setConnectionSharing(true);
+
+        // Only use replication tag on HTTP + HTTP/2. On HTTPS, we want to use the default HTTP1.1
+        // connection tag, which allows for a lot more concurrent connections. This will change
+        // once we have TLS/APLN support for HTTP/2
+        if (selfNode.groupReference.getScheme().equals(UriUtils.HTTP_SCHEME)) {
+            update.setConnectionTag(ServiceClient.CONNECTION_TAG_REPLICATION);
+        }
+
+        if (update.getCookies() != null) {
+            update.getCookies().clear();
+        }
+        return update;
+    }
+
     @Override
     public void sendRequest(Operation op) {
         this.parent.sendRequest(op);
@@ -25,6 +25,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Operation.CompletionHandler;
@@ -65,6 +66,41 @@ public class NodeSelectorSynchronizationService extends StatelessService {
         public String kind;
     }
 
+    /**
+     * Requests the digests of the started children of a factory on this node
+     */
+    public static class ChildServiceDigestRequest {
+        public static final String KIND = Utils.buildKind(ChildServiceDigestRequest.class);
+
+        public static ChildServiceDigestRequest create(String factoryLink) {
+            ChildServiceDigestRequest r = new ChildServiceDigestRequest();
+            r.factoryLink = factoryLink;
+            r.kind = KIND;
+            return r;
+        }
+
+        public String factoryLink;
+        public String kind;
+    }
+
+    /**
+     * Digests of the started children of a factory. Child links are partitioned in ranges by
+     * their hash, and the digest of a range is the sum of the hashes of the link, version,
+     * epoch and owner of its children. Nodes with equal range digests agree on the children
+     * in the range
+     */
+    public static class ChildServiceDigestResponse {
+        public String nodeId;
+        public long childCount;
+        public long[] rangeDigests;
+
+        /**
+         * Ranges with a child whose document owner is not the owner selected in the
+         * current node group
+         */
+        public List<Integer> ownerMismatchRanges = new ArrayList<>();
+    }
+
     private Service parent;
 
     private boolean isDetailedLoggingEnabled = Boolean
@@ -107,10 +143,30 @@ public class NodeSelectorSynchronizationService extends StatelessService {
             handleSynchronizeRequest(post, body);
             return;
         }
+        if (body.kind.equals(ChildServiceDigestRequest.KIND)) {
+            handleChildServiceDigestRequest(post, post.getBody(ChildServiceDigestRequest.class));
+            return;
+        }
 
         post.fail(new IllegalArgumentException("kind is not supported: " + body.kind));
     }
 
+    private void handleChildServiceDigestRequest(Operation post, ChildServiceDigestRequest body) {
+        if (body.factoryLink == null || body.factoryLink.isEmpty()) {
+            post.fail(new IllegalArgumentException("factoryLink is required"));
+            return;
+        }
+
+        Function<String, String> ownerSelector = (link) -> null;
+        if (this.parent instanceof ConsistentHashingNodeSelectorService) {
+            ownerSelector = ((ConsistentHashingNodeSelectorService) this.parent)::getOwnerNodeId;
+        }
+        ChildServiceDigestResponse rsp = getHost().getChildServiceDigest(body.factoryLink,
+                ownerSelector);
+        rsp.nodeId = getHost().getId();
+        post.setBodyNoCloning(rsp).complete();
+    }
+
     private void handleSynchronizeRequest(Operation post, SynchronizePeersRequest body) {
         if (body.state == null) {
             post.fail(new IllegalArgumentException("state is required"));
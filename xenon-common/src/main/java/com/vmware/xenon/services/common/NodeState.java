@@ -23,6 +23,18 @@ public class NodeState extends ServiceDocument {
     public static final String PROPERTY_NAME_MEMBERSHIP_QUORUM = Utils.PROPERTY_NAME_PREFIX
             + "NodeState.membershipQuorum";
 
+    /**
+     * If set, the node advertises no binary wire format, so peers send it JSON only
+     */
+    public static final String PROPERTY_NAME_DISABLE_BINARY_WIRE_FORMAT = Utils.PROPERTY_NAME_PREFIX
+            + "NodeState.disableBinaryWireFormat";
+
+    /**
+     * Binary wire format of this version. Changes when the binary serialization of documents
+     * changes incompatibly, so nodes of different versions fall back to JSON
+     */
+    public static final String BINARY_WIRE_FORMAT_KRYO = "kryo-1";
+
     public enum NodeStatus {
         /**
          * Node status is unknown
@@ -84,11 +96,24 @@ public class NodeState extends ServiceDocument {
      */
     public int membershipQuorum;
 
+    /**
+     * Binary wire format the node accepts in replication requests, or null if the node
+     * accepts JSON only
+     */
+    public String binaryWireFormat;
+
     public static boolean isUnAvailable(NodeState ns) {
         return ns.status == NodeStatus.UNAVAILABLE || ns.status == NodeStatus.REPLACED
                 || ns.options.contains(NodeOption.OBSERVER);
     }
 
+    /**
+     * Returns true if the two nodes can exchange replication requests in binary form
+     */
+    public static boolean isBinaryWireFormatCompatible(NodeState a, NodeState b) {
+        return a.binaryWireFormat != null && a.binaryWireFormat.equals(b.binaryWireFormat);
+    }
+
     public static boolean isAvailable(NodeState m, String hostId, boolean excludeThisHost) {
         if (m.status != NodeStatus.AVAILABLE) {
             return false;
@@ -22,7 +22,7 @@ import com.vmware.xenon.common.StatelessService;
 import com.vmware.xenon.common.UriUtils;
 
 /**
- * Parses the OData parameters of the URI and issues a direct Query.
+ * Parses the OData parameters of the URI and issues a direct Query against the document index.
  */
 public class ODataQueryService extends StatelessService {
 
@@ -44,17 +44,10 @@ public class ODataQueryService extends StatelessService {
                 return;
             }
 
-            sendRequest(Operation.createPost(this, ServiceUriPaths.CORE_QUERY_TASKS).setBody(task)
-                    .setCompletion((o, e) -> {
-                        if (e != null) {
-                            op.fail(e);
-                            return;
-                        }
-
-                        QueryTask result = o.getBody(QueryTask.class);
-                        op.setBodyNoCloning(result);
-                        op.complete();
-                    }));
+            // the query is executed directly against the index, no query task service is needed
+            ODataUtils.sendDirectQuery(this, op, task, result -> {
+                op.setBodyNoCloning(result).complete();
+            });
         } catch (Exception e) {
             op.fail(e);
         }
@@ -58,6 +58,14 @@ public class QueryTask extends ServiceDocument {
             public transient Object nativeSearcher;
             public transient Object nativeSort;
             public transient QueryFilter filter;
+
+            /**
+             * Set by the query task service to stop the index from processing an in flight
+             * query, or a query waiting to be retried for its expected result count. The index
+             * returns the results collected so far. Direct query tasks can not be cancelled,
+             * since the task service is not available until the query completes
+             */
+            public transient volatile boolean isCancelled;
         }
 
         public enum QueryOption {
@@ -154,6 +162,28 @@ public class QueryTask extends ServiceDocument {
          * STARTED phase until such time.
          */
         public Long expectedResultCount;
+
+        /**
+         * Optional limit on the number of matching index documents the query can scan. When
+         * exceeded, the index stops processing the query and returns the results collected so
+         * far, with {@link ServiceDocumentQueryResult#isPartial} set
+         */
+        public Long maxScannedDocumentCount;
+
+        /**
+         * Optional limit on the time, in microseconds, the index can spend executing the query.
+         * When exceeded, partial results are returned, see {@link #maxScannedDocumentCount}.
+         * For a paginated query the limit applies to each page separately
+         */
+        public Long maxQueryTimeMicros;
+
+        /**
+         * Optional limit on the size, in bytes, of the serialized documents (or links, if the
+         * content is not expanded) in the query results. When exceeded, partial results are
+         * returned, see {@link #maxScannedDocumentCount}
+         */
+        public Long maxResultSizeBytes;
+
         public EnumSet<QueryOption> options = EnumSet.noneOf(QueryOption.class);
 
         /**
@@ -828,6 +858,36 @@ public class QueryTask extends ServiceDocument {
             return this;
         }
 
+        /**
+         * Set the maximum number of matching index documents the query can scan.
+         * @param maxScannedDocumentCount the scanned document limit.
+         * @return a reference to this object.
+         */
+        public Builder setMaxScannedDocumentCount(long maxScannedDocumentCount) {
+            this.querySpec.maxScannedDocumentCount = maxScannedDocumentCount;
+            return this;
+        }
+
+        /**
+         * Set the maximum time, in microseconds, the index can spend executing the query.
+         * @param maxQueryTimeMicros the query time limit.
+         * @return a reference to this object.
+         */
+        public Builder setMaxQueryTimeMicros(long maxQueryTimeMicros) {
+            this.querySpec.maxQueryTimeMicros = maxQueryTimeMicros;
+            return this;
+        }
+
+        /**
+         * Set the maximum size, in bytes, of the query results.
+         * @param maxResultSizeBytes the result size limit.
+         * @return a reference to this object.
+         */
+        public Builder setMaxResultSizeBytes(long maxResultSizeBytes) {
+            this.querySpec.maxResultSizeBytes = maxResultSizeBytes;
+            return this;
+        }
+
         /**
          * Order results in ascending order by the given {@code fieldName}.
          * @param fieldName the field name to order results by.
@@ -33,6 +33,102 @@ import com.vmware.xenon.common.Utils;
 public class ServiceHostManagementService extends StatefulService {
     public static final String SELF_LINK = UriUtils.buildUriPath(ServiceUriPaths.CORE_MANAGEMENT);
 
+    /**
+     * Threads in the host elastic executor, see {@code ServiceHost.ExecutorMode.ELASTIC}
+     */
+    public static final String STAT_NAME_ELASTIC_THREAD_COUNT = "elasticThreadCount";
+    public static final String STAT_NAME_ELASTIC_BUSY_THREAD_COUNT = "elasticBusyThreadCount";
+    public static final String STAT_NAME_ELASTIC_PEAK_THREAD_COUNT = "elasticPeakThreadCount";
+
+    /**
+     * Tasks waiting for an elastic executor thread, and the total number of tasks submitted while
+     * every thread was busy. Non zero values indicate handlers blocking long enough to exhaust
+     * the thread limit
+     */
+    public static final String STAT_NAME_ELASTIC_QUEUE_DEPTH = "elasticQueueDepth";
+    public static final String STAT_NAME_ELASTIC_SATURATED_COUNT = "elasticSaturatedCount";
+
+    /**
+     * Largest delay, in microseconds, between the scheduled and actual start of periodic
+     * maintenance for the services dispatched in the most recent maintenance pass
+     */
+    public static final String STAT_NAME_MAINTENANCE_LAG_MICROS = "maintenanceLagMicros";
+
+    /**
+     * Number of periodic maintenance requests that took more than twice the maintenance
+     * interval to complete
+     */
+    public static final String STAT_NAME_MAINTENANCE_OVERRUN_COUNT = "maintenanceOverrunCount";
+
+    /**
+     * Appended to a request rate limit key to form the name of the stat counting requests
+     * rejected by that limit
+     */
+    public static final String STAT_NAME_SUFFIX_THROTTLED_REQUEST_COUNT = "ThrottledRequestCount";
+
+    /**
+     * Service state cache accesses, evictions and size when the host uses
+     * {@code ServiceHost.ServiceStateCacheMode.COMPACT}
+     */
+    public static final String STAT_NAME_STATE_CACHE_HIT_COUNT = "serviceStateCacheHitCount";
+    public static final String STAT_NAME_STATE_CACHE_MISS_COUNT = "serviceStateCacheMissCount";
+    public static final String STAT_NAME_STATE_CACHE_EVICTION_COUNT =
+            "serviceStateCacheEvictionCount";
+    public static final String STAT_NAME_STATE_CACHE_BYTE_COUNT = "serviceStateCacheByteCount";
+    public static final String STAT_NAME_STATE_CACHE_ENTRY_COUNT = "serviceStateCacheEntryCount";
+
+    /**
+     * Services paused and resumed under memory pressure, the time spent storing the most recent
+     * pause batch, the time spent restoring the most recently resumed service, and the size of
+     * the paused service store
+     */
+    public static final String STAT_NAME_SERVICE_PAUSE_COUNT = "servicePauseCount";
+    public static final String STAT_NAME_SERVICE_RESUME_COUNT = "serviceResumeCount";
+    public static final String STAT_NAME_SERVICE_PAUSE_BATCH_LATENCY_MICROS =
+            "servicePauseBatchLatencyMicros";
+    public static final String STAT_NAME_SERVICE_RESUME_LATENCY_MICROS =
+            "serviceResumeLatencyMicros";
+    public static final String STAT_NAME_PAUSED_SERVICE_BYTE_COUNT = "pausedServiceByteCount";
+
+    /**
+     * Service state updates queued for the document index by services with
+     * {@code ServiceOption.WRITE_BEHIND_PERSISTENCE}, the age of the oldest queued update, and
+     * counts of updates written, coalesced with a later version, and failed
+     */
+    public static final String STAT_NAME_WRITE_BEHIND_QUEUE_DEPTH = "writeBehindQueueDepth";
+    public static final String STAT_NAME_WRITE_BEHIND_LAG_MICROS = "writeBehindLagMicros";
+    public static final String STAT_NAME_WRITE_BEHIND_WRITE_COUNT = "writeBehindWriteCount";
+    public static final String STAT_NAME_WRITE_BEHIND_COALESCED_COUNT =
+            "writeBehindCoalescedCount";
+    public static final String STAT_NAME_WRITE_BEHIND_FAILURE_COUNT = "writeBehindFailureCount";
+
+    /**
+     * Factory child synchronizations running and waiting on the host limits, and the number of
+     * times waiting synchronizations were held back by the concurrency and by the rate limit
+     */
+    public static final String STAT_NAME_CHILD_SYNCH_ACTIVE_COUNT =
+            "childSynchronizationActiveCount";
+    public static final String STAT_NAME_CHILD_SYNCH_WAITING_COUNT =
+            "childSynchronizationWaitingCount";
+    public static final String STAT_NAME_CHILD_SYNCH_CONCURRENCY_LIMITED_COUNT =
+            "childSynchronizationConcurrencyLimitedCount";
+    public static final String STAT_NAME_CHILD_SYNCH_RATE_LIMITED_COUNT =
+            "childSynchronizationRateLimitedCount";
+
+    /**
+     * Documents serialized for replication requests to peers, in binary form and as JSON, with
+     * their total size and serialization time. Per document averages of the two formats show
+     * the savings of the binary format
+     */
+    public static final String STAT_NAME_PEER_BINARY_DOCUMENT_COUNT = "peerBinaryDocumentCount";
+    public static final String STAT_NAME_PEER_BINARY_BYTE_COUNT = "peerBinaryByteCount";
+    public static final String STAT_NAME_PEER_BINARY_SERIALIZATION_MICROS =
+            "peerBinarySerializationMicros";
+    public static final String STAT_NAME_PEER_JSON_DOCUMENT_COUNT = "peerJsonDocumentCount";
+    public static final String STAT_NAME_PEER_JSON_BYTE_COUNT = "peerJsonByteCount";
+    public static final String STAT_NAME_PEER_JSON_SERIALIZATION_MICROS =
+            "peerJsonSerializationMicros";
+
     public ServiceHostManagementService() {
         super(ServiceHostState.class);
         super.toggleOption(ServiceOption.INSTRUMENTATION, true);
@@ -0,0 +1,609 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.services.common;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Operation.AuthorizationContext;
+import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification;
+import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
+import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
+
+/**
+ * Document index that partitions documents across several {@link LuceneDocumentIndexService}
+ * shards. Each shard has its own index directory, writer, searchers, executors and maintenance,
+ * so updates to documents in different shards do not contend on a single writer.
+ *
+ * The service replaces the default index, see {@link com.vmware.xenon.common.ServiceHost#setDocumentIndexingService(Service)}.
+ * The host starts the shards, at {@link #getShardLink(int)}, before the other core services.
+ * Documents are routed to a shard by kind or by a hash of the self link, see {@link ShardingPolicy}.
+ * Query tasks restricted to a single document kind, through a required term on
+ * {@link ServiceDocument#FIELD_NAME_KIND}, run on a single shard when sharding by kind. All other
+ * queries run on every shard and their results are merged. Such queries must sort on
+ * {@link ServiceDocument#FIELD_NAME_SELF_LINK}, which is the default, since results are merged
+ * by self link, similar to {@link QueryOption#BROADCAST} queries.
+ *
+ * Each shard exposes its own statistics. This service tracks the number of requests
+ * routed to each shard, and the number of single shard and fan out queries
+ */
+public class ShardedDocumentIndexService extends StatelessService {
+
+    public static final String SELF_LINK = ServiceUriPaths.CORE_DOCUMENT_INDEX;
+
+    public static final String SHARD_LINK_PREFIX = "shard-";
+
+    public static final String STAT_NAME_SINGLE_SHARD_QUERY_COUNT = "singleShardQueryCount";
+
+    public static final String STAT_NAME_FAN_OUT_QUERY_COUNT = "fanOutQueryCount";
+
+    public static final String STAT_NAME_SUFFIX_ROUTED_REQUEST_COUNT = "RoutedRequestCount";
+
+    public enum ShardingPolicy {
+        /**
+         * All documents of a kind are stored in the same shard. Kinds are assigned to shards
+         * by hash, unless explicitly assigned with {@link ShardedDocumentIndexService#setKindShard(String, int)}
+         */
+        DOCUMENT_KIND,
+
+        /**
+         * Documents are assigned to shards by a hash of their self link. Spreads documents evenly
+         * but all queries run on every shard
+         */
+        SELF_LINK_HASH
+    }
+
+    private final ShardingPolicy policy;
+    private final LuceneDocumentIndexService[] shards;
+    private final String[] routedRequestStatNames;
+    private final Map<String, Integer> kindShards = new HashMap<>();
+
+    public ShardedDocumentIndexService(int shardCount, ShardingPolicy policy) {
+        super(ServiceDocument.class);
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is required");
+        }
+        this.policy = policy;
+        this.shards = new LuceneDocumentIndexService[shardCount];
+        this.routedRequestStatNames = new String[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            LuceneDocumentIndexService shard = new LuceneDocumentIndexService(
+                    LuceneDocumentIndexService.FILE_PATH_LUCENE + "-" + SHARD_LINK_PREFIX + i);
+            shard.memoryLimitLink = SELF_LINK;
+            shard.memoryLimitShareCount = shardCount;
+            this.shards[i] = shard;
+            this.routedRequestStatNames[i] = SHARD_LINK_PREFIX + i
+                    + STAT_NAME_SUFFIX_ROUTED_REQUEST_COUNT;
+        }
+    }
+
+    /**
+     * Assigns all documents of the given kind to a shard. Must be called before the host starts,
+     * and must not change across restarts, since documents are not moved between shards
+     */
+    public ShardedDocumentIndexService setKindShard(String documentKind, int shardIndex) {
+        if (getHost() != null) {
+            throw new IllegalStateException("Service is started");
+        }
+        if (shardIndex < 0 || shardIndex >= this.shards.length) {
+            throw new IllegalArgumentException("shardIndex is out of range");
+        }
+        this.kindShards.put(documentKind, shardIndex);
+        return this;
+    }
+
+    public ShardingPolicy getShardingPolicy() {
+        return this.policy;
+    }
+
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    public Service getShard(int shardIndex) {
+        return this.shards[shardIndex];
+    }
+
+    public static String getShardLink(int shardIndex) {
+        return UriUtils.buildUriPath(SELF_LINK, SHARD_LINK_PREFIX + shardIndex);
+    }
+
+    @Override
+    public void handleRequest(Operation op) {
+        switch (op.getAction()) {
+        case POST:
+            routeUpdate(op);
+            break;
+        case GET:
+            routeGet(op);
+            break;
+        case PATCH:
+            if (op.isRemote()) {
+                // PATCH is reserved for in-process QueryTaskService
+                getHost().failRequestActionNotSupported(op);
+                return;
+            }
+            Object body = op.getBodyRaw();
+            if (body instanceof QueryTask) {
+                routeQuery(op, (QueryTask) body);
+                return;
+            }
+            if (body instanceof LuceneDocumentIndexService.BackupRequest
+                    || body instanceof LuceneDocumentIndexService.RestoreRequest) {
+                op.fail(new IllegalStateException(
+                        "Backup and restore are not supported on a sharded index"));
+                return;
+            }
+            getHost().failRequestActionNotSupported(op);
+            break;
+        case DELETE:
+            // shards are core services, the host stops them separately
+            getHost().stopService(this);
+            op.complete();
+            break;
+        default:
+            getHost().failRequestActionNotSupported(op);
+            break;
+        }
+    }
+
+    private void routeUpdate(Operation op) {
+        Object body = op.getBodyRaw();
+        if (!(body instanceof UpdateIndexRequest)) {
+            body = op.getBody(UpdateIndexRequest.class);
+        }
+        ServiceDocument document = ((UpdateIndexRequest) body).document;
+        if (document == null) {
+            op.fail(new IllegalArgumentException("document is required"));
+            return;
+        }
+        forward(op, getShardIndex(document.documentKind, document.documentSelfLink));
+    }
+
+    private void routeGet(Operation op) {
+        Map<String, String> params = UriUtils.parseUriQueryParams(op.getUri());
+        String selfLink = params.get(ServiceDocument.FIELD_NAME_SELF_LINK);
+        if (selfLink == null) {
+            op.fail(new IllegalArgumentException(
+                    ServiceDocument.FIELD_NAME_SELF_LINK + " query parameter is required"));
+            return;
+        }
+
+        if (selfLink.endsWith(UriUtils.URI_WILDCARD_CHAR)) {
+            getAllShardsWithPrefix(op, params);
+            return;
+        }
+
+        String kind = params.get(ServiceDocument.FIELD_NAME_KIND);
+        if (this.policy == ShardingPolicy.SELF_LINK_HASH || kind != null) {
+            forward(op, getShardIndex(kind, selfLink));
+            return;
+        }
+
+        // kind is unknown, look the document up in every shard
+        getSingleFromAllShards(op);
+    }
+
+    private void getSingleFromAllShards(Operation op) {
+        ServiceDocument[] latest = new ServiceDocument[1];
+        CompletionHandler c = (o, e) -> {
+            if (e == null && o.hasBody()) {
+                ServiceDocument d = (ServiceDocument) o.getBodyRaw();
+                synchronized (latest) {
+                    if (latest[0] == null || latest[0].documentVersion < d.documentVersion) {
+                        latest[0] = d;
+                    }
+                }
+            }
+        };
+        sendToAllShards(op, op.getUri(), null, c, (failure) -> {
+            if (failure != null) {
+                op.fail(failure);
+                return;
+            }
+            if (latest[0] != null) {
+                op.setBodyNoCloning(latest[0]);
+            }
+            op.complete();
+        });
+    }
+
+    /**
+     * Self link prefix queries, issued by factory GETs, run on every shard. The shards are
+     * restricted to their index, so services that are not indexed are listed once, by a single
+     * shard, and only if no shard had results
+     */
+    private void getAllShardsWithPrefix(Operation op, Map<String, String> params) {
+        String cap = params.get(UriUtils.URI_PARAM_CAPABILITY);
+        params.put(UriUtils.URI_PARAM_CAPABILITY, ServiceOption.PERSISTENCE.toString());
+        List<String> keyValues = new ArrayList<>();
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            keyValues.add(e.getKey());
+            keyValues.add(e.getValue());
+        }
+        URI shardUri = UriUtils.extendUriWithQuery(getUri(),
+                keyValues.toArray(new String[keyValues.size()]));
+
+        List<ServiceDocumentQueryResult> results = new ArrayList<>();
+        CompletionHandler c = (o, e) -> {
+            if (e == null && o.hasBody()) {
+                synchronized (results) {
+                    results.add((ServiceDocumentQueryResult) o.getBodyRaw());
+                }
+            }
+        };
+        sendToAllShards(op, shardUri, null, c, (failure) -> {
+            if (failure != null) {
+                op.fail(failure);
+                return;
+            }
+            ServiceDocumentQueryResult rsp = mergeShardListings(results);
+            if (rsp.documentLinks.isEmpty()
+                    && !ServiceOption.PERSISTENCE.toString().equals(cap)) {
+                forward(op, 0);
+                return;
+            }
+            op.setBodyNoCloning(rsp).complete();
+        });
+    }
+
+    private static ServiceDocumentQueryResult mergeShardListings(
+            List<ServiceDocumentQueryResult> results) {
+        ServiceDocumentQueryResult rsp = new ServiceDocumentQueryResult();
+        Set<String> links = new LinkedHashSet<>();
+        long queryTimeMicros = 0;
+        for (ServiceDocumentQueryResult r : results) {
+            if (r.documentLinks != null) {
+                links.addAll(r.documentLinks);
+            }
+            if (r.documents != null) {
+                if (rsp.documents == null) {
+                    rsp.documents = new HashMap<>();
+                }
+                rsp.documents.putAll(r.documents);
+            }
+            if (r.queryTimeMicros != null) {
+                queryTimeMicros = Math.max(queryTimeMicros, r.queryTimeMicros);
+            }
+        }
+        rsp.documentLinks = new ArrayList<>(links);
+        rsp.documentCount = (long) links.size();
+        rsp.queryTimeMicros = queryTimeMicros;
+        return rsp;
+    }
+
+    private void routeQuery(Operation op, QueryTask task) {
+        QuerySpecification qs = task.querySpec;
+        if (qs == null) {
+            op.fail(new IllegalArgumentException("querySpec is required"));
+            return;
+        }
+
+        if (this.policy == ShardingPolicy.DOCUMENT_KIND) {
+            // pages of paginated queries carry the native query only, they are sent directly
+            // to the shard that created them, see createShardTask
+            String kind = findRequiredKind(qs.query);
+            if (kind != null) {
+                adjustStat(STAT_NAME_SINGLE_SHARD_QUERY_COUNT, 1);
+                int shardIndex = getShardIndex(kind, null);
+                op.setBodyNoCloning(createShardTask(task, qs, shardIndex));
+                forward(op, shardIndex);
+                return;
+            }
+        }
+
+        adjustStat(STAT_NAME_FAN_OUT_QUERY_COUNT, 1);
+        try {
+            qs = prepareFanOutQuery(qs);
+        } catch (Throwable e) {
+            op.fail(e);
+            return;
+        }
+
+        QuerySpecification spec = qs;
+        List<ServiceDocumentQueryResult> results = new ArrayList<>();
+        CompletionHandler c = (o, e) -> {
+            if (e == null && o.getBodyRaw() instanceof ServiceDocumentQueryResult) {
+                synchronized (results) {
+                    results.add((ServiceDocumentQueryResult) o.getBodyRaw());
+                }
+            }
+        };
+        sendToAllShards(op, null, task, c, (failure) -> {
+            if (failure != null) {
+                op.fail(failure);
+                return;
+            }
+            if (spec.options.contains(QueryOption.CONTINUOUS) && results.isEmpty()) {
+                // activation or cancellation of a continuous query
+                op.complete();
+                return;
+            }
+            op.setBodyNoCloning(mergeShardResults(task, spec, results)).complete();
+        });
+    }
+
+    /**
+     * Converts the query once, for all shards, and makes sure results are sorted by self link
+     * so they can be merged. The runtime context is shared with the caller, so the shards
+     * observe query cancellation
+     */
+    private static QuerySpecification prepareFanOutQuery(QuerySpecification qs) {
+        boolean isCount = qs.options.contains(QueryOption.COUNT);
+        boolean isSortedBySelfLink = qs.options.contains(QueryOption.SORT)
+                && qs.sortTerm != null
+                && Objects.equals(qs.sortTerm.propertyName, ServiceDocument.FIELD_NAME_SELF_LINK);
+        if (!isCount && qs.options.contains(QueryOption.SORT) && !isSortedBySelfLink) {
+            throw new IllegalArgumentException("Queries on more than one index shard only support"
+                    + " sorting on [" + ServiceDocument.FIELD_NAME_SELF_LINK + "]");
+        }
+
+        QuerySpecification spec = qs;
+        if (!isCount && !isSortedBySelfLink) {
+            // shallow copy, the converted query in the runtime context is not cloneable
+            spec = new QuerySpecification();
+            spec.query = qs.query;
+            spec.resultLimit = qs.resultLimit;
+            spec.expectedResultCount = qs.expectedResultCount;
+            spec.maxScannedDocumentCount = qs.maxScannedDocumentCount;
+            spec.maxQueryTimeMicros = qs.maxQueryTimeMicros;
+            spec.maxResultSizeBytes = qs.maxResultSizeBytes;
+            spec.options = EnumSet.copyOf(qs.options);
+            spec.context = qs.context;
+            spec.options.add(QueryOption.SORT);
+            spec.sortOrder = QuerySpecification.SortOrder.ASC;
+            spec.sortTerm = new QueryTask.QueryTerm();
+            spec.sortTerm.propertyType = ServiceDocumentDescription.TypeName.STRING;
+            spec.sortTerm.propertyName = ServiceDocument.FIELD_NAME_SELF_LINK;
+            spec.context.nativeSort = null;
+        }
+
+        if (spec.context.nativeQuery == null) {
+            spec.context.nativeQuery = LuceneQueryConverter.convertToLuceneQuery(spec.query);
+            if (spec.resultLimit == null) {
+                spec.resultLimit = Integer.MAX_VALUE;
+            }
+        }
+        if (spec.context.nativeSort == null && spec.options.contains(QueryOption.SORT)) {
+            spec.context.nativeSort = LuceneQueryConverter.convertToLuceneSort(spec);
+        }
+        return spec;
+    }
+
+    private ServiceDocumentQueryResult mergeShardResults(QueryTask task, QuerySpecification spec,
+            List<ServiceDocumentQueryResult> results) {
+        boolean isPaginatedQuery = spec.resultLimit != null
+                && spec.resultLimit < Integer.MAX_VALUE
+                && !spec.options.contains(QueryOption.TOP_RESULTS);
+
+        ServiceDocumentQueryResult rsp;
+        long queryTimeMicros = 0;
+        boolean isPartial = false;
+        for (ServiceDocumentQueryResult r : results) {
+            if (r.queryTimeMicros != null) {
+                queryTimeMicros = Math.max(queryTimeMicros, r.queryTimeMicros);
+            }
+            isPartial |= Boolean.TRUE.equals(r.isPartial);
+        }
+
+        if (spec.options.contains(QueryOption.COUNT)) {
+            rsp = new ServiceDocumentQueryResult();
+            rsp.documentCount = 0L;
+            for (ServiceDocumentQueryResult r : results) {
+                if (r.documentCount != null) {
+                    rsp.documentCount += r.documentCount;
+                }
+            }
+        } else if (isPaginatedQuery) {
+            rsp = new ServiceDocumentQueryResult();
+            rsp.documentCount = 0L;
+            List<String> nextPageLinks = new ArrayList<>();
+            for (ServiceDocumentQueryResult r : results) {
+                if (r.nextPageLink != null) {
+                    nextPageLinks.add(r.nextPageLink);
+                }
+            }
+            if (!nextPageLinks.isEmpty()) {
+                rsp.nextPageLink = startPageService(task, spec, nextPageLinks);
+            }
+        } else {
+            boolean isAscOrder = spec.sortOrder == null
+                    || spec.sortOrder == QuerySpecification.SortOrder.ASC;
+            rsp = Utils.mergeQueryResults(results, isAscOrder, spec.options);
+            if (spec.options.contains(QueryOption.TOP_RESULTS)
+                    && rsp.documentLinks.size() > spec.resultLimit) {
+                List<String> top = new ArrayList<>(
+                        rsp.documentLinks.subList(0, spec.resultLimit));
+                if (rsp.documents != null) {
+                    rsp.documents.keySet().retainAll(top);
+                }
+                rsp.documentLinks = top;
+                rsp.documentCount = (long) top.size();
+            }
+            if (!spec.options.contains(QueryOption.EXPAND_CONTENT)) {
+                rsp.documents = null;
+            }
+        }
+
+        rsp.queryTimeMicros = queryTimeMicros;
+        if (isPartial) {
+            rsp.isPartial = true;
+        }
+        return rsp;
+    }
+
+    /**
+     * Starts a page service that merges the pages of all shards, see {@link BroadcastQueryPageService}
+     */
+    private String startPageService(QueryTask task, QuerySpecification spec,
+            List<String> nextPageLinks) {
+        URI pageServiceUri = UriUtils.buildUri(getHost(), UriUtils.buildUriPath(
+                ServiceUriPaths.CORE, BroadcastQueryPageService.SELF_LINK_PREFIX,
+                String.valueOf(Utils.getNowMicrosUtc())));
+        URI forwarderUri = UriUtils.buildForwardToPeerUri(pageServiceUri, getHost().getId(),
+                ServiceUriPaths.DEFAULT_NODE_SELECTOR, EnumSet.noneOf(ServiceOption.class));
+
+        ServiceDocument body = new ServiceDocument();
+        body.documentSelfLink = pageServiceUri.getPath();
+        body.documentExpirationTimeMicros = task.documentExpirationTimeMicros;
+        Operation startPost = Operation
+                .createPost(pageServiceUri)
+                .setBody(body)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        logWarning("Unable to start page service: %s", e.toString());
+                    }
+                });
+        getHost().startService(startPost, new BroadcastQueryPageService(spec, nextPageLinks,
+                task.documentExpirationTimeMicros));
+        return forwarderUri.getPath() + UriUtils.URI_QUERY_CHAR + forwarderUri.getQuery();
+    }
+
+    /**
+     * Sends a request, based on the original operation, to every shard. For query tasks, each
+     * shard gets its own task instance, see {@link #createShardTask}. Invokes {@code onShardCompletion}
+     * for each shard, then {@code onAllCompleted} with the first failure, if any
+     */
+    private void sendToAllShards(Operation op, URI uri, QueryTask task,
+            CompletionHandler onShardCompletion,
+            Consumer<Throwable> onAllCompleted) {
+        AtomicInteger remaining = new AtomicInteger(this.shards.length);
+        Throwable[] failure = new Throwable[1];
+        CompletionHandler c = (o, e) -> {
+            if (e != null) {
+                failure[0] = e;
+            } else {
+                onShardCompletion.handle(o, null);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                onAllCompleted.accept(failure[0]);
+            }
+        };
+
+        AuthorizationContext ctx = op.getAuthorizationContext();
+        for (int i = 0; i < this.shards.length; i++) {
+            Operation shardOp;
+            if (task != null) {
+                shardOp = Operation.createPatch(this.shards[i].getUri())
+                        .setBodyNoCloning(createShardTask(task, task.querySpec, i));
+            } else {
+                shardOp = Operation.createGet(uri);
+            }
+            shardOp.transferRefererFrom(op).setCompletion(c);
+            if (ctx != null) {
+                setAuthorizationContext(shardOp, ctx);
+            }
+            forward(shardOp, i);
+        }
+    }
+
+    /**
+     * Creates the query task sent to a shard. The index link points to the shard, so page
+     * services created by the shard query it directly
+     */
+    private QueryTask createShardTask(QueryTask task, QuerySpecification spec, int shardIndex) {
+        QueryTask shardTask = new QueryTask();
+        shardTask.documentKind = task.documentKind;
+        shardTask.documentSelfLink = task.documentSelfLink;
+        shardTask.documentExpirationTimeMicros = task.documentExpirationTimeMicros;
+        shardTask.documentOwner = task.documentOwner;
+        shardTask.taskInfo = task.taskInfo;
+        shardTask.querySpec = spec;
+        shardTask.nodeSelectorLink = task.nodeSelectorLink;
+        shardTask.indexLink = getShardLink(shardIndex);
+        return shardTask;
+    }
+
+    private void forward(Operation op, int shardIndex) {
+        if (hasOption(ServiceOption.INSTRUMENTATION)) {
+            adjustStat(this.routedRequestStatNames[shardIndex], 1);
+        }
+        this.shards[shardIndex].handleRequest(op);
+    }
+
+    private int getShardIndex(String documentKind, String selfLink) {
+        String key;
+        if (this.policy == ShardingPolicy.DOCUMENT_KIND) {
+            if (documentKind != null) {
+                Integer shardIndex = this.kindShards.get(documentKind);
+                if (shardIndex != null) {
+                    return shardIndex;
+                }
+            }
+            key = documentKind;
+        } else {
+            key = selfLink;
+        }
+        if (key == null) {
+            return 0;
+        }
+        return Math.floorMod(key.hashCode(), this.shards.length);
+    }
+
+    /**
+     * Returns the document kind the query is restricted to, through a term on the kind field
+     * that every result must match, or null
+     */
+    static String findRequiredKind(QueryTask.Query q) {
+        if (q == null || q.occurance == Occurance.MUST_NOT_OCCUR) {
+            return null;
+        }
+
+        if (q.term != null) {
+            if (ServiceDocument.FIELD_NAME_KIND.equals(q.term.propertyName)
+                    && (q.term.matchType == null || q.term.matchType == MatchType.TERM)) {
+                return q.term.matchValue;
+            }
+            return null;
+        }
+
+        if (q.booleanClauses == null) {
+            return null;
+        }
+
+        for (QueryTask.Query clause : q.booleanClauses) {
+            // a single SHOULD clause is required, just like a MUST clause
+            if (clause.occurance == Occurance.SHOULD_OCCUR && q.booleanClauses.size() > 1) {
+                continue;
+            }
+            String kind = findRequiredKind(clause);
+            if (kind != null) {
+                return kind;
+            }
+        }
+        return null;
+    }
+}
@@ -210,6 +210,27 @@ public class TestOperation extends BasicReusableHostTestCase {
         }
     }
 
+    @Test
+    public void setBodyClearsSerializedBody() {
+        MinimalTestServiceState request = new MinimalTestServiceState();
+        request.id = "request";
+        MinimalTestServiceState response = new MinimalTestServiceState();
+        response.id = "response";
+
+        // converting a JSON request body caches it, a new body must not be converted from it
+        Operation op = Operation.createPatch(this.host.getUri())
+                .setBodyNoCloning(Utils.toJson(request))
+                .setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+        assertEquals(request.id, op.getBody(MinimalTestServiceState.class).id);
+        op.setBodyNoCloning(response);
+        assertEquals(response.id, op.getBody(MinimalTestServiceState.class).id);
+
+        op.setBodyNoCloning(Utils.toJson(request));
+        assertEquals(request.id, op.getBody(MinimalTestServiceState.class).id);
+        op.setBody(response);
+        assertEquals(response.id, op.getBody(MinimalTestServiceState.class).id);
+    }
+
     @Test
     public void addRemoveHeaders() {
         Operation op = Operation.createGet(this.host.getUri());
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -115,6 +116,46 @@ public class TestOperationQueue {
         return q;
     }
 
+    @Test
+    public void replicationPriorityAndAdaptiveLimit() throws Throwable {
+        int limit = OperationQueue.ADAPTIVE_MIN_LIMIT * 4;
+        OperationQueue q = OperationQueue.createLifo(limit);
+        Operation clientOp = Operation.createPatch(null);
+        Operation replicatedOp = Operation.createPatch(null).setFromReplication(true);
+        assertTrue(q.offer(clientOp));
+        assertTrue(q.offer(replicatedOp));
+        assertEquals(replicatedOp, q.poll());
+        assertEquals(clientOp, q.poll());
+
+        // sojourn times above target for a full interval halve the client request limit
+        q.setAdaptive(true);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(q.offer(Operation.createPatch(null)));
+        }
+        long sleepMillis = TimeUnit.MICROSECONDS.toMillis(OperationQueue.ADAPTIVE_TARGET_SOJOURN_MICROS
+                + OperationQueue.ADAPTIVE_INTERVAL_MICROS) + 10;
+        Thread.sleep(sleepMillis / 2);
+        q.poll();
+        Thread.sleep(sleepMillis);
+        q.poll();
+        assertEquals(limit / 2, q.getEffectiveLimit());
+
+        int admitted = 1;
+        while (q.offer(Operation.createPatch(null))) {
+            admitted++;
+        }
+        assertEquals(limit / 2, admitted);
+
+        // replication requests are still admitted, up to the configured limit
+        assertTrue(q.offer(Operation.createPatch(null).setFromReplication(true)));
+
+        // short sojourn times restore the limit
+        q.clear();
+        assertTrue(q.offer(Operation.createPatch(null)));
+        q.poll();
+        assertEquals(limit, q.getEffectiveLimit());
+    }
+
     @Test
     public void toCollection() {
         OperationQueue q = OperationQueue.createFifo(this.count);
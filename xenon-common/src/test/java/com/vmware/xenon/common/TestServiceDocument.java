@@ -107,6 +107,43 @@ public class TestServiceDocument {
         assertEquals(range.to, clone.to);
     }
 
+    @Test
+    public void testDeltaCreateAndApply() {
+        QueryValidationTestService.QueryValidationServiceState base =
+                new QueryValidationTestService.QueryValidationServiceState();
+        base.id = SOME_STRING_VALUE;
+        base.stringValue = SOME_OTHER_STRING_VALUE;
+        base.documentVersion = 1;
+        base.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+
+        QueryValidationTestService.QueryValidationServiceState target = Utils.clone(base);
+        target.stringValue = SOME_IGNORE_VALUE;
+        target.documentVersion = 2;
+        target.documentOwner = "owner";
+
+        ServiceDocumentDelta delta = ServiceDocumentDelta.create(base.documentVersion,
+                ServiceDocumentDelta.toContentBytes(base), target,
+                ServiceDocumentDelta.toContentBytes(target));
+
+        // a peer sets its own update time, which is not part of the delta content
+        QueryValidationTestService.QueryValidationServiceState peerBase = Utils.clone(base);
+        peerBase.documentUpdateTimeMicros++;
+        QueryValidationTestService.QueryValidationServiceState result =
+                (QueryValidationTestService.QueryValidationServiceState) delta.apply(peerBase);
+        assertNotNull(result);
+        assertEquals(SOME_STRING_VALUE, result.id);
+        assertEquals(SOME_IGNORE_VALUE, result.stringValue);
+        assertEquals(target.documentVersion, result.documentVersion);
+        assertEquals(target.documentOwner, result.documentOwner);
+
+        // base version or content mismatch
+        peerBase.documentVersion = 0;
+        assertNull(delta.apply(peerBase));
+        peerBase.documentVersion = base.documentVersion;
+        peerBase.id = SOME_OTHER_IGNORE_VALUE;
+        assertNull(delta.apply(peerBase));
+    }
+
     /**
      * Test merging partially defined patch object.
      */
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,7 +34,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -48,6 +51,7 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceHost.ServiceAlreadyStartedException;
 import com.vmware.xenon.common.ServiceHost.ServiceHostState;
@@ -61,6 +65,7 @@ import com.vmware.xenon.common.test.MinimalTestServiceState;
 import com.vmware.xenon.common.test.TestContext;
 import com.vmware.xenon.common.test.TestProperty;
 import com.vmware.xenon.common.test.VerificationHost;
+import com.vmware.xenon.common.test.VerificationHost.WaitHandler;
 import com.vmware.xenon.services.common.AuthorizationContextService;
 import com.vmware.xenon.services.common.ExampleService;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
@@ -72,10 +77,12 @@ import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
 import com.vmware.xenon.services.common.NodeState;
 import com.vmware.xenon.services.common.ServiceHostManagementService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
+import com.vmware.xenon.services.common.UpdateIndexRequest;
 
 public class TestServiceHost {
 
     private static final int MAINTENANCE_INTERVAL_MILLIS = 100;
+    private static final long MAX_LOCAL_DISPATCH_BYTES_PER_OP = 16 * 1024;
 
     private VerificationHost host;
 
@@ -129,6 +136,234 @@ public class TestServiceHost {
         this.host.testWait();
     }
 
+    @Test
+    public void elasticExecutor() throws Throwable {
+        setUp(false);
+        long blockingMillis = 20;
+        int count = Utils.DEFAULT_THREAD_COUNT * 4;
+        Set<String> sharedThreads = ConcurrentHashMap.newKeySet();
+        Set<String> elasticThreads = ConcurrentHashMap.newKeySet();
+        Service shared = startBlockingService(false, blockingMillis, sharedThreads);
+        Service elastic = startBlockingService(true, blockingMillis, elasticThreads);
+
+        // handlers of services with BLOCKING_HANDLERS run on the elastic executor, which adds
+        // threads while handlers block, so throughput is not bound by the processor count
+        for (Service s : new Service[] { shared, elastic }) {
+            long start = System.nanoTime();
+            this.host.testStart(count);
+            for (int i = 0; i < count; i++) {
+                this.host.send(Operation.createGet(s.getUri())
+                        .setCompletion(this.host.getCompletion()));
+            }
+            this.host.testWait();
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            this.host.log("%s: %f blocking ops/sec", s.getSelfLink(), count / seconds);
+        }
+
+        for (String name : sharedThreads) {
+            assertFalse(name.contains("/elastic/"));
+        }
+        for (String name : elasticThreads) {
+            assertTrue(name.contains("/elastic/"));
+        }
+
+        ExecutorService exec = this.host.allocateExecutor(elastic, 2);
+        assertTrue(exec instanceof ElasticExecutor);
+        exec.shutdownNow();
+
+        URI statsUri = UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK);
+        WaitHandler statsUpdated = () -> {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            ServiceStat peak = stats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_ELASTIC_PEAK_THREAD_COUNT);
+            return peak != null && peak.latestValue > 0;
+        };
+        this.host.waitFor("elastic executor stats not updated", statsUpdated);
+
+        // in ELASTIC mode every handler runs on the elastic executor
+        ServiceHost.Arguments args = VerificationHost.buildDefaultServiceHostArguments(0);
+        args.executorMode = ServiceHost.ExecutorMode.ELASTIC;
+        VerificationHost elasticHost = VerificationHost.create(args);
+        try {
+            elasticHost.start();
+            assertEquals(ServiceHost.ExecutorMode.ELASTIC, elasticHost.getExecutorMode());
+            assertTrue(elasticHost.getExecutor() instanceof ElasticExecutor);
+            elasticHost.startServiceAndWait(MinimalTestService.class,
+                    UUID.randomUUID().toString());
+        } finally {
+            elasticHost.tearDown();
+        }
+    }
+
+    @Test
+    public void compactServiceStateCache() throws Throwable {
+        ServiceHost.Arguments args = VerificationHost.buildDefaultServiceHostArguments(0);
+        args.serviceStateCacheMode = ServiceHost.ServiceStateCacheMode.COMPACT;
+        this.host = VerificationHost.create(args);
+        this.host.setMaintenanceIntervalMicros(TimeUnit.MILLISECONDS.toMicros(100));
+        this.host.start();
+
+        int count = 10;
+        List<URI> exampleUris = new ArrayList<>();
+        this.host.createExampleServices(this.host, count, exampleUris, null);
+        ExampleServiceState patchBody = new ExampleServiceState();
+        patchBody.counter = 456L;
+        this.host.testStart(count);
+        for (URI u : exampleUris) {
+            this.host.send(Operation.createPatch(u)
+                    .setBody(patchBody)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        Map<URI, ExampleServiceState> states = this.host.getServiceState(null,
+                ExampleServiceState.class, exampleUris);
+        for (ExampleServiceState st : states.values()) {
+            assertEquals(Long.valueOf(456), st.counter);
+            assertEquals(1, st.documentVersion);
+        }
+
+        URI statsUri = UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK);
+        WaitHandler statsUpdated = () -> {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            ServiceStat hits = stats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_STATE_CACHE_HIT_COUNT);
+            ServiceStat entries = stats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_STATE_CACHE_ENTRY_COUNT);
+            return hits != null && hits.latestValue >= count
+                    && entries != null && entries.latestValue >= count;
+        };
+        this.host.waitFor("state cache stats not updated", statsUpdated);
+
+        // lowering the byte limit evicts state not accessed since the clock hand last passed it
+        ServiceStateCache cache = new ServiceStateCache(Long.MAX_VALUE);
+        for (ExampleServiceState st : states.values()) {
+            assertTrue(cache.put(st.documentSelfLink, st));
+        }
+        String first = states.values().iterator().next().documentSelfLink;
+        assertNotNull(cache.get(first));
+        long limit = cache.getByteCount() / 2;
+        cache.setByteLimit(limit);
+        assertTrue(cache.getByteCount() <= limit);
+        assertTrue(cache.getEvictionCount() > 0);
+        ExampleServiceState cached = (ExampleServiceState) cache.get(first);
+        assertEquals(first, cached.documentSelfLink);
+        assertNull(cache.get(UUID.randomUUID().toString()));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void writeBehindPersistence() throws Throwable {
+        setUp(false);
+        this.host.setMaintenanceIntervalMicros(TimeUnit.MILLISECONDS.toMicros(100));
+        // hold updates in the queue until the test flushes them
+        ServiceWriteBehindQueue queue = ((ServiceHost) this.host).getWriteBehindQueue();
+        queue.setFlushIntervalMicros(TimeUnit.HOURS.toMicros(1));
+
+        Service s = new StatefulService(ExampleServiceState.class);
+        s.toggleOption(ServiceOption.PERSISTENCE, true);
+        s.toggleOption(ServiceOption.WRITE_BEHIND_PERSISTENCE, true);
+        ExampleServiceState initialState = new ExampleServiceState();
+        initialState.name = UUID.randomUUID().toString();
+        initialState.counter = 0L;
+        s = this.host.startServiceAndWait(s, UUID.randomUUID().toString(), initialState);
+
+        int count = 10;
+        for (int i = 1; i <= count; i++) {
+            ExampleServiceState putBody = new ExampleServiceState();
+            putBody.name = initialState.name;
+            putBody.counter = (long) i;
+            this.host.testStart(1);
+            this.host.send(Operation.createPut(s.getUri())
+                    .setBody(putBody)
+                    .setCompletion(this.host.getCompletion()));
+            this.host.testWait();
+        }
+
+        // updates completed before reaching the index, and were coalesced into one write
+        assertEquals(1, queue.size());
+        assertEquals(count - 1, queue.getCoalescedCount());
+        assertEquals(count, queue.getState(s.getSelfLink()).documentVersion);
+        URI indexUri = UriUtils.buildDocumentQueryUri(this.host, s.getSelfLink(), false, false,
+                s.getOptions());
+        ExampleServiceState indexed = this.host.getServiceState(null, ExampleServiceState.class,
+                indexUri);
+        assertEquals(0, indexed.documentVersion);
+        ExampleServiceState state = this.host.getServiceState(null, ExampleServiceState.class,
+                s.getUri());
+        assertEquals(Long.valueOf(count), state.counter);
+
+        // stopping the service writes the queued state
+        this.host.testStart(1);
+        this.host.send(Operation.createDelete(s.getUri())
+                .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_INDEX_UPDATE)
+                .setCompletion(this.host.getCompletion()));
+        this.host.testWait();
+        assertTrue(queue.flushAll(TimeUnit.SECONDS.toMicros(10)));
+        indexed = this.host.getServiceState(null, ExampleServiceState.class, indexUri);
+        assertEquals(count, indexed.documentVersion);
+        assertEquals(Long.valueOf(count), indexed.counter);
+
+        URI statsUri = UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK);
+        WaitHandler statsUpdated = () -> {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            ServiceStat writes = stats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_WRITE_COUNT);
+            ServiceStat depth = stats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_WRITE_BEHIND_QUEUE_DEPTH);
+            return writes != null && writes.latestValue == 1
+                    && depth != null && depth.latestValue == 0;
+        };
+        this.host.waitFor("write behind stats not updated", statsUpdated);
+
+        // a failed write stays queued, and is retried until a newer version replaces it
+        queue.setFlushIntervalMicros(TimeUnit.MILLISECONDS.toMicros(10));
+        String path = UUID.randomUUID().toString();
+        ExampleServiceState failing = new ExampleServiceState();
+        failing.documentSelfLink = path;
+        UpdateIndexRequest failingWrite = new UpdateIndexRequest();
+        // the index rejects a document without an update action
+        failingWrite.document = failing;
+        long failureCount = queue.getFailureCount();
+        queue.enqueue(path, failingWrite);
+        queue.flush(path);
+        this.host.waitFor("failed write not retried",
+                () -> queue.getFailureCount() >= failureCount + 2);
+        assertTrue(queue.hasPendingWrite(path));
+        assertEquals(path, queue.getState(path).documentSelfLink);
+
+        ExampleServiceState valid = Utils.clone(indexed);
+        valid.documentSelfLink = path;
+        valid.documentVersion = 1;
+        valid.documentUpdateAction = Action.PUT.toString();
+        UpdateIndexRequest validWrite = new UpdateIndexRequest();
+        validWrite.document = valid;
+        validWrite.description = ServiceDocumentDescription.Builder.create()
+                .buildDescription(ExampleServiceState.class);
+        queue.enqueue(path, validWrite);
+        assertTrue(queue.flushAll(TimeUnit.SECONDS.toMicros(10)));
+        assertFalse(queue.hasPendingWrite(path));
+    }
+
+    private Service startBlockingService(boolean isElastic, long blockingMillis,
+            Set<String> threadNames) throws Throwable {
+        Service s = new StatelessService() {
+            @Override
+            public void handleRequest(Operation op) {
+                threadNames.add(Thread.currentThread().getName());
+                try {
+                    Thread.sleep(blockingMillis);
+                } catch (InterruptedException e) {
+                    op.fail(e);
+                    return;
+                }
+                op.complete();
+            }
+        };
+        s.toggleOption(ServiceOption.BLOCKING_HANDLERS, isElastic);
+        return this.host.startServiceAndWait(s, UUID.randomUUID().toString(), null);
+    }
+
     @Test
     public void requestRateLimits() throws Throwable {
         setUp(true);
@@ -179,6 +414,72 @@ public class TestServiceHost {
         this.host.testWait();
 
         assertTrue(failureCount.get() > 0);
+
+        // throttled requests are counted per key, on the management service
+        this.host.resetAuthorizationContext();
+        this.host.setSystemAuthorizationContext();
+        URI mgmtStatsUri = UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK);
+        String statName = userPath
+                + ServiceHostManagementService.STAT_NAME_SUFFIX_THROTTLED_REQUEST_COUNT;
+        WaitHandler statsUpdated = () -> {
+            ServiceStats stats = this.host.getServiceState(null, ServiceStats.class,
+                    mgmtStatsUri);
+            ServiceStat st = stats.entries.get(statName);
+            return st != null && st.latestValue > 0;
+        };
+        this.host.waitFor("throttled request stat not updated", statsUpdated);
+        ServiceHostState hostState = this.host.getServiceState(null, ServiceHostState.class,
+                UriUtils.buildUri(this.host, ServiceHostManagementService.SELF_LINK));
+        assertTrue(hostState.requestRateLimits.containsKey(userPath));
+    }
+
+    @Test
+    public void requestRateLimitBurstAndRetryAfter() throws Throwable {
+        ServiceHost.RequestRateInfo ri = new ServiceHost.RequestRateInfo();
+        ri.limit = 10;
+        ri.burst = 5;
+        long now = Utils.getNowMicrosUtc();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, ri.tryAcquire(now));
+        }
+        // a full bucket refills one token every 100ms
+        long retryAfterMicros = ri.tryAcquire(now);
+        assertTrue(retryAfterMicros > 0);
+        assertTrue(retryAfterMicros <= TimeUnit.MILLISECONDS.toMicros(100));
+        assertEquals(1, ri.throttledCount.sum());
+        assertEquals(0, ri.tryAcquire(now + retryAfterMicros));
+        assertTrue(ri.tryAcquire(now + retryAfterMicros) > 0);
+
+        // a token refunded, after another limit rejected the request, is available again
+        ri.release();
+        assertEquals(0, ri.tryAcquire(now + retryAfterMicros));
+        assertTrue(ri.tryAcquire(now + retryAfterMicros) > 0);
+
+        // limits keyed by factory link apply to the factory and its children
+        setUp(false);
+        String factoryLink = ExampleService.FACTORY_LINK;
+        this.host.setRequestRateLimit(factoryLink, 1.0, 2);
+        AtomicInteger failureCount = new AtomicInteger();
+        String[] retryAfter = new String[1];
+        CompletionHandler c = (o, e) -> {
+            if (e != null && o.getStatusCode() == Operation.STATUS_CODE_UNAVAILABLE) {
+                failureCount.incrementAndGet();
+                retryAfter[0] = o.getResponseHeader(Operation.RETRY_AFTER_HEADER);
+            }
+            this.host.completeIteration();
+        };
+        int count = 10;
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            ExampleServiceState body = new ExampleServiceState();
+            body.name = UUID.randomUUID().toString();
+            this.host.send(Operation.createPost(UriUtils.buildUri(this.host, factoryLink))
+                    .setBody(body)
+                    .setCompletion(c));
+        }
+        this.host.testWait();
+        assertEquals(count - 2, failureCount.get());
+        assertTrue(Integer.parseInt(retryAfter[0]) >= 1);
     }
 
     @Test
@@ -1043,6 +1344,41 @@ public class TestServiceHost {
         }
     }
 
+    @Test
+    public void maintenanceIntervalBeyondFirstWheelLevel() throws Throwable {
+        setUp(false);
+        this.host.setMaintenanceIntervalMicros(TimeUnit.MILLISECONDS.toMicros(20));
+
+        // an interval longer than a rotation of the first wheel level is held in a higher
+        // level and cascades down as it approaches expiration
+        long intervalMicros = TimeUnit.MILLISECONDS.toMicros(600);
+        MinimalTestService ts = new MinimalTestService();
+        ts.toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
+        ts.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        ts.setMaintenanceIntervalMicros(intervalMicros);
+        long start = Utils.getNowMicrosUtc();
+        ts = (MinimalTestService) this.host.startServiceAndWait(ts, UUID.randomUUID().toString(),
+                this.host.buildMinimalTestState());
+        URI statsUri = UriUtils.buildStatsUri(ts.getUri());
+
+        Thread.sleep(TimeUnit.MICROSECONDS.toMillis(intervalMicros) / 2);
+        ServiceStats stats = this.host.getServiceState(null, ServiceStats.class, statsUri);
+        assertNull(stats.entries.get(Service.STAT_NAME_MAINTENANCE_COUNT));
+
+        WaitHandler maintenanceDone = () -> {
+            ServiceStats st = this.host.getServiceState(null, ServiceStats.class, statsUri);
+            ServiceStat count = st.entries.get(Service.STAT_NAME_MAINTENANCE_COUNT);
+            return count != null && count.latestValue >= 2;
+        };
+        this.host.waitFor("periodic maintenance did not run", maintenanceDone);
+        assertTrue(Utils.getNowMicrosUtc() - start >= intervalMicros * 2);
+
+        stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK));
+        assertNotNull(stats.entries
+                .get(ServiceHostManagementService.STAT_NAME_MAINTENANCE_LAG_MICROS));
+    }
+
     private void verifyMaintenanceDelayStat(long intervalMicros) throws Throwable {
         // verify state on maintenance delay takes hold
         this.host.setMaintenanceIntervalMicros(intervalMicros);
@@ -1278,6 +1614,92 @@ public class TestServiceHost {
         this.host.testWait();
     }
 
+    /**
+     * Micro benchmark for in-process request dispatch. Reports latency and bytes allocated, on
+     * all threads, per local GET to a stateless service and per local PATCH to a stateful
+     * service. Run with -Dxenon.requestCount=N for stable numbers
+     */
+    @Test
+    public void localDispatchLatencyAndAllocations() throws Throwable {
+        setUp(false);
+        Service stateless = new StatelessService() {
+            @Override
+            public void handleGet(Operation get) {
+                get.complete();
+            }
+        };
+        this.host.startServiceAndWait(stateless, UUID.randomUUID().toString(), null);
+        Service stateful = this.host.startServiceAndWait(MinimalTestService.class,
+                UUID.randomUUID().toString());
+
+        int count = Math.max(this.requestCount, 1000);
+        MinimalTestServiceState body = (MinimalTestServiceState) this.host
+                .buildMinimalTestState();
+        for (int i = 0; i < 2; i++) {
+            // first pass warms up the dispatch path, second pass reports
+            boolean isWarmup = i == 0;
+            long getBytesPerOp = measureLocalDispatch(Action.GET, stateless.getUri(), null,
+                    count, isWarmup);
+            long patchBytesPerOp = measureLocalDispatch(Action.PATCH, stateful.getUri(), body,
+                    count, isWarmup);
+            if (isWarmup) {
+                continue;
+            }
+            // a generous bound, allocations of other host threads are included. It catches a
+            // per request copy of a document or of the service options
+            assertTrue("GET bytes/op: " + getBytesPerOp,
+                    getBytesPerOp < MAX_LOCAL_DISPATCH_BYTES_PER_OP);
+            assertTrue("PATCH bytes/op: " + patchBytesPerOp,
+                    patchBytesPerOp < MAX_LOCAL_DISPATCH_BYTES_PER_OP);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated per request, across all threads, or -1 if the JVM does not
+     * report thread allocations
+     */
+    private long measureLocalDispatch(Action action, URI uri, Object body, int count,
+            boolean isWarmup) throws Throwable {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        boolean isAllocationSupported = threadBean.isThreadAllocatedMemorySupported()
+                && threadBean.isThreadAllocatedMemoryEnabled();
+
+        CompletionHandler c = this.host.getCompletion();
+        long allocatedBefore = isAllocationSupported ? getAllocatedBytes(threadBean) : 0;
+        long start = System.nanoTime();
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            Operation op = Operation.createGet(uri).setAction(action).setCompletion(c);
+            if (body != null) {
+                op.setBody(body);
+            }
+            this.host.send(op);
+        }
+        this.host.testWait();
+        long elapsed = System.nanoTime() - start;
+        long allocated = isAllocationSupported ? getAllocatedBytes(threadBean) - allocatedBefore
+                : -1;
+
+        long bytesPerOp = allocated < 0 ? -1 : allocated / count;
+        if (!isWarmup) {
+            this.host.log("Local %s, count: %d, ns/op: %d, bytes allocated/op: %d", action,
+                    count, elapsed / count, bytesPerOp);
+        }
+        return bytesPerOp;
+    }
+
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long total = 0;
+        for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            // threads that exited report -1. Their allocations are not counted
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
     @Test
     public void servicePauseDueToMemoryPressure() throws Throwable {
         setUp(true);
@@ -1396,6 +1818,15 @@ public class TestServiceHost {
                     throw new IllegalStateException("No resumes observed");
                 }
             }
+
+            ServiceStats mgmtStats = this.host.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(this.host, ServiceHostManagementService.SELF_LINK));
+            ServiceStat hostPauseStat = mgmtStats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_PAUSE_COUNT);
+            ServiceStat hostResumeStat = mgmtStats.entries
+                    .get(ServiceHostManagementService.STAT_NAME_SERVICE_RESUME_COUNT);
+            assertTrue(hostPauseStat != null && hostPauseStat.latestValue >= states.size());
+            assertTrue(hostResumeStat != null && hostResumeStat.latestValue >= states.size());
             return;
         }
 
@@ -1533,6 +1964,65 @@ public class TestServiceHost {
         return statUris;
     }
 
+    @Test
+    public void serviceRegistryLookup() throws Throwable {
+        ServiceRegistry registry = new ServiceRegistry();
+        String[] links = { "/a", "/a/b", "/ab", "/a/bc", "/core/ns", "/core/ns/child" };
+        Map<String, Service> services = new HashMap<>();
+        for (String link : links) {
+            Service s = new MinimalTestService();
+            s.setSelfLink(link);
+            if (link.equals("/core/ns")) {
+                s.toggleOption(ServiceOption.URI_NAMESPACE_OWNER, true);
+            }
+            services.put(link, s);
+            assertNull(registry.put(link, s));
+        }
+        assertEquals(links.length, registry.size());
+
+        // exact, trailing slash and missing leading slash
+        assertEquals(services.get("/a/b"), registry.get("/a/b"));
+        assertNull(registry.get("/a/"));
+        assertEquals(services.get("/a/b"), registry.findService("/a/b/", true));
+        assertEquals(services.get("/a/b"), registry.findService("a/b", true));
+        assertNull(registry.findService("/a/bcd", true));
+
+        // helper paths resolve to the utility service of the parent
+        Service stats = registry.findService("/a/bc" + ServiceHost.SERVICE_URI_SUFFIX_STATS, true);
+        assertNotNull(stats);
+        assertNotSame(services.get("/a/bc"), stats);
+
+        // longest namespace owner prefix, only if an exact match is not required
+        assertEquals(services.get("/core/ns"), registry.findService("/core/ns/other/x", false));
+        assertEquals(services.get("/core/ns/child"),
+                registry.findService("/core/ns/child", false));
+        assertNull(registry.findService("/core/ns/other/x", true));
+        assertNull(registry.findService("/core/n", false));
+
+        // prefix enumeration visits the sub tree, in self link order
+        List<String> children = new ArrayList<>();
+        for (Service s : registry.valuesWithPrefix("/a/")) {
+            children.add(s.getSelfLink());
+        }
+        assertEquals(2, children.size());
+        assertEquals("/a/b", children.get(0));
+        assertEquals("/a/bc", children.get(1));
+        assertEquals(2, registry.valuesWithPrefix("/a/b").size());
+        assertEquals(4, registry.valuesWithPrefix("/a").size());
+        assertEquals(0, registry.valuesWithPrefix("/x").size());
+
+        // removal keeps the other entries reachable
+        assertEquals(services.get("/a/b"), registry.remove("/a/b"));
+        assertNull(registry.remove("/a/b"));
+        assertEquals(services.get("/a/bc"), registry.get("/a/bc"));
+        assertEquals(services.get("/a"), registry.remove("/a"));
+        assertEquals(services.get("/ab"), registry.get("/ab"));
+        assertEquals(services.get("/core/ns"), registry.remove("/core/ns"));
+        assertNull(registry.findService("/core/ns/other/x", false));
+        assertEquals(links.length - 3, registry.size());
+        assertEquals(links.length - 3, registry.values().size());
+    }
+
     @Test
     public void getAvailableServicesWithOptions() throws Throwable {
         setUp(false);
@@ -17,20 +17,27 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
 import com.vmware.xenon.common.DefaultHandlerTestService.DefaultHandlerState;
 import com.vmware.xenon.common.Operation.CompletionHandler;
+import com.vmware.xenon.common.Service.Action;
 import com.vmware.xenon.common.Service.ServiceOption;
 import com.vmware.xenon.common.ServiceStats.ServiceStat;
 import com.vmware.xenon.common.test.MinimalTestServiceState;
@@ -502,6 +509,251 @@ public class TestStatefulService extends BasicReusableHostTestCase {
         verifyOperationQueueLimit(fifoService.getUri(), limit);
     }
 
+    @Test
+    public void mailboxDispatch() throws Throwable {
+        // operations posted to a mailbox are dispatched in order, across multiple drain runs
+        List<Integer> dispatched = new ArrayList<>();
+        StatefulService s = new StatefulService(ServiceDocument.class) {
+            @Override
+            public void handleRequest(Operation op) {
+                dispatched.add(op.getBody(Integer.class));
+                op.complete();
+            }
+        };
+        s.setHost(this.host);
+        ServiceMailbox mailbox = s.getOrCreateMailbox();
+
+        int count = ServiceMailbox.DRAIN_LIMIT * 4;
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            mailbox.post(Operation.createPatch(this.host.getUri())
+                    .setBody(i)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+        assertTrue(mailbox.isEmpty());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, dispatched.get(i).intValue());
+        }
+
+        // concurrent updates to a serialized service are all applied, one version each
+        Service minimal = this.host.startServiceAndWait(new MinimalTestService(),
+                UUID.randomUUID().toString(), this.host.buildMinimalTestState());
+        // reads are dispatched directly, the mailbox is created for the first update
+        this.host.getServiceState(null, MinimalTestServiceState.class, minimal.getUri());
+        assertTrue(((StatefulService) minimal).getMailbox() == null);
+        int updateCount = 100;
+        this.host.testStart(updateCount);
+        for (int i = 0; i < updateCount; i++) {
+            MinimalTestServiceState body = (MinimalTestServiceState) this.host
+                    .buildMinimalTestState();
+            Operation patch = Operation.createPatch(minimal.getUri())
+                    .setBody(body)
+                    .setCompletion(this.host.getCompletion());
+            ForkJoinPool.commonPool().execute(() -> this.host.send(patch));
+        }
+        this.host.testWait();
+        assertTrue(((StatefulService) minimal).getMailbox() != null);
+        MinimalTestServiceState state = this.host.getServiceState(null,
+                MinimalTestServiceState.class, minimal.getUri());
+        assertEquals(updateCount, state.documentVersion);
+    }
+
+    @Test
+    public void operationQueueDropsExpiredRequests() throws Throwable {
+        // the first update is held by the handler, so the second one waits in the queue
+        AtomicReference<Operation> heldUpdate = new AtomicReference<>();
+        StatefulService service = new DefaultHandlerTestService() {
+            @Override
+            public void handlePatch(Operation patch) {
+                heldUpdate.set(patch);
+            }
+        };
+        service.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        DefaultHandlerState initialState = new DefaultHandlerState();
+        initialState.stateString = UUID.randomUUID().toString();
+        service = (StatefulService) this.host.startServiceAndWait(service,
+                UUID.randomUUID().toString(), initialState);
+
+        this.host.testStart(2);
+        this.host.send(Operation.createPatch(service.getUri())
+                .setBody(initialState)
+                .setCompletion(this.host.getCompletion()));
+        this.host.waitFor("update was not dispatched", () -> heldUpdate.get() != null);
+
+        // queue the request directly, since the mailbox drops requests that already expired
+        Operation expiredUpdate = Operation.createPatch(service.getUri())
+                .setBody(initialState)
+                .setReferer(this.host.getUri())
+                .setExpiration(1)
+                .setCompletion((o, e) -> {
+                    if (e instanceof TimeoutException
+                            && o.getStatusCode() == Operation.STATUS_CODE_TIMEOUT) {
+                        this.host.completeIteration();
+                        return;
+                    }
+                    this.host.failIteration(new IllegalStateException(
+                            "expected timeout, got " + o.getStatusCode()));
+                });
+        assertTrue(service.queueRequest(expiredUpdate));
+        heldUpdate.get().complete();
+        this.host.testWait();
+
+        Map<String, ServiceStat> stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(service.getUri())).entries;
+        ServiceStat expired = stats.get(Service.STAT_NAME_OPERATION_QUEUE_EXPIRED_COUNT);
+        assertTrue(expired != null && expired.latestValue == 1);
+        ServiceStat sojourn = stats.get(Service.STAT_NAME_OPERATION_QUEUE_SOJOURN);
+        assertTrue(sojourn != null && sojourn.logHistogram != null);
+    }
+
+    @Test
+    public void concurrentGetCoalescing() throws Throwable {
+        // GETs are held before the service handler runs, so identical GETs sent meanwhile join
+        // the first one in flight
+        StatefulService service = new DefaultHandlerTestService() {
+            @Override
+            public void handleRequest(Operation op, OperationProcessingStage stage) {
+                if (op.getAction() == Action.GET
+                        && stage == OperationProcessingStage.PROCESSING_FILTERS) {
+                    getHost().schedule(() -> super.handleRequest(op, stage), 250,
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+                super.handleRequest(op, stage);
+            }
+        };
+        service.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        DefaultHandlerState initialState = new DefaultHandlerState();
+        initialState.stateString = UUID.randomUUID().toString();
+        service = (StatefulService) this.host.startServiceAndWait(service,
+                UUID.randomUUID().toString(), initialState);
+
+        int count = 100;
+        List<DefaultHandlerState> bodies = Collections.synchronizedList(new ArrayList<>());
+        CompletionHandler c = (o, e) -> {
+            if (e != null) {
+                this.host.failIteration(e);
+                return;
+            }
+            bodies.add(o.getBody(DefaultHandlerState.class));
+            this.host.completeIteration();
+        };
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            this.host.send(Operation.createGet(service.getUri()).setCompletion(c));
+        }
+        this.host.testWait();
+
+        // every local requester receives its own copy of the shared result
+        Set<DefaultHandlerState> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(bodies);
+        assertEquals(count, distinct.size());
+        for (DefaultHandlerState body : bodies) {
+            assertEquals(initialState.stateString, body.stateString);
+        }
+
+        Map<String, ServiceStat> stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(service.getUri())).entries;
+        ServiceStat coalesced = stats.get(Service.STAT_NAME_COALESCED_GET_COUNT);
+        assertTrue(coalesced != null && coalesced.latestValue > 0);
+
+        // updates are not blocked by GETs that completed through coalescing
+        DefaultHandlerState patchBody = new DefaultHandlerState();
+        patchBody.stateString = UUID.randomUUID().toString();
+        this.host.testStart(1);
+        this.host.send(Operation.createPut(service.getUri())
+                .setBody(patchBody)
+                .setCompletion(this.host.getCompletion()));
+        this.host.testWait();
+        DefaultHandlerState state = this.host.getServiceState(null, DefaultHandlerState.class,
+                service.getUri());
+        assertEquals(patchBody.stateString, state.stateString);
+    }
+
+    @Test
+    public void pipelinedUpdates() throws Throwable {
+        StatefulService service = new DefaultHandlerTestService() {
+            @Override
+            public void handlePatch(Operation patch) {
+                DefaultHandlerState state = getState(patch);
+                state.stateInt += patch.getBody(DefaultHandlerState.class).stateInt;
+                patch.setBody(state).complete();
+            }
+        };
+        service.toggleOption(ServiceOption.PERSISTENCE, true);
+        service.toggleOption(ServiceOption.PIPELINED_UPDATES, true);
+        service.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        DefaultHandlerState initialState = new DefaultHandlerState();
+        initialState.stateString = UUID.randomUUID().toString();
+        service = (StatefulService) this.host.startServiceAndWait(service,
+                UUID.randomUUID().toString(), initialState);
+
+        // every increment is applied, each on the state of the previous one, and committed
+        // with a distinct version
+        int count = 100;
+        Set<Long> versions = Collections.synchronizedSet(new HashSet<>());
+        CompletionHandler c = (o, e) -> {
+            if (e != null) {
+                this.host.failIteration(e);
+                return;
+            }
+            versions.add(o.getBody(DefaultHandlerState.class).documentVersion);
+            this.host.completeIteration();
+        };
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            DefaultHandlerState body = new DefaultHandlerState();
+            body.stateInt = 1;
+            this.host.send(Operation.createPatch(service.getUri()).setBody(body)
+                    .setCompletion(c));
+        }
+        this.host.testWait();
+        assertEquals(count, versions.size());
+
+        DefaultHandlerState state = this.host.getServiceState(null, DefaultHandlerState.class,
+                service.getUri());
+        assertEquals(count, state.documentVersion);
+        assertEquals(count, state.stateInt);
+
+        // updates were admitted while earlier ones were still being committed, so the average
+        // pipeline depth is above one
+        Map<String, ServiceStat> stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(service.getUri())).entries;
+        ServiceStat depthStat = stats.get(Service.STAT_NAME_PIPELINED_UPDATE_DEPTH);
+        assertTrue(depthStat != null);
+        assertTrue(depthStat.accumulatedValue > depthStat.version);
+
+        // replication fails for every update, so speculative state is never committed
+        StatefulService replicated = new DefaultHandlerTestService();
+        replicated.toggleOption(ServiceOption.PIPELINED_UPDATES, true);
+        replicated.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        replicated.toggleOption(ServiceOption.REPLICATION, true);
+        DefaultHandlerState replicatedState = new DefaultHandlerState();
+        replicatedState.stateString = initialState.stateString;
+        replicatedState.documentSelfLink = UUID.randomUUID().toString();
+        replicated = (StatefulService) this.host.startServiceAndWait(replicated,
+                replicatedState.documentSelfLink, replicatedState);
+        replicated.setPeerNodeSelectorPath(ServiceUriPaths.CORE + "/node-selectors/missing");
+
+        this.host.testStart(count);
+        for (int i = 0; i < count; i++) {
+            DefaultHandlerState body = new DefaultHandlerState();
+            body.stateString = UUID.randomUUID().toString();
+            this.host.send(Operation.createPut(replicated.getUri())
+                    .setBody(body)
+                    .setCompletion(this.host.getExpectedFailureCompletion()));
+        }
+        this.host.testWait();
+
+        state = this.host.getServiceState(null, DefaultHandlerState.class, replicated.getUri());
+        assertEquals(initialState.stateString, state.stateString);
+        stats = this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(replicated.getUri())).entries;
+        ServiceStat rollbacks = stats.get(Service.STAT_NAME_PIPELINED_UPDATE_ROLLBACK_COUNT);
+        assertTrue(rollbacks != null && rollbacks.latestValue > 0);
+    }
+
     private void verifyOperationQueueLimit(URI serviceUri, int limit) throws Throwable {
         // testing that limit was applied is tricky: the runtime can process over 1M ops/sec on a
         // modern machine, so we need to make sure we issue enough that some fail before the queue is
@@ -26,7 +26,9 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -37,6 +39,9 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -70,8 +75,10 @@ import com.vmware.xenon.common.test.MinimalTestServiceState;
 import com.vmware.xenon.common.test.TestProperty;
 import com.vmware.xenon.common.test.VerificationHost;
 import com.vmware.xenon.services.common.ExampleService.ExampleServiceState;
+import com.vmware.xenon.services.common.LuceneQueryScheduler.RequestClass;
 import com.vmware.xenon.services.common.QueryTask.Query.Occurance;
 import com.vmware.xenon.services.common.QueryTask.QuerySpecification.QueryOption;
+import com.vmware.xenon.services.common.ShardedDocumentIndexService.ShardingPolicy;
 
 class FaultInjectionLuceneDocumentIndexService extends LuceneDocumentIndexService {
     /*
@@ -996,6 +1003,151 @@ public class TestLuceneDocumentIndexService extends BasicReportTestCase {
         this.host.testWait();
     }
 
+    @Test
+    public void queryScheduling() throws Throwable {
+        int threadCount = 2;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            AtomicInteger recordedWaits = new AtomicInteger();
+            LuceneQueryScheduler scheduler = new LuceneQueryScheduler(executor, threadCount, 2,
+                    (c, waitMicros) -> recordedWaits.incrementAndGet());
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+            // occupy the only thread available to queries, with two threads one is reserved
+            // for point lookups
+            CountDownLatch running = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            assertTrue(scheduler.submit(RequestClass.QUERY, "a", () -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+
+            // principal "a" floods the queue, up to its admission limit. Principal "b" issues
+            // a single query
+            CountDownLatch queriesDone = new CountDownLatch(3);
+            for (int i = 0; i < 2; i++) {
+                String name = "a" + i;
+                assertTrue(scheduler.submit(RequestClass.QUERY, "a", () -> {
+                    order.add(name);
+                    queriesDone.countDown();
+                }));
+            }
+            assertTrue(!scheduler.submit(RequestClass.QUERY, "a", () -> order.add("rejected")));
+            assertTrue(scheduler.submit(RequestClass.QUERY, "b", () -> {
+                order.add("b0");
+                queriesDone.countDown();
+            }));
+
+            // point lookups are not blocked by the running query
+            CountDownLatch lookupDone = new CountDownLatch(1);
+            assertTrue(scheduler.submit(RequestClass.POINT_LOOKUP, "", () -> {
+                order.add("lookup");
+                lookupDone.countDown();
+            }));
+            assertTrue(lookupDone.await(10, TimeUnit.SECONDS));
+
+            release.countDown();
+            assertTrue(queriesDone.await(10, TimeUnit.SECONDS));
+
+            // principals take turns
+            assertEquals(Arrays.asList("lookup", "a0", "b0", "a1"), order);
+            assertEquals(5, recordedWaits.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shardedIndex() throws Throwable {
+        VerificationHost h = VerificationHost.create(0);
+        ShardedDocumentIndexService index = new ShardedDocumentIndexService(3,
+                ShardingPolicy.DOCUMENT_KIND);
+        index.toggleOption(ServiceOption.INSTRUMENTATION, true);
+        String exampleKind = Utils.buildKind(ExampleServiceState.class);
+        index.setKindShard(exampleKind, 1);
+        h.setDocumentIndexingService(index);
+        h.setPeerSynchronizationEnabled(false);
+        try {
+            h.start();
+            int count = 10;
+            List<URI> exampleUris = new ArrayList<>();
+            h.createExampleServices(h, count, exampleUris, null);
+
+            // factory GET, merged across shards
+            ServiceDocumentQueryResult factoryRsp = h.getFactoryState(
+                    UriUtils.buildUri(h, ExampleService.FACTORY_LINK));
+            assertEquals(count, factoryRsp.documentLinks.size());
+
+            // restricted to the example kind: runs on the shard holding the examples only
+            QueryTask.QuerySpecification kindSpec = new QueryTask.QuerySpecification();
+            kindSpec.query = QueryTask.Query.Builder.create()
+                    .addKindFieldClause(ExampleServiceState.class).build();
+            h.createAndWaitSimpleDirectQuery(kindSpec, count, count);
+
+            // not restricted to a kind: runs on all shards, results merged by self link
+            QueryTask.QuerySpecification prefixSpec = new QueryTask.QuerySpecification();
+            prefixSpec.query = QueryTask.Query.Builder.create()
+                    .addFieldClause(ServiceDocument.FIELD_NAME_SELF_LINK,
+                            ExampleService.FACTORY_LINK + UriUtils.URI_PATH_CHAR
+                                    + UriUtils.URI_WILDCARD_CHAR,
+                            QueryTask.QueryTerm.MatchType.WILDCARD)
+                    .build();
+            ServiceDocumentQueryResult fanOutRsp = h.createAndWaitSimpleDirectQuery(prefixSpec,
+                    count, count);
+            List<String> sortedLinks = new ArrayList<>(fanOutRsp.documentLinks);
+            Collections.sort(sortedLinks);
+            assertEquals(sortedLinks, fanOutRsp.documentLinks);
+
+            // paginated query across all shards
+            QueryTask pagedTask = QueryTask.Builder.createDirectTask()
+                    .setQuery(prefixSpec.query)
+                    .setResultLimit(3)
+                    .build();
+            h.createQueryTaskService(pagedTask, false, true, pagedTask, null);
+            Set<String> pagedLinks = new HashSet<>();
+            String nextPageLink = pagedTask.results.nextPageLink;
+            while (nextPageLink != null) {
+                QueryTask page = h.getServiceState(null, QueryTask.class,
+                        UriUtils.buildUri(h, nextPageLink));
+                pagedLinks.addAll(page.results.documentLinks);
+                nextPageLink = page.results.nextPageLink;
+            }
+            assertEquals(new HashSet<>(factoryRsp.documentLinks), pagedLinks);
+
+            // sorting on other fields is not supported across shards
+            QueryTask sortedTask = QueryTask.Builder.createDirectTask()
+                    .setQuery(prefixSpec.query)
+                    .orderAscending(ExampleServiceState.FIELD_NAME_NAME,
+                            ServiceDocumentDescription.TypeName.STRING)
+                    .build();
+            h.testStart(1);
+            h.send(Operation.createPost(UriUtils.buildUri(h, ServiceUriPaths.CORE_QUERY_TASKS))
+                    .setBody(sortedTask)
+                    .setCompletion(h.getExpectedFailureCompletion()));
+            h.testWait();
+
+            ServiceStats stats = h.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(h, ShardedDocumentIndexService.SELF_LINK));
+            assertTrue(stats.entries.get(
+                    ShardedDocumentIndexService.STAT_NAME_SINGLE_SHARD_QUERY_COUNT).latestValue >= 1);
+            assertTrue(stats.entries.get(
+                    ShardedDocumentIndexService.STAT_NAME_FAN_OUT_QUERY_COUNT).latestValue >= 3);
+            ServiceStat exampleShardStat = stats.entries.get(ShardedDocumentIndexService.SHARD_LINK_PREFIX
+                    + 1 + ShardedDocumentIndexService.STAT_NAME_SUFFIX_ROUTED_REQUEST_COUNT);
+            assertTrue(exampleShardStat.latestValue >= count);
+
+            // every shard is a document index service with its own statistics
+            h.waitForServiceAvailable(ShardedDocumentIndexService.getShardLink(2));
+        } finally {
+            h.tearDown();
+        }
+    }
+
     @Test
     public void throughputPut() throws Throwable {
         doDurableServiceUpdate(Action.PUT, this.serviceCount, this.updateCount, null);
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -30,6 +31,7 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -48,6 +50,7 @@ import org.junit.rules.TemporaryFolder;
 
 import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.NodeSelectorService;
 import com.vmware.xenon.common.NodeSelectorService.SelectAndForwardRequest;
 import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
 import com.vmware.xenon.common.NodeSelectorState;
@@ -84,7 +87,11 @@ import com.vmware.xenon.services.common.MinimalTestService.MinimalTestServiceErr
 import com.vmware.xenon.services.common.NodeGroupService.JoinPeerRequest;
 import com.vmware.xenon.services.common.NodeGroupService.NodeGroupConfig;
 import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+import com.vmware.xenon.services.common.NodeSelectorReplicationService.ReplicationBatch;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestRequest;
+import com.vmware.xenon.services.common.NodeSelectorSynchronizationService.ChildServiceDigestResponse;
 import com.vmware.xenon.services.common.NodeState.NodeOption;
+import com.vmware.xenon.services.common.NodeState.NodeStatus;
 import com.vmware.xenon.services.common.QueryTask.Query;
 import com.vmware.xenon.services.common.QueryTask.QueryTerm.MatchType;
 import com.vmware.xenon.services.common.ReplicationTestService.ReplicationTestServiceErrorResponse;
@@ -118,6 +125,24 @@ public class TestNodeGroupService {
 
     }
 
+    /**
+     * Node group that fails gossip requests from one node, while still answering probes
+     */
+    public static class GossipPatchFailingNodeGroupService extends NodeGroupService {
+        public volatile String failedPatchSenderId;
+
+        @Override
+        public void handlePatch(Operation patch) {
+            NodeGroupState body = patch.getBody(NodeGroupState.class);
+            if (body.documentOwner != null && body.documentOwner.equals(this.failedPatchSenderId)) {
+                patch.fail(new IllegalStateException("gossip from " + body.documentOwner
+                        + " failed by test"));
+                return;
+            }
+            super.handlePatch(patch);
+        }
+    }
+
     private static final String CUSTOM_NODE_GROUP_NAME = "custom";
     private static final String CUSTOM_NODE_GROUP = UriUtils.buildUriPath(
             ServiceUriPaths.NODE_GROUP_FACTORY,
@@ -304,6 +329,49 @@ public class TestNodeGroupService {
         this.host = null;
     }
 
+    @Test
+    public void nodeHashRingSelection() throws Throwable {
+        Random r = new Random(1);
+        for (int nodeCount : new int[] { 1, 2, 3, 5, 16 }) {
+            NodeGroupState ngs = new NodeGroupState();
+            for (int i = 0; i < nodeCount; i++) {
+                NodeState ns = new NodeState();
+                ns.id = UUID.randomUUID().toString();
+                ns.status = i == 1 ? NodeStatus.UNAVAILABLE : NodeStatus.AVAILABLE;
+                ngs.nodes.put(ns.id, ns);
+            }
+
+            for (int neighbourCount = 1; neighbourCount <= nodeCount + 1; neighbourCount++) {
+                ConsistentHashingNodeSelectorService.NodeHashRing ring =
+                        new ConsistentHashingNodeSelectorService.NodeHashRing(ngs,
+                                neighbourCount);
+                for (int k = 0; k < 1000; k++) {
+                    String key = "/core/examples/" + r.nextLong();
+                    // reference selection, a pass over all nodes ordered by squared distance
+                    int keyHash = ConsistentHashingNodeSelectorService.NodeHashRing.hash(key);
+                    Map<Long, NodeState> closest = new TreeMap<>();
+                    for (NodeState ns : ngs.nodes.values()) {
+                        if (NodeState.isUnAvailable(ns)) {
+                            continue;
+                        }
+                        long distance = ConsistentHashingNodeSelectorService.NodeHashRing
+                                .hash(ns.id) - keyHash;
+                        closest.put(distance * distance, ns);
+                    }
+                    List<NodeState> expected = new ArrayList<>(closest.values());
+                    expected = expected.subList(0, Math.min(neighbourCount, expected.size()));
+
+                    ConsistentHashingNodeSelectorService.NodeHashRing.Selection selection =
+                            ring.select(key);
+                    assertEquals(expected.get(0), selection.owner);
+                    assertEquals(expected, new ArrayList<>(selection.selectedNodes));
+                    // cached selections are returned for repeated keys
+                    assertTrue(selection == ring.select(key));
+                }
+            }
+        }
+    }
+
     @Test
     public void commandLineJoinRetries() throws Throwable {
         this.host = VerificationHost.create(0);
@@ -567,6 +635,326 @@ public class TestNodeGroupService {
         doNodeStopWithUpdates(exampleStatesPerSelfLink);
     }
 
+    @Test
+    public void synchronizationWithRateLimit() throws Throwable {
+        setUp(this.nodeCount);
+        // limits below the child count, so both hold synchronizations back
+        int rateLimit = Math.max(1, this.serviceCount / 2);
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            h.setChildSynchronizationRateLimit(rateLimit);
+            h.setChildSynchronizationConcurrencyLimit(2);
+        }
+
+        // children exist only on one host, and are synchronized to the others after the join
+        URI hostUriWithInitialState = this.host.getPeerHostUri();
+        Map<String, ExampleServiceState> exampleStatesPerSelfLink =
+                createExampleServices(hostUriWithInitialState);
+        for (URI hostUri : this.host.getNodeGroupMap().keySet()) {
+            this.host.waitForReplicatedFactoryServiceAvailable(UriUtils.buildUri(hostUri,
+                    ExampleService.FACTORY_LINK));
+        }
+
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+        waitForReplicatedFactoryChildServiceConvergence(
+                getFactoriesPerNodeGroup(ExampleService.FACTORY_LINK),
+                exampleStatesPerSelfLink, this.exampleStateConvergenceChecker,
+                exampleStatesPerSelfLink.size(), 0);
+
+        // the factory owner publishes the progress of the last synchronization
+        this.host.waitFor("synchronization stats not published", () -> {
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                        ServiceStats.class,
+                        UriUtils.buildStatsUri(h, ExampleService.FACTORY_LINK)).entries;
+                ServiceStat count = stats.get(FactoryService.STAT_NAME_CHILD_SYNCH_COUNT);
+                ServiceStat remaining = stats.get(
+                        FactoryService.STAT_NAME_CHILD_SYNCH_REMAINING_COUNT);
+                ServiceStat rate = stats.get(
+                        FactoryService.STAT_NAME_CHILD_SYNCH_RATE_PER_SECOND);
+                if (count != null && count.latestValue >= exampleStatesPerSelfLink.size()
+                        && remaining != null && remaining.latestValue == 0
+                        && rate != null && rate.latestValue > 0) {
+                    return true;
+                }
+            }
+            return false;
+        });
+
+        // the host limits held synchronizations back
+        this.host.waitFor("synchronization limits not applied", () -> {
+            double concurrencyLimitedCount = 0;
+            double rateLimitedCount = 0;
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                        ServiceStats.class, UriUtils.buildStatsUri(h,
+                                ServiceHostManagementService.SELF_LINK)).entries;
+                ServiceStat st = stats.get(ServiceHostManagementService
+                        .STAT_NAME_CHILD_SYNCH_CONCURRENCY_LIMITED_COUNT);
+                concurrencyLimitedCount += st == null ? 0 : st.latestValue;
+                st = stats.get(
+                        ServiceHostManagementService.STAT_NAME_CHILD_SYNCH_RATE_LIMITED_COUNT);
+                rateLimitedCount += st == null ? 0 : st.latestValue;
+            }
+            return concurrencyLimitedCount > 0 && rateLimitedCount > 0;
+        });
+    }
+
+    @Test
+    public void synchronizationSkipsAgreedChildren() throws Throwable {
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+        for (URI hostUri : this.host.getNodeGroupMap().keySet()) {
+            this.host.waitForReplicatedFactoryServiceAvailable(UriUtils.buildUri(hostUri,
+                    ExampleService.FACTORY_LINK));
+        }
+
+        Map<String, ExampleServiceState> exampleStatesPerSelfLink =
+                createExampleServices(this.host.getPeerHostUri());
+        waitForReplicatedFactoryChildServiceConvergence(
+                getFactoriesPerNodeGroup(ExampleService.FACTORY_LINK),
+                exampleStatesPerSelfLink, this.exampleStateConvergenceChecker,
+                exampleStatesPerSelfLink.size(), 0);
+
+        // all nodes report the same digests for the children they have started
+        this.host.waitFor("child digests did not converge", () -> {
+            long[] firstDigests = null;
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                ChildServiceDigestResponse rsp = getChildServiceDigest(h);
+                if (rsp.childCount != exampleStatesPerSelfLink.size()
+                        || !rsp.ownerMismatchRanges.isEmpty()) {
+                    return false;
+                }
+                if (firstDigests != null && !Arrays.equals(firstDigests, rsp.rangeDigests)) {
+                    return false;
+                }
+                firstDigests = rsp.rangeDigests;
+            }
+            return true;
+        });
+
+        // a synchronization with no node group change skips all children
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            h.scheduleNodeGroupChangeMaintenance(ServiceUriPaths.DEFAULT_NODE_SELECTOR);
+        }
+        this.host.waitFor("children were not skipped", () -> {
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                        ServiceStats.class,
+                        UriUtils.buildStatsUri(h, ExampleService.FACTORY_LINK)).entries;
+                ServiceStat skipped = stats.get(
+                        FactoryService.STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT);
+                if (skipped != null
+                        && skipped.latestValue == exampleStatesPerSelfLink.size()) {
+                    return true;
+                }
+            }
+            return false;
+        });
+
+        // a replica updated on its node only diverges from the other nodes. Its range is
+        // synchronized instead of skipped, and the highest version converges on all nodes
+        String divergedLink = exampleStatesPerSelfLink.keySet().iterator().next();
+        ExampleServiceState divergedState = this.host.getServiceState(null,
+                ExampleServiceState.class,
+                UriUtils.buildUri(this.host.getPeerHostUri(), divergedLink));
+        VerificationHost replicaHost = null;
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            if (!h.getId().equals(divergedState.documentOwner)) {
+                replicaHost = h;
+                break;
+            }
+        }
+        divergedState.name = "diverged";
+        divergedState.documentVersion++;
+        Operation replicaUpdate = Operation.createPut(UriUtils.buildUri(replicaHost,
+                divergedLink))
+                .setBody(divergedState)
+                .setFromReplication(true)
+                .setTargetReplicated(true);
+        this.host.sendAndWaitExpectSuccess(replicaUpdate);
+
+        // only a synchronization that runs after the divergence counts, so remember the
+        // version of the skipped count stat on each node
+        int childCount = exampleStatesPerSelfLink.size();
+        Map<String, Long> skippedStatVersions = new HashMap<>();
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            ServiceStat skipped = getFactoryStat(h, ExampleService.FACTORY_LINK,
+                    FactoryService.STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT);
+            skippedStatVersions.put(h.getId(), skipped == null ? 0 : skipped.version);
+        }
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            h.scheduleNodeGroupChangeMaintenance(ServiceUriPaths.DEFAULT_NODE_SELECTOR);
+        }
+        this.host.waitFor("diverged child was skipped", () -> {
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                ServiceStat skipped = getFactoryStat(h, ExampleService.FACTORY_LINK,
+                        FactoryService.STAT_NAME_CHILD_SYNCH_SKIPPED_COUNT);
+                if (skipped != null && skipped.version > skippedStatVersions.get(h.getId())
+                        && skipped.latestValue < childCount) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            URI indexUri = UriUtils.buildDocumentQueryUri(h, divergedLink, false, false,
+                    ServiceOption.PERSISTENCE);
+            this.host.waitFor("diverged child did not converge", () -> {
+                ExampleServiceState st = this.host.getServiceState(null,
+                        ExampleServiceState.class, indexUri);
+                return st.documentVersion >= divergedState.documentVersion
+                        && "diverged".equals(st.name);
+            });
+        }
+    }
+
+    private ServiceStat getFactoryStat(VerificationHost h, String factoryLink,
+            String statName) throws Throwable {
+        return this.host.getServiceState(null, ServiceStats.class,
+                UriUtils.buildStatsUri(h, factoryLink)).entries.get(statName);
+    }
+
+    private ChildServiceDigestResponse getChildServiceDigest(VerificationHost h)
+            throws Throwable {
+        ChildServiceDigestResponse[] rsp = new ChildServiceDigestResponse[1];
+        URI synchUri = UriUtils.buildUri(h, UriUtils.buildUriPath(
+                ServiceUriPaths.DEFAULT_NODE_SELECTOR,
+                ServiceUriPaths.SERVICE_URI_SUFFIX_SYNCHRONIZATION));
+        this.host.testStart(1);
+        this.host.send(Operation.createPost(synchUri)
+                .setBody(ChildServiceDigestRequest.create(ExampleService.FACTORY_LINK))
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.failIteration(e);
+                        return;
+                    }
+                    rsp[0] = o.getBody(ChildServiceDigestResponse.class);
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+        return rsp[0];
+    }
+
+    @Test
+    public void deltaGossipAndIndirectProbe() throws Throwable {
+        int hostCount = Math.max(this.nodeCount, 8);
+        NodeGroupConfig fullGossipConfig = new NodeGroupConfig();
+        fullGossipConfig.deltaGossipCount = 0;
+        double[] full = measureGossipConvergence(hostCount, fullGossipConfig);
+        tearDown();
+        double[] delta = measureGossipConvergence(hostCount, new NodeGroupConfig());
+        this.host.log("Node group of %d converged in %d micros with full gossip, %.1f entries "
+                + "per request, and in %d micros with delta gossip, %.1f entries per request",
+                hostCount, (long) full[0], full[1], (long) delta[0], delta[1]);
+
+        // delta gossip sends fewer entries per request, without slowing down convergence. The
+        // slack covers the variance of the convergence checks, done every few intervals
+        assertTrue(delta[1] < full[1]);
+        assertTrue(delta[0] <= 2 * full[0]
+                + 10 * this.host.getMaintenanceIntervalMicros());
+
+        // a node probes a peer on behalf of another node
+        List<VerificationHost> hosts = new ArrayList<>(this.host.getInProcessHostMap().values());
+        URI nodeGroupUri = UriUtils.buildUri(hosts.get(0), ServiceUriPaths.DEFAULT_NODE_GROUP);
+        URI peerNodeGroupUri = UriUtils.buildUri(hosts.get(1),
+                ServiceUriPaths.DEFAULT_NODE_GROUP);
+        this.host.sendAndWaitExpectSuccess(Operation.createPost(nodeGroupUri)
+                .setBody(NodeGroupService.ProbePeerRequest.create(peerNodeGroupUri)));
+
+        // only members of the group are probed
+        URI nonMemberNodeGroupUri = UriUtils.buildUri(peerNodeGroupUri.getScheme(),
+                peerNodeGroupUri.getHost(), 1, ServiceUriPaths.DEFAULT_NODE_GROUP, null);
+        TestContext ctx = this.host.testCreate(1);
+        this.host.send(Operation.createPost(nodeGroupUri)
+                .setBody(NodeGroupService.ProbePeerRequest.create(nonMemberNodeGroupUri))
+                .setCompletion((o, e) -> {
+                    if (e != null && o.getStatusCode() == Operation.STATUS_CODE_BAD_REQUEST) {
+                        ctx.completeIteration();
+                        return;
+                    }
+                    ctx.failIteration(new IllegalStateException(
+                            "expected bad request, got " + o.getStatusCode()));
+                }));
+        this.host.testWait(ctx);
+    }
+
+    /**
+     * Joins the hosts with the supplied node group configuration, and returns the time the
+     * group took to converge, through the convergence check, and the number of node entries
+     * per gossip request, once each host sent another 2 * deltaGossipCount requests
+     */
+    private double[] measureGossipConvergence(int hostCount, NodeGroupConfig config)
+            throws Throwable {
+        setUp(hostCount);
+        this.host.setNodeGroupConfig(config);
+        long startMicros = Utils.getNowMicrosUtc();
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+        long convergenceMicros = Utils.getNowMicrosUtc() - startMicros;
+
+        long minRequestCount = 2 * new NodeGroupConfig().deltaGossipCount;
+        Map<URI, Double> requestCountAtConvergence = new HashMap<>();
+        double[] counts = new double[2];
+        this.host.waitFor("gossip requests not sent", () -> {
+            counts[0] = 0;
+            counts[1] = 0;
+            boolean isDone = true;
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                        ServiceStats.class,
+                        UriUtils.buildStatsUri(h, ServiceUriPaths.DEFAULT_NODE_GROUP)).entries;
+                ServiceStat requestCount = stats.get(
+                        NodeGroupService.STAT_NAME_GOSSIP_REQUEST_COUNT);
+                ServiceStat entryCount = stats.get(
+                        NodeGroupService.STAT_NAME_GOSSIP_NODE_ENTRY_COUNT);
+                if (requestCount == null || entryCount == null) {
+                    isDone = false;
+                    continue;
+                }
+                counts[0] += requestCount.latestValue;
+                counts[1] += entryCount.latestValue;
+                Double start = requestCountAtConvergence.putIfAbsent(h.getUri(),
+                        requestCount.latestValue);
+                if (start == null || requestCount.latestValue - start < minRequestCount) {
+                    isDone = false;
+                }
+            }
+            return isDone;
+        });
+        return new double[] { convergenceMicros, counts[1] / counts[0] };
+    }
+
+    @Test
+    public void indirectProbeKeepsPeerAvailable() throws Throwable {
+        setUp(this.nodeCount);
+        String nodeGroupPath = UriUtils.buildUriPath(ServiceUriPaths.NODE_GROUP_FACTORY,
+                "probe");
+        List<VerificationHost> hosts = new ArrayList<>(this.host.getInProcessHostMap().values());
+        VerificationHost sender = hosts.get(0);
+        VerificationHost peer = hosts.get(1);
+        GossipPatchFailingNodeGroupService peerNodeGroup =
+                new GossipPatchFailingNodeGroupService();
+        for (VerificationHost h : hosts) {
+            h.startServiceAndWait(h == peer ? peerNodeGroup : new NodeGroupService(),
+                    nodeGroupPath, new NodeGroupState());
+        }
+        this.host.joinNodesAndVerifyConvergence(nodeGroupPath, this.nodeCount, this.nodeCount,
+                null);
+
+        // gossip from the sender to the peer now fails, but the other members reach the peer
+        // on behalf of the sender, so the peer stays available
+        peerNodeGroup.failedPatchSenderId = sender.getId();
+        URI senderNodeGroupUri = UriUtils.buildUri(sender, nodeGroupPath);
+        this.host.waitFor("indirect probe did not succeed", () -> {
+            Map<String, ServiceStat> stats = this.host.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(senderNodeGroupUri)).entries;
+            ServiceStat st = stats.get(NodeGroupService.STAT_NAME_INDIRECT_PROBE_SUCCESS_COUNT);
+            return st != null && st.latestValue > 0;
+        });
+        NodeGroupState ngs = this.host.getServiceState(null, NodeGroupState.class,
+                senderNodeGroupUri);
+        assertEquals(NodeStatus.AVAILABLE, ngs.nodes.get(peer.getId()).status);
+    }
+
     private void doExampleServicePatch(Map<String, ExampleServiceState> states,
             URI nodeGroupOnSomeHost) throws Throwable {
         this.host.log("Starting PATCH to %d example services", states.size());
@@ -1295,6 +1683,484 @@ public class TestNodeGroupService {
         doReplication();
     }
 
+    @Test
+    public void replicationWithDelta() throws Throwable {
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            h.startServiceAndWait(FactoryService.create(DeltaReplicationExampleService.class),
+                    DeltaReplicationExampleService.FACTORY_LINK, null);
+        }
+        URI factoryUri = this.host.getPeerServiceUri(DeltaReplicationExampleService.FACTORY_LINK);
+        this.host.waitForReplicatedFactoryServiceAvailable(factoryUri);
+
+        // a large document, updated by small PATCHes
+        ExampleServiceState initialState = new ExampleServiceState();
+        initialState.name = UUID.randomUUID().toString();
+        initialState.counter = 0L;
+        for (int i = 0; i < 100; i++) {
+            initialState.keyValues.put(UUID.randomUUID().toString(),
+                    UUID.randomUUID().toString());
+        }
+        ExampleServiceState[] created = new ExampleServiceState[1];
+        this.host.testStart(1);
+        this.host.send(Operation.createPost(factoryUri)
+                .setBody(initialState)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        this.host.failIteration(e);
+                        return;
+                    }
+                    created[0] = o.getBody(ExampleServiceState.class);
+                    this.host.completeIteration();
+                }));
+        this.host.testWait();
+
+        String link = created[0].documentSelfLink;
+        int updateCount = 10;
+        for (int i = 1; i <= updateCount; i++) {
+            ExampleServiceState patchBody = new ExampleServiceState();
+            patchBody.counter = (long) i;
+            this.host.sendAndWaitExpectSuccess(Operation.createPatch(
+                    UriUtils.buildUri(factoryUri, link)).setBody(patchBody));
+        }
+
+        // every peer indexed the final version, rebuilt from the deltas
+        ExampleServiceState ownerState = this.host.getServiceState(null,
+                ExampleServiceState.class, UriUtils.buildUri(factoryUri, link));
+        assertEquals(updateCount, (long) ownerState.counter);
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            URI indexUri = UriUtils.buildDocumentQueryUri(h, link, false, false,
+                    ServiceOption.PERSISTENCE);
+            this.host.waitFor("replica did not converge", () -> {
+                ExampleServiceState st = this.host.getServiceState(null,
+                        ExampleServiceState.class, indexUri);
+                return st.documentVersion >= ownerState.documentVersion
+                        && st.counter == updateCount
+                        && st.keyValues.equals(initialState.keyValues);
+            });
+        }
+
+        double deltaBytes = 0;
+        double fullStateBytes = 0;
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            Map<String, ServiceStat> stats = this.host.getServiceState(null, ServiceStats.class,
+                    UriUtils.buildStatsUri(UriUtils.buildUri(h, link))).entries;
+            ServiceStat st = stats.get(Service.STAT_NAME_REPLICATION_DELTA_BYTES);
+            deltaBytes = Math.max(deltaBytes, st == null ? 0 : st.latestValue);
+            st = stats.get(Service.STAT_NAME_REPLICATION_FULL_STATE_BYTES);
+            fullStateBytes = Math.max(fullStateBytes, st == null ? 0 : st.latestValue);
+            // replicas applied every delta, no update fell back to the full state
+            st = stats.get(Service.STAT_NAME_REPLICATION_DELTA_MISS_COUNT);
+            assertTrue(st == null || st.latestValue == 0);
+        }
+        assertTrue(deltaBytes > 0);
+        assertTrue(deltaBytes < fullStateBytes);
+    }
+
+    @Test
+    public void replicationMixedWireFormat() throws Throwable {
+        setUp(this.nodeCount - 1);
+        // the last peer advertises no binary wire format, like a node of an older version
+        System.setProperty(NodeState.PROPERTY_NAME_DISABLE_BINARY_WIRE_FORMAT, "true");
+        try {
+            this.host.testStart(1);
+            VerificationHost jsonOnlyHost = this.host.setUpLocalPeerHost(null,
+                    TimeUnit.MILLISECONDS.toMicros(this.host.maintenanceIntervalMillis));
+            this.host.testWait();
+            setUpPeerHostWithAdditionalServices(jsonOnlyHost);
+        } finally {
+            System.clearProperty(NodeState.PROPERTY_NAME_DISABLE_BINARY_WIRE_FORMAT);
+        }
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+
+        URI factoryUri = this.host.getPeerServiceUri(ExampleService.FACTORY_LINK);
+        this.host.waitForReplicatedFactoryServiceAvailable(factoryUri);
+
+        int serviceCount = 10;
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < serviceCount; i++) {
+            ExampleServiceState initialState = new ExampleServiceState();
+            initialState.name = UUID.randomUUID().toString();
+            initialState.counter = 0L;
+            this.host.testStart(1);
+            this.host.send(Operation.createPost(factoryUri)
+                    .setBody(initialState)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            this.host.failIteration(e);
+                            return;
+                        }
+                        links.add(o.getBody(ExampleServiceState.class).documentSelfLink);
+                        this.host.completeIteration();
+                    }));
+            this.host.testWait();
+            String link = links.get(i);
+            ExampleServiceState patchBody = new ExampleServiceState();
+            patchBody.counter = (long) i;
+            this.host.sendAndWaitExpectSuccess(Operation.createPatch(
+                    UriUtils.buildUri(factoryUri, link)).setBody(patchBody));
+        }
+
+        // every peer indexed the update, whichever format its owner sent it in
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            for (int i = 0; i < serviceCount; i++) {
+                URI indexUri = UriUtils.buildDocumentQueryUri(h, links.get(i), false, false,
+                        ServiceOption.PERSISTENCE);
+                long expectedCounter = i;
+                this.host.waitFor("replica did not converge", () -> {
+                    ExampleServiceState st = this.host.getServiceState(null,
+                            ExampleServiceState.class, indexUri);
+                    return st.counter != null && st.counter == expectedCounter;
+                });
+            }
+        }
+
+        // JSON is only sent to or from the JSON only peer, binary between the others
+        this.host.waitFor("peer serialization stats not published", () -> {
+            double binaryCount = 0;
+            double jsonCount = 0;
+            for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+                Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                        ServiceStats.class, UriUtils.buildStatsUri(h,
+                                ServiceHostManagementService.SELF_LINK)).entries;
+                ServiceStat st = stats.get(
+                        ServiceHostManagementService.STAT_NAME_PEER_BINARY_DOCUMENT_COUNT);
+                binaryCount += st == null ? 0 : st.latestValue;
+                st = stats.get(ServiceHostManagementService.STAT_NAME_PEER_JSON_DOCUMENT_COUNT);
+                jsonCount += st == null ? 0 : st.latestValue;
+            }
+            return binaryCount > 0 && jsonCount > 0;
+        });
+    }
+
+    @Test
+    public void replicationBatching() throws Throwable {
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+
+        URI factoryUri = this.host.getPeerServiceUri(ExampleService.FACTORY_LINK);
+        this.host.waitForReplicatedFactoryServiceAvailable(factoryUri);
+
+        // issue the requests concurrently, so replication requests from many services queue
+        // on the channel to each peer, while a batch is in flight
+        int serviceCount = 100;
+        List<String> links = Collections.synchronizedList(new ArrayList<>());
+        this.host.testStart(serviceCount);
+        for (int i = 0; i < serviceCount; i++) {
+            ExampleServiceState initialState = new ExampleServiceState();
+            initialState.name = UUID.randomUUID().toString();
+            initialState.counter = 0L;
+            this.host.send(Operation.createPost(factoryUri)
+                    .setBody(initialState)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            this.host.failIteration(e);
+                            return;
+                        }
+                        links.add(o.getBody(ExampleServiceState.class).documentSelfLink);
+                        this.host.completeIteration();
+                    }));
+        }
+        this.host.testWait();
+
+        ExampleServiceState patchBody = new ExampleServiceState();
+        patchBody.counter = 1L;
+        this.host.testStart(serviceCount);
+        for (String link : links) {
+            this.host.send(Operation.createPatch(UriUtils.buildUri(factoryUri, link))
+                    .setBody(patchBody)
+                    .setCompletion(this.host.getCompletion()));
+        }
+        this.host.testWait();
+
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            for (String link : links) {
+                URI indexUri = UriUtils.buildDocumentQueryUri(h, link, false, false,
+                        ServiceOption.PERSISTENCE);
+                this.host.waitFor("replica did not converge", () -> {
+                    ExampleServiceState st = this.host.getServiceState(null,
+                            ExampleServiceState.class, indexUri);
+                    return st.counter != null && st.counter == 1L;
+                });
+            }
+        }
+
+        double batchCount = 0;
+        double batchedRequestCount = 0;
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                    ServiceStats.class, UriUtils.buildStatsUri(h,
+                            ServiceUriPaths.DEFAULT_NODE_SELECTOR)).entries;
+            ServiceStat st = stats.get(NodeSelectorService.STAT_NAME_REPLICATION_BATCH_COUNT);
+            batchCount += st == null ? 0 : st.latestValue;
+            st = stats.get(NodeSelectorService.STAT_NAME_REPLICATION_BATCHED_REQUEST_COUNT);
+            batchedRequestCount += st == null ? 0 : st.latestValue;
+        }
+        assertTrue(batchCount > 0);
+        assertTrue(batchedRequestCount > batchCount);
+
+        // batches from nodes outside the group are rejected, results included, with 503 so
+        // a node that just joined sends its requests individually
+        ReplicationBatch forged = new ReplicationBatch();
+        forged.senderId = "not-a-peer";
+        forged.results = new ArrayList<>();
+        URI replicationUri = UriUtils.buildUri(this.host.getPeerHost(), UriUtils.buildUriPath(
+                ServiceUriPaths.DEFAULT_NODE_SELECTOR, ServiceHost.SERVICE_URI_SUFFIX_REPLICATION));
+        this.host.sendAndWaitExpectFailure(Operation.createPost(replicationUri).setBody(forged));
+    }
+
+    /**
+     * Starts a node selector attached to the custom group, and a factory using it, on each host.
+     * Returns the replication service of each selector, in the order of the hosts
+     */
+    private List<NodeSelectorReplicationService> setUpCustomNodeSelectors(
+            List<VerificationHost> hosts, String factoryLink) throws Throwable {
+        this.host.createCustomNodeGroupOnPeers(CUSTOM_NODE_GROUP_NAME);
+        List<NodeSelectorReplicationService> replicationServices = new ArrayList<>();
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            NodeSelectorState initialState = new NodeSelectorState();
+            initialState.nodeGroupLink = CUSTOM_NODE_GROUP;
+            ConsistentHashingNodeSelectorService selector =
+                    new ConsistentHashingNodeSelectorService();
+            h.startServiceAndWait(selector, CUSTOM_GROUP_NODE_SELECTOR, initialState);
+            h.startServiceAndWait(CustomNodeGroupFactoryService.class, factoryLink);
+            hosts.add(h);
+            replicationServices.add((NodeSelectorReplicationService) selector
+                    .getUtilityService(ServiceHost.SERVICE_URI_SUFFIX_REPLICATION));
+        }
+        this.host.joinNodesAndVerifyConvergence(CUSTOM_NODE_GROUP, this.nodeCount,
+                this.nodeCount, null);
+        return replicationServices;
+    }
+
+    private Map<URI, ExampleServiceState> createCustomGroupServices(URI factoryUri, int count)
+            throws Throwable {
+        return this.host.doFactoryChildServiceStart(null, count, ExampleServiceState.class,
+                (o) -> {
+                    ExampleServiceState body = new ExampleServiceState();
+                    body.name = UUID.randomUUID().toString();
+                    o.setBody(body);
+                }, factoryUri);
+    }
+
+    @Test
+    public void replicationBatchFailureRetriesResults() throws Throwable {
+        setUp(this.nodeCount);
+        final String customFactoryLink = "custom-factory";
+        List<VerificationHost> hosts = new ArrayList<>();
+        List<NodeSelectorReplicationService> replicationServices = setUpCustomNodeSelectors(
+                hosts, customFactoryLink);
+
+        URI factoryUri = UriUtils.buildUri(hosts.get(0), customFactoryLink);
+        Map<URI, ExampleServiceState> states = createCustomGroupServices(factoryUri,
+                this.serviceCount);
+
+        // the first host rejects batches from the second, as if the second just joined. The
+        // results the second host returns to the first fail with their batch, and must be sent
+        // again once the first host accepts them. Updates wait for all peers, so a lost result
+        // fails its update
+        VerificationHost receiver = hosts.get(0);
+        VerificationHost sender = hosts.get(1);
+        NodeSelectorReplicationService receiverReplication = replicationServices.get(0);
+        URI receiverGroupUri = UriUtils.buildUri(receiver, CUSTOM_NODE_GROUP);
+        NodeGroupState groupWithoutSender = this.host.getServiceState(null,
+                NodeGroupState.class, receiverGroupUri);
+        groupWithoutSender.nodes.remove(sender.getId());
+
+        TestContext ctx = this.host.testCreate(states.size());
+        for (Entry<URI, ExampleServiceState> e : states.entrySet()) {
+            ExampleServiceState putBody = new ExampleServiceState();
+            putBody.name = e.getValue().name;
+            putBody.counter = 1L;
+            this.host.send(Operation.createPut(e.getKey())
+                    .setBody(putBody)
+                    .addRequestHeader(Operation.REPLICATION_QUORUM_HEADER,
+                            Operation.REPLICATION_QUORUM_HEADER_VALUE_ALL)
+                    .setCompletion(ctx.getCompletion()));
+        }
+
+        URI senderStatsUri = UriUtils.buildStatsUri(sender, CUSTOM_GROUP_NODE_SELECTOR);
+        this.host.waitFor("batch from sender did not fail", () -> {
+            // the node selector refreshes the group state on group changes, remove the sender
+            // again until one of its batches fails
+            receiverReplication.setNodeGroupState(groupWithoutSender);
+            ServiceStat st = this.host.getServiceState(null, ServiceStats.class,
+                    senderStatsUri).entries.get(
+                            NodeSelectorService.STAT_NAME_REPLICATION_BATCH_FAILURE_COUNT);
+            return st != null && st.latestValue > 0;
+        });
+        receiverReplication.setNodeGroupState(this.host.getServiceState(null,
+                NodeGroupState.class, receiverGroupUri));
+        this.host.testWait(ctx);
+
+        for (URI childUri : states.keySet()) {
+            ExampleServiceState st = this.host.getServiceState(null, ExampleServiceState.class,
+                    childUri);
+            assertEquals(Long.valueOf(1L), st.counter);
+        }
+    }
+
+    @Test
+    public void replicationWithSyncPeerCount() throws Throwable {
+        setUp(this.nodeCount);
+        this.host.joinNodesAndVerifyConvergence(this.host.getPeerCount());
+
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            h.startServiceAndWait(FactoryService.create(SyncPeerExampleService.class),
+                    SyncPeerExampleService.FACTORY_LINK, null);
+        }
+        URI factoryUri = this.host.getPeerServiceUri(SyncPeerExampleService.FACTORY_LINK);
+        this.host.waitForReplicatedFactoryServiceAvailable(factoryUri);
+
+        int serviceCount = 10;
+        List<String> links = Collections.synchronizedList(new ArrayList<>());
+        this.host.testStart(serviceCount);
+        for (int i = 0; i < serviceCount; i++) {
+            ExampleServiceState initialState = new ExampleServiceState();
+            initialState.name = UUID.randomUUID().toString();
+            initialState.counter = 0L;
+            this.host.send(Operation.createPost(factoryUri)
+                    .setBody(initialState)
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            this.host.failIteration(e);
+                            return;
+                        }
+                        links.add(o.getBody(ExampleServiceState.class).documentSelfLink);
+                        this.host.completeIteration();
+                    }));
+        }
+        this.host.testWait();
+
+        ExampleServiceState patchBody = new ExampleServiceState();
+        patchBody.counter = 1L;
+        for (String link : links) {
+            this.host.sendAndWaitExpectSuccess(Operation.createPatch(
+                    UriUtils.buildUri(factoryUri, link)).setBody(patchBody));
+        }
+
+        // peers outside the synchronous peer count are updated in the background
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            for (String link : links) {
+                URI indexUri = UriUtils.buildDocumentQueryUri(h, link, false, false,
+                        ServiceOption.PERSISTENCE);
+                this.host.waitFor("replica did not converge", () -> {
+                    ExampleServiceState st = this.host.getServiceState(null,
+                            ExampleServiceState.class, indexUri);
+                    return st.counter != null && st.counter == 1L;
+                });
+            }
+        }
+
+        double asyncRequestCount = 0;
+        double asyncFailureCount = 0;
+        for (VerificationHost h : this.host.getInProcessHostMap().values()) {
+            Map<String, ServiceStat> stats = this.host.getServiceState(null,
+                    ServiceStats.class, UriUtils.buildStatsUri(h,
+                            ServiceUriPaths.DEFAULT_NODE_SELECTOR)).entries;
+            ServiceStat st = stats.get(
+                    NodeSelectorService.STAT_NAME_REPLICATION_ASYNC_REQUEST_COUNT);
+            asyncRequestCount += st == null ? 0 : st.latestValue;
+            st = stats.get(NodeSelectorService.STAT_NAME_REPLICATION_ASYNC_FAILURE_COUNT);
+            asyncFailureCount += st == null ? 0 : st.latestValue;
+        }
+        // all but one peer of each PATCH are updated asynchronously
+        assertTrue(asyncRequestCount >= serviceCount * (this.nodeCount - 2));
+        assertEquals(0, asyncFailureCount, 0);
+
+        // the peers with the lowest replication latency are updated synchronously
+        NodeState slow = createPeerNodeState("slow");
+        NodeState fast = createPeerNodeState("fast");
+        NodeState medium = createPeerNodeState("medium");
+        Map<String, Long> latencyByPeer = new HashMap<>();
+        latencyByPeer.put(slow.id, 3000L);
+        latencyByPeer.put(fast.id, 1000L);
+        latencyByPeer.put(medium.id, 2000L);
+        Map<String, Boolean> isLaggingByPeer = new HashMap<>();
+        isLaggingByPeer.put(slow.id, false);
+        isLaggingByPeer.put(fast.id, false);
+        isLaggingByPeer.put(medium.id, false);
+        List<NodeState> peers = new ArrayList<>(Arrays.asList(slow, fast, medium));
+        assertEquals(1, NodeSelectorReplicationService.orderPeersForSyncReplication(peers,
+                isLaggingByPeer, latencyByPeer, 1));
+        assertEquals(Arrays.asList(fast, medium, slow), peers);
+
+        // a peer over the maximum replication lag is updated synchronously, ahead of faster
+        // peers, and raises the synchronous peer count once all slots are taken by lagging peers
+        isLaggingByPeer.put(slow.id, true);
+        assertEquals(1, NodeSelectorReplicationService.orderPeersForSyncReplication(peers,
+                isLaggingByPeer, latencyByPeer, 1));
+        assertEquals(Arrays.asList(slow, fast, medium), peers);
+
+        isLaggingByPeer.put(medium.id, true);
+        assertEquals(2, NodeSelectorReplicationService.orderPeersForSyncReplication(peers,
+                isLaggingByPeer, latencyByPeer, 1));
+        assertEquals(Arrays.asList(medium, slow, fast), peers);
+    }
+
+    private static NodeState createPeerNodeState(String id) {
+        NodeState ns = new NodeState();
+        ns.id = id;
+        ns.documentSelfLink = id;
+        return ns;
+    }
+
+    @Test
+    public void replicationWithSyncPeerReplacesFailedPeer() throws Throwable {
+        setUp(this.nodeCount);
+        final String customFactoryLink = "custom-factory";
+        List<VerificationHost> hosts = new ArrayList<>();
+        List<NodeSelectorReplicationService> replicationServices = setUpCustomNodeSelectors(
+                hosts, customFactoryLink);
+
+        VerificationHost self = hosts.get(0);
+        VerificationHost peer = hosts.get(1);
+        URI childUri = createCustomGroupServices(
+                UriUtils.buildUri(self, customFactoryLink), 1).keySet().iterator().next();
+        ExampleServiceState state = this.host.getServiceState(null, ExampleServiceState.class,
+                childUri);
+
+        // a peer that refuses connections is ordered ahead of the live peer, since no latency
+        // was recorded for either, and must be replaced by it as the synchronous peer
+        NodeGroupState groupState = this.host.getServiceState(null, NodeGroupState.class,
+                UriUtils.buildUri(self, CUSTOM_NODE_GROUP));
+        NodeState selfNode = groupState.nodes.get(self.getId());
+        NodeState unreachable = Utils.clone(groupState.nodes.get(peer.getId()));
+        unreachable.id = "unreachable";
+        unreachable.documentSelfLink = UriUtils.buildUriPath(CUSTOM_NODE_GROUP, unreachable.id);
+        unreachable.groupReference = UriUtils.buildUri(ServiceHost.LOOPBACK_ADDRESS, 1,
+                CUSTOM_NODE_GROUP, null);
+
+        state.counter = 1L;
+        state.documentVersion++;
+        SelectAndForwardRequest req = new SelectAndForwardRequest();
+        req.serviceOptions = EnumSet.of(ServiceOption.REPLICATION, ServiceOption.PERSISTENCE);
+        req.linkedState = state;
+        req.linkedStateDescription = new ServiceDocumentDescription();
+        req.linkedStateDescription.replicationSyncPeerCount = 1;
+        SelectOwnerResponse rsp = new SelectOwnerResponse();
+        rsp.selectedNodes = Arrays.asList(selfNode, unreachable,
+                groupState.nodes.get(peer.getId()));
+
+        TestContext ctx = this.host.testCreate(1);
+        Operation outboundOp = Operation.createPut(childUri)
+                .setBodyNoCloning(state)
+                .setReferer(this.host.getUri())
+                .setExpiration(Utils.getNowMicrosUtc() + this.host.getOperationTimeoutMicros())
+                .setCompletion(ctx.getCompletion());
+        replicationServices.get(0).replicateUpdate(groupState, outboundOp, req, rsp);
+        this.host.testWait(ctx);
+
+        URI indexUri = UriUtils.buildDocumentQueryUri(peer, state.documentSelfLink, false,
+                false, ServiceOption.PERSISTENCE);
+        ExampleServiceState replica = this.host.getServiceState(null,
+                ExampleServiceState.class, indexUri);
+        assertEquals(state.documentVersion, replica.documentVersion);
+        assertEquals(Long.valueOf(1L), replica.counter);
+    }
+
     @Test
     public void replicationLimitedFactor() throws Throwable {
         this.replicationFactor = 3L;
@@ -3090,6 +3956,29 @@ public class TestNodeGroupService {
         return stoppedHosts;
     }
 
+    public static class DeltaReplicationExampleService extends ExampleService {
+        public static final String FACTORY_LINK = ServiceUriPaths.CORE
+                + "/test/delta-replication-examples";
+
+        public DeltaReplicationExampleService() {
+            super();
+            toggleOption(ServiceOption.DELTA_REPLICATION, true);
+            toggleOption(ServiceOption.INSTRUMENTATION, true);
+        }
+    }
+
+    public static class SyncPeerExampleService extends ExampleService {
+        public static final String FACTORY_LINK = ServiceUriPaths.CORE
+                + "/test/sync-peer-examples";
+
+        @Override
+        public ServiceDocument getDocumentTemplate() {
+            ServiceDocument template = super.getDocumentTemplate();
+            template.documentDescription.replicationSyncPeerCount = 1;
+            return template;
+        }
+    }
+
     public static class StopVerificationTestService extends StatefulService {
 
         public Collection<URI> serviceTargets;
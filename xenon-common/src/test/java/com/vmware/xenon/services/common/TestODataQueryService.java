@@ -15,6 +15,7 @@ package com.vmware.xenon.services.common;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.net.URI;
@@ -30,6 +31,7 @@ import org.junit.After;
 import org.junit.Test;
 
 import com.vmware.xenon.common.BasicReusableHostTestCase;
+import com.vmware.xenon.common.ODataUtils;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceDocument;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
@@ -214,6 +216,97 @@ public class TestODataQueryService extends BasicReusableHostTestCase {
         }
     }
 
+    @Test
+    public void skipAndSelect() throws Throwable {
+        ExampleService.ExampleServiceState inState = new ExampleService.ExampleServiceState();
+        int c = 5;
+        List<String> expectedOrder = new ArrayList<>();
+        for (int i = 0; i < c; i++) {
+            inState.documentSelfLink = null;
+            inState.counter = 1L;
+            inState.name = i + "-abcd";
+            postExample(inState);
+            expectedOrder.add(inState.name);
+        }
+
+        // skip + filter + orderBy
+        int skipCount = 2;
+        String queryString = "$filter=counter eq 1";
+        queryString += "&" + "$orderby=name asc";
+        queryString += "&" + "$skip=" + skipCount;
+        doOrderByQueryAndValidateResult(c - skipCount,
+                expectedOrder.subList(skipCount, c), queryString);
+
+        // skip + top + filter + orderBy
+        int topCount = 2;
+        queryString += "&" + "$top=" + topCount;
+        doOrderByQueryAndValidateResult(topCount,
+                expectedOrder.subList(skipCount, skipCount + topCount), queryString);
+
+        // do the same, but through a factory
+        URI u = UriUtils.buildFactoryUri(this.host, ExampleService.class);
+        u = UriUtils.extendUriWithQuery(u, "$filter", "counter eq 1", "$orderby", "name asc",
+                "$skip", "" + skipCount, "$top", "" + topCount);
+        ServiceDocumentQueryResult res = this.host.getFactoryState(u);
+        assertEquals(topCount, (long) res.documentCount);
+        assertEquals(topCount, res.documentLinks.size());
+        assertEquals(topCount, res.documents.size());
+
+        // select + filter, only the selected properties are returned
+        queryString = "$filter=counter eq 1";
+        queryString += "&" + "$select=name,counter";
+        res = doQuery(queryString, true);
+        assertEquals(c, res.documentLinks.size());
+        for (Object document : res.documents.values()) {
+            ExampleServiceState st = Utils.fromJson(document, ExampleServiceState.class);
+            assertNotNull(st.name);
+            assertEquals(1L, (long) st.counter);
+            assertTrue(st.documentSelfLink == null);
+            assertTrue(st.keyValues == null || st.keyValues.isEmpty());
+        }
+
+        // skip can not be combined with limit, use skipto instead
+        this.isFailureExpected = true;
+        try {
+            queryString = "$filter=counter eq 1";
+            queryString += "&" + "$skip=1&$limit=2";
+            doQuery(queryString, true);
+        } finally {
+            this.isFailureExpected = false;
+        }
+
+        // invalid parameters are rejected as bad requests. Top plus skip must fit in the
+        // result limit
+        verifyBadRequest("$filter", "counter eq 1", "$skip", "-1");
+        verifyBadRequest("$filter", "counter eq 1", "$skip", "1", "$limit", "2");
+        verifyBadRequest("$filter", "counter eq 1", "$top", "" + Integer.MAX_VALUE,
+                "$skip", "1");
+    }
+
+    private void verifyBadRequest(String... queryParams) {
+        Operation op = Operation.createGet(UriUtils.extendUriWithQuery(
+                UriUtils.buildUri(this.host, ServiceUriPaths.ODATA_QUERIES), queryParams))
+                .setCompletion((o, e) -> {
+                });
+        assertNull(ODataUtils.toQuery(op));
+        assertEquals(Operation.STATUS_CODE_BAD_REQUEST, op.getStatusCode());
+    }
+
+    @Test
+    public void compiledFilterCache() throws Throwable {
+        String filter = "name eq 'abcd' and counter gt 1";
+        QueryTask.Query first = ODataUtils.compileFilter(filter);
+        QueryTask.Query second = ODataUtils.compileFilter(filter);
+        assertNotNull(first);
+        // the cached query is copied, so callers can modify it
+        assertTrue(first != second);
+        assertEquals(Utils.toJson(first), Utils.toJson(second));
+
+        first.booleanClauses.clear();
+        QueryTask.Query third = ODataUtils.compileFilter(filter);
+        assertEquals(Utils.toJson(second), Utils.toJson(third));
+    }
+
     private void doOrderByQueryAndValidateResult(int c, List<String> expectedOrder,
             String queryString) throws Throwable {
         ServiceDocumentQueryResult res = doQuery(queryString, true);
@@ -1431,6 +1431,169 @@ public class TestQueryTaskService {
         doSortTestOnExampleStates(true, 10);
     }
 
+    @Test
+    public void directQueryWithStreamedResults() throws Throwable {
+        setUpHost();
+        int serviceCount = 100;
+        List<URI> exampleServices = new ArrayList<>();
+        this.host.createExampleServices(this.host, serviceCount, exampleServices, null);
+
+        // explicit page size, the listener follows next page links while writing the response
+        doStreamedQuery(serviceCount, 7);
+        // no page size, the query task factory paginates the query on behalf of the client
+        doStreamedQuery(serviceCount, null);
+    }
+
+    private void doStreamedQuery(int serviceCount, Integer resultLimit) throws Throwable {
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class)
+                        .build())
+                .addOption(QueryOption.EXPAND_CONTENT)
+                .build();
+        task.querySpec.resultLimit = resultLimit;
+
+        String[] body = new String[1];
+        TestContext ctx = this.host.testCreate(1);
+        Operation post = Operation
+                .createPost(UriUtils.buildUri(this.host, ServiceUriPaths.CORE_QUERY_TASKS))
+                .setBody(task)
+                .addRequestHeader(Operation.ACCEPT_HEADER,
+                        Operation.MEDIA_TYPE_APPLICATION_X_NDJSON)
+                .forceRemote()
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        ctx.failIteration(e);
+                        return;
+                    }
+                    if (!Operation.MEDIA_TYPE_APPLICATION_X_NDJSON.equals(o.getContentType())) {
+                        ctx.failIteration(new IllegalStateException(
+                                "Unexpected content type: " + o.getContentType()));
+                        return;
+                    }
+                    body[0] = (String) o.getBodyRaw();
+                    ctx.completeIteration();
+                });
+        this.host.send(post);
+        this.host.testWait(ctx);
+
+        Set<String> links = new HashSet<>();
+        for (String line : body[0].split("\n")) {
+            ExampleServiceState st = Utils.fromJson(line, ExampleServiceState.class);
+            assertNotNull(st.documentSelfLink);
+            links.add(st.documentSelfLink);
+        }
+        assertEquals(serviceCount, links.size());
+    }
+
+    @Test
+    public void directQueryWithResourceLimits() throws Throwable {
+        setUpHost();
+        int serviceCount = 100;
+        List<URI> exampleServices = new ArrayList<>();
+        this.host.createExampleServices(this.host, serviceCount, exampleServices, null);
+
+        // no limits, all results
+        QueryTask task = createExampleQueryTask();
+        ServiceDocumentQueryResult results = doResourceLimitedQuery(task);
+        assertEquals(serviceCount, results.documentLinks.size());
+        assertNull(results.isPartial);
+
+        // scanned document limit
+        int maxScanned = 10;
+        task = createExampleQueryTask();
+        task.querySpec.maxScannedDocumentCount = (long) maxScanned;
+        results = doResourceLimitedQuery(task);
+        assertTrue(results.isPartial);
+        assertTrue(results.documentLinks.size() <= maxScanned);
+
+        // result size limit, the result exceeding the limit is the last one included
+        task = createExampleQueryTask();
+        task.querySpec.maxResultSizeBytes = 1L;
+        results = doResourceLimitedQuery(task);
+        assertTrue(results.isPartial);
+        assertEquals(1, results.documentLinks.size());
+        assertEquals(1, results.documents.size());
+
+        // cancelled before the index processed it: no results
+        task = createExampleQueryTask();
+        task.querySpec.context.isCancelled = true;
+        results = doResourceLimitedQuery(task);
+        assertTrue(results.isPartial);
+        assertTrue(results.documentLinks.isEmpty());
+    }
+
+    private QueryTask createExampleQueryTask() {
+        QueryTask task = QueryTask.Builder.createDirectTask()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class)
+                        .build())
+                .addOption(QueryOption.EXPAND_CONTENT)
+                .build();
+        task.documentKind = QueryTask.KIND;
+        return task;
+    }
+
+    private ServiceDocumentQueryResult doResourceLimitedQuery(QueryTask task) throws Throwable {
+        // PATCH the index directly, so the runtime context of the task is preserved
+        ServiceDocumentQueryResult[] results = new ServiceDocumentQueryResult[1];
+        TestContext ctx = this.host.testCreate(1);
+        Operation patch = Operation
+                .createPatch(UriUtils.buildUri(this.host, ServiceUriPaths.CORE_DOCUMENT_INDEX))
+                .setBodyNoCloning(task)
+                .setCompletion((o, e) -> {
+                    if (e != null) {
+                        ctx.failIteration(e);
+                        return;
+                    }
+                    results[0] = (ServiceDocumentQueryResult) o.getBodyRaw();
+                    ctx.completeIteration();
+                });
+        this.host.send(patch);
+        this.host.testWait(ctx);
+        return results[0];
+    }
+
+    @Test
+    public void cancelQueryTask() throws Throwable {
+        setUpHost();
+        int serviceCount = 100;
+        List<URI> exampleServices = new ArrayList<>();
+        this.host.createExampleServices(this.host, serviceCount, exampleServices, null);
+
+        // no document matches, so the query is retried until the task is cancelled
+        QueryTask task = QueryTask.Builder.create()
+                .setQuery(Query.Builder.create()
+                        .addKindFieldClause(ExampleServiceState.class)
+                        .addFieldClause(ExampleServiceState.FIELD_NAME_NAME,
+                                UUID.randomUUID().toString())
+                        .build())
+                .build();
+        task.querySpec.expectedResultCount = 1L;
+        URI taskUri = this.host.createQueryTaskService(task, false);
+        this.host.waitFor("task was not started", () -> {
+            QueryTask st = this.host.getServiceState(null, QueryTask.class, taskUri);
+            return st.taskInfo.stage == TaskStage.STARTED;
+        });
+
+        QueryTask cancelBody = new QueryTask();
+        cancelBody.taskInfo = TaskState.createAsCancelled();
+        cancelBody.taskInfo.failure = Utils.toServiceErrorResponse(
+                new IllegalStateException("cancelled by test"));
+        TestContext ctx = this.host.testCreate(1);
+        this.host.send(Operation.createPatch(taskUri)
+                .setBody(cancelBody)
+                .setCompletion(ctx.getCompletion()));
+        this.host.testWait(ctx);
+
+        this.host.waitFor("task was not cancelled", () -> {
+            QueryTask st = this.host.getServiceState(null, QueryTask.class, taskUri);
+            return st.taskInfo.stage == TaskStage.CANCELLED;
+        });
+        QueryTask st = this.host.getServiceState(null, QueryTask.class, taskUri);
+        assertTrue(st.results == null || st.results.documentLinks.isEmpty());
+    }
+
     public void doSortTestOnExampleStates(boolean isDirect, int resultLimit) throws Throwable {
         setUpHost();
         int serviceCount = 100;
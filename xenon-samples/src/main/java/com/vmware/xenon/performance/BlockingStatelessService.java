@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.performance;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+
+/**
+ * Simulates a handler blocked on I/O for {@link #BLOCKING_DELAY_MILLIS}. Comparing request
+ * throughput on {@link #SELF_LINK} against {@link #ELASTIC_SELF_LINK}, or running the host with
+ * --executorMode=ELASTIC, shows the cost of blocking the shared work stealing pool
+ */
+public class BlockingStatelessService extends StatelessService {
+
+    public static final String SELF_LINK = PerfUtils.BENCH + "/blocking";
+    public static final String ELASTIC_SELF_LINK = UriUtils.buildUriPath(SELF_LINK, "elastic");
+
+    public static final long BLOCKING_DELAY_MILLIS = Long.getLong(
+            "xenon.BlockingStatelessService.BLOCKING_DELAY_MILLIS", 10);
+
+    public BlockingStatelessService(boolean isElastic) {
+        toggleOption(ServiceOption.BLOCKING_HANDLERS, isElastic);
+    }
+
+    @Override
+    public void handleRequest(Operation op) {
+        try {
+            Thread.sleep(BLOCKING_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            op.fail(e);
+            return;
+        }
+        op.complete();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2014-2016 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, without warranties or
+ * conditions of any kind, EITHER EXPRESS OR IMPLIED.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.vmware.xenon.performance;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceHost.ExecutorMode;
+import com.vmware.xenon.common.UriUtils;
+
+/**
+ * Compares the request throughput of non blocking and blocking handlers, under each executor
+ * mode. For every {@link ExecutorMode} a host is started and
+ * {@link #REQUEST_COUNT} concurrent requests are sent to {@link SimpleStatelessService},
+ * {@link BlockingStatelessService#SELF_LINK} and
+ * {@link BlockingStatelessService#ELASTIC_SELF_LINK}. The throughput of each is logged
+ */
+public class HandlerThroughputBenchmark {
+
+    /**
+     * Hosts the benchmarked services only, so the measurements are not affected by other work
+     */
+    private static class BenchmarkHost extends ServiceHost {
+        @Override
+        public ServiceHost start() throws Throwable {
+            super.start();
+            startDefaultCoreServicesSynchronously();
+            super.startService(new SimpleStatelessService());
+            super.startService(Operation.createPost(UriUtils.buildUri(this,
+                    BlockingStatelessService.SELF_LINK)), new BlockingStatelessService(false));
+            super.startService(Operation.createPost(UriUtils.buildUri(this,
+                    BlockingStatelessService.ELASTIC_SELF_LINK)),
+                    new BlockingStatelessService(true));
+            return this;
+        }
+    }
+
+    public static final int REQUEST_COUNT = Integer.getInteger(
+            "xenon.HandlerThroughputBenchmark.REQUEST_COUNT", 1000);
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final String[] SELF_LINKS = {
+            SimpleStatelessService.SELF_LINK,
+            BlockingStatelessService.SELF_LINK,
+            BlockingStatelessService.ELASTIC_SELF_LINK
+    };
+
+    public static void main(String[] args) throws Throwable {
+        for (ExecutorMode mode : ExecutorMode.values()) {
+            Path sandbox = Files.createTempDirectory(
+                    HandlerThroughputBenchmark.class.getSimpleName());
+            ServiceHost.Arguments hostArgs = new ServiceHost.Arguments();
+            hostArgs.port = 0;
+            hostArgs.sandbox = sandbox;
+            hostArgs.executorMode = mode;
+
+            BenchmarkHost h = new BenchmarkHost();
+            h.initialize(hostArgs);
+            h.start();
+            try {
+                for (String selfLink : SELF_LINKS) {
+                    // first pass warms up the dispatch path and, in elastic mode, the pool
+                    measureThroughput(h, selfLink);
+                    double throughput = measureThroughput(h, selfLink);
+                    h.log(Level.INFO, "executorMode: %s, service: %s, throughput: %.1f ops/sec",
+                            mode, selfLink, throughput);
+                }
+            } finally {
+                h.stop();
+            }
+        }
+    }
+
+    /**
+     * Sends {@link #REQUEST_COUNT} concurrent requests to the service and returns the
+     * completed requests per second
+     */
+    private static double measureThroughput(ServiceHost h, String selfLink) throws Throwable {
+        CountDownLatch latch = new CountDownLatch(REQUEST_COUNT);
+        AtomicInteger failureCount = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            h.sendRequest(Operation.createGet(UriUtils.buildUri(h, selfLink))
+                    .setReferer(h.getUri())
+                    .setCompletion((o, e) -> {
+                        if (e != null) {
+                            failureCount.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }));
+        }
+        if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("requests to " + selfLink + " did not complete");
+        }
+        if (failureCount.get() > 0) {
+            throw new IllegalStateException(failureCount.get() + " requests to " + selfLink
+                    + " failed");
+        }
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        return REQUEST_COUNT / seconds;
+    }
+}
@@ -15,7 +15,9 @@ package com.vmware.xenon.performance;
 
 import java.util.logging.Level;
 
+import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.services.common.ExampleService;
 import com.vmware.xenon.services.common.RootNamespaceService;
 
@@ -46,6 +48,10 @@ public class PerfHost extends ServiceHost {
 
         super.startService(new RootNamespaceService());
         super.startService(new SimpleStatelessService());
+        super.startService(Operation.createPost(UriUtils.buildUri(this,
+                BlockingStatelessService.SELF_LINK)), new BlockingStatelessService(false));
+        super.startService(Operation.createPost(UriUtils.buildUri(this,
+                BlockingStatelessService.ELASTIC_SELF_LINK)), new BlockingStatelessService(true));
         super.startService(SimpleStatefulService.createFactory(PerfUtils.SimpleState.class));
         super.startService(PersistedService.createFactory(PerfUtils.SimpleState.class));
         super.startService(ReplicatedService.createFactory(PerfUtils.SimpleState.class));